@@ -0,0 +1,32 @@
+package com.dasanjos.java.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Class <code>Benchmarks</code> - entry point of <code>target/benchmarks.jar</code>.
+ *
+ * Runs the JMH benchmarks of this package with the GC profiler always on, so
+ * every result comes with its allocation rate per operation
+ * (<code>gc.alloc.rate.norm</code>). The usual JMH command line options are
+ * accepted, e.g. <code>-rf json -rff results.json</code> to write the results
+ * in the format of <code>src/jmh/baseline-results.json</code>, or a regular
+ * expression to select benchmarks.
+ */
+public class Benchmarks {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(commandLine);
+        if (commandLine.getIncludes().isEmpty()) {
+            options.include(Benchmarks.class.getPackage().getName() + ".");
+        }
+        options.addProfiler(GCProfiler.class);
+        new Runner(options.build()).run();
+    }
+}
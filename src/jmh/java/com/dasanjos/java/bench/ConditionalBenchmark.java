@@ -0,0 +1,75 @@
+package com.dasanjos.java.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dasanjos.java.http.BadRequestException;
+import com.dasanjos.java.http.HttpRequest;
+import com.dasanjos.java.http.RequestParser;
+
+/**
+ * Evaluation of the conditional request headers against the entity tag and
+ * date of a file: If-Match and If-None-Match with a list of tags, where the
+ * matching one comes last, and If-Modified-Since, parsed as a date.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConditionalBenchmark {
+
+    private static final String ETAG = "\"9e107d9d372bb6826bd81d3542a419d6\"";
+
+    private static final String OTHER_ETAG = "\"e4d909c290d0fb1ca068ffaddf22cbd0\"";
+
+    private static final String LAST_MODIFIED = "Tue, 15 Nov 1994 08:12:31 GMT";
+
+    /** LAST_MODIFIED in milliseconds since the epoch */
+    private static final long LAST_MODIFIED_MILLIS = 784887151000L;
+
+    private HttpRequest request;
+
+    @Setup
+    public void parse() throws BadRequestException {
+        byte[] bytes = ("GET /index.html HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "If-Match: \"a\", \"b\", " + ETAG + "\r\n"
+                + "If-None-Match: \"c\", \"d\", " + ETAG + "\r\n"
+                + "If-Modified-Since: " + LAST_MODIFIED + "\r\n"
+                + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        request = new RequestParser(".", 8192, 16384, 1024 * 1024).parse(bytes, bytes.length);
+    }
+
+    @Benchmark
+    public boolean ifMatch() {
+        return request.ifMatch(ETAG);
+    }
+
+    @Benchmark
+    public boolean ifNoneMatch() {
+        return request.ifNoneMatch(ETAG);
+    }
+
+    @Benchmark
+    public boolean ifNoneMatchMiss() {
+        return request.ifNoneMatch(OTHER_ETAG);
+    }
+
+    @Benchmark
+    public boolean ifModifiedSince() {
+        return request.ifModifiedSince(LAST_MODIFIED_MILLIS);
+    }
+}
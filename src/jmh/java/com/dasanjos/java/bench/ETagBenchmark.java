@@ -0,0 +1,65 @@
+package com.dasanjos.java.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import paris.boris.java.http.util.CacheUtils;
+import paris.boris.java.http.util.FileMetadata;
+
+/**
+ * Entity tag generation: hashing a whole file with
+ * {@link CacheUtils#generateETag(File)}, and the cached lookup through
+ * {@link CacheUtils#getMetadata(File)} that the server uses per request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ETagBenchmark {
+
+    @Param({ "1024", "65536", "1048576" })
+    public int size;
+
+    private File file;
+
+    @Setup
+    public void createFile() throws IOException {
+        file = File.createTempFile("etag-bench", ".bin");
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        Files.write(file.toPath(), content);
+    }
+
+    @TearDown
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Benchmark
+    public String generateETag() {
+        return CacheUtils.generateETag(file);
+    }
+
+    @Benchmark
+    public FileMetadata cachedMetadata() throws IOException {
+        return CacheUtils.getMetadata(file);
+    }
+}
@@ -0,0 +1,69 @@
+package com.dasanjos.java.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dasanjos.java.http.BadRequestException;
+import com.dasanjos.java.http.HttpRequest;
+import com.dasanjos.java.http.RequestParser;
+
+/**
+ * Parsing of the request line and headers of a received request, for a
+ * minimal request as sent by curl and for a typical browser request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParserBenchmark {
+
+    private static final byte[] CURL = ("GET /index.html HTTP/1.1\r\n"
+            + "Host: localhost:8020\r\n"
+            + "User-Agent: curl/8.5.0\r\n"
+            + "Accept: */*\r\n"
+            + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final byte[] BROWSER = ("GET /sub/a.css?v=3 HTTP/1.1\r\n"
+            + "Host: localhost:8020\r\n"
+            + "Connection: keep-alive\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36\r\n"
+            + "Accept: text/css,*/*;q=0.1\r\n"
+            + "Referer: http://localhost:8020/index.html\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Accept-Language: en-US,en;q=0.9,de;q=0.8\r\n"
+            + "Cookie: session=4f2a9c1e7b3d5a60; theme=dark\r\n"
+            + "If-None-Match: \"d41d8cd98f00b204e9800998ecf8427e\"\r\n"
+            + "If-Modified-Since: Tue, 15 Nov 1994 08:12:31 GMT\r\n"
+            + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private final RequestParser parser = new RequestParser(".", 8192, 16384, 1024 * 1024);
+
+    @Benchmark
+    public HttpRequest curlRequest() throws BadRequestException {
+        return parser.parse(CURL, CURL.length);
+    }
+
+    @Benchmark
+    public HttpRequest browserRequest() throws BadRequestException {
+        return parser.parse(BROWSER, BROWSER.length);
+    }
+
+    /** the browser request with its lazily decoded header values */
+    @Benchmark
+    public String browserRequestWithHeaders() throws BadRequestException {
+        HttpRequest request = parser.parse(BROWSER, BROWSER.length);
+        return request.getUri() + request.getHeader("User-Agent") + request.getHeader("Cookie");
+    }
+}
@@ -0,0 +1,152 @@
+package com.dasanjos.java.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dasanjos.java.http.BadRequestException;
+import com.dasanjos.java.http.HttpRequest;
+import com.dasanjos.java.http.HttpResponse;
+import com.dasanjos.java.http.RequestParser;
+
+import paris.boris.java.http.util.CacheUtils;
+
+/**
+ * Building a response for a parsed request and serialising it, headers and
+ * body, to a channel that discards everything: a small cached page, the
+ * same page gzip compressed, a revalidation answered with 304, a large file
+ * and the listing of a directory with 100 entries (which is only built, as
+ * the server would).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResponseBenchmark {
+
+    private static final int DIRECTORY_ENTRIES = 100;
+
+    private final WritableByteChannel sink = new WritableByteChannel() {
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            src.position(src.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private File root;
+
+    private RequestParser parser;
+
+    private byte[] page;
+
+    private byte[] pageGzip;
+
+    private byte[] pageRevalidation;
+
+    private byte[] largeFile;
+
+    private byte[] directory;
+
+    @Setup
+    public void createDocroot() throws IOException {
+        root = Files.createTempDirectory("response-bench").toFile();
+        char[] text = new char[8 * 1024];
+        Arrays.fill(text, 'x');
+        Files.write(new File(root, "page.html").toPath(),
+                ("<html><body>" + new String(text) + "</body></html>").getBytes(StandardCharsets.ISO_8859_1));
+        byte[] binary = new byte[1024 * 1024];
+        new Random(42).nextBytes(binary);
+        Files.write(new File(root, "large.png").toPath(), binary);
+        File dir = new File(root, "dir");
+        dir.mkdir();
+        for (int i = 0; i < DIRECTORY_ENTRIES; i++) {
+            Files.write(new File(dir, "file-" + i + ".txt").toPath(), new byte[] { 'x' });
+        }
+
+        parser = new RequestParser(root.getPath(), 8192, 16384, 1024 * 1024);
+        String etag = CacheUtils.getMetadata(new File(root, "page.html")).getETag();
+        page = request("GET /page.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        pageGzip = request("GET /page.html HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip\r\n\r\n");
+        pageRevalidation = request("GET /page.html HTTP/1.1\r\nHost: localhost\r\nIf-None-Match: " + etag + "\r\n\r\n");
+        largeFile = request("GET /large.png HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        directory = request("GET /dir HTTP/1.1\r\nHost: localhost\r\n\r\n");
+    }
+
+    private static byte[] request(String request) {
+        return request.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @TearDown
+    public void deleteDocroot() {
+        File dir = new File(root, "dir");
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+        new File(root, "page.html").delete();
+        new File(root, "large.png").delete();
+        root.delete();
+    }
+
+    private long serve(byte[] request) throws IOException {
+        HttpRequest req = parser.parse(request, request.length);
+        return new HttpResponse(req).write(sink);
+    }
+
+    @Benchmark
+    public long smallFile() throws IOException {
+        return serve(page);
+    }
+
+    @Benchmark
+    public long smallFileGzip() throws IOException {
+        return serve(pageGzip);
+    }
+
+    @Benchmark
+    public long notModified() throws IOException {
+        return serve(pageRevalidation);
+    }
+
+    @Benchmark
+    public long largeFile() throws IOException {
+        return serve(largeFile);
+    }
+
+    @Benchmark
+    public HttpResponse directoryListing() throws BadRequestException, IOException {
+        return new HttpResponse(parser.parse(directory, directory.length));
+    }
+}
@@ -0,0 +1,86 @@
+package com.dasanjos.java.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dasanjos.java.http.BadRequestException;
+import com.dasanjos.java.http.Handler;
+import com.dasanjos.java.http.HttpRequest;
+import com.dasanjos.java.http.Method;
+import com.dasanjos.java.http.RequestParser;
+import com.dasanjos.java.http.Router;
+
+/**
+ * Route lookup for a static file falling through to the docroot wildcard,
+ * a literal endpoint and a route with path parameters, among a few dozen
+ * routes. Lookups are expected not to allocate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RouterBenchmark {
+
+    private static final Handler HANDLER = (req, res) -> {
+    };
+
+    private final Router router = new Router();
+
+    private HttpRequest staticFile;
+
+    private HttpRequest literal;
+
+    private HttpRequest parameters;
+
+    @Setup
+    public void setup() throws BadRequestException {
+        router.add(Method.GET, "/*", HANDLER);
+        router.add(Method.GET, "/_metrics", HANDLER);
+        router.add(Method.GET, "/_metrics.json", HANDLER);
+        router.add(Method.GET, "/health", HANDLER);
+        for (int i = 0; i < 10; i++) {
+            router.add(Method.GET, "/api/v" + i + "/users", HANDLER);
+            router.add(Method.POST, "/api/v" + i + "/users", HANDLER);
+            router.add(Method.GET, "/api/v" + i + "/users/{id}/orders/{order}", HANDLER);
+        }
+        router.compile();
+
+        RequestParser parser = new RequestParser(".", 8192, 16384, 1024 * 1024);
+        staticFile = parse(parser, "/sub/a.css?v=3");
+        literal = parse(parser, "/health");
+        parameters = parse(parser, "/api/v7/users/4711/orders/42");
+    }
+
+    private static HttpRequest parse(RequestParser parser, String uri) throws BadRequestException {
+        byte[] request = ("GET " + uri + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        return parser.parse(request, request.length);
+    }
+
+    @Benchmark
+    public Handler staticFile() {
+        return router.find(staticFile);
+    }
+
+    @Benchmark
+    public Handler literal() {
+        return router.find(literal);
+    }
+
+    @Benchmark
+    public Handler parameters() {
+        return router.find(parameters);
+    }
+}
@@ -0,0 +1,236 @@
+package com.dasanjos.java;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+import com.dasanjos.java.http.Method;
+import com.dasanjos.java.http.Status;
+
+/**
+ * Class <code>AccessLog</code> - one line per answered request, written off
+ * the request path.
+ *
+ * Request threads only claim a slot of a fixed ring buffer with a CAS and
+ * copy the values of the entry into it, no lock is taken and nothing is
+ * formatted or allocated. A single background thread drains the published
+ * slots in batches, formats them and writes each batch with one write and
+ * one flush. When the buffer is full the entry is dropped and counted
+ * instead of making the request wait.
+ *
+ * Lines are in logfmt, e.g.
+ * <code>time=2015-06-01T12:00:00.123Z client=127.0.0.1:52344 method=GET uri=/index.html status=200 bytes=1386 duration_us=245</code>.
+ * The duration runs from the parsed request until its response has been
+ * written (BLOCKING mode) or handed to the selector thread (EVENT mode).
+ */
+class AccessLog implements Runnable {
+
+    private static final Logger log = Logger.getLogger(AccessLog.class);
+
+    /** most entries formatted into one write */
+    private static final int BATCH_SIZE = 256;
+
+    /** how long the writer thread sleeps when there is nothing to write */
+    private static final long IDLE_PARK_NANOS = 10000000;
+
+    private final int mask;
+
+    /** sequence number of the entry published in each slot, -1 before the first one */
+    private final AtomicLongArray published;
+
+    private final long[] times;
+
+    private final InetSocketAddress[] clients;
+
+    private final Method[] methods;
+
+    private final String[] uris;
+
+    private final Status[] statuses;
+
+    private final long[] bytes;
+
+    private final long[] durations;
+
+    /** next sequence number to claim */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** next sequence number to write, slots below it can be reused */
+    private final AtomicLong head = new AtomicLong();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final Writer out;
+
+    private final Thread writer;
+
+    private volatile boolean closed;
+
+    /**
+     * @param destination "-" for standard output, otherwise the file to append to
+     * @param capacity number of entries the buffer holds, rounded up to a power of two
+     */
+    AccessLog(String destination, int capacity) throws IOException {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.mask = size - 1;
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        this.times = new long[size];
+        this.clients = new InetSocketAddress[size];
+        this.methods = new Method[size];
+        this.uris = new String[size];
+        this.statuses = new Status[size];
+        this.bytes = new long[size];
+        this.durations = new long[size];
+
+        OutputStream stream = "-".equals(destination) ? System.out : new FileOutputStream(destination, true);
+        this.out = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+        this.writer = new Thread(this, "access-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "access-log-shutdown"));
+    }
+
+    /**
+     * Records an answered request. Never blocks.
+     *
+     * @param client the remote address of the connection, may be null
+     * @param bytesSent length of the response, headers included
+     * @param durationMicros time taken to answer the request
+     */
+    void log(InetSocketAddress client, Method method, String uri, Status status, long bytesSent, long durationMicros) {
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head.get() > mask) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) (sequence & mask);
+        times[slot] = System.currentTimeMillis();
+        clients[slot] = client;
+        methods[slot] = method;
+        uris[slot] = uri;
+        statuses[slot] = status;
+        bytes[slot] = bytesSent;
+        durations[slot] = durationMicros;
+        // publishes the values written above to the writer thread
+        published.lazySet(slot, sequence);
+    }
+
+    /**
+     * @return the number of entries dropped because the buffer was full
+     */
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public void run() {
+        StringBuilder batch = new StringBuilder(BATCH_SIZE * 128);
+        long next = head.get();
+        while (true) {
+            int count = 0;
+            int slot;
+            while (count < BATCH_SIZE && published.get(slot = (int) (next & mask)) == next) {
+                format(batch, slot);
+                clients[slot] = null;
+                uris[slot] = null;
+                next++;
+                count++;
+            }
+            if (count > 0) {
+                head.lazySet(next);
+                try {
+                    out.write(batch.toString());
+                    out.flush();
+                } catch (IOException e) {
+                    log.error("Error writing the access log", e);
+                }
+                batch.setLength(0);
+            } else if (closed) {
+                return;
+            } else {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    private void format(StringBuilder line, int slot) {
+        line.append("time=").append(Instant.ofEpochMilli(times[slot]));
+        line.append(" client=");
+        InetSocketAddress client = clients[slot];
+        if (client != null) {
+            line.append(client.getAddress() != null ? client.getAddress().getHostAddress() : client.getHostString())
+                    .append(':').append(client.getPort());
+        } else {
+            line.append('-');
+        }
+        line.append(" method=").append(methods[slot]);
+        line.append(" uri=");
+        appendQuoted(line, uris[slot]);
+        line.append(" status=").append(statuses[slot].name(), 1, statuses[slot].name().length());
+        line.append(" bytes=").append(bytes[slot]);
+        line.append(" duration_us=").append(durations[slot]);
+        line.append('\n');
+    }
+
+    /**
+     * Quotes values that would otherwise break the line into more fields.
+     */
+    private static void appendQuoted(StringBuilder line, String value) {
+        if (value == null) {
+            line.append('-');
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c <= ' ' || c == '"' || c == '=' || c == '\\' || c == 127;
+        }
+        if (!quote) {
+            line.append(value);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < ' ' || c == 127) {
+                line.append(String.format("\\x%02x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    /**
+     * Writes the entries published so far and stops the writer thread.
+     */
+    void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
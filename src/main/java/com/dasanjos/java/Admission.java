@@ -0,0 +1,227 @@
+package com.dasanjos.java;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.dasanjos.java.http.HttpResponse;
+import com.dasanjos.java.http.Status;
+
+/**
+ * Class <code>Admission</code> - overload protection shared by all
+ * reactors.
+ *
+ * It caps the open connections and the work handed to the pool: tasks that
+ * have been submitted but not started yet, and optionally the tasks in
+ * flight. Whatever is above a cap is answered with 503 and a Retry-After
+ * header by the reactor right away, so a traffic spike is shed at the cost
+ * of a few bytes instead of growing the executor queue, and the latency of
+ * the admitted requests, without bound.
+ *
+ * The adaptive limit follows the latency of the pool tasks (queueing
+ * included), like TCP Vegas or Netflix' gradient limiter: per window of
+ * samples the average latency is compared with its long-term average. While
+ * they are close the limit grows by about its square root, once the short
+ * term latency exceeds the long-term one by more than the tolerance the
+ * limit shrinks in proportion. A limit that is not used is not grown.
+ */
+class Admission {
+
+    /** samples per update of the adaptive limit */
+    private static final int WINDOW = 32;
+
+    /** windows the long-term latency average spans */
+    private static final int LONG_WINDOWS = 20;
+
+    /** short-term latency up to this multiple of the long-term one counts as no load */
+    private static final double TOLERANCE = 1.5;
+
+    /** weight of a new limit estimate */
+    private static final double SMOOTHING = 0.2;
+
+    private static final int MIN_LIMIT = 2;
+
+    private static final int MAX_LIMIT = 10000;
+
+    private final int maxConnections;
+
+    private final int maxQueued;
+
+    private final boolean adaptive;
+
+    private final int retryAfter;
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    /** tasks submitted and not started */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /** tasks submitted and not finished */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final LongAdder rejectedConnections = new LongAdder();
+
+    private final LongAdder shedTasks = new LongAdder();
+
+    private volatile int limit;
+
+    /* adaptive limit state, guarded by this */
+
+    private double estimatedLimit;
+
+    private double longLatency;
+
+    private long windowSum;
+
+    private int windowCount;
+
+    private int windowMaxInFlight;
+
+    Admission(ServerConfig config) {
+        this.maxConnections = config.getMaxConnections();
+        this.maxQueued = config.getMaxQueuedRequests();
+        this.adaptive = config.isAdaptiveConcurrency();
+        this.retryAfter = config.getRetryAfter();
+        this.estimatedLimit = Math.max(MIN_LIMIT, config.getWorkerThreads() * 2);
+        this.limit = (int) estimatedLimit;
+    }
+
+    /**
+     * @return true if the connection may be served, it has to be released
+     * with {@link #connectionClosed()}
+     */
+    boolean tryOpenConnection() {
+        if (connections.incrementAndGet() > maxConnections && maxConnections > 0) {
+            connections.decrementAndGet();
+            rejectedConnections.increment();
+            return false;
+        }
+        return true;
+    }
+
+    void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Called before a task is submitted to the pool.
+     *
+     * @return true if the task may be submitted, it then has to call
+     * {@link #started()} and {@link #finished(long)}
+     */
+    boolean tryAcquire() {
+        int tasks = inFlight.incrementAndGet();
+        if (adaptive && tasks > limit) {
+            inFlight.decrementAndGet();
+            shedTasks.increment();
+            return false;
+        }
+        if (queued.incrementAndGet() > maxQueued && maxQueued > 0) {
+            queued.decrementAndGet();
+            inFlight.decrementAndGet();
+            shedTasks.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Called before a task is submitted to the pool that continues work
+     * admitted before, such as writing a response, and is not shed. It is
+     * counted like the others and has to call {@link #started()} and
+     * {@link #finished(long)} as well.
+     */
+    void acquire() {
+        inFlight.incrementAndGet();
+        queued.incrementAndGet();
+    }
+
+    /**
+     * Called by the pool thread when it starts an admitted task.
+     */
+    void started() {
+        queued.decrementAndGet();
+    }
+
+    /**
+     * Called by the pool thread when an admitted task is done.
+     *
+     * @param submitted System.nanoTime() when the task was submitted, or 0
+     * if its duration says nothing about the load (a connection served for
+     * its lifetime)
+     */
+    void finished(long submitted) {
+        int tasks = inFlight.getAndDecrement();
+        if (adaptive && submitted != 0) {
+            sample(System.nanoTime() - submitted, tasks);
+        }
+    }
+
+    private synchronized void sample(long latency, int tasks) {
+        windowSum += latency;
+        windowMaxInFlight = Math.max(windowMaxInFlight, tasks);
+        if (++windowCount < WINDOW) {
+            return;
+        }
+        double shortLatency = (double) windowSum / windowCount;
+        int maxInFlight = windowMaxInFlight;
+        windowSum = 0;
+        windowCount = 0;
+        windowMaxInFlight = 0;
+
+        if (longLatency == 0) {
+            longLatency = shortLatency;
+        } else {
+            longLatency += (shortLatency - longLatency) / LONG_WINDOWS;
+        }
+        if (longLatency > 2 * shortLatency) {
+            // the load is gone, let the baseline follow the latency down faster
+            longLatency *= 0.95;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longLatency / shortLatency));
+        double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+        if (maxInFlight < estimatedLimit / 2) {
+            // application limited: the latency says nothing about a larger limit
+            newLimit = Math.min(newLimit, estimatedLimit);
+        }
+        estimatedLimit = estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        estimatedLimit = Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, estimatedLimit));
+        limit = (int) estimatedLimit;
+    }
+
+    /**
+     * @return a new 503 response telling the client when to retry, the
+     * connection is closed after it
+     */
+    HttpResponse overloaded() {
+        HttpResponse response = new HttpResponse(Status._503);
+        response.addHeader("Retry-After", String.valueOf(retryAfter));
+        return response;
+    }
+
+    int getConnections() {
+        return connections.get();
+    }
+
+    int getQueued() {
+        return queued.get();
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the current in-flight limit, only enforced if adaptive
+     */
+    int getLimit() {
+        return limit;
+    }
+
+    long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    long getShedTasks() {
+        return shedTasks.sum();
+    }
+}
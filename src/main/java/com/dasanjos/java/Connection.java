@@ -0,0 +1,621 @@
+package com.dasanjos.java;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+import com.dasanjos.java.http.BadRequestException;
+import com.dasanjos.java.http.BufferSegment;
+import com.dasanjos.java.http.HttpRequest;
+import com.dasanjos.java.http.RequestBody;
+import com.dasanjos.java.http.RequestParser;
+import com.dasanjos.java.http.ResponseSegment;
+import com.dasanjos.java.http.ResponseSink;
+import com.dasanjos.java.http.Status;
+import com.dasanjos.java.metrics.Metrics;
+
+/**
+ * Class <code>Connection</code> keeps the state of one client channel: the
+ * bytes received so far and, in EVENT mode, the pending response.
+ *
+ * A connection belongs to one {@link Reactor}. In EVENT mode reading and
+ * writing is only ever done by its selector thread. Pool threads receive complete requests and hand back the encoded
+ * response. In BLOCKING mode the connection is owned by the thread that
+ * currently serves it, and kept with the channel while it waits in the
+ * selector, so pipelined bytes that have already been received are not lost.
+ *
+ * A request body that is streamed ({@link RequestBody}) is fed from the
+ * receive buffer on demand of the handler: in BLOCKING mode the handler's
+ * thread reads it from the socket itself, in EVENT mode the selector thread
+ * reads it while the body's buffer has room.
+ *
+ * A streamed response ({@link com.dasanjos.java.http.ResponseStream}) is
+ * handed over in parts while the handler is still producing it. In EVENT
+ * mode the handler thread blocks while more than a few buffers of it have
+ * not been written by the selector thread yet, in BLOCKING mode it writes
+ * them itself.
+ *
+ * On an HTTPS port all of this goes through a {@link TlsChannel}. Its
+ * handshake and records are processed by pool threads only: in EVENT mode
+ * the selector thread hands every read and write of the connection to a
+ * pool task (see {@link #runTls(boolean)}) and carries on with the result.
+ *
+ * A request that switches a plain HTTP connection to HTTP/2 ends its use
+ * as described above, the connection is handed to an
+ * {@link Http2Connection} with the bytes received after the request. Its
+ * reactor reads and writes it in non-blocking mode from then on, in either
+ * I/O mode.
+ */
+class Connection implements RequestBody.Source, ResponseSink {
+
+    private static final Logger log = Logger.getLogger(Connection.class);
+
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    /** EVENT mode: buffers of a streamed response that may wait for the selector thread */
+    private static final int MAX_UNSENT_BUFFERS = 4;
+
+    /** the longest a blocked handler waits without checking whether the connection was closed */
+    private static final long SEND_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    final SocketChannel channel;
+
+    /** TLS over {@link #channel}, null on a plain HTTP port */
+    final TlsChannel tls;
+
+    /** the channel requests are read from and responses written to: {@link #channel} or {@link #tls} */
+    final ByteChannel io;
+
+    /** the client, for the access log */
+    final InetSocketAddress remoteAddress;
+
+    /** true if the connection may switch to HTTP/2 over cleartext */
+    final boolean h2c;
+
+    /** BLOCKING mode: the request the connection switches to HTTP/2 with, once it has been received */
+    HttpRequest http2Request;
+
+    /** the HTTP/2 connection it has switched to, only used by the selector thread */
+    Http2Connection http2;
+
+    SelectionKey key;
+
+    private final int maxBufferSize;
+
+    private final RequestParser parser;
+
+    private final boolean eventMode;
+
+    private final int responseBufferSize;
+
+    private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    /** segments handed over by the pool thread, taken into {@link #out} by the selector thread */
+    private final Queue<ResponseSegment> handedOver = new ConcurrentLinkedQueue<>();
+
+    private final Deque<ResponseSegment> out = new ArrayDeque<>();
+
+    /** bytes handed over and not written yet */
+    private final AtomicLong unsent = new AtomicLong();
+
+    /** the handler thread waiting for {@link #unsent} to go down, if any */
+    private volatile Thread sender;
+
+    /** set by the pool thread together with the response, read by the selector thread */
+    volatile boolean keepAlive;
+
+    /**
+     * EVENT mode, only used by the selector thread: the pool produces the
+     * responses of the connection, from dispatch until they are handed back
+     */
+    boolean dispatched;
+
+    /** EVENT mode: the selector thread reads the streamed body */
+    boolean readPending;
+
+    /** EVENT mode: the selector thread waits for OP_WRITE to write the response */
+    boolean writePending;
+
+    /** the status to answer with once the requests received before a malformed one are answered */
+    Status error;
+
+    /** the streamed body of the request being answered, until it has been received completely */
+    RequestBody body;
+
+    /** the pending timeout and its {@link TimingWheel} links, only used by the selector thread */
+    TimingWheel.Timeout timeout;
+
+    long deadline;
+
+    int timerBucket = -1;
+
+    /*
+     * EVENT mode with TLS, only used by the selector thread: the reads and
+     * writes requested for the connection, and the results of the pool task
+     * that performed them.
+     */
+
+    /** a pool task is reading or writing the connection */
+    boolean tlsBusy;
+
+    boolean tlsWantRead;
+
+    boolean tlsWantWrite;
+
+    /** bytes were received and have not been processed yet */
+    boolean tlsReceived;
+
+    /** a write was requested and its outcome has not been processed yet */
+    boolean tlsWriteRequested;
+
+    /** the connection is closed once the running task is done */
+    boolean closeRequested;
+
+    int tlsReadCount;
+
+    boolean tlsFlushed;
+
+    IOException tlsFailure;
+
+    Connection timerPrev;
+
+    Connection timerNext;
+
+    private final Reactor reactor;
+
+    private volatile boolean closed;
+
+    /** number of requests received on this connection */
+    private long requestCount;
+
+    /** System.nanoTime() when the pending response was handed over, 0 once it has been written */
+    private volatile long responseReady;
+
+    private long responseBytes;
+
+    /**
+     * @param tlsContext the TLS setup of the port, null for plain HTTP
+     */
+    Connection(SocketChannel channel, ServerConfig config, Reactor reactor, TlsContext tlsContext) {
+        this.channel = channel;
+        this.tls = tlsContext != null ? new TlsChannel(channel, tlsContext.newEngine(), tlsContext) : null;
+        this.io = tls != null ? tls : channel;
+        this.remoteAddress = (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+        this.h2c = config.isHttp2() && tls == null;
+        this.reactor = reactor;
+        this.maxBufferSize = Math.max(config.getMaxRequestSize(), config.getMaxHeaderSize());
+        this.parser = new RequestParser(config.getRootPath(), config.getMaxRequestLine(),
+                config.getMaxHeaderSize(), config.getMaxBodySize(), config.getBodyBufferSize());
+        this.eventMode = config.getIoMode() == ServerConfig.IoMode.EVENT;
+        this.responseBufferSize = config.getResponseBufferSize();
+    }
+
+    /**
+     * Reads the available bytes from the channel into the request buffer.
+     * Received TLS records are decrypted as far as the buffer has room.
+     *
+     * @return the number of bytes read, or -1 if the client closed the connection
+     */
+    int read() throws IOException {
+        if (!in.hasRemaining()) {
+            grow();
+        }
+        if (tls == null) {
+            return channel.read(in);
+        }
+        int total = 0;
+        int count = 0;
+        while (in.hasRemaining() && (count = tls.read(in)) > 0) {
+            total += count;
+        }
+        return total > 0 ? total : count;
+    }
+
+    /**
+     * EVENT mode: reads like {@link #read()}. A request buffer that is full
+     * without a complete request in it does not fail the read, it is
+     * recorded in {@link #error} and answered with 413 before the connection
+     * is closed.
+     *
+     * @return the number of bytes read, or -1 if the client closed the connection
+     */
+    int readRequest() throws IOException {
+        try {
+            return read();
+        } catch (BadRequestException e) {
+            log.info("Bad request from " + channel + ": " + e.getMessage());
+            error = e.getStatus();
+            return 0;
+        }
+    }
+
+    /**
+     * BLOCKING mode: waits for more bytes of the request. Reads through the
+     * socket stream, so the SO_TIMEOUT of the socket applies.
+     *
+     * @return the number of bytes read, or -1 if the client closed the connection
+     */
+    int readBlocking() throws IOException {
+        if (!in.hasRemaining()) {
+            grow();
+        }
+        if (tls != null) {
+            return tls.read(in);
+        }
+        InputStream stream = channel.socket().getInputStream();
+        int count = stream.read(in.array(), in.position(), in.remaining());
+        if (count > 0) {
+            in.position(in.position() + count);
+        }
+        return count;
+    }
+
+    /**
+     * @return true if bytes of a request that is not complete yet have been received
+     */
+    boolean hasPartialRequest() {
+        return in.position() > 0;
+    }
+
+    /**
+     * @return true if received bytes are buffered by the TLS channel, they
+     * do not make the socket readable again
+     */
+    boolean hasBufferedInput() {
+        return tls != null && tls.hasBufferedInput();
+    }
+
+    /**
+     * @return true while the TLS handshake of the connection has not finished
+     */
+    boolean isHandshaking() {
+        return tls != null && tls.isHandshaking();
+    }
+
+    /**
+     * Extracts the complete requests received so far, at most max of them.
+     * Clients pipelining their requests send several before reading the
+     * first response. A request whose body is still streamed ends the batch,
+     * as does a malformed request, which is recorded in {@link #error}, and
+     * a request switching to HTTP/2, whatever follows it is HTTP/2 frames.
+     *
+     * @return the requests in the order they were received, possibly none
+     */
+    List<HttpRequest> nextRequests(int max) {
+        List<HttpRequest> requests = new ArrayList<>(1);
+        try {
+            HttpRequest request;
+            while (requests.size() < max && body == null && (request = nextRequest()) != null) {
+                requests.add(request);
+                if (switchesToHttp2(request)) {
+                    break;
+                }
+            }
+        } catch (BadRequestException e) {
+            log.info("Bad request from " + channel + ": " + e.getMessage());
+            error = e.getStatus();
+        }
+        return requests;
+    }
+
+    /**
+     * Parses the next request and removes it from the request buffer. A body
+     * that has not been received with the header block becomes the streamed
+     * {@link #body}, fed with the bytes of it that are already buffered.
+     *
+     * @return the request, or null if its header block is not complete yet
+     * @throws BadRequestException if the request is malformed or too large
+     */
+    HttpRequest nextRequest() throws BadRequestException {
+        long start = System.nanoTime();
+        HttpRequest request = parser.parse(in.array(), in.position());
+        if (request != null) {
+            Metrics.get().record(Metrics.Phase.PARSE, start);
+            if (requestCount++ > 0) {
+                Metrics.get().requestReused();
+            }
+            in.flip();
+            in.position(request.getLength());
+            in.compact();
+            if (!request.isBodyFinished()) {
+                body = request.getBody();
+                body.setSource(this);
+                try {
+                    feedBody();
+                } catch (BadRequestException e) {
+                    body = null;
+                    throw e;
+                }
+            }
+        }
+        return request;
+    }
+
+    /**
+     * @return true if the connection continues with HTTP/2 after the
+     * request: the client sent the HTTP/2 preface, or asked for an upgrade
+     */
+    boolean switchesToHttp2(HttpRequest request) {
+        return h2c && (request.isHttp2Preface() || request.isHttp2Upgrade());
+    }
+
+    /**
+     * Takes the bytes received after the last request out of the request
+     * buffer, once the connection switches to HTTP/2.
+     */
+    byte[] takeReceived() {
+        byte[] received = Arrays.copyOf(in.array(), in.position());
+        in.clear();
+        return received;
+    }
+
+    /**
+     * Decodes the buffered bytes of the streamed body into the body's buffer.
+     *
+     * @return true if more bytes should be read from the client for it now
+     * @throws BadRequestException if the framing is malformed or the body too large
+     */
+    boolean feedBody() throws BadRequestException {
+        in.flip();
+        try {
+            body.offer(in);
+        } finally {
+            in.compact();
+        }
+        if (body.isFinished()) {
+            // the bytes left in the buffer belong to the next request
+            body = null;
+            return false;
+        }
+        return body.needsInput();
+    }
+
+    /**
+     * Sends 100 Continue if the client waits for it before sending the body.
+     * In EVENT mode with TLS it is encrypted and written by a pool task like
+     * a response.
+     */
+    void sendContinue() throws IOException {
+        if (body.takeContinue()) {
+            ByteBuffer response = RequestBody.continueResponse();
+            if (tls != null && eventMode) {
+                handOver(Collections.<ResponseSegment>singletonList(new BufferSegment(response)));
+                reactor.flush(this);
+                return;
+            }
+            io.write(response);
+            if (response.hasRemaining()) {
+                throw new IOException("Socket buffer full, cannot send 100 Continue");
+            }
+        }
+    }
+
+    /**
+     * Called by the handler thread when it has read all buffered bytes of
+     * the body. In BLOCKING mode it owns the connection and reads from the
+     * socket itself, in EVENT mode the selector thread is asked to.
+     */
+    @Override
+    public boolean demand(RequestBody requestBody) throws IOException {
+        if (reactor.resumeBody(this)) {
+            return false;
+        }
+        sendContinue();
+        if (in.position() == 0 && readBlocking() < 0) {
+            throw new EOFException("Connection closed within the request body");
+        }
+        feedBody();
+        return true;
+    }
+
+    /**
+     * Stops streaming the body once the response is ready: a body that was
+     * not read to its end is not read any further, the connection is closed
+     * after the response.
+     */
+    void endBody() {
+        if (body != null) {
+            body.fail(new EOFException("Request answered before its body was read"));
+            body = null;
+        }
+        readPending = false;
+    }
+
+    /**
+     * Called by the pool thread once the response has been produced. The
+     * segments are written by the selector thread in order, after the ones
+     * sent ahead of them.
+     */
+    void setResponse(List<ResponseSegment> response, boolean keepAlive) {
+        handOver(response);
+        this.keepAlive = keepAlive;
+        this.responseReady = System.nanoTime();
+    }
+
+    /**
+     * Sends the parts of a streamed response ahead of the rest: in BLOCKING
+     * mode the handler's thread writes them, in EVENT mode they are handed
+     * to the selector thread and the handler waits while too many bytes
+     * have not been written yet.
+     */
+    @Override
+    public void send(List<ResponseSegment> segments) throws IOException {
+        if (!eventMode) {
+            try {
+                for (ResponseSegment segment : segments) {
+                    while (!segment.writeTo(io)) {
+                        // a blocking channel always makes progress
+                    }
+                }
+            } finally {
+                for (ResponseSegment segment : segments) {
+                    segment.close();
+                }
+            }
+            return;
+        }
+        if (closed) {
+            throw new EOFException("Connection closed");
+        }
+        handOver(segments);
+        reactor.flush(this);
+        awaitUnsent();
+    }
+
+    @Override
+    public int getBufferSize() {
+        return responseBufferSize;
+    }
+
+    private void handOver(List<ResponseSegment> segments) {
+        long length = 0;
+        for (ResponseSegment segment : segments) {
+            length += segment.length();
+        }
+        unsent.addAndGet(length);
+        handedOver.addAll(segments);
+    }
+
+    private void awaitUnsent() throws IOException {
+        sender = Thread.currentThread();
+        try {
+            while (unsent.get() > (long) MAX_UNSENT_BUFFERS * responseBufferSize) {
+                if (closed) {
+                    throw new EOFException("Connection closed");
+                }
+                LockSupport.parkNanos(this, SEND_PARK_NANOS);
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException("Interrupted while sending the response");
+                }
+            }
+        } finally {
+            sender = null;
+        }
+    }
+
+    /**
+     * Writes as much of the pending response as the channel accepts.
+     *
+     * @return true if everything handed over so far has been written
+     */
+    boolean write() throws IOException {
+        ResponseSegment segment;
+        while ((segment = handedOver.poll()) != null) {
+            responseBytes += segment.length();
+            out.add(segment);
+        }
+        while ((segment = out.peek()) != null) {
+            long length = segment.length();
+            boolean complete = segment.writeTo(io);
+            written(length - segment.length());
+            if (!complete) {
+                return false;
+            }
+            out.poll().close();
+        }
+        if (tls != null && !tls.flush()) {
+            return false;
+        }
+        if (responseBytes > 0) {
+            Metrics.get().bytesSent(responseBytes);
+            responseBytes = 0;
+        }
+        long ready = responseReady;
+        if (ready != 0) {
+            Metrics.get().record(Metrics.Phase.WRITE, ready);
+            responseReady = 0;
+        }
+        return true;
+    }
+
+    /**
+     * EVENT mode with TLS: the pool task performing the reads and writes
+     * requested by the selector thread, which processes the results once it
+     * is done. The write also sends what the handshake produced.
+     */
+    void runTls(boolean read) {
+        try {
+            tlsFailure = null;
+            tlsReadCount = read ? readRequest() : 0;
+            tlsFlushed = tlsReadCount < 0 || write();
+        } catch (IOException e) {
+            tlsFailure = e;
+        }
+    }
+
+    private void written(long count) {
+        if (count > 0 && unsent.addAndGet(-count) <= (long) MAX_UNSENT_BUFFERS * responseBufferSize) {
+            Thread waiting = sender;
+            if (waiting != null) {
+                LockSupport.unpark(waiting);
+            }
+        }
+    }
+
+    /**
+     * Closes the connection and its pending response. Only the thread that
+     * currently owns the connection may close it.
+     */
+    void close() {
+        // also releases a response handed over after the connection was closed
+        ResponseSegment segment;
+        while ((segment = handedOver.poll()) != null) {
+            segment.close();
+        }
+        while ((segment = out.poll()) != null) {
+            segment.close();
+        }
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Thread waiting = sender;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+        if (body != null) {
+            body.fail(new EOFException("Connection closed"));
+        }
+        reactor.connectionClosed();
+        Metrics.get().connectionClosed();
+        if (tls != null) {
+            tls.close();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to do with this connection
+        }
+    }
+
+    private void grow() throws BadRequestException {
+        if (in.capacity() >= maxBufferSize) {
+            // only reached with leading garbage or pipelined bytes behind a maximal request
+            throw new BadRequestException(Status._413, "Request buffer full");
+        }
+        int size = Math.min(in.capacity() * 2, maxBufferSize);
+        ByteBuffer bigger = ByteBuffer.allocate(size);
+        in.flip();
+        bigger.put(in);
+        in = bigger;
+    }
+}
@@ -0,0 +1,1460 @@
+package com.dasanjos.java;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+import com.dasanjos.java.http.BadRequestException;
+import com.dasanjos.java.http.HpackDecoder;
+import com.dasanjos.java.http.HpackEncoder;
+import com.dasanjos.java.http.Http2Exception;
+import com.dasanjos.java.http.HttpRequest;
+import com.dasanjos.java.http.HttpResponse;
+import com.dasanjos.java.http.RequestParser;
+import com.dasanjos.java.http.ResponseSegment;
+import com.dasanjos.java.http.ResponseSink;
+import com.dasanjos.java.http.Status;
+import com.dasanjos.java.metrics.Metrics;
+
+/**
+ * Class <code>Http2Connection</code> serves a plain HTTP connection that has
+ * switched to HTTP/2 (h2c), with the preface of a client that knows the
+ * server speaks it or with an upgrade of an HTTP/1.1 request
+ * http://tools.ietf.org/html/rfc7540
+ *
+ * The frames are read by the {@link Reactor} of the connection, in either
+ * I/O mode: the channel stays in non-blocking mode and no thread waits for
+ * the client. A stream is handed to the pool through the {@link Admission}
+ * as soon as its request has been received, so the
+ * requests of a page share one connection and are answered in parallel, a
+ * slow response does not hold up the ones behind it. The requests are
+ * rebuilt as HTTP/1.1 header blocks and parsed by the {@link RequestParser},
+ * so the handlers see them like any other request. Request bodies are
+ * buffered up to the maximum body size, they are not streamed.
+ *
+ * Responses are written by the pool threads producing them, a frame at a
+ * time under a lock and as far as the socket takes it without blocking.
+ * What it does not take is queued and written by the reactor with OP_WRITE
+ * interest; a handler waits while more than a few buffers are queued, and
+ * the reactor stops reading the connection meanwhile. Header blocks are
+ * HPACK compressed with one encoder per connection. DATA frames only go out as far as the flow-control
+ * windows of the stream and the connection allow, a handler waits for the
+ * client to open them; the windows of the client are opened again as its
+ * DATA frames are received.
+ *
+ * Streams beyond the concurrency limit or the limits of the
+ * {@link Admission} are refused with RST_STREAM, the client may retry them.
+ * The server does not push, and stream priorities are ignored.
+ */
+class Http2Connection {
+
+    private static final Logger log = Logger.getLogger(Http2Connection.class);
+
+    /** http://tools.ietf.org/html/rfc7540#section-3.5 */
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    /** the part of the preface left after the request line and empty header block parsed as a request */
+    private static final int PREFACE_TAIL = 6;
+
+    /* frame types http://tools.ietf.org/html/rfc7540#section-6 */
+
+    private static final int DATA = 0x0;
+
+    private static final int HEADERS = 0x1;
+
+    private static final int PRIORITY = 0x2;
+
+    private static final int RST_STREAM = 0x3;
+
+    private static final int SETTINGS = 0x4;
+
+    private static final int PUSH_PROMISE = 0x5;
+
+    private static final int PING = 0x6;
+
+    private static final int GOAWAY = 0x7;
+
+    private static final int WINDOW_UPDATE = 0x8;
+
+    private static final int CONTINUATION = 0x9;
+
+    /* frame flags */
+
+    private static final int FLAG_END_STREAM = 0x1;
+
+    private static final int FLAG_ACK = 0x1;
+
+    private static final int FLAG_END_HEADERS = 0x4;
+
+    private static final int FLAG_PADDED = 0x8;
+
+    private static final int FLAG_PRIORITY = 0x20;
+
+    /* settings http://tools.ietf.org/html/rfc7540#section-6.5.2 */
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int FRAME_HEADER_LENGTH = 9;
+
+    /** the frame size both sides start with, the largest the server accepts */
+    private static final int DEFAULT_FRAME_SIZE = 16384;
+
+    private static final int MAX_FRAME_SIZE = 16777215;
+
+    /** the flow-control window both sides start with, the server keeps its receive windows at it */
+    private static final int DEFAULT_WINDOW = 65535;
+
+    private static final long MAX_WINDOW = Integer.MAX_VALUE;
+
+    /** buffers of queued frames a handler may add to before it waits for the reactor to write them */
+    private static final int MAX_UNSENT_BUFFERS = 4;
+
+    /** the dynamic table size of the request header decoder */
+    private static final int HEADER_TABLE_SIZE = 4096;
+
+    /** HTTP/1.1 connection headers, a request carrying one is malformed */
+    private static final List<String> CONNECTION_HEADERS = Arrays.asList("connection", "keep-alive",
+            "proxy-connection", "transfer-encoding", "upgrade");
+
+    private static final AtomicInteger openConnections = new AtomicInteger();
+
+    private static final LongAdder streamCount = new LongAdder();
+
+    private final Connection connection;
+
+    /** the HTTP/1.1 request that asked for the upgrade, answered on stream 1; null with prior knowledge */
+    private final HttpRequest upgradeRequest;
+
+    private final ServerConfig config;
+
+    private final RequestHandler requestHandler;
+
+    private final ExecutorService executor;
+
+    private final Admission admission;
+
+    private final Reactor reactor;
+
+    private final RequestParser parser;
+
+    private final HpackDecoder decoder = new HpackDecoder(HEADER_TABLE_SIZE);
+
+    /** the streams that are open or half-closed, until their response has been sent */
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+
+    /** serializes frames and the header blocks encoded for them */
+    private final Object writeLock = new Object();
+
+    /** guarded by writeLock */
+    private final HpackEncoder encoder = new HpackEncoder();
+
+    /** the frames the socket has not taken yet, in order, guarded by writeLock */
+    private final Deque<ByteBuffer> unsent = new ArrayDeque<>();
+
+    /** the bytes in unsent, guarded by writeLock */
+    private long unsentBytes;
+
+    /** the unsent bytes above which handlers wait and the reactor stops reading */
+    private final long maxUnsent;
+
+    /** guards the send windows, handlers wait on it for them to open */
+    private final Object windowLock = new Object();
+
+    /** the send window of the connection, guarded by windowLock */
+    private long sendWindow = DEFAULT_WINDOW;
+
+    /** the client's SETTINGS_INITIAL_WINDOW_SIZE, guarded by windowLock */
+    private long initialWindow = DEFAULT_WINDOW;
+
+    /** the client's SETTINGS_MAX_FRAME_SIZE, the largest DATA frame sent */
+    private volatile int maxFrameSize = DEFAULT_FRAME_SIZE;
+
+    private volatile boolean closed;
+
+    /*
+     * Only used by the reactor.
+     */
+
+    /** the bytes received and not processed yet, a frame of the largest size accepted fits */
+    private final ByteBuffer in = ByteBuffer.allocate(FRAME_HEADER_LENGTH + DEFAULT_FRAME_SIZE);
+
+    /** the bytes received along with the request that switched the connection */
+    private ByteBuffer received;
+
+    private boolean prefaceReceived;
+
+    private final byte[] header = new byte[FRAME_HEADER_LENGTH];
+
+    private final byte[] payload = new byte[DEFAULT_FRAME_SIZE];
+
+    /** the receive window of the connection */
+    private int receiveWindow = DEFAULT_WINDOW;
+
+    /** the highest stream id the client has opened */
+    private int lastStreamId;
+
+    /** the stream a header block is received for, until its last CONTINUATION frame */
+    private int headerStreamId;
+
+    private boolean headerEndStream;
+
+    private byte[] headerBlock = new byte[DEFAULT_FRAME_SIZE];
+
+    private int headerBlockLength;
+
+    private boolean settingsReceived;
+
+    /** the client sent GOAWAY, it opens no further streams */
+    private boolean goingAway;
+
+    Http2Connection(Connection connection, HttpRequest upgradeRequest, ServerConfig config,
+            RequestHandler requestHandler, ExecutorService executor, Admission admission, Reactor reactor) {
+        this.connection = connection;
+        this.upgradeRequest = upgradeRequest != null && upgradeRequest.isHttp2Upgrade() ? upgradeRequest : null;
+        this.config = config;
+        this.requestHandler = requestHandler;
+        this.executor = executor;
+        this.admission = admission;
+        this.reactor = reactor;
+        this.maxUnsent = (long) MAX_UNSENT_BUFFERS * config.getResponseBufferSize();
+        // maximal request lines, HTTP/2 has no such limit besides the header list size
+        this.parser = new RequestParser(config.getRootPath(), config.getMaxHeaderSize(), config.getMaxHeaderSize(),
+                config.getMaxBodySize());
+    }
+
+    /**
+     * @return the number of open HTTP/2 connections
+     */
+    static long getOpenConnections() {
+        return openConnections.get();
+    }
+
+    /**
+     * @return the number of HTTP/2 streams opened so far
+     */
+    static long getStreamCount() {
+        return streamCount.sum();
+    }
+
+    /**
+     * Called by the reactor once the connection has switched: answers the
+     * upgrade request, sends the server's settings and processes what the
+     * client has sent after the request.
+     *
+     * @return false if the connection is to be closed
+     */
+    boolean start() {
+        openConnections.incrementAndGet();
+        received = ByteBuffer.wrap(connection.takeReceived());
+        try {
+            if (upgradeRequest != null && !switchProtocols()) {
+                return false;
+            }
+            writeSettings();
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("HTTP/2 connection " + connection.channel + " failed", e);
+            }
+            return false;
+        }
+        return read();
+    }
+
+    /**
+     * Called by the reactor when the channel is readable: reads what the
+     * client has sent, without blocking, and processes the complete frames.
+     * A client that violates the protocol is sent GOAWAY.
+     *
+     * @return false once the connection is to be closed
+     */
+    boolean read() {
+        try {
+            while (received.hasRemaining()) {
+                int count = Math.min(received.remaining(), in.remaining());
+                ByteBuffer slice = received.slice();
+                slice.limit(count);
+                in.put(slice);
+                received.position(received.position() + count);
+                process();
+            }
+            if (connection.channel.read(in) < 0) {
+                // client closed the connection
+                return false;
+            }
+            process();
+            return true;
+        } catch (Http2Exception e) {
+            log.info("HTTP/2 error on " + connection.channel + ": " + e.getMessage());
+            goAway(e.getErrorCode());
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("HTTP/2 connection " + connection.channel + " failed", e);
+            }
+        } catch (RuntimeException e) {
+            log.error("Runtime Error", e);
+            goAway(Http2Exception.INTERNAL_ERROR);
+        }
+        return false;
+    }
+
+    /**
+     * Processes the preface and the frames received completely, the rest
+     * stays in the buffer until more has been read.
+     */
+    private void process() throws IOException {
+        in.flip();
+        try {
+            if (prefaceReceived || readPreface()) {
+                while (readFrame()) {
+                    // until the frames received so far are processed
+                }
+            }
+        } finally {
+            in.compact();
+        }
+    }
+
+    /**
+     * @return true if streams are open: the connection is not idle while
+     * they are answered, even if the client has nothing to send
+     */
+    boolean hasOpenStreams() {
+        return !streams.isEmpty();
+    }
+
+    /**
+     * Applies the settings the client sent along with the upgrade request and
+     * answers it with 101 Switching Protocols. A request with malformed
+     * settings is answered with 400 instead.
+     *
+     * @return true if the connection continues with HTTP/2
+     */
+    private boolean switchProtocols() throws IOException {
+        try {
+            byte[] settings = Base64.getUrlDecoder().decode(upgradeRequest.getHeader("HTTP2-Settings").trim());
+            if (settings.length % 6 != 0) {
+                throw new IllegalArgumentException("Length " + settings.length + " is not a multiple of 6");
+            }
+            applySettings(settings, settings.length);
+        } catch (IllegalArgumentException | Http2Exception e) {
+            log.info("Bad HTTP2-Settings from " + connection.channel + ": " + e.getMessage());
+            Metrics.get().requestServed(Status._400);
+            Metrics.get().bytesSent(writeHttp1(new HttpResponse(Status._400)));
+            return false;
+        }
+        HttpResponse response = new HttpResponse((ResponseSink) null);
+        response.setStatus(Status._101);
+        response.addHeader("Connection", "Upgrade");
+        response.addHeader("Upgrade", "h2c");
+        Metrics.get().bytesSent(writeHttp1(response));
+        return true;
+    }
+
+    /**
+     * Writes an HTTP/1.1 response ahead of the frames, through the queue of
+     * the frames.
+     *
+     * @return the number of bytes written
+     */
+    private long writeHttp1(HttpResponse response) throws IOException {
+        synchronized (writeLock) {
+            return response.write(new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    int count = src.remaining();
+                    Http2Connection.this.write(new ByteBuffer[] {src});
+                    return count;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return !closed;
+                }
+
+                @Override
+                public void close() {
+                    // the connection goes on with HTTP/2
+                }
+            });
+        }
+    }
+
+    private void writeSettings() throws IOException {
+        ByteBuffer settings = ByteBuffer.allocate(12);
+        settings.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(config.getHttp2MaxConcurrentStreams());
+        settings.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(config.getMaxHeaderSize());
+        settings.flip();
+        writeFrame(SETTINGS, 0, 0, settings);
+    }
+
+    /**
+     * Reads the rest of the client preface: what follows the request line
+     * of a client with prior knowledge, all of it after an upgrade. The
+     * request of an upgrade is answered on stream 1 once it has been read.
+     *
+     * @return false if it has not been received completely yet
+     */
+    private boolean readPreface() throws IOException {
+        int length = upgradeRequest != null ? PREFACE.length : PREFACE_TAIL;
+        if (in.remaining() < length) {
+            return false;
+        }
+        for (int i = PREFACE.length - length; i < PREFACE.length; i++) {
+            if (in.get() != PREFACE[i]) {
+                throw connectionError(Http2Exception.PROTOCOL_ERROR, "Invalid connection preface");
+            }
+        }
+        prefaceReceived = true;
+        if (upgradeRequest != null) {
+            // http://tools.ietf.org/html/rfc7540#section-3.2 the request is answered on stream 1
+            Stream stream = open(1);
+            stream.request = upgradeRequest;
+            stream.receivedAll = true;
+            dispatch(stream);
+        }
+        return true;
+    }
+
+    /**
+     * Processes the next frame, if it has been received completely. Errors
+     * of a single stream reset it, errors of the connection are thrown.
+     *
+     * @return false if the buffer holds no complete frame
+     */
+    private boolean readFrame() throws IOException {
+        if (in.remaining() < FRAME_HEADER_LENGTH) {
+            return false;
+        }
+        int pos = in.position();
+        int length = (in.get(pos) & 0xff) << 16 | (in.get(pos + 1) & 0xff) << 8 | in.get(pos + 2) & 0xff;
+        if (length > DEFAULT_FRAME_SIZE) {
+            throw connectionError(Http2Exception.FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+        }
+        if (in.remaining() < FRAME_HEADER_LENGTH + length) {
+            return false;
+        }
+        in.get(header);
+        in.get(payload, 0, length);
+        int type = header[3] & 0xff;
+        int flags = header[4] & 0xff;
+        int streamId = getInt(header, 5) & 0x7fffffff;
+        if (!settingsReceived && type != SETTINGS) {
+            throw connectionError(Http2Exception.PROTOCOL_ERROR, "Preface not followed by SETTINGS");
+        }
+        if (headerStreamId != 0 && (type != CONTINUATION || streamId != headerStreamId)) {
+            throw connectionError(Http2Exception.PROTOCOL_ERROR, "Header block interrupted");
+        }
+        try {
+            switch (type) {
+            case DATA:
+                onData(streamId, flags, length);
+                break;
+            case HEADERS:
+                onHeaders(streamId, flags, length);
+                break;
+            case PRIORITY:
+                onPriority(streamId, length);
+                break;
+            case RST_STREAM:
+                onResetStream(streamId, length);
+                break;
+            case SETTINGS:
+                onSettings(streamId, flags, length);
+                break;
+            case PUSH_PROMISE:
+                throw connectionError(Http2Exception.PROTOCOL_ERROR, "PUSH_PROMISE from a client");
+            case PING:
+                onPing(streamId, flags, length);
+                break;
+            case GOAWAY:
+                onGoAway(streamId);
+                break;
+            case WINDOW_UPDATE:
+                onWindowUpdate(streamId, length);
+                break;
+            case CONTINUATION:
+                onContinuation(streamId, flags, length);
+                break;
+            default:
+                // unknown frame types are ignored
+            }
+        } catch (Http2Exception e) {
+            if (e.getStreamId() == 0) {
+                throw e;
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Resetting stream " + e.getStreamId() + " of " + connection.channel + ": " + e.getMessage());
+            }
+            reset(e.getStreamId(), e.getErrorCode());
+        }
+        return true;
+    }
+
+    private void onData(int streamId, int flags, int length) throws IOException {
+        if (streamId == 0) {
+            throw connectionError(Http2Exception.PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        if (streamId > lastStreamId) {
+            throw connectionError(Http2Exception.PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+        }
+        int start = padding(flags, length);
+        int end = length - (start > 0 ? payload[0] & 0xff : 0);
+        // the whole frame counts against the windows, padding included
+        if (length > receiveWindow) {
+            throw connectionError(Http2Exception.FLOW_CONTROL_ERROR, "Connection window exceeded");
+        }
+        receiveWindow -= length;
+        if (receiveWindow <= DEFAULT_WINDOW / 2) {
+            writeWindowUpdate(0, DEFAULT_WINDOW - receiveWindow);
+            receiveWindow = DEFAULT_WINDOW;
+        }
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            // reset or answered meanwhile, frames the client sent before it knew are ignored
+            return;
+        }
+        if (stream.receivedAll) {
+            throw streamError(Http2Exception.STREAM_CLOSED, streamId, "DATA after END_STREAM");
+        }
+        if (length > stream.receiveWindow) {
+            throw streamError(Http2Exception.FLOW_CONTROL_ERROR, streamId, "Stream window exceeded");
+        }
+        stream.receiveWindow -= length;
+        if (stream.error == null) {
+            stream.receive(payload, start, end - start, config.getMaxBodySize());
+        }
+        if ((flags & FLAG_END_STREAM) != 0) {
+            stream.receivedAll = true;
+            received(stream);
+        } else if (stream.receiveWindow <= DEFAULT_WINDOW / 2) {
+            writeWindowUpdate(streamId, DEFAULT_WINDOW - stream.receiveWindow);
+            stream.receiveWindow = DEFAULT_WINDOW;
+        }
+        if (stream.error == Status._413 && !stream.dispatched) {
+            // answered right away, the rest of the body is not read
+            log.info("Bad request from " + connection.channel + ": Request body exceeds " + config.getMaxBodySize()
+                    + " bytes");
+            dispatch(stream);
+        }
+    }
+
+    private void onHeaders(int streamId, int flags, int length) throws Http2Exception {
+        if (streamId == 0) {
+            throw connectionError(Http2Exception.PROTOCOL_ERROR, "HEADERS on stream 0");
+        }
+        int start = padding(flags, length);
+        int end = length - (start > 0 ? payload[0] & 0xff : 0);
+        if ((flags & FLAG_PRIORITY) != 0) {
+            start += 5;
+            if (start > end) {
+                throw connectionError(Http2Exception.PROTOCOL_ERROR, "HEADERS too short for its priority");
+            }
+        }
+        headerBlockLength = 0;
+        appendHeaderBlock(start, end);
+        headerStreamId = streamId;
+        headerEndStream = (flags & FLAG_END_STREAM) != 0;
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            endHeaders();
+        }
+    }
+
+    private void onContinuation(int streamId, int flags, int length) throws Http2Exception {
+        if (headerStreamId == 0) {
+            throw connectionError(Http2Exception.PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+        }
+        appendHeaderBlock(0, length);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            endHeaders();
+        }
+    }
+
+    private void appendHeaderBlock(int start, int end) throws Http2Exception {
+        int length = end - start;
+        // a compressed block is never larger than the list it decodes to
+        if (headerBlockLength + length > config.getMaxHeaderSize() + DEFAULT_FRAME_SIZE) {
+            throw connectionError(Http2Exception.PROTOCOL_ERROR, "Header block too large");
+        }
+        if (headerBlockLength + length > headerBlock.length) {
+            headerBlock = Arrays.copyOf(headerBlock, Math.max(headerBlock.length * 2, headerBlockLength + length));
+        }
+        System.arraycopy(payload, start, headerBlock, headerBlockLength, length);
+        headerBlockLength += length;
+    }
+
+    /**
+     * Decodes a complete header block: the request of a new stream, or the
+     * trailers ending the body of an open one.
+     */
+    private void endHeaders() throws Http2Exception {
+        int streamId = headerStreamId;
+        headerStreamId = 0;
+        // always decoded, the dynamic table has to stay in step with the client's
+        List<String> fields = new ArrayList<>();
+        decoder.decode(headerBlock, headerBlockLength, fields);
+
+        if (streamId <= lastStreamId) {
+            Stream stream = streams.get(streamId);
+            if (stream == null) {
+                // reset meanwhile
+                return;
+            }
+            if (stream.receivedAll) {
+                throw streamError(Http2Exception.STREAM_CLOSED, streamId, "HEADERS after END_STREAM");
+            }
+            if (!headerEndStream) {
+                throw streamError(Http2Exception.PROTOCOL_ERROR, streamId, "Trailers without END_STREAM");
+            }
+            // the trailers are not passed on
+            stream.receivedAll = true;
+            received(stream);
+            return;
+        }
+        if (streamId % 2 == 0) {
+            throw connectionError(Http2Exception.PROTOCOL_ERROR, "Stream " + streamId + " opened by the client");
+        }
+        lastStreamId = streamId;
+        if (goingAway) {
+            return;
+        }
+        if (streams.size() >= config.getHttp2MaxConcurrentStreams()) {
+            throw streamError(Http2Exception.REFUSED_STREAM, streamId, "Too many concurrent streams");
+        }
+        Stream stream = open(streamId);
+        stream.head = toHeaderBlock(streamId, fields, stream);
+        if (headerEndStream) {
+            stream.receivedAll = true;
+            received(stream);
+        }
+    }
+
+    /**
+     * Rebuilds the request as an HTTP/1.1 header block (without its
+     * Content-Length), checking it is well-formed
+     * http://tools.ietf.org/html/rfc7540#section-8.1.2
+     */
+    private String toHeaderBlock(int streamId, List<String> fields, Stream stream) throws Http2Exception {
+        String method = null;
+        String scheme = null;
+        String path = null;
+        String authority = null;
+        boolean host = false;
+        // content-length and cookie are not appended to the headers, a pseudo-header after them is caught too
+        boolean regular = false;
+        StringBuilder headers = new StringBuilder(256);
+        StringBuilder cookies = null;
+        for (int i = 0; i < fields.size(); i += 2) {
+            String name = fields.get(i);
+            String value = fields.get(i + 1);
+            if (!isValid(name, true) || !isValid(value, false)) {
+                throw streamError(Http2Exception.PROTOCOL_ERROR, streamId, "Malformed header field");
+            }
+            if (name.startsWith(":")) {
+                if (regular) {
+                    throw streamError(Http2Exception.PROTOCOL_ERROR, streamId, "Pseudo-header after regular header");
+                }
+                if (name.equals(":method") && method == null) {
+                    method = value;
+                } else if (name.equals(":scheme") && scheme == null) {
+                    scheme = value;
+                } else if (name.equals(":path") && path == null) {
+                    path = value;
+                } else if (name.equals(":authority") && authority == null) {
+                    authority = value;
+                } else {
+                    throw streamError(Http2Exception.PROTOCOL_ERROR, streamId, "Invalid pseudo-header " + name);
+                }
+                continue;
+            }
+            regular = true;
+            if (CONNECTION_HEADERS.contains(name) || name.equals("te") && !value.equals("trailers")) {
+                throw streamError(Http2Exception.PROTOCOL_ERROR, streamId, "Connection header " + name);
+            } else if (name.equals("content-length")) {
+                try {
+                    stream.expectedLength = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw streamError(Http2Exception.PROTOCOL_ERROR, streamId, "Invalid content-length");
+                }
+            } else if (name.equals("cookie")) {
+                // http://tools.ietf.org/html/rfc7540#section-8.1.2.5
+                cookies = cookies == null ? new StringBuilder(value) : cookies.append("; ").append(value);
+            } else {
+                host |= name.equals("host");
+                headers.append(name).append(": ").append(value).append("\r\n");
+            }
+        }
+        if (method == null || scheme == null || path == null || path.isEmpty() || path.indexOf(' ') >= 0) {
+            throw streamError(Http2Exception.PROTOCOL_ERROR, streamId, "Missing or invalid pseudo-headers");
+        }
+        StringBuilder head = new StringBuilder(headers.length() + path.length() + 64);
+        head.append(method).append(' ').append(path).append(" HTTP/2.0\r\n");
+        if (authority != null && !host) {
+            head.append("Host: ").append(authority).append("\r\n");
+        }
+        head.append(headers);
+        if (cookies != null) {
+            head.append("Cookie: ").append(cookies).append("\r\n");
+        }
+        return head.toString();
+    }
+
+    /**
+     * @return false for names with upper case letters or separators, and for
+     * values with line breaks or NUL, which would change the meaning of the
+     * rebuilt header block
+     */
+    private static boolean isValid(String field, boolean name) {
+        if (name && field.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\r' || c == '\n' || c == 0 || name && (c <= ' ' || c >= 'A' && c <= 'Z' || c == ':' && i > 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The request of a stream has been received completely: it is parsed and
+     * handed to the pool, unless it has been answered already.
+     */
+    private void received(Stream stream) throws Http2Exception {
+        if (stream.dispatched) {
+            return;
+        }
+        if (stream.error == null) {
+            if (stream.expectedLength >= 0 && stream.expectedLength != stream.bodyLength) {
+                throw streamError(Http2Exception.PROTOCOL_ERROR, stream.id, "Body does not match content-length");
+            }
+            byte[] head = (stream.head + (stream.bodyLength > 0 || stream.expectedLength >= 0
+                    ? "Content-Length: " + stream.bodyLength + "\r\n\r\n" : "\r\n"))
+                    .getBytes(StandardCharsets.ISO_8859_1);
+            byte[] data = Arrays.copyOf(head, head.length + stream.bodyLength);
+            if (stream.body != null) {
+                System.arraycopy(stream.body, 0, data, head.length, stream.bodyLength);
+            }
+            try {
+                stream.request = parser.parse(data, data.length);
+            } catch (BadRequestException e) {
+                log.info("Bad request from " + connection.channel + ": " + e.getMessage());
+                stream.error = e.getStatus();
+            }
+            stream.head = null;
+            stream.body = null;
+        }
+        dispatch(stream);
+    }
+
+    /**
+     * Hands a stream to the pool to be answered. A stream beyond the limits
+     * of the {@link Admission} is refused.
+     */
+    private void dispatch(final Stream stream) {
+        stream.dispatched = true;
+        if (!admission.tryAcquire()) {
+            reset(stream.id, Http2Exception.REFUSED_STREAM);
+            return;
+        }
+        final long submitted = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                admission.started();
+                try {
+                    serve(stream);
+                } finally {
+                    admission.finished(submitted);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            admission.finished(submitted);
+            reset(stream.id, Http2Exception.REFUSED_STREAM);
+        }
+    }
+
+    /**
+     * Produces and sends the response of a stream, on a pool thread. A
+     * handler that fails once its response is streamed, or a stream reset
+     * by the client, ends it with RST_STREAM.
+     */
+    private void serve(Stream stream) {
+        if (stream.isReset()) {
+            // reset before the pool got to it, nothing may be sent on it any more
+            streams.remove(stream.id);
+            return;
+        }
+        HttpRequest req = stream.request;
+        long start = System.nanoTime();
+        try {
+            HttpResponse res;
+            if (stream.error != null) {
+                res = new HttpResponse(stream.error);
+            } else {
+                req.log();
+                res = requestHandler.respond(req, stream);
+            }
+            Metrics.get().record(Metrics.Phase.HANDLE, start);
+            Metrics.get().requestServed(res.getStatus());
+            stream.sendResponse(res);
+            Metrics.get().bytesSent(stream.bytesSent);
+            if (req != null) {
+                requestHandler.logAccess(connection, req, res, stream.bytesSent, start);
+            }
+            if (!stream.receivedAll) {
+                // answered before the body was received, the client may stop sending it
+                reset(stream.id, Http2Exception.NO_ERROR);
+            }
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Stream " + stream.id + " of " + connection.channel + " failed", e);
+            }
+            if (!stream.isReset()) {
+                reset(stream.id, Http2Exception.INTERNAL_ERROR);
+            }
+        } catch (Exception e) {
+            log.error("Runtime Error", e);
+            reset(stream.id, Http2Exception.INTERNAL_ERROR);
+        } finally {
+            streams.remove(stream.id);
+        }
+    }
+
+    private Stream open(int streamId) {
+        Stream stream = new Stream(streamId);
+        synchronized (windowLock) {
+            stream.sendWindow = initialWindow;
+        }
+        streams.put(streamId, stream);
+        streamCount.increment();
+        lastStreamId = Math.max(lastStreamId, streamId);
+        return stream;
+    }
+
+    private void onPriority(int streamId, int length) throws Http2Exception {
+        if (streamId == 0) {
+            throw connectionError(Http2Exception.PROTOCOL_ERROR, "PRIORITY on stream 0");
+        }
+        if (length != 5) {
+            throw streamError(Http2Exception.FRAME_SIZE_ERROR, streamId, "PRIORITY of " + length + " bytes");
+        }
+        // priorities are not supported, streams are answered as the pool gets to them
+    }
+
+    private void onResetStream(int streamId, int length) throws Http2Exception {
+        if (streamId == 0 || streamId > lastStreamId) {
+            throw connectionError(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId);
+        }
+        if (length != 4) {
+            throw connectionError(Http2Exception.FRAME_SIZE_ERROR, "RST_STREAM of " + length + " bytes");
+        }
+        Stream stream = streams.remove(streamId);
+        if (stream != null) {
+            synchronized (windowLock) {
+                stream.reset = true;
+                windowLock.notifyAll();
+            }
+        }
+    }
+
+    private void onSettings(int streamId, int flags, int length) throws IOException {
+        if (streamId != 0) {
+            throw connectionError(Http2Exception.PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (length != 0) {
+                throw connectionError(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS ACK with a payload");
+            }
+            return;
+        }
+        if (length % 6 != 0) {
+            throw connectionError(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS of " + length + " bytes");
+        }
+        settingsReceived = true;
+        applySettings(payload, length);
+        writeFrame(SETTINGS, FLAG_ACK, 0);
+    }
+
+    private void applySettings(byte[] settings, int length) throws Http2Exception {
+        for (int i = 0; i < length; i += 6) {
+            int id = (settings[i] & 0xff) << 8 | settings[i + 1] & 0xff;
+            long value = getInt(settings, i + 2) & 0xffffffffL;
+            switch (id) {
+            case SETTINGS_HEADER_TABLE_SIZE:
+                synchronized (writeLock) {
+                    encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                }
+                break;
+            case SETTINGS_ENABLE_PUSH:
+                if (value > 1) {
+                    throw connectionError(Http2Exception.PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+                }
+                break;
+            case SETTINGS_INITIAL_WINDOW_SIZE:
+                if (value > MAX_WINDOW) {
+                    throw connectionError(Http2Exception.FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                }
+                updateInitialWindow(value);
+                break;
+            case SETTINGS_MAX_FRAME_SIZE:
+                if (value < DEFAULT_FRAME_SIZE || value > MAX_FRAME_SIZE) {
+                    throw connectionError(Http2Exception.PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+                }
+                maxFrameSize = (int) value;
+                break;
+            default:
+                // other settings only concern frames the server does not send
+            }
+        }
+    }
+
+    /**
+     * Applies a new initial window size to the send windows of all open
+     * streams http://tools.ietf.org/html/rfc7540#section-6.9.2
+     */
+    private void updateInitialWindow(long value) throws Http2Exception {
+        synchronized (windowLock) {
+            long delta = value - initialWindow;
+            initialWindow = value;
+            for (Stream stream : streams.values()) {
+                stream.sendWindow += delta;
+                if (stream.sendWindow > MAX_WINDOW) {
+                    throw connectionError(Http2Exception.FLOW_CONTROL_ERROR, "Stream window overflow");
+                }
+            }
+            windowLock.notifyAll();
+        }
+    }
+
+    private void onPing(int streamId, int flags, int length) throws IOException {
+        if (streamId != 0) {
+            throw connectionError(Http2Exception.PROTOCOL_ERROR, "PING on stream " + streamId);
+        }
+        if (length != 8) {
+            throw connectionError(Http2Exception.FRAME_SIZE_ERROR, "PING of " + length + " bytes");
+        }
+        if ((flags & FLAG_ACK) == 0) {
+            writeFrame(PING, FLAG_ACK, 0, ByteBuffer.wrap(Arrays.copyOf(payload, 8)));
+        }
+    }
+
+    /**
+     * The client opens no further streams. The connection stays open until
+     * the client closes it, the streams it has opened are still answered.
+     */
+    private void onGoAway(int streamId) throws Http2Exception {
+        if (streamId != 0) {
+            throw connectionError(Http2Exception.PROTOCOL_ERROR, "GOAWAY on stream " + streamId);
+        }
+        goingAway = true;
+    }
+
+    private void onWindowUpdate(int streamId, int length) throws Http2Exception {
+        if (length != 4) {
+            throw connectionError(Http2Exception.FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + length + " bytes");
+        }
+        int increment = getInt(payload, 0) & 0x7fffffff;
+        if (increment == 0) {
+            if (streamId == 0) {
+                throw connectionError(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+            }
+            throw streamError(Http2Exception.PROTOCOL_ERROR, streamId, "WINDOW_UPDATE of 0");
+        }
+        if (streamId > lastStreamId) {
+            throw connectionError(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream " + streamId);
+        }
+        synchronized (windowLock) {
+            if (streamId == 0) {
+                if (sendWindow + increment > MAX_WINDOW) {
+                    throw connectionError(Http2Exception.FLOW_CONTROL_ERROR, "Connection window overflow");
+                }
+                sendWindow += increment;
+            } else {
+                Stream stream = streams.get(streamId);
+                if (stream == null) {
+                    return;
+                }
+                if (stream.sendWindow + increment > MAX_WINDOW) {
+                    throw streamError(Http2Exception.FLOW_CONTROL_ERROR, streamId, "Stream window overflow");
+                }
+                stream.sendWindow += increment;
+            }
+            windowLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return the offset of the frame's data behind its pad length
+     * http://tools.ietf.org/html/rfc7540#section-6.1
+     */
+    private int padding(int flags, int length) throws Http2Exception {
+        if ((flags & FLAG_PADDED) == 0) {
+            return 0;
+        }
+        if (length == 0 || (payload[0] & 0xff) >= length) {
+            throw connectionError(Http2Exception.PROTOCOL_ERROR, "Padding exceeds the frame");
+        }
+        return 1;
+    }
+
+    /**
+     * Takes as much of the send windows of the stream and the connection as
+     * a DATA frame can carry, waiting while either is closed. A window the
+     * client keeps closed for the write timeout fails the stream like a
+     * client not reading.
+     *
+     * @return the number of bytes that may be sent, at least 1
+     */
+    private int reserve(Stream stream, int wanted) throws IOException {
+        long timeout = config.getWriteTimeout();
+        long deadline = TimingWheel.now() + timeout;
+        synchronized (windowLock) {
+            while (true) {
+                if (closed || stream.reset) {
+                    throw new EOFException("Stream closed");
+                }
+                if (sendWindow > 0 && stream.sendWindow > 0) {
+                    break;
+                }
+                long wait = deadline - TimingWheel.now();
+                if (timeout > 0 && wait <= 0) {
+                    throw new IOException("Flow-control window closed for " + timeout + " ms");
+                }
+                try {
+                    windowLock.wait(timeout > 0 ? wait : 0);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the flow-control window");
+                }
+            }
+            int count = (int) Math.min(Math.min(wanted, maxFrameSize), Math.min(sendWindow, stream.sendWindow));
+            sendWindow -= count;
+            stream.sendWindow -= count;
+            return count;
+        }
+    }
+
+    /**
+     * Writes a frame, with nothing interleaved.
+     *
+     * @return the number of bytes written
+     */
+    private long writeFrame(int type, int flags, int streamId, ByteBuffer... payloadBuffers) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[payloadBuffers.length + 1];
+        long length = 0;
+        for (int i = 0; i < payloadBuffers.length; i++) {
+            buffers[i + 1] = payloadBuffers[i];
+            length += payloadBuffers[i].remaining();
+        }
+        buffers[0] = frameHeader((int) length, type, flags, streamId);
+        synchronized (writeLock) {
+            write(buffers);
+        }
+        return FRAME_HEADER_LENGTH + length;
+    }
+
+    /**
+     * Encodes a header block and writes it as a HEADERS frame followed by as
+     * many CONTINUATION frames as its size takes. The block is written in
+     * the order it was encoded, the client's decoder depends on it.
+     *
+     * @return the number of bytes written
+     */
+    private long writeHeaders(int streamId, List<String> fields, boolean endStream) throws IOException {
+        synchronized (writeLock) {
+            byte[] block = encoder.encode(fields);
+            int frameSize = maxFrameSize;
+            List<ByteBuffer> buffers = new ArrayList<>(2);
+            int pos = 0;
+            do {
+                int length = Math.min(frameSize, block.length - pos);
+                boolean last = pos + length == block.length;
+                int flags = (last ? FLAG_END_HEADERS : 0) | (pos == 0 && endStream ? FLAG_END_STREAM : 0);
+                buffers.add(frameHeader(length, pos == 0 ? HEADERS : CONTINUATION, flags, streamId));
+                buffers.add(ByteBuffer.wrap(block, pos, length));
+                pos += length;
+            } while (pos < block.length);
+            write(buffers.toArray(new ByteBuffer[0]));
+            return block.length + (long) buffers.size() / 2 * FRAME_HEADER_LENGTH;
+        }
+    }
+
+    /**
+     * Writes the buffers of a frame as far as the socket takes them without
+     * blocking, unless frames are queued already, and queues the rest for
+     * the reactor. Called with writeLock held.
+     */
+    private void write(ByteBuffer[] buffers) throws IOException {
+        if (closed) {
+            throw new EOFException("Connection closed");
+        }
+        boolean flushed = unsent.isEmpty();
+        if (flushed) {
+            connection.channel.write(buffers);
+        }
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                // the caller may reuse its buffer once the frame is handed over
+                ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+                copy.put(buffer);
+                copy.flip();
+                unsent.add(copy);
+                unsentBytes += copy.remaining();
+            }
+        }
+        if (flushed && !unsent.isEmpty()) {
+            reactor.flush(connection);
+        }
+    }
+
+    /**
+     * Called by the reactor: writes the queued frames as far as the socket
+     * takes them, and lets the handlers waiting for that carry on.
+     *
+     * @return true if no frames are left queued
+     */
+    boolean flush() throws IOException {
+        synchronized (writeLock) {
+            if (!unsent.isEmpty()) {
+                unsentBytes -= connection.channel.write(unsent.toArray(new ByteBuffer[unsent.size()]));
+                while (!unsent.isEmpty() && !unsent.peek().hasRemaining()) {
+                    unsent.poll();
+                }
+                if (unsentBytes <= maxUnsent) {
+                    writeLock.notifyAll();
+                }
+            }
+            return unsent.isEmpty();
+        }
+    }
+
+    /**
+     * @return false while so many frames are queued that the reactor should
+     * not read further frames, which may be answered with more
+     */
+    boolean wantsRead() {
+        synchronized (writeLock) {
+            return unsentBytes <= maxUnsent;
+        }
+    }
+
+    /**
+     * Called by a handler after writing a frame: waits while too many frames
+     * are queued. The reactor closes a connection whose client does not take
+     * them within the write timeout.
+     */
+    private void awaitUnsent() throws IOException {
+        synchronized (writeLock) {
+            while (unsentBytes > maxUnsent) {
+                if (closed) {
+                    throw new EOFException("Connection closed");
+                }
+                try {
+                    writeLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while sending the response");
+                }
+            }
+        }
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        ByteBuffer update = ByteBuffer.allocate(4);
+        update.putInt(increment);
+        update.flip();
+        writeFrame(WINDOW_UPDATE, 0, streamId, update);
+    }
+
+    /**
+     * Ends a stream with RST_STREAM, unless the connection is closed anyway.
+     * A handler still writing its response fails with the next frame.
+     */
+    private void reset(int streamId, int errorCode) {
+        Stream stream = streams.remove(streamId);
+        if (stream != null) {
+            synchronized (windowLock) {
+                stream.reset = true;
+                windowLock.notifyAll();
+            }
+        }
+        try {
+            ByteBuffer code = ByteBuffer.allocate(4);
+            code.putInt(errorCode);
+            code.flip();
+            writeFrame(RST_STREAM, 0, streamId, code);
+        } catch (IOException e) {
+            // the connection is closed, which ends the stream as well
+        }
+    }
+
+    /**
+     * Tells the client the connection is closed, and which of its streams
+     * have been processed http://tools.ietf.org/html/rfc7540#section-6.8
+     */
+    void goAway(int errorCode) {
+        try {
+            ByteBuffer goAway = ByteBuffer.allocate(8);
+            goAway.putInt(lastStreamId).putInt(errorCode);
+            goAway.flip();
+            writeFrame(GOAWAY, 0, 0, goAway);
+        } catch (IOException e) {
+            // closed right after anyway
+        }
+    }
+
+    /**
+     * Called by the reactor: closes the connection, after writing the queued
+     * frames as far as the socket takes them without blocking. Handlers
+     * still writing to its streams fail.
+     */
+    void close() {
+        synchronized (windowLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            windowLock.notifyAll();
+        }
+        synchronized (writeLock) {
+            try {
+                flush();
+            } catch (IOException e) {
+                // closed right below anyway
+            }
+            connection.close();
+            writeLock.notifyAll();
+        }
+        openConnections.decrementAndGet();
+    }
+
+    private static ByteBuffer frameHeader(int length, int type, int flags, int streamId) {
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_LENGTH);
+        header.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+        header.put((byte) type).put((byte) flags).putInt(streamId);
+        header.flip();
+        return header;
+    }
+
+    private static int getInt(byte[] data, int pos) {
+        return (data[pos] & 0xff) << 24 | (data[pos + 1] & 0xff) << 16 | (data[pos + 2] & 0xff) << 8
+                | data[pos + 3] & 0xff;
+    }
+
+    private static Http2Exception connectionError(int errorCode, String message) {
+        return new Http2Exception(errorCode, 0, message);
+    }
+
+    private static Http2Exception streamError(int errorCode, int streamId, String message) {
+        return new Http2Exception(errorCode, streamId, message);
+    }
+
+    /**
+     * One request and its response. The request is received by the reactor; the response is written by the pool thread producing it, as
+     * the {@link ResponseSink} of a streamed body and as the channel the
+     * body segments are written to, in DATA frames.
+     */
+    private class Stream implements ResponseSink, WritableByteChannel {
+
+        final int id;
+
+        /*
+         * Only used by the reactor until the stream is dispatched.
+         */
+
+        /** the header block rebuilt as HTTP/1.1, without the request line's Content-Length */
+        String head;
+
+        byte[] body;
+
+        int bodyLength;
+
+        /** the content-length the client announced, -1 if none */
+        long expectedLength = -1;
+
+        int receiveWindow = DEFAULT_WINDOW;
+
+        /** the client has sent END_STREAM */
+        volatile boolean receivedAll;
+
+        boolean dispatched;
+
+        HttpRequest request;
+
+        /** the status to answer with instead of handling the request */
+        Status error;
+
+        /** the send window, guarded by windowLock */
+        long sendWindow;
+
+        /** reset by either side, guarded by windowLock */
+        boolean reset;
+
+        /*
+         * Only used by the pool thread answering the stream.
+         */
+
+        /** body bytes still to be sent, the last DATA frame ends the stream; -1 for a streamed body */
+        long remaining = -1;
+
+        long bytesSent;
+
+        Stream(int id) {
+            this.id = id;
+        }
+
+        boolean isReset() {
+            synchronized (windowLock) {
+                return reset;
+            }
+        }
+
+        /**
+         * Fails a response about to be sent on a stream reset meanwhile, the
+         * client treats frames on it as an error.
+         */
+        private void checkOpen() throws EOFException {
+            synchronized (windowLock) {
+                if (closed || reset) {
+                    throw new EOFException("Stream closed");
+                }
+            }
+        }
+
+        /**
+         * Buffers received body bytes. A body growing beyond the limit is
+         * answered with 413 and not buffered any further.
+         */
+        void receive(byte[] data, int offset, int length, long maxBodySize) {
+            if (bodyLength + (long) length > maxBodySize) {
+                error = Status._413;
+                body = null;
+                return;
+            }
+            if (body == null) {
+                // the announced length is only trusted as far as the receive window goes
+                body = new byte[(int) Math.max(length, Math.min(expectedLength, DEFAULT_WINDOW))];
+            } else if (bodyLength + length > body.length) {
+                body = Arrays.copyOf(body, (int) Math.min(Math.max(body.length * 2L, bodyLength + length), maxBodySize));
+            }
+            System.arraycopy(data, offset, body, bodyLength, length);
+            bodyLength += length;
+        }
+
+        /**
+         * Sends a response that has not been streamed: HEADERS, ending the
+         * stream if there is no body, then the body in DATA frames. The end
+         * of a streamed response is sent as an empty DATA frame.
+         */
+        void sendResponse(HttpResponse response) throws IOException {
+            checkOpen();
+            if (response.isStreamed()) {
+                bytesSent += writeFrame(DATA, FLAG_END_STREAM, id);
+                return;
+            }
+            List<ResponseSegment> segments = response.toBodySegments();
+            try {
+                long length = 0;
+                for (ResponseSegment segment : segments) {
+                    length += segment.length();
+                }
+                bytesSent += writeHeaders(id, response.getHeaderFields(), length == 0);
+                remaining = length;
+                for (ResponseSegment segment : segments) {
+                    while (!segment.writeTo(this)) {
+                        // DATA frames are written in full
+                    }
+                }
+            } finally {
+                for (ResponseSegment segment : segments) {
+                    segment.close();
+                }
+            }
+        }
+
+        @Override
+        public boolean sendHead(HttpResponse response) throws IOException {
+            checkOpen();
+            bytesSent += writeHeaders(id, response.getHeaderFields(), false);
+            return true;
+        }
+
+        @Override
+        public void send(List<ResponseSegment> segments) throws IOException {
+            try {
+                for (ResponseSegment segment : segments) {
+                    while (!segment.writeTo(this)) {
+                        // DATA frames are written in full
+                    }
+                }
+            } finally {
+                for (ResponseSegment segment : segments) {
+                    segment.close();
+                }
+            }
+        }
+
+        @Override
+        public int getBufferSize() {
+            return config.getResponseBufferSize();
+        }
+
+        /**
+         * Writes the bytes as DATA frames, as far as the flow-control windows
+         * allow at a time. The frame with the last byte of a body of known
+         * length ends the stream.
+         */
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int written = 0;
+            while (src.hasRemaining()) {
+                int count = reserve(this, src.remaining());
+                ByteBuffer data = src.slice();
+                data.limit(count);
+                src.position(src.position() + count);
+                boolean last = remaining > 0 && (remaining -= count) == 0;
+                bytesSent += writeFrame(DATA, last ? FLAG_END_STREAM : 0, id, data);
+                written += count;
+                awaitUnsent();
+            }
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public void close() {
+            // the stream ends with its response
+        }
+    }
+}
@@ -0,0 +1,919 @@
+package com.dasanjos.java;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.log4j.Logger;
+
+import com.dasanjos.java.http.Http2Exception;
+import com.dasanjos.java.http.HttpRequest;
+import com.dasanjos.java.http.HttpResponse;
+import com.dasanjos.java.http.ResponseSegment;
+import com.dasanjos.java.http.Status;
+import com.dasanjos.java.metrics.Metrics;
+
+/**
+ * Class <code>Reactor</code> - one selector thread of the {@link WebServer}
+ * together with the connections registered with it.
+ *
+ * Connections are handed to a reactor by the acceptor (or accepted by the
+ * reactor itself from its own listening socket when SO_REUSEPORT is used)
+ * and stay with it until they are closed. Each reactor has its own
+ * selector, timing wheel and handoff queues, so reactors never contend with
+ * each other; the worker pool is shared.
+ *
+ * In BLOCKING mode the reactor only watches idle keep-alive connections:
+ * a readable channel is switched back to blocking mode and processed by a
+ * pool thread, which hands it back once its requests have been answered.
+ *
+ * In EVENT mode channels never leave non-blocking mode. The reactor reads
+ * into a per-connection buffer and only schedules a request on the pool once
+ * its header block has been fully received. The pool thread hands the encoded response back
+ * through a queue, and the reactor writes it with OP_WRITE interest, so a
+ * slow client never keeps a pool thread waiting. A streamed request body is
+ * read by the reactor on demand of the pool thread handling the request,
+ * and only while the body's buffer has room. A streamed response is
+ * written while the pool thread is still producing it, as its parts are
+ * handed over.
+ *
+ * Connections and pool tasks beyond the limits of the {@link Admission}
+ * are answered with 503 by the reactor itself.
+ *
+ * On an HTTPS port the reactor does no TLS work itself, so handshakes do
+ * not hold up accepting and serving other connections. In BLOCKING mode
+ * the pool threads serving a connection do it anyway. In EVENT mode the
+ * reactor hands every read and write of a TLS connection to a pool task,
+ * one at a time per connection, and carries on with the decrypted request
+ * or the outcome of the write once the task is done. TLS connections
+ * beyond the limits are closed without a 503, answering them would take a
+ * handshake.
+ *
+ * A plain HTTP connection whose client switches to HTTP/2 is served by an
+ * {@link Http2Connection} from then on. In either I/O mode its channel is
+ * put into non-blocking mode and the reactor reads its frames and writes
+ * the ones the pool has queued with OP_WRITE interest; only the streams are
+ * handed to the pool, through the {@link Admission}.
+ */
+class Reactor implements Runnable {
+
+    private static final Logger log = Logger.getLogger(Reactor.class);
+
+    /** EVENT mode: most pipelined requests of one connection answered in one batch */
+    private static final int MAX_PIPELINED_REQUESTS = 16;
+
+    /** most bytes read and discarded from a connection that is shed */
+    private static final int MAX_DISCARDED_BYTES = 64 * 1024;
+
+    private final ServerConfig config;
+
+    private final ExecutorService executor;
+
+    /** answers the requests, shared by all reactors */
+    private final RequestHandler requestHandler;
+
+    /** null on a plain HTTP port */
+    private final TlsContext tlsContext;
+
+    private final Admission admission;
+
+    private final Selector selector;
+
+    /** SO_REUSEPORT mode: the listening socket of this reactor, null otherwise */
+    private final ServerSocketChannel serverChannel;
+
+    /** connections accepted for this reactor, not registered yet */
+    private final Queue<SocketChannel> acceptedChannels = new ConcurrentLinkedQueue<>();
+
+    /** connections accepted beyond the connection limit, to be answered with 503 */
+    private final Queue<SocketChannel> rejectedChannels = new ConcurrentLinkedQueue<>();
+
+    /** connections handed back by the pool: the response is ready (EVENT) or the connection is idle (BLOCKING) */
+    private final Queue<Connection> completedConnections = new ConcurrentLinkedQueue<>();
+
+    /** EVENT mode: connections whose handler wants more of the request body */
+    private final Queue<Connection> resumedConnections = new ConcurrentLinkedQueue<>();
+
+    /** EVENT mode: connections whose handler has sent parts of a streamed response */
+    private final Queue<Connection> flushedConnections = new ConcurrentLinkedQueue<>();
+
+    /** EVENT mode: TLS connections whose pool task has read or written them */
+    private final Queue<Connection> tlsCompletedConnections = new ConcurrentLinkedQueue<>();
+
+    /** idle, header-read and write timeouts of the connections waiting in the selector */
+    private final TimingWheel timeouts;
+
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    Reactor(ServerConfig config, ExecutorService executor, RequestHandler requestHandler, Admission admission,
+            TlsContext tlsContext, ServerSocketChannel serverChannel) throws IOException {
+        this.config = config;
+        this.executor = executor;
+        this.requestHandler = requestHandler;
+        this.tlsContext = tlsContext;
+        this.admission = admission;
+        this.selector = Selector.open();
+        this.serverChannel = serverChannel;
+        this.timeouts = new TimingWheel(config.getTimerTick(), config.getKeepAliveTimeout(),
+                config.getHeaderReadTimeout(), config.getWriteTimeout());
+        if (serverChannel != null) {
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    /**
+     * Hands a newly accepted connection to this reactor. Called by the
+     * acceptor thread.
+     */
+    void register(SocketChannel channel) {
+        if (!admission.tryOpenConnection()) {
+            rejectedChannels.add(channel);
+            selector.wakeup();
+            return;
+        }
+        connectionCount.incrementAndGet();
+        Metrics.get().connectionOpened();
+        acceptedChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * @return the number of open connections of this reactor
+     */
+    int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                registerAcceptedChannels();
+                rejectChannels();
+                completeTlsTasks();
+                resumeBodies();
+                flushResponses();
+                registerCompletedConnections();
+                expireTimeouts();
+
+                selector.select(timeouts.getTickMillis());
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (config.getIoMode() == ServerConfig.IoMode.EVENT
+                                || ((Connection) key.attachment()).http2 != null) {
+                            onEvent(key);
+                        } else if (key.isReadable()) {
+                            onKeepAliveReadable(key);
+                        }
+                    } catch (RuntimeException e) {
+                        if (key.attachment() instanceof Connection) {
+                            fail((Connection) key.attachment(), e);
+                        } else {
+                            log.error("Reactor error", e);
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // the loop must go on, every connection of this reactor depends on it
+                log.error("Reactor error", e);
+            }
+        }
+    }
+
+    /**
+     * SO_REUSEPORT mode: accepts the connections the kernel assigned to this
+     * reactor's listening socket.
+     */
+    private void accept() throws IOException {
+        SocketChannel clientChannel;
+        while ((clientChannel = serverChannel.accept()) != null) {
+            if (!admission.tryOpenConnection()) {
+                reject(clientChannel);
+                continue;
+            }
+            connectionCount.incrementAndGet();
+            Metrics.get().connectionOpened();
+            register(new Connection(clientChannel, config, this, tlsContext));
+        }
+    }
+
+    private void registerAcceptedChannels() {
+        SocketChannel clientChannel;
+        while ((clientChannel = acceptedChannels.poll()) != null) {
+            register(new Connection(clientChannel, config, this, tlsContext));
+        }
+    }
+
+    private void register(Connection connection) {
+        try {
+            if (config.getIoMode() == ServerConfig.IoMode.EVENT) {
+                connection.channel.configureBlocking(false);
+                connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                scheduleReadTimeout(connection);
+            } else {
+                connection.channel.configureBlocking(true);
+                schedule(connection);
+            }
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+
+    private void rejectChannels() {
+        SocketChannel clientChannel;
+        while ((clientChannel = rejectedChannels.poll()) != null) {
+            reject(clientChannel);
+        }
+    }
+
+    /**
+     * Answers a connection beyond the connection limit with 503 and closes it.
+     */
+    private void reject(SocketChannel channel) {
+        shed(channel, tlsContext != null);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to do with this connection
+        }
+    }
+
+    /**
+     * Answers a connection that is about to be closed for overload with 503,
+     * as far as the socket takes it without blocking, and half-closes it.
+     * What the client has sent so far is read and discarded before and after,
+     * closing a socket with unread bytes would reset the connection and
+     * could discard the response. A TLS connection gets no response.
+     */
+    private void shed(SocketChannel channel, boolean tls) {
+        try {
+            channel.configureBlocking(false);
+            ByteBuffer discarded = ByteBuffer.allocate(4096);
+            discard(channel, discarded);
+            if (!tls) {
+                Metrics.get().requestServed(Status._503);
+                for (ResponseSegment segment : admission.overloaded().toSegments()) {
+                    segment.writeTo(channel);
+                }
+                channel.shutdownOutput();
+                discard(channel, discarded);
+            }
+        } catch (IOException e) {
+            // closed right after anyway
+        }
+    }
+
+    private static void discard(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        int total = 0;
+        int count;
+        while (total < MAX_DISCARDED_BYTES && (count = channel.read(buffer)) > 0) {
+            total += count;
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Called by {@link Connection#close()}.
+     */
+    void connectionClosed() {
+        connectionCount.decrementAndGet();
+        admission.connectionClosed();
+    }
+
+    /**
+     * Closes the connections whose timeout has expired. A client that has
+     * not finished sending its request headers in time is told so with a 408
+     * first, as far as the socket accepts it without blocking, unless that
+     * would take TLS work. A client that stalls within a streamed body is
+     * not, its handler is still running and gets the failure when reading.
+     */
+    private void expireTimeouts() {
+        timeouts.expire(TimingWheel.now(), (connection, timeout) -> {
+            try {
+                expire(connection, timeout);
+            } catch (RuntimeException e) {
+                fail(connection, e);
+            }
+        });
+    }
+
+    private void expire(Connection connection, TimingWheel.Timeout timeout) {
+        if (connection.http2 != null) {
+            expireHttp2(connection, timeout);
+            return;
+        }
+        log.info("Closing connection to " + connection.channel + " (" + timeout + " timeout)");
+        if (connection.tlsBusy) {
+            connection.closeRequested = true;
+            return;
+        }
+        if (timeout == TimingWheel.Timeout.HEADER_READ && connection.body == null && connection.tls == null) {
+            try {
+                Metrics.get().requestServed(Status._408);
+                connection.setResponse(new HttpResponse(Status._408).toSegments(), false);
+                connection.write();
+            } catch (IOException e) {
+                // closed right below anyway
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * An HTTP/2 connection is only idle while it has no open streams, it is
+     * closed with GOAWAY then. One whose client does not take the queued
+     * frames in time is closed right away.
+     */
+    private void expireHttp2(Connection connection, TimingWheel.Timeout timeout) {
+        if (timeout == TimingWheel.Timeout.IDLE) {
+            if (connection.http2.hasOpenStreams()) {
+                // streams may still be answered while the client has nothing to send
+                timeouts.schedule(connection, TimingWheel.Timeout.IDLE, TimingWheel.now());
+                return;
+            }
+            connection.http2.goAway(Http2Exception.NO_ERROR);
+        }
+        log.info("Closing connection to " + connection.channel + " (" + timeout + " timeout)");
+        close(connection);
+    }
+
+    /**
+     * Waits for idle keep-alive connections, or for the rest of a request or
+     * TLS handshake, in the selector.
+     */
+    private void scheduleReadTimeout(Connection connection) {
+        TimingWheel.Timeout timeout = connection.hasPartialRequest() || connection.isHandshaking()
+                ? TimingWheel.Timeout.HEADER_READ : TimingWheel.Timeout.IDLE;
+        if (connection.timeout != timeout) {
+            timeouts.schedule(connection, timeout, TimingWheel.now());
+        }
+    }
+
+    /**
+     * Closes a connection whose handling failed with an unexpected error,
+     * the reactor goes on with the others.
+     */
+    private void fail(Connection connection, RuntimeException e) {
+        if (!(e instanceof CancelledKeyException)) {
+            log.error("Error on " + connection.channel, e);
+        }
+        try {
+            close(connection);
+        } catch (RuntimeException closeError) {
+            log.error("Error closing " + connection.channel, closeError);
+            connection.close();
+        }
+    }
+
+    private void close(Connection connection) {
+        timeouts.cancel(connection);
+        if (connection.http2 != null) {
+            connection.http2.close();
+            return;
+        }
+        if (connection.tlsBusy) {
+            // closed once the pool task is done with it
+            connection.closeRequested = true;
+            return;
+        }
+        connection.close();
+    }
+
+    /**
+     * Hands the connections the pool is done with back to the selector:
+     * idle keep-alive connections and ones switching to HTTP/2 in BLOCKING
+     * mode, connections with a response to write in EVENT mode. The write is
+     * attempted right away, most responses fit into the socket buffer and
+     * never need OP_WRITE.
+     */
+    private void registerCompletedConnections() throws IOException {
+        if (completedConnections.isEmpty()) {
+            return;
+        }
+        if (config.getIoMode() == ServerConfig.IoMode.BLOCKING) {
+            // flush the keys cancelled when the channels went back to blocking mode
+            selector.selectNow();
+        }
+        List<Connection> deferred = null;
+        Connection connection;
+        while ((connection = completedConnections.poll()) != null) {
+            if (connection.tlsBusy) {
+                // its TLS task may be reading the request buffer, retried once the task is done
+                deferred = defer(deferred, connection);
+                continue;
+            }
+            try {
+                if (config.getIoMode() == ServerConfig.IoMode.BLOCKING) {
+                    connection.channel.configureBlocking(false);
+                    connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    if (connection.http2Request != null) {
+                        startHttp2(connection, connection.http2Request);
+                    } else {
+                        scheduleReadTimeout(connection);
+                    }
+                } else if (connection.key.isValid()) {
+                    connection.dispatched = false;
+                    connection.endBody();
+                    onWritable(connection);
+                } else {
+                    // closed while the pool was busy with it
+                    connection.close();
+                }
+            } catch (IOException | CancelledKeyException e) {
+                close(connection);
+            } catch (RuntimeException e) {
+                fail(connection, e);
+            }
+        }
+        if (deferred != null) {
+            completedConnections.addAll(deferred);
+        }
+    }
+
+    private static List<Connection> defer(List<Connection> deferred, Connection connection) {
+        List<Connection> list = deferred != null ? deferred : new ArrayList<>();
+        list.add(connection);
+        return list;
+    }
+
+    /**
+     * BLOCKING mode: a keep-alive connection has a new request.
+     */
+    private void onKeepAliveReadable(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+
+        // cancel the registration, we go back into blocking mode
+        // and let the processing be done inside of an own thread
+        key.cancel();
+        timeouts.cancel(connection);
+        connection.channel.configureBlocking(true);
+        if (log.isDebugEnabled()) {
+            log.debug("Reusing channel " + connection.channel);
+        }
+        schedule(connection);
+    }
+
+    /**
+     * BLOCKING mode: serves the connection on a pool thread, unless the pool
+     * has enough waiting work already. The request is then answered with 503
+     * (see {@link #shed(SocketChannel, boolean)}), a TLS connection is only
+     * closed.
+     */
+    private void schedule(final Connection connection) {
+        if (!admission.tryAcquire()) {
+            shed(connection.channel, connection.tls != null);
+            connection.close();
+            return;
+        }
+        // a connection served for its lifetime says nothing about the load
+        final long submitted = config.getExecutionMode() == ServerConfig.ExecutionMode.VIRTUAL ? 0 : System.nanoTime();
+        executor.submit(() -> {
+            admission.started();
+            Socket client = connection.channel.socket();
+            boolean keepAlive;
+            try {
+                if (config.getExecutionMode() == ServerConfig.ExecutionMode.VIRTUAL) {
+                    // thread per connection: block on the next request instead
+                    // of handing the channel back to the selector
+                    client.setSoTimeout(config.getKeepAliveTimeout());
+                    keepAlive = requestHandler.handleConnection(connection, config.getRootPath(), true);
+                } else {
+                    // don't let a slow client keep a pool thread waiting for its request
+                    client.setSoTimeout(config.getHeaderReadTimeout());
+                    keepAlive = requestHandler.handleConnection(connection, config.getRootPath(), false);
+                }
+            } catch (IOException e) {
+                keepAlive = false;
+            } finally {
+                admission.finished(submitted);
+            }
+            if (keepAlive || connection.http2Request != null) {
+                // an HTTP/2 connection is served by the reactor as well
+                completedConnections.add(connection);
+                selector.wakeup();
+            } else {
+                connection.close();
+            }
+        });
+    }
+
+    /**
+     * Continues a connection with HTTP/2 after the request that switched it.
+     * Its channel is in non-blocking mode and registered with the selector,
+     * the reactor reads and writes its frames from now on while the streams
+     * are answered by the pool.
+     */
+    private void startHttp2(Connection connection, HttpRequest request) throws IOException {
+        if (log.isDebugEnabled()) {
+            log.debug("Switching " + connection.channel + " to HTTP/2");
+        }
+        connection.http2 = new Http2Connection(connection, request, config, requestHandler, executor, admission,
+                this);
+        if (!connection.http2.start()) {
+            close(connection);
+            return;
+        }
+        updateHttp2(connection);
+    }
+
+    /**
+     * Processes the frames an HTTP/2 connection has received, and writes the
+     * frames queued for it.
+     */
+    private void onHttp2Event(Connection connection, SelectionKey key) throws IOException {
+        if (key.isReadable() && !connection.http2.read()) {
+            close(connection);
+            return;
+        }
+        updateHttp2(connection);
+    }
+
+    /**
+     * Writes the frames queued for an HTTP/2 connection as far as the client
+     * takes them, and waits for it to take the rest or to send more frames;
+     * not the latter while too many are queued. The idle and write timeouts
+     * restart with every call.
+     */
+    private void updateHttp2(Connection connection) throws IOException {
+        boolean flushed = connection.http2.flush();
+        connection.key.interestOps((connection.http2.wantsRead() ? SelectionKey.OP_READ : 0)
+                | (flushed ? 0 : SelectionKey.OP_WRITE));
+        timeouts.schedule(connection, flushed ? TimingWheel.Timeout.IDLE : TimingWheel.Timeout.WRITE,
+                TimingWheel.now());
+    }
+
+    /**
+     * EVENT mode, and HTTP/2 connections in either mode: reads or writes a
+     * connection.
+     */
+    private void onEvent(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (connection.http2 != null) {
+                onHttp2Event(connection, key);
+                return;
+            }
+            if (connection.tls != null) {
+                connection.tlsWantRead |= key.isReadable();
+                connection.tlsWantWrite |= key.isWritable();
+                startTls(connection);
+                return;
+            }
+            if (key.isReadable()) {
+                onReadable(connection);
+            }
+            if (key.isValid() && key.isWritable()) {
+                onWritable(connection);
+            }
+        } catch (IOException | CancelledKeyException e) {
+            close(connection);
+        }
+    }
+
+    private void onReadable(Connection connection) throws IOException {
+        if (connection.readRequest() < 0) {
+            close(connection);
+            return;
+        }
+        received(connection);
+    }
+
+    /**
+     * Continues with the bytes that have been read into the request buffer.
+     */
+    private void received(Connection connection) throws IOException {
+        if (connection.body != null) {
+            continueBody(connection);
+        } else if (!connection.dispatched) {
+            dispatchNextRequest(connection);
+        }
+    }
+
+    /**
+     * Called by the pool thread handling a request whose streamed body it
+     * has read up to what has been received.
+     *
+     * @return true if the reactor reads more of the body (EVENT mode), false
+     * if the caller has to read it from the blocking channel itself
+     */
+    boolean resumeBody(Connection connection) {
+        if (config.getIoMode() != ServerConfig.IoMode.EVENT) {
+            return false;
+        }
+        resumedConnections.add(connection);
+        selector.wakeup();
+        return true;
+    }
+
+    private void resumeBodies() {
+        List<Connection> deferred = null;
+        Connection connection;
+        while ((connection = resumedConnections.poll()) != null) {
+            if (connection.tlsBusy) {
+                // its TLS task may be reading the request buffer, retried once the task is done
+                deferred = defer(deferred, connection);
+                continue;
+            }
+            try {
+                if (connection.key.isValid()) {
+                    continueBody(connection);
+                }
+            } catch (IOException | CancelledKeyException e) {
+                close(connection);
+            } catch (RuntimeException e) {
+                fail(connection, e);
+            }
+        }
+        if (deferred != null) {
+            resumedConnections.addAll(deferred);
+        }
+    }
+
+    /**
+     * EVENT mode: feeds the received bytes of a streamed body to its handler
+     * and reads from the client while the body's buffer has room. The read
+     * timeout restarts with every read that makes progress.
+     */
+    private void continueBody(Connection connection) throws IOException {
+        if (connection.body == null) {
+            // received completely or abandoned meanwhile
+            return;
+        }
+        connection.sendContinue();
+        // reads on while the body's buffer has room, waits for the handler otherwise
+        connection.readPending = connection.feedBody();
+        updateInterest(connection);
+    }
+
+    /**
+     * Called by the pool thread that handed over parts of a streamed
+     * response, or queued frames of an HTTP/2 connection.
+     */
+    void flush(Connection connection) {
+        flushedConnections.add(connection);
+        selector.wakeup();
+    }
+
+    private void flushResponses() {
+        Connection connection;
+        while ((connection = flushedConnections.poll()) != null) {
+            try {
+                if (connection.http2 != null) {
+                    // frames queued by the pool
+                    if (connection.key.isValid()) {
+                        updateHttp2(connection);
+                    }
+                } else if (connection.dispatched && connection.key.isValid()) {
+                    // the parts of a response handed back meanwhile are written with it
+                    onWritable(connection);
+                }
+            } catch (IOException | CancelledKeyException e) {
+                close(connection);
+            } catch (RuntimeException e) {
+                fail(connection, e);
+            }
+        }
+    }
+
+    /**
+     * EVENT mode: while the pool produces the responses of a connection, the
+     * reactor may read a streamed request body and write a streamed response
+     * at the same time. The timeout restarts with every call, that is with
+     * every read or write that makes progress.
+     */
+    private void updateInterest(Connection connection) {
+        if (!connection.tlsBusy) {
+            // otherwise set when the TLS task is done
+            connection.key.interestOps(interestOps(connection));
+            if (connection.readPending && connection.hasBufferedInput()) {
+                connection.tlsWantRead = true;
+                startTls(connection);
+            }
+        }
+        if (connection.writePending) {
+            timeouts.schedule(connection, TimingWheel.Timeout.WRITE, TimingWheel.now());
+        } else if (connection.readPending) {
+            timeouts.schedule(connection, TimingWheel.Timeout.HEADER_READ, TimingWheel.now());
+        } else {
+            timeouts.cancel(connection);
+        }
+    }
+
+    /**
+     * Hands the fully received requests of the connection to the pool.
+     * Reading is suspended until their responses have been written.
+     */
+    private void dispatchNextRequest(Connection connection) throws IOException {
+        List<HttpRequest> requests = connection.nextRequests(MAX_PIPELINED_REQUESTS);
+        if (requests.size() == 1 && connection.switchesToHttp2(requests.get(0))) {
+            // an upgrade behind pipelined requests is ignored, their responses come first
+            startHttp2(connection, requests.get(0));
+            return;
+        }
+        if (requests.isEmpty()) {
+            if (connection.error != null) {
+                Metrics.get().requestServed(connection.error);
+                connection.setResponse(new HttpResponse(connection.error).toSegments(), false);
+                onWritable(connection);
+            } else if (connection.hasBufferedInput()) {
+                // the rest of the request has been received, but not decrypted yet
+                connection.tlsWantRead = true;
+                startTls(connection);
+            } else {
+                scheduleReadTimeout(connection);
+            }
+            return;
+        }
+        if (!admission.tryAcquire()) {
+            // overloaded: answer from here instead of queueing, and close
+            for (int i = 0; i < requests.size(); i++) {
+                Metrics.get().requestServed(Status._503);
+            }
+            connection.endBody();
+            connection.setResponse(admission.overloaded().toSegments(), false);
+            onWritable(connection);
+            return;
+        }
+        // no timeout while the pool produces the responses
+        timeouts.cancel(connection);
+        connection.key.interestOps(0);
+        connection.dispatched = true;
+        long submitted = System.nanoTime();
+        executor.submit(() -> {
+            admission.started();
+            try {
+                requestHandler.handleRequests(requests, connection);
+            } finally {
+                admission.finished(submitted);
+            }
+            completedConnections.add(connection);
+            selector.wakeup();
+        });
+    }
+
+    private void onWritable(Connection connection) throws IOException {
+        if (connection.tls != null) {
+            // continued in onTlsDone
+            connection.tlsWantWrite = true;
+            startTls(connection);
+            return;
+        }
+        written(connection, connection.write());
+    }
+
+    /**
+     * Continues after the pending response has been written as far as the
+     * client accepts it.
+     *
+     * @param complete true if everything handed over has been written
+     */
+    private void written(Connection connection, boolean complete) throws IOException {
+        // restarted whenever the client accepts more of the response
+        connection.writePending = !complete;
+        if (connection.writePending || connection.dispatched) {
+            // a streamed response is continued when the pool hands over more of it
+            updateInterest(connection);
+            return;
+        }
+        if (!connection.keepAlive) {
+            close(connection);
+            return;
+        }
+        connection.key.interestOps(SelectionKey.OP_READ);
+        // the client may already have sent its next request
+        dispatchNextRequest(connection);
+    }
+
+    private static int interestOps(Connection connection) {
+        return (connection.readPending ? SelectionKey.OP_READ : 0)
+                | (connection.writePending ? SelectionKey.OP_WRITE : 0);
+    }
+
+    /**
+     * EVENT mode with TLS: hands the requested reads and writes of the
+     * connection to a pool task, unless one is running already; the
+     * requests are then taken up when it is done. The connection is not
+     * selected meanwhile. The read also continues a handshake in progress.
+     *
+     * The task is admitted like a request. Beyond the limits of the
+     * {@link Admission} the connection is closed instead, a 503 would take
+     * TLS work as well; only the writes of a response that has already been
+     * admitted are always done.
+     */
+    private void startTls(final Connection connection) {
+        if (connection.tlsBusy) {
+            return;
+        }
+        final boolean read = connection.tlsWantRead || connection.isHandshaking();
+        connection.tlsWriteRequested |= connection.tlsWantWrite;
+        connection.tlsWantRead = false;
+        connection.tlsWantWrite = false;
+        connection.tlsBusy = true;
+        connection.key.interestOps(0);
+        if (connection.dispatched || connection.writePending || connection.tlsWriteRequested) {
+            admission.acquire();
+        } else if (!admission.tryAcquire()) {
+            // overloaded: closed by onTlsDone, like after a task
+            connection.closeRequested = true;
+            tlsCompletedConnections.add(connection);
+            return;
+        }
+        long submitted = System.nanoTime();
+        executor.execute(() -> {
+            admission.started();
+            try {
+                connection.runTls(read);
+            } finally {
+                admission.finished(submitted);
+            }
+            tlsCompletedConnections.add(connection);
+            selector.wakeup();
+        });
+    }
+
+    private void completeTlsTasks() {
+        Connection connection;
+        while ((connection = tlsCompletedConnections.poll()) != null) {
+            try {
+                onTlsDone(connection);
+            } catch (IOException | CancelledKeyException e) {
+                close(connection);
+            } catch (RuntimeException e) {
+                fail(connection, e);
+            }
+        }
+    }
+
+    /**
+     * EVENT mode with TLS: continues like {@link #onReadable(Connection)}
+     * and {@link #onWritable(Connection)} with the outcome of the pool
+     * task, once no further reads or writes have been requested meanwhile.
+     */
+    private void onTlsDone(Connection connection) throws IOException {
+        connection.tlsBusy = false;
+        if (connection.tlsFailure instanceof SSLException) {
+            log.info("TLS error on " + connection.channel + ": " + connection.tlsFailure.getMessage());
+        }
+        if (connection.closeRequested || connection.tlsFailure != null || connection.tlsReadCount < 0
+                || !connection.key.isValid()) {
+            close(connection);
+            return;
+        }
+        if (connection.tlsReadCount > 0 || connection.error != null) {
+            connection.tlsReceived = true;
+        }
+        connection.writePending = !connection.tlsFlushed;
+        if (connection.tlsWantRead || connection.tlsWantWrite) {
+            startTls(connection);
+            return;
+        }
+        boolean received = connection.tlsReceived;
+        boolean writeRequested = connection.tlsWriteRequested;
+        connection.tlsReceived = false;
+        connection.tlsWriteRequested = false;
+        connection.key.interestOps(connection.dispatched || connection.writePending
+                ? interestOps(connection) : SelectionKey.OP_READ);
+        if (received) {
+            received(connection);
+        }
+        if (connection.tlsBusy || !connection.key.isValid()) {
+            // the write is taken up by the task that has been started meanwhile
+            connection.tlsWriteRequested |= writeRequested;
+            return;
+        }
+        if (writeRequested) {
+            written(connection, !connection.writePending);
+        } else if (!received) {
+            // a handshake step or a part of a record
+            if (connection.dispatched || connection.writePending) {
+                updateInterest(connection);
+            } else {
+                scheduleReadTimeout(connection);
+            }
+        }
+    }
+}
@@ -1,11 +1,24 @@
 package com.dasanjos.java;
 
-import java.net.Socket;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.net.ssl.SSLException;
 
 import org.apache.log4j.Logger;
 
+import com.dasanjos.java.http.BadRequestException;
+import com.dasanjos.java.http.BufferSegment;
+import com.dasanjos.java.http.Handler;
 import com.dasanjos.java.http.HttpRequest;
 import com.dasanjos.java.http.HttpResponse;
+import com.dasanjos.java.http.ResponseSegment;
+import com.dasanjos.java.http.ResponseSink;
+import com.dasanjos.java.http.Status;
+import com.dasanjos.java.metrics.Metrics;
 
 /**
     * Class <code>RequestHandler</code> - class that answer the requests in
@@ -15,15 +28,221 @@ public class RequestHandler {
 
     private static final Logger log = Logger.getLogger(RequestHandler.class);
 
-    public boolean handleConnection(Socket socket, String rootPath) {
+    /** null if requests are not logged */
+    private final AccessLog accessLog;
+
+    /** the routes of the server */
+    private final Handler handler;
+
+    RequestHandler(AccessLog accessLog, Handler handler) {
+        this.accessLog = accessLog;
+        this.handler = handler;
+    }
+
+    /**
+     * BLOCKING mode: answers the requests of a connection whose channel is in
+     * blocking mode. File bodies are sent with zero-copy transfers.
+     *
+     * @param waitForRequests true to keep blocking on further requests until
+     * the connection is closed, false to return as soon as the requests
+     * received so far have been answered
+     * @return true if the connection should be kept alive, false also once
+     * a request switches it to HTTP/2 ({@link Connection#http2Request})
+     */
+    boolean handleConnection(Connection connection, String rootPath, boolean waitForRequests) {
+        boolean served = false;
         try {
-            HttpRequest req = new HttpRequest(socket.getInputStream(), rootPath);
-            HttpResponse res = new HttpResponse(req);
-            res.write(socket.getOutputStream());
-            return req.isKeepAlive();
+            while (true) {
+                HttpRequest req;
+                try {
+                    req = connection.nextRequest();
+                    if (req == null) {
+                        if (served && !waitForRequests && !connection.hasBufferedInput()) {
+                            return true;
+                        }
+                        // a full request buffer fails here, answered like a malformed request
+                        if (connection.readBlocking() < 0) {
+                            return false;
+                        }
+                        continue;
+                    }
+                } catch (BadRequestException e) {
+                    log.info("Bad request from " + connection.channel + ": " + e.getMessage());
+                    Metrics.get().requestServed(e.getStatus());
+                    Metrics.get().bytesSent(new HttpResponse(e.getStatus()).write(connection.io));
+                    return false;
+                }
+                if (connection.switchesToHttp2(req)) {
+                    connection.http2Request = req;
+                    return false;
+                }
+                req.log();
+                long start = System.nanoTime();
+                HttpResponse res = respond(req, connection);
+                Metrics.get().record(Metrics.Phase.HANDLE, start);
+                Metrics.get().requestServed(res.getStatus());
+                long writeStart = System.nanoTime();
+                long bytes = res.getStreamedLength() + res.write(connection.io);
+                Metrics.get().bytesSent(bytes);
+                Metrics.get().record(Metrics.Phase.WRITE, writeStart);
+                logAccess(connection, req, res, bytes, start);
+                served = true;
+                if (!res.isKeepAlive()) {
+                    return false;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // client kept the connection idle or its request unfinished for too long
+            if (connection.hasPartialRequest()) {
+                try {
+                    Metrics.get().requestServed(Status._408);
+                    new HttpResponse(Status._408).write(connection.io);
+                } catch (IOException ignored) {
+                    // the connection is closed anyway
+                }
+            }
+            return false;
+        } catch (EOFException e) {
+            // client closed the connection
+            return false;
+        } catch (SSLException e) {
+            log.info("TLS error on " + connection.channel + ": " + e.getMessage());
+            return false;
         } catch (Exception e) {
             log.error("Runtime Error", e);
             return false;
         }
     }
+
+    /**
+     * EVENT mode: answers requests that have been fully received by the
+     * selector thread, in the order they were sent (HTTP pipelining). The
+     * header blocks and in-memory bodies of consecutive responses are
+     * joined, so that the whole batch goes out in as few writes as possible.
+     * Processing stops at the first response that closes the connection.
+     * A malformed request received after the batch is answered last. A
+     * streamed response sends the responses batched before it ahead of its
+     * first part.
+     */
+    void handleRequests(List<HttpRequest> requests, Connection connection) {
+        List<ResponseSegment> batch = new ArrayList<>();
+        BatchSink sink = new BatchSink(batch, connection);
+        boolean keepAlive = true;
+        for (HttpRequest req : requests) {
+            try {
+                req.log();
+                long start = System.nanoTime();
+                HttpResponse res = respond(req, sink);
+                Metrics.get().record(Metrics.Phase.HANDLE, start);
+                Metrics.get().requestServed(res.getStatus());
+                logAccess(connection, req, res, res.getStreamedLength() + append(batch, res), start);
+                keepAlive = res.isKeepAlive();
+            } catch (EOFException e) {
+                // client closed the connection within the request body
+                keepAlive = false;
+            } catch (Exception e) {
+                log.error("Runtime Error", e);
+                keepAlive = false;
+            }
+            if (!keepAlive) {
+                break;
+            }
+        }
+        if (keepAlive && connection.error != null) {
+            Metrics.get().requestServed(connection.error);
+            append(batch, new HttpResponse(connection.error));
+            keepAlive = false;
+        }
+        connection.setResponse(batch, keepAlive);
+    }
+
+    /**
+     * Produces the response to a request. A request body that turns out to
+     * be malformed or too large while it is read is answered with the status
+     * of the failure, a handler that fails with 500; the connection is
+     * closed after either.
+     */
+    HttpResponse respond(HttpRequest req, ResponseSink sink) throws IOException {
+        HttpResponse res = new HttpResponse(sink);
+        try {
+            handler.handle(req, res);
+            res.finish(req);
+            return res;
+        } catch (BadRequestException e) {
+            if (res.isStreamed()) {
+                throw e;
+            }
+            log.info("Bad request body: " + e.getMessage());
+            res.reset();
+            return new HttpResponse(e.getStatus());
+        } catch (RuntimeException e) {
+            if (res.isStreamed()) {
+                // the header block is out, only closing the connection tells the client
+                throw new IOException(e);
+            }
+            log.error("Handler Error", e);
+            res.reset();
+            return new HttpResponse(Status._500);
+        }
+    }
+
+    void logAccess(Connection connection, HttpRequest req, HttpResponse res, long bytes, long start) {
+        if (accessLog != null) {
+            accessLog.log(connection.remoteAddress, req.getMethod(), req.getUri(), res.getStatus(), bytes,
+                    (System.nanoTime() - start) / 1000);
+        }
+    }
+
+    /**
+     * @return the length of the response
+     */
+    private static long append(List<ResponseSegment> batch, HttpResponse res) {
+        long length = 0;
+        for (ResponseSegment segment : res.toSegments()) {
+            length += segment.length();
+            append(batch, segment);
+        }
+        return length;
+    }
+
+    private static void append(List<ResponseSegment> batch, ResponseSegment segment) {
+        int last = batch.size() - 1;
+        if (last >= 0 && batch.get(last) instanceof BufferSegment && segment instanceof BufferSegment) {
+            batch.set(last, ((BufferSegment) batch.get(last)).append((BufferSegment) segment));
+        } else {
+            batch.add(segment);
+        }
+    }
+
+    /**
+     * EVENT mode: sends the parts of a streamed response to the connection,
+     * preceded by the responses batched so far, so that pipelined responses
+     * keep their order.
+     */
+    private static class BatchSink implements ResponseSink {
+
+        private final List<ResponseSegment> batch;
+
+        private final Connection connection;
+
+        BatchSink(List<ResponseSegment> batch, Connection connection) {
+            this.batch = batch;
+            this.connection = connection;
+        }
+
+        @Override
+        public void send(List<ResponseSegment> segments) throws IOException {
+            List<ResponseSegment> parts = new ArrayList<>(batch);
+            batch.clear();
+            for (ResponseSegment segment : segments) {
+                append(parts, segment);
+            }
+            connection.send(parts);
+        }
+
+        @Override
+        public int getBufferSize() {
+            return connection.getBufferSize();
+        }
+    }
 }
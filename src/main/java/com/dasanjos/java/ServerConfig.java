@@ -0,0 +1,415 @@
+package com.dasanjos.java;
+
+/**
+ * Class <code>ServerConfig</code> holds the startup settings of the
+ * {@link WebServer}. Every setting can be overridden with a system property
+ * prefixed with <code>webserver.</code>, e.g. <code>-Dwebserver.port=8080</code>.
+ */
+public class ServerConfig {
+
+    /**
+     * How the server performs socket I/O.
+     * <ul>
+     * <li>BLOCKING - readable channels are switched back to blocking mode and
+     * handed to a pool thread, which reads and writes through the socket
+     * streams.</li>
+     * <li>EVENT - the selector thread reads into per-connection buffers and
+     * writes with OP_WRITE interest; pool threads only build responses for
+     * fully received requests.</li>
+     * </ul>
+     */
+    public enum IoMode {
+        BLOCKING, EVENT
+    }
+
+    /**
+     * Which threads process the connections.
+     * <ul>
+     * <li>POOL - a fixed pool of <code>workers</code> platform threads. In
+     * BLOCKING mode keep-alive connections are handed back to the selector
+     * after each request.</li>
+     * <li>VIRTUAL - one virtual thread per task (Java 21+). In BLOCKING mode the
+     * thread keeps its connection and blocks on the next request until the
+     * keep-alive timeout expires, so no handoff to the selector is needed.</li>
+     * </ul>
+     */
+    public enum ExecutionMode {
+        POOL, VIRTUAL
+    }
+
+    /**
+     * How the acceptor picks the reactor of a new connection.
+     * <ul>
+     * <li>ROUND_ROBIN - the reactors in turn.</li>
+     * <li>LEAST_LOADED - the reactor with the fewest open connections.</li>
+     * </ul>
+     */
+    public enum Balancing {
+        ROUND_ROBIN, LEAST_LOADED
+    }
+
+    private static final String PREFIX = "webserver.";
+
+    String rootPath = ".";
+
+    int port = 8020;
+
+    IoMode ioMode = IoMode.BLOCKING;
+
+    ExecutionMode executionMode = ExecutionMode.POOL;
+
+    int workerThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /** Number of selector threads, each serving its share of the connections. */
+    int reactorThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    Balancing balancing = Balancing.ROUND_ROBIN;
+
+    /** Give every reactor its own listening socket with SO_REUSEPORT, where supported. */
+    boolean reusePort = false;
+
+    /** Idle time in milliseconds after which a keep-alive connection is closed. */
+    int keepAliveTimeout = 20000;
+
+    /** Time in milliseconds a client has to send a complete request once it started, 0 disables it. */
+    int headerReadTimeout = 10000;
+
+    /** Time in milliseconds a client may keep a response write from making progress, 0 disables it. */
+    int writeTimeout = 30000;
+
+    /** Resolution in milliseconds of the connection timeouts. */
+    int timerTick = 100;
+
+    /** Most open connections, further ones are answered with 503 and closed; 0 for no limit. */
+    int maxConnections = 10000;
+
+    /** Most requests waiting for a worker, further ones are answered with 503; 0 for no limit. */
+    int maxQueuedRequests = 1024;
+
+    /** Limit the requests in progress to what the observed latency suggests the server can take. */
+    boolean adaptiveConcurrency = false;
+
+    /** Seconds a client is asked to wait in the Retry-After header of a 503. */
+    int retryAfter = 1;
+
+    /** Upper bound for the bytes buffered per connection (header blocks, bodies received with them), beyond that 413. */
+    int maxRequestSize = 1024 * 1024;
+
+    /** Largest accepted request body, larger ones get 413. */
+    long maxBodySize = 16L * 1024 * 1024;
+
+    /** Buffer a streamed request body is read through; the client is only read from while it has room. */
+    int bodyBufferSize = 64 * 1024;
+
+    /** Buffer a streamed response body is written through; smaller bodies get a Content-Length, larger ones are sent chunked. */
+    int responseBufferSize = 16 * 1024;
+
+    /** Longest accepted request line, longer ones get 414. */
+    int maxRequestLine = 8192;
+
+    /** Largest accepted header block (request line included), larger ones get 431. */
+    int maxHeaderSize = 16384;
+
+    /** Total bytes of file content kept in memory, 0 disables the content cache. */
+    long contentCacheSize = 64L * 1024 * 1024;
+
+    /** Files larger than this are never kept in the content cache. */
+    long contentCacheMaxEntrySize = 1024 * 1024;
+
+    /** Total bytes of memory-mapped files kept for serving, 0 disables mapping. */
+    long mappedCacheSize = 0;
+
+    /** Total bytes of cached compressed variants, 0 disables response compression. */
+    long compressionCacheSize = 16L * 1024 * 1024;
+
+    /** Responses smaller than this are sent uncompressed. */
+    long compressionMinSize = 1024;
+
+    /** Files larger than this are only sent compressed if they have a .gz sidecar. */
+    long compressionMaxSize = 4L * 1024 * 1024;
+
+    /** Total bytes of rendered directory listings kept in memory, 0 streams every listing per request as it is rendered. */
+    long listingCacheSize = 8L * 1024 * 1024;
+
+    /** Directories with more entries are written a few lines at a time instead of rendered into one page. */
+    int listingStreamEntries = 5000;
+
+    /** Index the docroot in memory at startup and keep it current with a file watcher instead of stat'ing per request. */
+    boolean pathIndex = true;
+
+    /** Threads listing directories while the docroot index is built. */
+    int pathIndexThreads = Runtime.getRuntime().availableProcessors();
+
+    /** Reserved path serving the metrics (Prometheus text, JSON with a .json suffix), empty to not serve them. */
+    String metricsPath = "/_metrics";
+
+    /** Access log destination: "-" for standard output, a file to append to, or empty to not log requests. */
+    String accessLog = "-";
+
+    /** Access log entries buffered for the writer thread, further ones are dropped while it is full. */
+    int accessLogBufferSize = 8192;
+
+    /** Keystore file with the server's private key and certificate chain; the port speaks HTTPS if set. */
+    String tlsKeystore = "";
+
+    String tlsKeystorePassword = "";
+
+    /** Keystore format, e.g. PKCS12 or JKS. */
+    String tlsKeystoreType = "PKCS12";
+
+    /** Comma separated TLS protocol versions to enable, empty for the JVM defaults. */
+    String tlsProtocols = "TLSv1.3,TLSv1.2";
+
+    /** Sessions kept for resumption by session ID or pre-shared key, 0 for no limit. */
+    int tlsSessionCacheSize = 20480;
+
+    /** Seconds a cached session or issued session ticket can be resumed. */
+    int tlsSessionTimeout = 86400;
+
+    /** Issue stateless session tickets (RFC 5077, TLS 1.3 tickets), resumable without the session cache (Java 13+). */
+    boolean tlsSessionTickets = true;
+
+    /** Speak HTTP/2 with clients that start with its preface or ask for an upgrade to h2c; plain HTTP ports only. */
+    boolean http2 = true;
+
+    /** Most streams an HTTP/2 client may have open on one connection at a time. */
+    int http2MaxConcurrentStreams = 100;
+
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config.rootPath = System.getProperty(PREFIX + "root", config.rootPath);
+        config.port = Integer.getInteger(PREFIX + "port", config.port);
+        config.ioMode = IoMode.valueOf(System.getProperty(PREFIX + "io", config.ioMode.name()).toUpperCase());
+        config.executionMode = ExecutionMode.valueOf(
+                System.getProperty(PREFIX + "execution", config.executionMode.name()).toUpperCase());
+        config.workerThreads = Integer.getInteger(PREFIX + "workers", config.workerThreads);
+        config.reactorThreads = Integer.getInteger(PREFIX + "reactors", config.reactorThreads);
+        config.balancing = Balancing.valueOf(
+                System.getProperty(PREFIX + "balancing", config.balancing.name()).toUpperCase());
+        config.reusePort = Boolean.parseBoolean(System.getProperty(PREFIX + "reusePort", String.valueOf(config.reusePort)));
+        config.maxConnections = Integer.getInteger(PREFIX + "maxConnections", config.maxConnections);
+        config.maxQueuedRequests = Integer.getInteger(PREFIX + "maxQueuedRequests", config.maxQueuedRequests);
+        config.adaptiveConcurrency = Boolean.parseBoolean(
+                System.getProperty(PREFIX + "adaptiveConcurrency", String.valueOf(config.adaptiveConcurrency)));
+        config.retryAfter = Integer.getInteger(PREFIX + "retryAfter", config.retryAfter);
+        config.maxRequestSize = Integer.getInteger(PREFIX + "maxRequestSize", config.maxRequestSize);
+        config.maxBodySize = Long.getLong(PREFIX + "maxBodySize", config.maxBodySize);
+        config.bodyBufferSize = Integer.getInteger(PREFIX + "bodyBufferSize", config.bodyBufferSize);
+        config.responseBufferSize = Integer.getInteger(PREFIX + "responseBufferSize", config.responseBufferSize);
+        config.maxRequestLine = Integer.getInteger(PREFIX + "maxRequestLine", config.maxRequestLine);
+        config.maxHeaderSize = Integer.getInteger(PREFIX + "maxHeaderSize", config.maxHeaderSize);
+        config.keepAliveTimeout = Integer.getInteger(PREFIX + "keepAliveTimeout", config.keepAliveTimeout);
+        config.headerReadTimeout = Integer.getInteger(PREFIX + "headerReadTimeout", config.headerReadTimeout);
+        config.writeTimeout = Integer.getInteger(PREFIX + "writeTimeout", config.writeTimeout);
+        config.timerTick = Integer.getInteger(PREFIX + "timerTick", config.timerTick);
+        config.contentCacheSize = Long.getLong(PREFIX + "contentCacheSize", config.contentCacheSize);
+        config.contentCacheMaxEntrySize = Long.getLong(PREFIX + "contentCacheMaxEntrySize",
+                config.contentCacheMaxEntrySize);
+        config.mappedCacheSize = Long.getLong(PREFIX + "mappedCacheSize", config.mappedCacheSize);
+        config.compressionCacheSize = Long.getLong(PREFIX + "compressionCacheSize", config.compressionCacheSize);
+        config.compressionMinSize = Long.getLong(PREFIX + "compressionMinSize", config.compressionMinSize);
+        config.compressionMaxSize = Long.getLong(PREFIX + "compressionMaxSize", config.compressionMaxSize);
+        config.listingCacheSize = Long.getLong(PREFIX + "listingCacheSize", config.listingCacheSize);
+        config.listingStreamEntries = Integer.getInteger(PREFIX + "listingStreamEntries", config.listingStreamEntries);
+        config.pathIndex = Boolean.parseBoolean(System.getProperty(PREFIX + "pathIndex", String.valueOf(config.pathIndex)));
+        config.pathIndexThreads = Integer.getInteger(PREFIX + "pathIndexThreads", config.pathIndexThreads);
+        config.metricsPath = System.getProperty(PREFIX + "metricsPath", config.metricsPath);
+        config.accessLog = System.getProperty(PREFIX + "accessLog", config.accessLog);
+        config.accessLogBufferSize = Integer.getInteger(PREFIX + "accessLogBufferSize", config.accessLogBufferSize);
+        config.tlsKeystore = System.getProperty(PREFIX + "tlsKeystore", config.tlsKeystore);
+        config.tlsKeystorePassword = System.getProperty(PREFIX + "tlsKeystorePassword", config.tlsKeystorePassword);
+        config.tlsKeystoreType = System.getProperty(PREFIX + "tlsKeystoreType", config.tlsKeystoreType);
+        config.tlsProtocols = System.getProperty(PREFIX + "tlsProtocols", config.tlsProtocols);
+        config.tlsSessionCacheSize = Integer.getInteger(PREFIX + "tlsSessionCacheSize", config.tlsSessionCacheSize);
+        config.tlsSessionTimeout = Integer.getInteger(PREFIX + "tlsSessionTimeout", config.tlsSessionTimeout);
+        config.tlsSessionTickets = Boolean.parseBoolean(
+                System.getProperty(PREFIX + "tlsSessionTickets", String.valueOf(config.tlsSessionTickets)));
+        config.http2 = Boolean.parseBoolean(System.getProperty(PREFIX + "http2", String.valueOf(config.http2)));
+        config.http2MaxConcurrentStreams = Integer.getInteger(PREFIX + "http2MaxConcurrentStreams",
+                config.http2MaxConcurrentStreams);
+        return config;
+    }
+
+    public String getRootPath() {
+        return rootPath;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public IoMode getIoMode() {
+        return ioMode;
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public int getReactorThreads() {
+        return reactorThreads;
+    }
+
+    public Balancing getBalancing() {
+        return balancing;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getMaxQueuedRequests() {
+        return maxQueuedRequests;
+    }
+
+    public boolean isAdaptiveConcurrency() {
+        return adaptiveConcurrency;
+    }
+
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    public int getMaxRequestSize() {
+        return maxRequestSize;
+    }
+
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    public int getBodyBufferSize() {
+        return bodyBufferSize;
+    }
+
+    public int getResponseBufferSize() {
+        return responseBufferSize;
+    }
+
+    public int getMaxRequestLine() {
+        return maxRequestLine;
+    }
+
+    public int getMaxHeaderSize() {
+        return maxHeaderSize;
+    }
+
+    public int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    public int getHeaderReadTimeout() {
+        return headerReadTimeout;
+    }
+
+    public int getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    public int getTimerTick() {
+        return timerTick;
+    }
+
+    public long getContentCacheSize() {
+        return contentCacheSize;
+    }
+
+    public long getContentCacheMaxEntrySize() {
+        return contentCacheMaxEntrySize;
+    }
+
+    public long getMappedCacheSize() {
+        return mappedCacheSize;
+    }
+
+    public long getCompressionCacheSize() {
+        return compressionCacheSize;
+    }
+
+    public long getCompressionMinSize() {
+        return compressionMinSize;
+    }
+
+    public long getCompressionMaxSize() {
+        return compressionMaxSize;
+    }
+
+    public long getListingCacheSize() {
+        return listingCacheSize;
+    }
+
+    public int getListingStreamEntries() {
+        return listingStreamEntries;
+    }
+
+    public boolean isPathIndex() {
+        return pathIndex;
+    }
+
+    public int getPathIndexThreads() {
+        return pathIndexThreads;
+    }
+
+    public String getMetricsPath() {
+        return metricsPath;
+    }
+
+    public String getAccessLog() {
+        return accessLog;
+    }
+
+    public int getAccessLogBufferSize() {
+        return accessLogBufferSize;
+    }
+
+    /**
+     * @return true if the port speaks HTTPS
+     */
+    public boolean isTls() {
+        return tlsKeystore != null && !tlsKeystore.isEmpty();
+    }
+
+    public String getTlsKeystore() {
+        return tlsKeystore;
+    }
+
+    public String getTlsKeystorePassword() {
+        return tlsKeystorePassword;
+    }
+
+    public String getTlsKeystoreType() {
+        return tlsKeystoreType;
+    }
+
+    public String getTlsProtocols() {
+        return tlsProtocols;
+    }
+
+    public int getTlsSessionCacheSize() {
+        return tlsSessionCacheSize;
+    }
+
+    public int getTlsSessionTimeout() {
+        return tlsSessionTimeout;
+    }
+
+    public boolean isTlsSessionTickets() {
+        return tlsSessionTickets;
+    }
+
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    public int getHttp2MaxConcurrentStreams() {
+        return http2MaxConcurrentStreams;
+    }
+}
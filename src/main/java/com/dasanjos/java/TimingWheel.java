@@ -0,0 +1,150 @@
+package com.dasanjos.java;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Class <code>TimingWheel</code> - hashed timing wheel for the connection
+ * timeouts of the selector thread.
+ *
+ * Time is divided into ticks, and every tick maps to one of a fixed number
+ * of buckets. A connection with a pending timeout is linked into the bucket
+ * of its deadline, so scheduling, rescheduling and cancelling are O(1) and
+ * the selector thread only looks at the buckets of the ticks that have
+ * passed, instead of at every registered connection. Deadlines further away
+ * than one revolution stay in their bucket until their round comes.
+ *
+ * The connections themselves carry the links and the deadline, so no
+ * objects are allocated per timeout. Only the selector thread may use the
+ * wheel.
+ *
+ * Ticks and deadlines are measured on the monotonic clock of {@link #now()},
+ * a step of the wall clock neither delays the timeouts nor fires them all
+ * at once.
+ */
+class TimingWheel {
+
+    /**
+     * What a connection is waiting for.
+     * <ul>
+     * <li>IDLE - the next request on a keep-alive connection.</li>
+     * <li>HEADER_READ - the rest of a request whose first bytes have arrived.</li>
+     * <li>WRITE - the client to accept more of the pending response.</li>
+     * </ul>
+     */
+    enum Timeout {
+        IDLE, HEADER_READ, WRITE
+    }
+
+    private static final int WHEEL_SIZE = 512;
+
+    private final long tickMillis;
+
+    private final long[] durations = new long[Timeout.values().length];
+
+    /** first connection of each bucket, linked through {@link Connection#timerNext} */
+    private final Connection[] buckets = new Connection[WHEEL_SIZE];
+
+    /** the last tick whose bucket has been processed */
+    private long currentTick;
+
+    /**
+     * @param tickMillis resolution of the wheel, timeouts fire up to one tick late
+     * @param idle timeout of {@link Timeout#IDLE} in milliseconds, 0 disables it
+     * @param headerRead timeout of {@link Timeout#HEADER_READ} in milliseconds, 0 disables it
+     * @param write timeout of {@link Timeout#WRITE} in milliseconds, 0 disables it
+     */
+    TimingWheel(long tickMillis, long idle, long headerRead, long write) {
+        this.tickMillis = tickMillis;
+        this.durations[Timeout.IDLE.ordinal()] = idle;
+        this.durations[Timeout.HEADER_READ.ordinal()] = headerRead;
+        this.durations[Timeout.WRITE.ordinal()] = write;
+        this.currentTick = Math.floorDiv(now(), tickMillis);
+    }
+
+    /**
+     * The time the wheel runs on, in milliseconds from an arbitrary origin
+     * that may be negative; only the differences between values matter.
+     */
+    static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Starts (or restarts) the given timeout of the connection, replacing
+     * the one it had before.
+     *
+     * @param now the current time of {@link #now()}
+     */
+    void schedule(Connection connection, Timeout timeout, long now) {
+        cancel(connection);
+        long duration = durations[timeout.ordinal()];
+        if (duration <= 0) {
+            return;
+        }
+        connection.timeout = timeout;
+        connection.deadline = now + duration;
+        long tick = Math.max(-Math.floorDiv(-connection.deadline, tickMillis), currentTick + 1);
+        int bucket = (int) (tick & (WHEEL_SIZE - 1));
+        Connection head = buckets[bucket];
+        connection.timerBucket = bucket;
+        connection.timerPrev = null;
+        connection.timerNext = head;
+        if (head != null) {
+            head.timerPrev = connection;
+        }
+        buckets[bucket] = connection;
+    }
+
+    /**
+     * Removes the pending timeout of the connection, if it has one.
+     */
+    void cancel(Connection connection) {
+        if (connection.timerBucket < 0) {
+            return;
+        }
+        if (connection.timerPrev != null) {
+            connection.timerPrev.timerNext = connection.timerNext;
+        } else {
+            buckets[connection.timerBucket] = connection.timerNext;
+        }
+        if (connection.timerNext != null) {
+            connection.timerNext.timerPrev = connection.timerPrev;
+        }
+        connection.timerPrev = null;
+        connection.timerNext = null;
+        connection.timerBucket = -1;
+        connection.timeout = null;
+    }
+
+    /**
+     * Processes the buckets of the ticks passed since the last call and hands
+     * every connection whose deadline has been reached to the handler, after
+     * removing it from the wheel.
+     *
+     * @param now the current time of {@link #now()}
+     */
+    void expire(long now, BiConsumer<Connection, Timeout> handler) {
+        long nowTick = Math.floorDiv(now, tickMillis);
+        long ticks = Math.min(nowTick - currentTick, WHEEL_SIZE);
+        for (long i = 1; i <= ticks; i++) {
+            int bucket = (int) ((currentTick + i) & (WHEEL_SIZE - 1));
+            Connection connection = buckets[bucket];
+            while (connection != null) {
+                Connection next = connection.timerNext;
+                if (connection.deadline <= now) {
+                    Timeout timeout = connection.timeout;
+                    cancel(connection);
+                    handler.accept(connection, timeout);
+                }
+                connection = next;
+            }
+        }
+        if (nowTick > currentTick) {
+            currentTick = nowTick;
+        }
+    }
+}
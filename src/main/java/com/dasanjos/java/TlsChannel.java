@@ -0,0 +1,342 @@
+package com.dasanjos.java;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Class <code>TlsChannel</code> - TLS over a socket channel, with an
+ * {@link SSLEngine} instead of an SSLSocket, so that it works in both modes
+ * of the socket channel. In blocking mode the channel reads through the
+ * socket stream (its SO_TIMEOUT applies) and writes block; in non-blocking
+ * mode reads return 0 once the received records are used up and writes
+ * return what could be encrypted without waiting.
+ *
+ * The handshake is driven by the reads and writes, and runs on the calling
+ * thread, delegated tasks included. The reactors therefore never use this
+ * channel themselves, pool threads do.
+ *
+ * Encrypted records that did not fit into the socket buffer stay in the
+ * channel; in non-blocking mode {@link #flush()} tells whether they are
+ * out. A channel is used by one thread at a time.
+ */
+class TlsChannel implements ByteChannel, GatheringByteChannel {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /** TLS record header: content type, version, length */
+    private static final int RECORD_HEADER = 5;
+
+    private final SocketChannel channel;
+
+    private final SSLEngine engine;
+
+    private final TlsContext context;
+
+    /** System.currentTimeMillis() when the connection was accepted */
+    private final long created = System.currentTimeMillis();
+
+    /** received records not decrypted yet, in write mode */
+    private ByteBuffer netIn;
+
+    /** decrypted bytes not read yet, in write mode */
+    private ByteBuffer appIn;
+
+    /** encrypted records not sent yet, in write mode */
+    private ByteBuffer netOut;
+
+    private volatile boolean handshaking = true;
+
+    /** the client closed its side, with close_notify or without */
+    private boolean inboundDone;
+
+    TlsChannel(SocketChannel channel, SSLEngine engine, TlsContext context) {
+        this.channel = channel;
+        this.engine = engine;
+        this.context = context;
+        SSLSession session = engine.getSession();
+        this.netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        this.appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+        this.netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+    }
+
+    /**
+     * Reads decrypted bytes, continuing the handshake first if needed.
+     *
+     * @return the number of bytes read, 0 if a non-blocking channel has no
+     * complete record, -1 if the client closed the connection
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        while (true) {
+            if (appIn.position() > 0) {
+                return transfer(appIn, dst);
+            }
+            if (inboundDone) {
+                return -1;
+            }
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runTasks();
+                    continue;
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    if (!flush()) {
+                        // continued once the socket takes the rest
+                        return 0;
+                    }
+                    continue;
+                default:
+                    break;
+            }
+            SSLEngineResult result = unwrap();
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                    break;
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining()) {
+                        netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                    }
+                    int count = readRecords();
+                    if (count < 0) {
+                        inboundDone = true;
+                    } else if (count == 0) {
+                        return 0;
+                    }
+                    break;
+                case CLOSED:
+                    inboundDone = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Encrypts and sends the buffers, several buffers into the same record
+     * where they fit.
+     *
+     * @return the number of bytes taken from the buffers, fewer than they
+     * hold if a non-blocking socket is full
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (!flush()) {
+            return 0;
+        }
+        long consumed = 0;
+        while (remaining(srcs, offset, length)) {
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(srcs, offset, length, netOut);
+            } catch (SSLException e) {
+                failed();
+                throw e;
+            }
+            consumed += result.bytesConsumed();
+            finished(result);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new EOFException("TLS connection closed");
+            }
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && netOut.position() == 0) {
+                netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                continue;
+            }
+            if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+            }
+            if (!flush()) {
+                break;
+            }
+            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                    && result.getStatus() == SSLEngineResult.Status.OK) {
+                // the engine waits for the client before it takes application data
+                break;
+            }
+        }
+        return consumed;
+    }
+
+    /**
+     * Sends the encrypted records that are still buffered.
+     *
+     * @return true if nothing is left to send
+     */
+    boolean flush() throws IOException {
+        if (netOut.position() == 0) {
+            return true;
+        }
+        netOut.flip();
+        try {
+            while (netOut.hasRemaining() && channel.write(netOut) > 0) {
+                // a blocking channel writes everything at once
+            }
+        } finally {
+            netOut.compact();
+        }
+        return netOut.position() == 0;
+    }
+
+    /**
+     * @return true if decrypted bytes or a complete record have been
+     * received and not read yet, they do not make the socket readable
+     */
+    boolean hasBufferedInput() {
+        if (appIn.position() > 0) {
+            return true;
+        }
+        if (netIn.position() < RECORD_HEADER) {
+            return false;
+        }
+        int length = (netIn.get(3) & 0xff) << 8 | netIn.get(4) & 0xff;
+        return netIn.position() >= RECORD_HEADER + length;
+    }
+
+    /**
+     * @return true until the initial handshake has finished
+     */
+    boolean isHandshaking() {
+        return handshaking;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Sends close_notify as far as the socket takes it, the socket channel
+     * itself is closed by the caller.
+     */
+    @Override
+    public void close() {
+        if (engine.isOutboundDone()) {
+            return;
+        }
+        engine.closeOutbound();
+        try {
+            wrap(EMPTY);
+            flush();
+        } catch (IOException e) {
+            // the connection is closed anyway
+        }
+    }
+
+    private SSLEngineResult unwrap() throws SSLException {
+        netIn.flip();
+        try {
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+            finished(result);
+            return result;
+        } catch (SSLException e) {
+            failed();
+            throw e;
+        } finally {
+            netIn.compact();
+        }
+    }
+
+    private void wrap(ByteBuffer src) throws IOException {
+        while (true) {
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(src, netOut);
+            } catch (SSLException e) {
+                failed();
+                throw e;
+            }
+            finished(result);
+            if (result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                return;
+            }
+            if (netOut.position() == 0) {
+                netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+            } else if (!flush()) {
+                throw new IOException("Socket buffer full during the TLS handshake");
+            }
+        }
+    }
+
+    private int readRecords() throws IOException {
+        if (!channel.isBlocking()) {
+            return channel.read(netIn);
+        }
+        int count = channel.socket().getInputStream().read(netIn.array(), netIn.arrayOffset() + netIn.position(),
+                netIn.remaining());
+        if (count > 0) {
+            netIn.position(netIn.position() + count);
+        }
+        return count;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private void finished(SSLEngineResult result) {
+        if (handshaking && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+            handshaking = false;
+            // a resumed session is the one created by an earlier connection
+            context.handshakeFinished(engine.getSession().getCreationTime() < created);
+        }
+    }
+
+    private void failed() {
+        if (handshaking) {
+            context.handshakeFailed();
+        }
+    }
+
+    private static boolean remaining(ByteBuffer[] buffers, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffers[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves bytes from a buffer in write mode to the destination.
+     */
+    private static int transfer(ByteBuffer from, ByteBuffer to) {
+        from.flip();
+        int count = Math.min(from.remaining(), to.remaining());
+        ByteBuffer slice = from.duplicate();
+        slice.limit(slice.position() + count);
+        to.put(slice);
+        from.position(from.position() + count);
+        from.compact();
+        return count;
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int size) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+}
@@ -0,0 +1,127 @@
+package com.dasanjos.java;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Class <code>TlsContext</code> - the server side of TLS shared by all
+ * connections: the key and certificate chain loaded from the configured
+ * keystore, and the session cache.
+ *
+ * Returning clients skip the full handshake (and its public key
+ * operations) by resuming a session: by session ID or pre-shared key from
+ * the server's session cache, or with a session ticket, which carries the
+ * session state encrypted by the server and needs no cache at all. Tickets
+ * are issued by Java 13 and later, on Java 8 and 11 only the cache applies.
+ */
+class TlsContext {
+
+    private static final Logger log = Logger.getLogger(TlsContext.class);
+
+    /** read by the JSSE once, when its configuration is first used */
+    private static final String SESSION_TICKETS = "jdk.tls.server.enableSessionTicketExtension";
+
+    private final SSLContext context;
+
+    /** null for the defaults of the JVM */
+    private final String[] protocols;
+
+    private final LongAdder handshakes = new LongAdder();
+
+    private final LongAdder resumed = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    TlsContext(ServerConfig config) throws IOException, GeneralSecurityException {
+        if (System.getProperty(SESSION_TICKETS) == null) {
+            System.setProperty(SESSION_TICKETS, String.valueOf(config.isTlsSessionTickets()));
+        }
+        char[] password = config.getTlsKeystorePassword().toCharArray();
+        KeyStore keyStore = KeyStore.getInstance(config.getTlsKeystoreType());
+        try (InputStream in = new FileInputStream(config.getTlsKeystore())) {
+            keyStore.load(in, password);
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, password);
+
+        context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(config.getTlsSessionCacheSize());
+        sessions.setSessionTimeout(config.getTlsSessionTimeout());
+
+        protocols = supportedProtocols(config.getTlsProtocols());
+        log.info("TLS enabled with " + config.getTlsKeystore() + " ("
+                + Arrays.toString(protocols != null ? protocols : context.getDefaultSSLParameters().getProtocols())
+                + ")");
+    }
+
+    /**
+     * @return the configured protocols the JVM supports, or null to use
+     * its defaults
+     */
+    private String[] supportedProtocols(String configured) {
+        if (configured == null || configured.trim().isEmpty()) {
+            return null;
+        }
+        List<String> supported = Arrays.asList(context.getSupportedSSLParameters().getProtocols());
+        List<String> protocols = new ArrayList<>();
+        for (String protocol : configured.split(",")) {
+            if (supported.contains(protocol.trim())) {
+                protocols.add(protocol.trim());
+            } else {
+                log.info("TLS protocol not supported by this JVM: " + protocol.trim());
+            }
+        }
+        return protocols.isEmpty() ? null : protocols.toArray(new String[0]);
+    }
+
+    /**
+     * @return a server engine for a new connection
+     */
+    SSLEngine newEngine() {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        if (protocols != null) {
+            engine.setEnabledProtocols(protocols);
+        }
+        return engine;
+    }
+
+    void handshakeFinished(boolean resumedSession) {
+        handshakes.increment();
+        if (resumedSession) {
+            resumed.increment();
+        }
+    }
+
+    void handshakeFailed() {
+        failed.increment();
+    }
+
+    long getHandshakes() {
+        return handshakes.sum();
+    }
+
+    long getResumedHandshakes() {
+        return resumed.sum();
+    }
+
+    long getFailedHandshakes() {
+        return failed.sum();
+    }
+}
@@ -1,24 +1,34 @@
 package com.dasanjos.java;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.security.GeneralSecurityException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import org.apache.log4j.Logger;
 
+import com.dasanjos.java.http.Handler;
+import com.dasanjos.java.http.Method;
+import com.dasanjos.java.http.Router;
+import com.dasanjos.java.http.StaticFileHandler;
+import com.dasanjos.java.metrics.Metrics;
+import com.dasanjos.java.metrics.MetricsHandler;
+
+import paris.boris.java.http.util.CacheUtils;
+import paris.boris.java.http.util.CompressionCache;
+import paris.boris.java.http.util.ContentCache;
+import paris.boris.java.http.util.DirectoryListingCache;
+import paris.boris.java.http.util.DocrootIndex;
+import paris.boris.java.http.util.MappedFileCache;
+
 /**
  * https://github.com/jrudolph/Pooling-web-server/blob/master/src/main/java/virtualvoid/net/NioPooledWebServer.java
  * 
@@ -40,130 +50,245 @@ import org.apache.log4j.Logger;
  * every time and reregister it with the selector.
  * (see http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6403933)
  *
- * Third, we have to manage timeouts ourselves. We do this by running over the list of connections
- * each x seconds and check if the timestamp in the attachment is older than the configured timeout,
- * in which case the connection is closed.
+ * Third, we have to manage timeouts ourselves. Connections waiting in the selector are kept in a
+ * {@link TimingWheel}, which closes them once their idle, header-read or write timeout expires
+ * without looking at the connections that are not due.
+ *
+ * The selector work is spread over several {@link Reactor} threads, each with
+ * its own selector and connections. The main thread only accepts connections
+ * and hands them to the reactors, round-robin or to the one with the fewest
+ * open connections. With SO_REUSEPORT every reactor has its own listening
+ * socket instead and the kernel spreads the connections.
+ *
+ * In EVENT mode (see {@link ServerConfig.IoMode}) channels never leave
+ * non-blocking mode and the reactors do all socket I/O, pool threads only
+ * build responses.
+ *
+ * The executor queue itself is unbounded, what may enter it is limited by
+ * the {@link Admission}: beyond the connection and queue limits the
+ * reactors shed load with 503 instead.
+ *
+ * Requests are dispatched by a {@link Router}: the docroot is served on
+ * <code>/*</code>, the metrics on their reserved path, further endpoints
+ * are added with {@link #mount(Method, String, Handler)} before the server
+ * is run.
+ *
+ * With a keystore configured the port speaks HTTPS (see {@link TlsContext}),
+ * the TLS work is done on the pool threads. A plain HTTP port also speaks
+ * HTTP/2 over cleartext (see {@link Http2Connection}) with clients that
+ * start with its preface or ask for the upgrade.
  */
 public class WebServer {
 
     private static Logger log = Logger.getLogger(WebServer.class);
 
-    private final ExecutorService executor = Executors.newFixedThreadPool(2);
-    private final ExecutorCompletionService<SocketChannel> keepAliveChannels = new ExecutorCompletionService<SocketChannel>(executor);
+    /** pause after a failed accept, e.g. while out of file descriptors */
+    private static final long ACCEPT_RETRY_MILLIS = 100;
+
+    private final ServerConfig config;
+
+    private final ExecutorService executor;
+
+    /** null if requests are not logged */
+    private final AccessLog accessLog;
+
+    private final Admission admission;
+
+    /** null on a plain HTTP port */
+    private final TlsContext tlsContext;
+
+    private final Router router = new Router();
+
+    private Reactor[] reactors;
+
+    private int nextReactor;
+
+    public WebServer(ServerConfig config) throws IOException {
+        this.config = config;
+        this.executor = newExecutor(config);
+        if (config.getAccessLog() != null && !config.getAccessLog().isEmpty()) {
+            this.accessLog = new AccessLog(config.getAccessLog(), config.getAccessLogBufferSize());
+            Metrics.get().registerGauge("access_log_dropped", accessLog::getDropped);
+        } else {
+            this.accessLog = null;
+        }
+        CacheUtils.setContentCache(new ContentCache(config.getContentCacheSize(), config.getContentCacheMaxEntrySize()));
+        CacheUtils.setMappedFileCache(new MappedFileCache(config.getMappedCacheSize()));
+        CacheUtils.setCompressionCache(new CompressionCache(config.getCompressionCacheSize(),
+                config.getCompressionMinSize(), config.getCompressionMaxSize()));
+        DocrootIndex index = config.isPathIndex()
+                ? DocrootIndex.build(config.getRootPath(), config.getPathIndexThreads()) : null;
+        CacheUtils.setDocrootIndex(index);
+        // the listings take their changes from the index's watcher where there is one
+        CacheUtils.setListingCache(new DirectoryListingCache(config.getListingCacheSize(),
+                config.getListingStreamEntries(), index));
+        if (index != null) {
+            Metrics.get().registerGauge("docroot_index_entries", index::size);
+        }
+        Metrics.setPath(config.getMetricsPath());
+        router.add(Method.GET, "/*", new StaticFileHandler());
+        if (Metrics.getPath() != null) {
+            router.add(Method.GET, Metrics.getPath(), new MetricsHandler(false));
+            router.add(Method.GET, Metrics.getPath() + ".json", new MetricsHandler(true));
+        }
+        this.admission = new Admission(config);
+        Metrics.get().registerGauge("connections_rejected", admission::getRejectedConnections);
+        Metrics.get().registerGauge("requests_shed", admission::getShedTasks);
+        Metrics.get().registerGauge("admission_queued", admission::getQueued);
+        Metrics.get().registerGauge("admission_in_flight", admission::getInFlight);
+        if (config.isAdaptiveConcurrency()) {
+            Metrics.get().registerGauge("admission_limit", admission::getLimit);
+        }
+        if (executor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            Metrics.get().registerGauge("executor_queue_depth", () -> pool.getQueue().size());
+            Metrics.get().registerGauge("executor_active_threads", pool::getActiveCount);
+        }
+        if (config.isTls()) {
+            try {
+                this.tlsContext = new TlsContext(config);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cannot set up TLS with " + config.getTlsKeystore(), e);
+            }
+            Metrics.get().registerGauge("tls_handshakes", tlsContext::getHandshakes);
+            Metrics.get().registerGauge("tls_handshakes_resumed", tlsContext::getResumedHandshakes);
+            Metrics.get().registerGauge("tls_handshakes_failed", tlsContext::getFailedHandshakes);
+        } else {
+            this.tlsContext = null;
+            if (config.isHttp2()) {
+                Metrics.get().registerGauge("http2_connections", Http2Connection::getOpenConnections);
+                Metrics.get().registerGauge("http2_streams", Http2Connection::getStreamCount);
+            }
+        }
+    }
 
     /**
-     * Check the pool for completion of one or more of its task and in case it's
-     * keep-alive register the connection with the selector.
+     * Mounts a handler for the method and path pattern (see {@link Router}),
+     * in front of the static files.
+     *
+     * @throws IllegalArgumentException if the pattern is malformed or already
+     * mounted for the method
+     * @throws IllegalStateException if the server has already been run
      */
-    private void registerKeepAliveChannels(Selector selector) throws IOException, InterruptedException {
-        long now = System.currentTimeMillis();
-        Future<SocketChannel> alive;
-        while ((alive = keepAliveChannels.poll()) != null) {
+    public WebServer mount(Method method, String pattern, Handler handler) {
+        router.add(method, pattern, handler);
+        return this;
+    }
+
+    /**
+     * Creates the executor for the configured {@link ServerConfig.ExecutionMode}.
+     * Virtual threads are looked up reflectively so the server still builds
+     * and runs on Java 8; without them a thread per task is started instead.
+     */
+    private static ExecutorService newExecutor(ServerConfig config) {
+        if (config.getExecutionMode() == ServerConfig.ExecutionMode.VIRTUAL) {
             try {
-                SocketChannel channel = alive.get();
-                if (channel != null) {
-                    channel.configureBlocking(false);
-                    channel.register(selector, SelectionKey.OP_READ, now);
-                }
-            } catch (ExecutionException e) {
-                e.printStackTrace();
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                log.info("Virtual threads are not available on this JVM, using a platform thread per task");
+                return Executors.newCachedThreadPool();
             }
         }
+        return Executors.newFixedThreadPool(config.getWorkerThreads());
     }
 
     /**
-     * Each x seconds check all registrations if they have timed-out in which
-     * case the corresponding channel is closed.
+     * Looks up SO_REUSEPORT reflectively, it is only available on Java 9+
+     * and only supported on some platforms.
+     *
+     * @return the option, or null if listening sockets cannot share a port
      */
-    private long cleanupKeepAliveChannels(long lastCleanup, Set<SelectionKey> keys) throws IOException {
-        long now = System.currentTimeMillis();
-        if (now - lastCleanup > 5000) {
-            System.err.println("Cleaning up keep-alive connections. " + keys.size());
-            for (SelectionKey key : keys) {
-                if ((key.interestOps() & SelectionKey.OP_READ) != 0
-                        && ((Long) key.attachment()) + 20000 < now) {
-                    System.out.println("Closing connection to " + key.channel());
-                    key.channel().close();
-                }
-            }
-            return now;
-        } else {
-            return lastCleanup;
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption(ServerSocketChannel channel) {
+        try {
+            SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class
+                    .getField("SO_REUSEPORT").get(null);
+            return channel.supportedOptions().contains(option) ? option : null;
+        } catch (ReflectiveOperationException e) {
+            return null;
         }
     }
 
     public void run() throws IOException, InterruptedException {
         ServerSocketChannel serverChannel = ServerSocketChannel.open();
-        serverChannel.configureBlocking(false);
-
-        ServerSocket theServer = serverChannel.socket();
-        theServer.bind(new InetSocketAddress(8020));
-        
-        log.info("Server started!");
+        SocketOption<Boolean> reusePort = config.isReusePort() ? reusePortOption(serverChannel) : null;
+        if (config.isReusePort() && reusePort == null) {
+            log.info("SO_REUSEPORT is not supported, using a single acceptor");
+        }
 
-        final Selector selector = Selector.open();
-        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        RequestHandler requestHandler = new RequestHandler(accessLog, router.compile());
+        reactors = new Reactor[config.getReactorThreads()];
+        for (int i = 0; i < reactors.length; i++) {
+            ServerSocketChannel reactorChannel = null;
+            if (reusePort != null) {
+                reactorChannel = i == 0 ? serverChannel : ServerSocketChannel.open();
+                reactorChannel.setOption(reusePort, true);
+                reactorChannel.bind(new InetSocketAddress(config.getPort()));
+            }
+            reactors[i] = new Reactor(config, executor, requestHandler, admission, tlsContext, reactorChannel);
+        }
 
-        long lastCleanup = System.currentTimeMillis();
-        while (true) {
-            registerKeepAliveChannels(selector);
-            lastCleanup = cleanupKeepAliveChannels(lastCleanup, selector.keys());
+        log.info("Server started! (" + config.getIoMode() + " I/O, " + config.getExecutionMode()
+                + " execution, " + reactors.length + " reactors" + (reusePort != null ? " with SO_REUSEPORT" : "")
+                + ", " + (tlsContext != null ? "https" : "http") + " port " + config.getPort() + ")");
 
-            if (selector.select(10) == 0) {
-                continue;
-            }
+        for (int i = 0; i < reactors.length; i++) {
+            Thread thread = new Thread(reactors[i], "reactor-" + i);
+            thread.start();
+        }
+        if (reusePort == null) {
+            serverChannel.bind(new InetSocketAddress(config.getPort()));
+            runAcceptor(serverChannel);
+        }
+    }
 
-            for (SelectionKey key : selector.selectedKeys()) {
-                if (key.isAcceptable()) {
-                    // we take it for granted that only the server channel is
-                    // registered for acception.
-                    SocketChannel clientChannel = serverChannel.accept();
-                    clientChannel.configureBlocking(true);
-                    schedule(clientChannel);
-
-                    // workaround: cancel the key and reregister it later on
-                    // see http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6403933
-                    key.cancel();
-                } else if (key.isReadable()) {
-                    SocketChannel clientChannel = (SocketChannel) key.channel();
-
-                    // cancel the registration, we go back into blocking mode
-                    // and let the processing be done inside of an own thread
-                    key.cancel();
-                    clientChannel.configureBlocking(true);
-                    log.info(String.format("Reusing channel %s", clientChannel));
-                    schedule(clientChannel);
+    /**
+     * Accepts connections on the calling thread and hands each one to a
+     * reactor. A failing accept, such as EMFILE when the process is out of
+     * file descriptors, is retried after a short pause, by which time
+     * closed connections may have freed some.
+     */
+    private void runAcceptor(ServerSocketChannel serverChannel) throws IOException {
+        serverChannel.configureBlocking(true);
+        while (true) {
+            SocketChannel clientChannel;
+            try {
+                clientChannel = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                throw e;
+            } catch (IOException e) {
+                log.error("Error accepting a connection", e);
+                try {
+                    Thread.sleep(ACCEPT_RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while accepting connections");
                 }
+                continue;
             }
-
-            selector.selectNow();
-            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            nextReactor().register(clientChannel);
         }
     }
 
-    private void schedule(final SocketChannel clientChannel) {
-        keepAliveChannels.submit(new Callable<SocketChannel>() {
-            @Override
-            public SocketChannel call() throws Exception {
-                Socket client = clientChannel.socket();
-                boolean keepAlive = new RequestHandler().handleConnection(client, rootPath);
-                if (keepAlive) {
-                    return clientChannel;
+    private Reactor nextReactor() {
+        if (config.getBalancing() == ServerConfig.Balancing.LEAST_LOADED) {
+            Reactor least = reactors[0];
+            for (Reactor reactor : reactors) {
+                if (reactor.getConnectionCount() < least.getConnectionCount()) {
+                    least = reactor;
                 }
-                if (!client.isClosed()) {
-                    client.close();
-                }
-
-                return null;
             }
-        });
+            return least;
+        }
+        nextReactor = (nextReactor + 1) % reactors.length;
+        return reactors[nextReactor];
     }
 
     public static void main(String[] args) throws Exception {
+        ServerConfig config = ServerConfig.fromSystemProperties();
         if (args.length > 0) {
-            rootPath = args[0];
+            config.rootPath = args[0];
         }
-        new WebServer().run();
+        new WebServer(config).run();
     }
-    private static String rootPath = ".";
 }
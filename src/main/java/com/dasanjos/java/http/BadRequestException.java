@@ -0,0 +1,24 @@
+package com.dasanjos.java.http;
+
+import java.io.IOException;
+
+/**
+ * Thrown by the {@link RequestParser} for requests that are malformed or
+ * exceed the configured limits. The connection is answered with the given
+ * status and closed.
+ */
+public class BadRequestException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Status status;
+
+    public BadRequestException(Status status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+}
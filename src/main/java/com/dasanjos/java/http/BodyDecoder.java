@@ -0,0 +1,166 @@
+package com.dasanjos.java.http;
+
+import java.nio.ByteBuffer;
+
+/**
+ * BodyDecoder removes the message framing from a request body as its bytes
+ * arrive: it counts down a Content-Length, or decodes the chunked
+ * transfer-coding http://tools.ietf.org/html/rfc7230#section-4.1 (chunk
+ * extensions and trailer fields are skipped). The decoder is a state
+ * machine over single bytes, so framing split across reads needs no
+ * buffering.
+ */
+class BodyDecoder {
+
+    private enum State {
+        SIZE, EXTENSION, SIZE_LF, DATA, DATA_CR, DATA_LF, TRAILER, TRAILER_LINE, DONE
+    }
+
+    /** most hex digits of a chunk size, 15 keep it below Long.MAX_VALUE */
+    private static final int MAX_SIZE_DIGITS = 15;
+
+    private final boolean chunked;
+
+    private final long maxBodySize;
+
+    private State state;
+
+    /** bytes left of the body (Content-Length) or of the current chunk */
+    private long remaining;
+
+    private int sizeDigits;
+
+    /** payload bytes decoded so far */
+    private long received;
+
+    /**
+     * @param contentLength the announced length, or -1 for a chunked body
+     * @param maxBodySize largest accepted body, a chunked body growing beyond gets 413
+     */
+    BodyDecoder(long contentLength, long maxBodySize) {
+        this.chunked = contentLength < 0;
+        this.maxBodySize = maxBodySize;
+        this.remaining = Math.max(contentLength, 0);
+        this.state = chunked ? State.SIZE : contentLength == 0 ? State.DONE : State.DATA;
+    }
+
+    /**
+     * Consumes framing and payload bytes from <code>src</code> and copies the
+     * payload into <code>dst</code>, until <code>src</code> is empty,
+     * <code>dst</code> is full or the body is complete. Bytes behind the end
+     * of the body are left in <code>src</code>.
+     *
+     * @throws BadRequestException if the chunked framing is malformed or the body too large
+     */
+    void decode(ByteBuffer src, ByteBuffer dst) throws BadRequestException {
+        while (state != State.DONE && src.hasRemaining()) {
+            if (state == State.DATA) {
+                int count = (int) Math.min(remaining, Math.min(src.remaining(), dst.remaining()));
+                if (count == 0) {
+                    return;
+                }
+                int limit = src.limit();
+                src.limit(src.position() + count);
+                dst.put(src);
+                src.limit(limit);
+                remaining -= count;
+                received += count;
+                if (remaining == 0) {
+                    state = chunked ? State.DATA_CR : State.DONE;
+                }
+                continue;
+            }
+            byte b = src.get();
+            switch (state) {
+                case SIZE:
+                    int digit = Character.digit(b, 16);
+                    if (digit >= 0 && sizeDigits < MAX_SIZE_DIGITS) {
+                        remaining = remaining << 4 | digit;
+                        sizeDigits++;
+                    } else if (sizeDigits > 0 && (b == ';' || b == ' ' || b == '\t')) {
+                        state = State.EXTENSION;
+                    } else if (sizeDigits > 0 && b == '\r') {
+                        state = State.SIZE_LF;
+                    } else if (sizeDigits > 0 && b == '\n') {
+                        startChunk();
+                    } else {
+                        throw new BadRequestException(Status._400, "Malformed chunk size");
+                    }
+                    break;
+                case EXTENSION:
+                    if (b == '\n') {
+                        startChunk();
+                    }
+                    break;
+                case SIZE_LF:
+                    if (b != '\n') {
+                        throw new BadRequestException(Status._400, "Malformed chunk size line");
+                    }
+                    startChunk();
+                    break;
+                case DATA_CR:
+                    if (b == '\r') {
+                        state = State.DATA_LF;
+                    } else if (b == '\n') {
+                        // a bare LF ends the chunk as well
+                        endChunk();
+                    } else {
+                        throw new BadRequestException(Status._400, "Chunk not terminated by CRLF");
+                    }
+                    break;
+                case DATA_LF:
+                    if (b != '\n') {
+                        throw new BadRequestException(Status._400, "Chunk not terminated by CRLF");
+                    }
+                    endChunk();
+                    break;
+                case TRAILER:
+                    // start of a line: an empty line ends the body
+                    if (b == '\n') {
+                        state = State.DONE;
+                    } else if (b != '\r') {
+                        state = State.TRAILER_LINE;
+                    }
+                    break;
+                case TRAILER_LINE:
+                    if (b == '\n') {
+                        state = State.TRAILER;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException(state.name());
+            }
+        }
+    }
+
+    private void startChunk() throws BadRequestException {
+        if (remaining == 0) {
+            // last-chunk, followed by the trailer section
+            state = State.TRAILER;
+            return;
+        }
+        if (received + remaining > maxBodySize) {
+            throw new BadRequestException(Status._413, "Request body exceeds " + maxBodySize + " bytes");
+        }
+        state = State.DATA;
+    }
+
+    private void endChunk() {
+        state = State.SIZE;
+        sizeDigits = 0;
+    }
+
+    /**
+     * @return true once the whole body, framing included, has been consumed
+     */
+    boolean isComplete() {
+        return state == State.DONE;
+    }
+
+    /**
+     * @return the number of payload bytes decoded so far
+     */
+    long getReceived() {
+        return received;
+    }
+}
@@ -0,0 +1,68 @@
+package com.dasanjos.java.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * BufferSegment writes in-memory buffers, with a single gathering write when
+ * the channel supports it. The buffers wrap the response arrays, nothing is
+ * copied.
+ */
+public class BufferSegment implements ResponseSegment {
+
+    private final ByteBuffer[] buffers;
+
+    public BufferSegment(ByteBuffer... buffers) {
+        this.buffers = buffers;
+    }
+
+    /**
+     * @return a segment writing the buffers of this segment followed by the
+     * buffers of the other one, so both go out with the same gathering write
+     */
+    public BufferSegment append(BufferSegment other) {
+        ByteBuffer[] joined = Arrays.copyOf(buffers, buffers.length + other.buffers.length);
+        System.arraycopy(other.buffers, 0, joined, buffers.length, other.buffers.length);
+        return new BufferSegment(joined);
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        if (buffers.length == 0) {
+            return true;
+        }
+        if (channel instanceof GatheringByteChannel) {
+            // a single call writes at most IOV_MAX buffers, keep going while
+            // the channel accepts data
+            long written;
+            do {
+                written = ((GatheringByteChannel) channel).write(buffers);
+            } while (written > 0 && buffers[buffers.length - 1].hasRemaining());
+        } else {
+            for (ByteBuffer buffer : buffers) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return false;
+                }
+            }
+        }
+        return !buffers[buffers.length - 1].hasRemaining();
+    }
+
+    @Override
+    public long length() {
+        long length = 0;
+        for (ByteBuffer buffer : buffers) {
+            length += buffer.remaining();
+        }
+        return length;
+    }
+
+    @Override
+    public void close() {
+        // nothing to release
+    }
+}
@@ -0,0 +1,136 @@
+package com.dasanjos.java.http;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ByteRange is one satisfiable range of a Range request header
+ * https://tools.ietf.org/html/rfc7233#section-2.1
+ */
+public class ByteRange {
+
+    /** more ranges than this in one request are ignored, the full entity is sent instead */
+    static final int MAX_RANGES = 64;
+
+    private final long start;
+
+    private final long end;
+
+    ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Parses the value of a Range header against an entity of the given length.
+     * Ranges that overlap or are adjacent are coalesced into one, in the
+     * order of their start, otherwise the order of the header is kept.
+     *
+     * @param header the Range header value, e.g. "bytes=0-499,-500"
+     * @param length the length of the entity
+     * @return the satisfiable ranges (an empty list if none is satisfiable),
+     * or null if the header is not a valid byte range set and must be ignored
+     */
+    public static List<ByteRange> parse(String header, long length) {
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = header.substring(6).split(",", -1);
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            if (dash == 0) {
+                // suffix range: the last n bytes
+                long suffix = digits(spec, 1, spec.length());
+                if (suffix < 0) {
+                    return null;
+                }
+                if (suffix > 0 && length > 0) {
+                    ranges.add(new ByteRange(Math.max(0, length - suffix), length - 1));
+                }
+                continue;
+            }
+            long first = digits(spec, 0, dash);
+            long last = dash == spec.length() - 1 ? Long.MAX_VALUE : digits(spec, dash + 1, spec.length());
+            if (first < 0 || last < first) {
+                return null;
+            }
+            if (first < length) {
+                ranges.add(new ByteRange(first, Math.min(last, length - 1)));
+            }
+        }
+        return coalesce(ranges);
+    }
+
+    /**
+     * @return the value of the decimal digits in the region, or -1 if it is
+     * empty, has another character (also a sign) or overflows
+     */
+    private static long digits(String spec, int start, int end) {
+        if (start == end) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = spec.charAt(i);
+            if (c < '0' || c > '9' || value > (Long.MAX_VALUE - (c - '0')) / 10) {
+                return -1;
+            }
+            value = value * 10 + c - '0';
+        }
+        return value;
+    }
+
+    /**
+     * https://tools.ietf.org/html/rfc7233#section-4.1
+     *
+     * Coalesces overlapping and adjacent ranges, a client asking for the
+     * same bytes many times over does not get them many times.
+     */
+    private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        List<ByteRange> sorted = new ArrayList<>(ranges);
+        sorted.sort((a, b) -> Long.compare(a.start, b.start));
+        List<ByteRange> merged = new ArrayList<>(sorted.size());
+        ByteRange current = sorted.get(0);
+        for (int i = 1; i < sorted.size(); i++) {
+            ByteRange next = sorted.get(i);
+            if (next.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged.size() == ranges.size() ? ranges : merged;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * @return the value of the Content-Range header for this range
+     */
+    public String toContentRange(long length) {
+        return "bytes " + start + "-" + end + "/" + length;
+    }
+}
@@ -1,5 +1,7 @@
 package com.dasanjos.java.http;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * ContentType enum uses the file extension to loosely map the available content type based on common media types:
  * http://en.wikipedia.org/wiki/Internet_media_type
@@ -10,6 +12,7 @@ public enum ContentType {
 	HTM("HTM"), //
 	HTML("HTML"), //
 	ICO("ICO"), //
+	JSON("JSON"), //
 	JPG("JPG"), //
 	JPEG("JPEG"), //
 	PNG("PNG"), //
@@ -18,10 +21,63 @@ public enum ContentType {
 
 	private final String extension;
 
+	private static final byte[][] HEADER_LINES = new byte[values().length][];
+
+	static {
+		for (ContentType type : values()) {
+			HEADER_LINES[type.ordinal()] = (type.toString() + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		}
+	}
+
 	ContentType(String extension) {
 		this.extension = extension;
 	}
 
+	/**
+	 * @return the encoded Content-Type header line including its CRLF, shared by all responses and not to be modified
+	 */
+	public byte[] getHeaderLine() {
+		return HEADER_LINES[ordinal()];
+	}
+
+	/**
+	 * @return the media type, the value of the Content-Type header
+	 */
+	public String getMediaType() {
+		return toString().substring("Content-Type: ".length());
+	}
+
+	/**
+	 * @param fileName name or path of a file
+	 * @return the content type matching the extension of the file, or null if it is unknown
+	 */
+	public static ContentType forFileName(String fileName) {
+		String ext = fileName.substring(fileName.lastIndexOf('.') + 1).toUpperCase();
+		for (ContentType type : values()) {
+			if (type.extension.equals(ext)) {
+				return type;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return true for text types, which are worth sending compressed
+	 */
+	public boolean isCompressible() {
+		switch (this) {
+			case CSS:
+			case HTM:
+			case HTML:
+			case JSON:
+			case TXT:
+			case XML:
+				return true;
+			default:
+				return false;
+		}
+	}
+
 	@Override
 	public String toString() {
 		switch (this) {
@@ -34,6 +90,8 @@ public enum ContentType {
 				return "Content-Type: text/html";
 			case ICO:
 				return "Content-Type: image/gif";
+			case JSON:
+				return "Content-Type: application/json";
 			case JPG:
 			case JPEG:
 				return "Content-Type: image/jpeg";
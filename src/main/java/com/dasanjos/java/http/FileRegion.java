@@ -0,0 +1,67 @@
+package com.dasanjos.java.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * FileRegion sends <code>count</code> bytes of a file starting at
+ * <code>position</code> with {@link FileChannel#transferTo}, which lets the
+ * operating system copy the file straight to the socket (sendfile) without
+ * passing it through the heap. The file is opened on the first write.
+ */
+public class FileRegion implements ResponseSegment {
+
+    private final File file;
+
+    private long position;
+
+    private final long end;
+
+    private FileChannel fileChannel;
+
+    public FileRegion(File file, long position, long count) {
+        this.file = file;
+        this.position = position;
+        this.end = position + count;
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        if (fileChannel == null) {
+            fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        while (position < end) {
+            long count = fileChannel.transferTo(position, end - position, channel);
+            if (count <= 0) {
+                if (position >= fileChannel.size()) {
+                    throw new IOException("File truncated while sending: " + file);
+                }
+                // socket buffer is full
+                return false;
+            }
+            position += count;
+        }
+        close();
+        return true;
+    }
+
+    @Override
+    public long length() {
+        return end - position;
+    }
+
+    @Override
+    public void close() {
+        if (fileChannel != null) {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                // read only channel, nothing to recover
+            }
+            fileChannel = null;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.dasanjos.java.http;
+
+import java.io.IOException;
+
+/**
+ * Handler answers the requests routed to it by the {@link Router}: it sets
+ * status, headers and body of the response, either all at once or through
+ * {@link HttpResponse#openStream(HttpRequest)}. The framing headers
+ * (Content-Length, Connection) are added once it returns.
+ *
+ * Handlers are shared by all pool threads and must be thread-safe.
+ */
+public interface Handler {
+
+    void handle(HttpRequest req, HttpResponse res) throws IOException;
+}
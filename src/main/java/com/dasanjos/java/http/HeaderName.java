@@ -0,0 +1,67 @@
+package com.dasanjos.java.http;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HeaderName enum lists the request headers the server looks at. The parser
+ * stores their values in fixed slots of the {@link HttpRequest}, all other
+ * headers are only indexed.
+ * http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html
+ */
+public enum HeaderName {
+	HOST("Host"), //
+	CONNECTION("Connection"), //
+	CONTENT_LENGTH("Content-Length"), //
+	TRANSFER_ENCODING("Transfer-Encoding"), //
+	EXPECT("Expect"), //
+	ACCEPT_ENCODING("Accept-Encoding"), //
+	IF_MATCH("If-Match"), //
+	IF_NONE_MATCH("If-None-Match"), //
+	IF_MODIFIED_SINCE("If-Modified-Since"), //
+	IF_RANGE("If-Range"), //
+	RANGE("Range"), //
+	UPGRADE("Upgrade"); //
+
+	private static final HeaderName[] VALUES = values();
+
+	private final String name;
+
+	private final byte[] lowerCase;
+
+	HeaderName(String name) {
+		this.name = name;
+		this.lowerCase = name.toLowerCase().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Looks up a header name in raw request bytes, ignoring case.
+	 *
+	 * @return the header, or null if it is not one of the known headers
+	 */
+	static HeaderName lookup(byte[] data, int start, int end) {
+		int length = end - start;
+		for (HeaderName header : VALUES) {
+			byte[] expected = header.lowerCase;
+			if (expected.length != length) {
+				continue;
+			}
+			int i = 0;
+			while (i < length && toLowerCase(data[start + i]) == expected[i]) {
+				i++;
+			}
+			if (i == length) {
+				return header;
+			}
+		}
+		return null;
+	}
+
+	static byte toLowerCase(byte b) {
+		return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
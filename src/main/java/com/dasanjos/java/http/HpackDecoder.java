@@ -0,0 +1,141 @@
+package com.dasanjos.java.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * HpackDecoder decodes the header blocks an HTTP/2 client sends
+ * http://tools.ietf.org/html/rfc7541
+ *
+ * Every block of a connection goes through the same decoder, in the order
+ * the blocks were received, since each one may add entries to the dynamic
+ * table the following ones refer to. Names and values are decoded as
+ * ISO-8859-1, one char per octet, like the headers of HTTP/1.1 requests.
+ */
+public class HpackDecoder {
+
+    private final HpackTable table;
+
+    /** the table size announced to the client, it may not choose a larger one */
+    private final int maxTableSize;
+
+    private byte[] data;
+
+    private int pos;
+
+    private int end;
+
+    public HpackDecoder(int maxTableSize) {
+        this.table = new HpackTable(maxTableSize);
+        this.maxTableSize = maxTableSize;
+    }
+
+    /**
+     * Decodes a complete header block.
+     *
+     * @param fields receives the name and the value of each field in turn
+     * @throws Http2Exception with COMPRESSION_ERROR if the block is
+     * malformed, the connection cannot go on then
+     */
+    public void decode(byte[] block, int length, List<String> fields) throws Http2Exception {
+        data = block;
+        pos = 0;
+        end = length;
+        boolean fieldSeen = false;
+        try {
+            while (pos < end) {
+                int b = data[pos] & 0xff;
+                if ((b & 0x80) != 0) {
+                    int index = readInteger(7);
+                    checkIndex(index);
+                    fields.add(table.name(index));
+                    fields.add(table.value(index));
+                } else if ((b & 0x40) != 0) {
+                    literal(6, fields, true);
+                } else if ((b & 0x20) != 0) {
+                    // dynamic table size update, only at the start of a block
+                    int size = readInteger(5);
+                    if (fieldSeen || size > maxTableSize) {
+                        throw error("Invalid dynamic table size update");
+                    }
+                    table.setMaxSize(size);
+                    continue;
+                } else {
+                    // without indexing or never indexed, the same for a server
+                    literal(4, fields, false);
+                }
+                fieldSeen = true;
+            }
+        } catch (IllegalArgumentException e) {
+            throw error(e.getMessage());
+        } finally {
+            data = null;
+        }
+    }
+
+    private void literal(int prefix, List<String> fields, boolean indexed) throws Http2Exception {
+        int index = readInteger(prefix);
+        String name;
+        if (index == 0) {
+            name = readString();
+        } else {
+            checkIndex(index);
+            name = table.name(index);
+        }
+        String value = readString();
+        if (indexed) {
+            table.add(name, value);
+        }
+        fields.add(name);
+        fields.add(value);
+    }
+
+    private void checkIndex(int index) throws Http2Exception {
+        if (index == 0 || index > table.length()) {
+            throw error("Invalid header table index " + index);
+        }
+    }
+
+    /**
+     * Reads an integer with an N-bit prefix
+     * http://tools.ietf.org/html/rfc7541#section-5.1
+     */
+    private int readInteger(int prefix) throws Http2Exception {
+        int max = (1 << prefix) - 1;
+        int value = data[pos++] & max;
+        if (value < max) {
+            return value;
+        }
+        int shift = 0;
+        int b;
+        do {
+            if (pos == end || shift > 21) {
+                throw error("Malformed integer");
+            }
+            b = data[pos++] & 0xff;
+            value += (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private String readString() throws Http2Exception {
+        if (pos == end) {
+            throw error("Truncated string literal");
+        }
+        boolean huffman = (data[pos] & 0x80) != 0;
+        int length = readInteger(7);
+        if (length > end - pos) {
+            throw error("Truncated string literal");
+        }
+        String value = huffman
+                ? new String(Huffman.decode(data, pos, pos + length), StandardCharsets.ISO_8859_1)
+                : new String(data, pos, length, StandardCharsets.ISO_8859_1);
+        pos += length;
+        return value;
+    }
+
+    private static Http2Exception error(String message) {
+        return new Http2Exception(Http2Exception.COMPRESSION_ERROR, 0, message);
+    }
+}
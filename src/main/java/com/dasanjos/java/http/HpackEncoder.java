@@ -0,0 +1,141 @@
+package com.dasanjos.java.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * HpackEncoder encodes the header blocks of HTTP/2 responses
+ * http://tools.ietf.org/html/rfc7541
+ *
+ * Fields found in the static or dynamic table are sent as an index, all
+ * others as literals that are added to the dynamic table, so the headers
+ * repeated in every response (server, date within the same second,
+ * content-type, cache-control, vary) shrink to a byte or two after their
+ * first use on a connection. Fields that differ for every resource are not
+ * added, they would only push the others out. Literals are Huffman encoded
+ * where that is shorter.
+ *
+ * The blocks have to be sent in the order they were encoded, an encoder is
+ * used by one thread at a time.
+ */
+public class HpackEncoder {
+
+    /** the table size of the client's decoder until it announces another one */
+    private static final int DEFAULT_TABLE_SIZE = 4096;
+
+    private static final Set<String> NOT_INDEXED = new HashSet<>(
+            Arrays.asList("content-length", "content-range", "etag", "last-modified"));
+
+    private final HpackTable table = new HpackTable(DEFAULT_TABLE_SIZE);
+
+    /** the smallest table size since the last block, -1 if it has not changed */
+    private int minSize = -1;
+
+    private byte[] out = new byte[256];
+
+    private int pos;
+
+    /**
+     * Applies the SETTINGS_HEADER_TABLE_SIZE of the client. The table never
+     * grows beyond the default size, the change is announced at the start
+     * of the next block.
+     */
+    public void setMaxTableSize(int size) {
+        size = Math.min(size, DEFAULT_TABLE_SIZE);
+        if (size == table.getMaxSize()) {
+            return;
+        }
+        minSize = minSize < 0 ? Math.min(size, table.getMaxSize()) : Math.min(size, minSize);
+        table.setMaxSize(size);
+    }
+
+    /**
+     * @param fields the name and the value of each field in turn, names in
+     * lower case
+     * @return the encoded header block
+     */
+    public byte[] encode(List<String> fields) {
+        pos = 0;
+        if (minSize >= 0) {
+            // http://tools.ietf.org/html/rfc7541#section-4.2
+            if (minSize < table.getMaxSize()) {
+                writeInteger(0x20, 5, minSize);
+            }
+            writeInteger(0x20, 5, table.getMaxSize());
+            minSize = -1;
+        }
+        for (int i = 0; i < fields.size(); i += 2) {
+            encode(fields.get(i), fields.get(i + 1));
+        }
+        return Arrays.copyOf(out, pos);
+    }
+
+    private void encode(String name, String value) {
+        Integer index = HpackTable.STATIC_FIELDS.get(name + '\0' + value);
+        if (index != null) {
+            writeInteger(0x80, 7, index);
+            return;
+        }
+        int found = table.find(name, value);
+        if (found > 0) {
+            writeInteger(0x80, 7, found);
+            return;
+        }
+        Integer staticName = HpackTable.STATIC_NAMES.get(name);
+        int nameIndex = staticName != null ? staticName : -found;
+        if (NOT_INDEXED.contains(name)) {
+            writeInteger(0x00, 4, nameIndex);
+        } else {
+            writeInteger(0x40, 6, nameIndex);
+            table.add(name, value);
+        }
+        if (nameIndex == 0) {
+            writeString(name);
+        }
+        writeString(value);
+    }
+
+    /**
+     * Writes an integer with an N-bit prefix after the pattern bits
+     * http://tools.ietf.org/html/rfc7541#section-5.1
+     */
+    private void writeInteger(int pattern, int prefix, int value) {
+        ensure(6);
+        int max = (1 << prefix) - 1;
+        if (value < max) {
+            out[pos++] = (byte) (pattern | value);
+            return;
+        }
+        out[pos++] = (byte) (pattern | max);
+        value -= max;
+        while (value >= 0x80) {
+            out[pos++] = (byte) (value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+    }
+
+    private void writeString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        int huffmanLength = Huffman.encodedLength(bytes);
+        if (huffmanLength < bytes.length) {
+            writeInteger(0x80, 7, huffmanLength);
+            ensure(huffmanLength);
+            pos = Huffman.encode(bytes, out, pos);
+        } else {
+            writeInteger(0x00, 7, bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, out, pos, bytes.length);
+            pos += bytes.length;
+        }
+    }
+
+    private void ensure(int length) {
+        if (pos + length > out.length) {
+            out = Arrays.copyOf(out, Math.max(out.length * 2, pos + length));
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.dasanjos.java.http;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HpackTable is the index space of HPACK header fields: the static table of
+ * http://tools.ietf.org/html/rfc7541#appendix-A followed by a dynamic table
+ * whose newest entry comes first. Each side of a connection keeps its own
+ * dynamic table, the encoder's mirrors the decoder's of the peer.
+ *
+ * The dynamic table is a ring of entries, evicted oldest first once their
+ * size (name and value plus 32 bytes each) exceeds the maximum size.
+ */
+class HpackTable {
+
+    /** name and value of the static entries, index 1 first */
+    static final String[][] STATIC = {
+            { ":authority", "" },
+            { ":method", "GET" },
+            { ":method", "POST" },
+            { ":path", "/" },
+            { ":path", "/index.html" },
+            { ":scheme", "http" },
+            { ":scheme", "https" },
+            { ":status", "200" },
+            { ":status", "204" },
+            { ":status", "206" },
+            { ":status", "304" },
+            { ":status", "400" },
+            { ":status", "404" },
+            { ":status", "500" },
+            { "accept-charset", "" },
+            { "accept-encoding", "gzip, deflate" },
+            { "accept-language", "" },
+            { "accept-ranges", "" },
+            { "accept", "" },
+            { "access-control-allow-origin", "" },
+            { "age", "" },
+            { "allow", "" },
+            { "authorization", "" },
+            { "cache-control", "" },
+            { "content-disposition", "" },
+            { "content-encoding", "" },
+            { "content-language", "" },
+            { "content-length", "" },
+            { "content-location", "" },
+            { "content-range", "" },
+            { "content-type", "" },
+            { "cookie", "" },
+            { "date", "" },
+            { "etag", "" },
+            { "expect", "" },
+            { "expires", "" },
+            { "from", "" },
+            { "host", "" },
+            { "if-match", "" },
+            { "if-modified-since", "" },
+            { "if-none-match", "" },
+            { "if-range", "" },
+            { "if-unmodified-since", "" },
+            { "last-modified", "" },
+            { "link", "" },
+            { "location", "" },
+            { "max-forwards", "" },
+            { "proxy-authenticate", "" },
+            { "proxy-authorization", "" },
+            { "range", "" },
+            { "referer", "" },
+            { "refresh", "" },
+            { "retry-after", "" },
+            { "server", "" },
+            { "set-cookie", "" },
+            { "strict-transport-security", "" },
+            { "transfer-encoding", "" },
+            { "user-agent", "" },
+            { "vary", "" },
+            { "via", "" },
+            { "www-authenticate", "" } };
+
+    /** the index of the first static entry with a name */
+    static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+
+    /** the index of the static entries with a value, by name and value */
+    static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+    static {
+        for (int i = STATIC.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC[i][0], i + 1);
+            if (!STATIC[i][1].isEmpty()) {
+                STATIC_FIELDS.put(STATIC[i][0] + '\0' + STATIC[i][1], i + 1);
+            }
+        }
+    }
+
+    /** the size an entry takes besides its name and value */
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private String[] names = new String[16];
+
+    private String[] values = new String[16];
+
+    /** the position of the newest entry in the ring */
+    private int head;
+
+    private int count;
+
+    private int size;
+
+    private int maxSize;
+
+    HpackTable(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the number of static and dynamic entries
+     */
+    int length() {
+        return STATIC.length + count;
+    }
+
+    /**
+     * @param index 1 for the first static entry
+     */
+    String name(int index) {
+        return index <= STATIC.length ? STATIC[index - 1][0] : names[slot(index)];
+    }
+
+    /**
+     * @param index 1 for the first static entry
+     */
+    String value(int index) {
+        return index <= STATIC.length ? STATIC[index - 1][1] : values[slot(index)];
+    }
+
+    private int slot(int index) {
+        return (head + index - STATIC.length - 1) % names.length;
+    }
+
+    /**
+     * Looks up a field in the dynamic table.
+     *
+     * @return the index of the newest entry with the name and value, or the
+     * negated index of the newest entry with the name, or 0
+     */
+    int find(String name, String value) {
+        int nameIndex = 0;
+        for (int i = 0; i < count; i++) {
+            int slot = (head + i) % names.length;
+            if (names[slot].equals(name)) {
+                if (values[slot].equals(value)) {
+                    return STATIC.length + i + 1;
+                }
+                if (nameIndex == 0) {
+                    nameIndex = -(STATIC.length + i + 1);
+                }
+            }
+        }
+        return nameIndex;
+    }
+
+    /**
+     * Adds an entry as the newest, evicting the oldest ones as needed. An
+     * entry larger than the table empties it.
+     */
+    void add(String name, String value) {
+        int entrySize = entrySize(name, value);
+        evict(maxSize - entrySize);
+        if (entrySize > maxSize) {
+            return;
+        }
+        if (count == names.length) {
+            grow();
+        }
+        head = (head - 1 + names.length) % names.length;
+        names[head] = name;
+        values[head] = value;
+        count++;
+        size += entrySize;
+    }
+
+    void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        evict(maxSize);
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    private void evict(int targetSize) {
+        while (count > 0 && size > Math.max(targetSize, 0)) {
+            int oldest = (head + count - 1) % names.length;
+            size -= entrySize(names[oldest], values[oldest]);
+            names[oldest] = null;
+            values[oldest] = null;
+            count--;
+        }
+    }
+
+    private void grow() {
+        String[] newNames = new String[names.length * 2];
+        String[] newValues = new String[values.length * 2];
+        for (int i = 0; i < count; i++) {
+            newNames[i] = names[(head + i) % names.length];
+            newValues[i] = values[(head + i) % names.length];
+        }
+        names = newNames;
+        values = newValues;
+        head = 0;
+    }
+
+    private static int entrySize(String name, String value) {
+        // names and values are ISO-8859-1, one byte per char
+        return name.length() + value.length() + ENTRY_OVERHEAD;
+    }
+}
@@ -0,0 +1,52 @@
+package com.dasanjos.java.http;
+
+import java.io.IOException;
+
+/**
+ * Thrown for HTTP/2 protocol violations of the client. A stream error
+ * resets the one stream, a connection error (stream 0) ends the connection
+ * with GOAWAY. http://tools.ietf.org/html/rfc7540#section-5.4
+ */
+public class Http2Exception extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int NO_ERROR = 0x0;
+
+    public static final int PROTOCOL_ERROR = 0x1;
+
+    public static final int INTERNAL_ERROR = 0x2;
+
+    public static final int FLOW_CONTROL_ERROR = 0x3;
+
+    public static final int STREAM_CLOSED = 0x5;
+
+    public static final int FRAME_SIZE_ERROR = 0x6;
+
+    public static final int REFUSED_STREAM = 0x7;
+
+    public static final int CANCEL = 0x8;
+
+    public static final int COMPRESSION_ERROR = 0x9;
+
+    private final int errorCode;
+
+    private final int streamId;
+
+    /**
+     * @param streamId the stream to reset, 0 for a connection error
+     */
+    public Http2Exception(int errorCode, int streamId, String message) {
+        super(message);
+        this.errorCode = errorCode;
+        this.streamId = streamId;
+    }
+
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+}
@@ -0,0 +1,167 @@
+package com.dasanjos.java.http;
+
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+import java.util.Locale;
+
+/**
+ * HttpDate keeps the encoded Date response header. The header only has a
+ * resolution of one second, so it is formatted at most once per second and
+ * shared by all responses sent within that second.
+ * http://tools.ietf.org/html/rfc7231#section-7.1.1.2
+ *
+ * Dates are sent as IMF-fixdate in GMT whatever the zone of the host.
+ * Dates received in request headers are parsed in all three formats a
+ * recipient must accept, the preferred IMF-fixdate without allocating.
+ * http://tools.ietf.org/html/rfc7231#section-7.1.1.1
+ */
+public final class HttpDate {
+
+    /** returned by {@link #parse(byte[], int, int)} for anything but a valid date */
+    static final long INVALID = Long.MIN_VALUE;
+
+    private static final int IMF_FIXDATE_LENGTH = 29;
+
+    private static final String MONTHS = "JanFebMarAprMayJunJulAugSepOctNovDec";
+
+    /** unlike RFC_1123_DATE_TIME with two-digit days and GMT */
+    private static final DateTimeFormatter IMF_FIXDATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    /**
+     * the obsolete formats, RFC 850 with two-digit years taken from 1970 to
+     * 2069, and ANSI C's asctime()
+     */
+    private static final DateTimeFormatter[] OBSOLETE_FORMATS = {
+            new DateTimeFormatterBuilder()
+                    .appendPattern("EEEE, dd-MMM-")
+                    .appendValueReduced(ChronoField.YEAR, 2, 2, 1970)
+                    .appendPattern(" HH:mm:ss 'GMT'")
+                    .toFormatter(Locale.US),
+            DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.US)
+    };
+
+    private static volatile Line current = new Line(Long.MIN_VALUE, null);
+
+    private HttpDate() {
+    }
+
+    /**
+     * @return the encoded Date header line including its CRLF, not to be modified
+     */
+    static byte[] header() {
+        return line().bytes;
+    }
+
+    /**
+     * @return the value of the Date header
+     */
+    static String value() {
+        return line().date;
+    }
+
+    /**
+     * @param millis milliseconds since the epoch
+     * @return the date as IMF-fixdate, e.g. Sun, 06 Nov 1994 08:49:37 GMT
+     */
+    public static String format(long millis) {
+        return IMF_FIXDATE.format(Instant.ofEpochSecond(Math.floorDiv(millis, 1000)));
+    }
+
+    /**
+     * @return the date in the region in seconds since the epoch, or
+     * {@link #INVALID} if it is not an HTTP-date
+     */
+    static long parse(byte[] data, int start, int end) {
+        if (end - start == IMF_FIXDATE_LENGTH && data[start + 3] == ',') {
+            return parseImfFixdate(data, start);
+        }
+        String date = new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+        for (DateTimeFormatter format : OBSOLETE_FORMATS) {
+            try {
+                return LocalDateTime.parse(date, format).toEpochSecond(ZoneOffset.UTC);
+            } catch (DateTimeException e) {
+                // try the next format
+            }
+        }
+        return INVALID;
+    }
+
+    /**
+     * Sun, 06 Nov 1994 08:49:37 GMT
+     */
+    private static long parseImfFixdate(byte[] data, int i) {
+        if (data[i + 4] != ' ' || data[i + 7] != ' ' || data[i + 11] != ' ' || data[i + 16] != ' '
+                || data[i + 19] != ':' || data[i + 22] != ':' || data[i + 25] != ' '
+                || data[i + 26] != 'G' || data[i + 27] != 'M' || data[i + 28] != 'T') {
+            return INVALID;
+        }
+        int month = -1;
+        for (int m = 0; m < 12 && month < 0; m++) {
+            if (data[i + 8] == MONTHS.charAt(m * 3) && data[i + 9] == MONTHS.charAt(m * 3 + 1)
+                    && data[i + 10] == MONTHS.charAt(m * 3 + 2)) {
+                month = m + 1;
+            }
+        }
+        int day = digits(data, i + 5, 2);
+        int year = digits(data, i + 12, 4);
+        int hour = digits(data, i + 17, 2);
+        int minute = digits(data, i + 20, 2);
+        int second = digits(data, i + 23, 2);
+        if (month < 0 || day < 0 || year < 0 || hour < 0 || minute < 0 || second < 0) {
+            return INVALID;
+        }
+        try {
+            return LocalDateTime.of(year, month, day, hour, minute, second).toEpochSecond(ZoneOffset.UTC);
+        } catch (DateTimeException e) {
+            return INVALID;
+        }
+    }
+
+    /**
+     * @return the value of the decimal digits, or -1 if there is another character
+     */
+    private static int digits(byte[] data, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            if (data[i] < '0' || data[i] > '9') {
+                return -1;
+            }
+            value = value * 10 + data[i] - '0';
+        }
+        return value;
+    }
+
+    private static Line line() {
+        long second = System.currentTimeMillis() / 1000;
+        Line line = current;
+        if (line.second != second) {
+            // racing threads format the same second twice at worst
+            String date = format(second * 1000);
+            line = new Line(second, date);
+            current = line;
+        }
+        return line;
+    }
+
+    private static final class Line {
+
+        final long second;
+
+        final String date;
+
+        final byte[] bytes;
+
+        Line(long second, String date) {
+            this.second = second;
+            this.date = date;
+            this.bytes = date != null ? ("Date: " + date + "\r\n").getBytes(StandardCharsets.ISO_8859_1) : null;
+        }
+    }
+}
@@ -1,189 +1,502 @@
 package com.dasanjos.java.http;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.List;
 
 import org.apache.log4j.Logger;
 
 /**
- * HttpRequest class parses the HTTP Request Line (method, URI, version) and
+ * HttpRequest class holds the HTTP Request Line (method, URI, version) and
  * Headers http://www.w3.org/Protocols/rfc2616/rfc2616-sec5.html
+ *
+ * Requests are created by the {@link RequestParser}. They keep the raw bytes
+ * of the request and only the offsets of its parts; the headers the server
+ * looks at ({@link HeaderName}) have fixed slots, all others are kept in a
+ * small index. Strings are only created for the values that are asked for.
  */
 public class HttpRequest {
 
     private static Logger log = Logger.getLogger(HttpRequest.class);
 
-    List<String> headers = new ArrayList<>();
-    
-    String body;
-    
+    private static final String HTTP_1_1 = "HTTP/1.1";
+
+    private static final String HTTP_1_0 = "HTTP/1.0";
+
+    /** the start of the connection preface, parsed like a request line with an empty header block */
+    private static final String HTTP2_PREFACE = "PRI * HTTP/2.0\r\n\r\n";
+
+    /** fields of one entry in {@link #others}: hash, name start, name end, value start, value end */
+    private static final int OTHER_FIELDS = 5;
+
     String rootPath;
 
     Method method;
 
-    String uri;
+    /** the raw request, header block followed by the body unless it is streamed */
+    byte[] data;
+
+    /** number of bytes the request occupied in the receive buffer, including leading empty lines */
+    int length;
+
+    int bodyStart;
+
+    /** the body, set by the parser for streamed bodies and created on demand otherwise */
+    RequestBody body;
+
+    int uriStart;
+
+    int uriEnd;
+
+    int versionStart;
+
+    int versionEnd;
+
+    /** value start and end of each {@link HeaderName}, -1 if absent */
+    final int[] known = new int[HeaderName.values().length * 2];
+
+    int[] others = new int[8 * OTHER_FIELDS];
+
+    int otherCount;
+
+    /** names of the path parameters of the route, set by the {@link Router} */
+    String[] pathParameterNames;
+
+    /** start and end of each path parameter value, null until the route has parameters */
+    int[] pathParameters;
+
+    private String uri;
 
-    String version;
+    private String version;
 
-    public HttpRequest(InputStream is, String rootPath) throws IOException {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-        String str = reader.readLine();
-        parseRequestLine(str);
+    HttpRequest(String rootPath) {
         this.rootPath = rootPath;
+        Arrays.fill(known, -1);
+    }
+
+    void setKnown(HeaderName name, int valueStart, int valueEnd) {
+        known[name.ordinal() * 2] = valueStart;
+        known[name.ordinal() * 2 + 1] = valueEnd;
+    }
 
-        while (!str.equals("")) {
-            str = reader.readLine();
-            parseRequestHeader(str);
+    void addOther(int hash, int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        int i = otherCount * OTHER_FIELDS;
+        if (i == others.length) {
+            others = Arrays.copyOf(others, others.length * 2);
         }
-        
-        // @boris paris:
-        // If the request was a POST request check for a body and read it.
-        if (method.equals(Method.POST)) {
-            StringBuilder builder = new StringBuilder();
-            do {
-                str = reader.readLine();
-                log.info(str);
-                builder.append(str);
-            } while(!str.equals(""));
-            body = builder.toString();
+        others[i] = hash;
+        others[i + 1] = nameStart;
+        others[i + 2] = nameEnd;
+        others[i + 3] = valueStart;
+        others[i + 4] = valueEnd;
+        otherCount++;
+    }
+
+    /**
+     * Logs the request line and the headers when debug logging is enabled.
+     * Answered requests are recorded in the access log, so this is off by
+     * default and costs a level check otherwise.
+     */
+    public void log() {
+        if (!log.isDebugEnabled()) {
+            return;
         }
+        log.debug(new String(data, 0, bodyStart, StandardCharsets.ISO_8859_1).trim());
+    }
+
+    public String getRootPath() {
+        return rootPath;
+    }
+
+    public Method getMethod() {
+        return method;
     }
 
-    private void parseRequestLine(String str) {
-        log.info(str);
-        String[] split = str.split("\\s+");
-        try {
-            method = Method.valueOf(split[0]);
-        } catch (Exception e) {
-            method = Method.UNRECOGNIZED;
+    public String getUri() {
+        if (uri == null) {
+            uri = new String(data, uriStart, uriEnd - uriStart, StandardCharsets.ISO_8859_1);
         }
-        uri = split[1];
-        version = split[2];
+        return uri;
     }
 
-    private void parseRequestHeader(String str) {
-        log.info(str);
-        headers.add(str);
+    public String getVersion() {
+        if (version == null) {
+            if (regionEquals(versionStart, versionEnd, HTTP_1_1)) {
+                version = HTTP_1_1;
+            } else if (regionEquals(versionStart, versionEnd, HTTP_1_0)) {
+                version = HTTP_1_0;
+            } else {
+                version = new String(data, versionStart, versionEnd - versionStart, StandardCharsets.ISO_8859_1);
+            }
+        }
+        return version;
     }
 
     /**
-     * @boris paris: Added for handling the ETag(If-Match, If-Non-Match) and
-     * If-Modified-Since.
+     * @return the number of bytes the request occupied in the receive buffer
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the request body as a stream, empty if there is none
      */
-        
-    private boolean hasHeader(String name) {
-        return headers.stream().filter(h -> h.startsWith(name)).findAny().isPresent();
+    public RequestBody getBody() {
+        if (body == null) {
+            body = new RequestBody(data, bodyStart, data.length - bodyStart);
+        }
+        return body;
     }
 
-    private String getHeaderValue(String name) {
-        String modifiedSinceHeader = headers.stream().filter(h -> h.startsWith(name)).findFirst().get();
-        return modifiedSinceHeader.substring(modifiedSinceHeader.indexOf(":") + 1).trim();
+    /**
+     * @return true if the whole body has been received, so the connection
+     * can be used for the next request
+     */
+    public boolean isBodyFinished() {
+        return body == null || body.isFinished();
     }
 
-    /*
-        If-Modified-Since
-    */
-    private boolean hasIfModifiedSince() {
-        return hasHeader("If-Modified-Since");
+    public boolean hasHeader(HeaderName name) {
+        return known[name.ordinal() * 2] >= 0;
     }
 
-    private String getIfModifiedSince() {
-        return getHeaderValue("If-Modified-Since");
+    /**
+     * @return the value of the header, or null if there is none
+     */
+    public String getHeader(HeaderName name) {
+        int start = known[name.ordinal() * 2];
+        if (start < 0) {
+            return null;
+        }
+        return new String(data, start, known[name.ordinal() * 2 + 1] - start, StandardCharsets.ISO_8859_1);
     }
 
     /**
-     * Exact comparsion of the If-Modified-Since string.
-     * 
-     * http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html
-     * 
-     * Note: When handling an If-Modified-Since header field, some
-     * servers will use an exact date comparison function, rather than a
-     * less-than function, for deciding whether to send a 304 (Not
-     * Modified) response. To get best results when sending an If-
-     * Modified-Since header field for cache validation, clients are
-     * advised to use the exact date string received in a previous Last-
-     * Modified header field whenever possible.
-     * 
-     * @param date as a String
-     * @return true if the String is the exact same in this request. Everything
-     * else is invalid and returns to a normal request.
+     * @return the value of the first header with the given name (ignoring
+     * case), or null if there is none
      */
-    public boolean ifModifiedSince(String date) {
-        if (hasIfModifiedSince()) {
-            return getIfModifiedSince().equals(date);
+    public String getHeader(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.ISO_8859_1);
+        HeaderName knownName = HeaderName.lookup(bytes, 0, bytes.length);
+        if (knownName != null) {
+            return getHeader(knownName);
+        }
+        int hash = RequestParser.hashIgnoreCase(bytes, 0, bytes.length);
+        for (int i = 0; i < otherCount * OTHER_FIELDS; i += OTHER_FIELDS) {
+            if (others[i] == hash && nameEqualsIgnoreCase(others[i + 1], others[i + 2], bytes)) {
+                return new String(data, others[i + 3], others[i + 4] - others[i + 3], StandardCharsets.ISO_8859_1);
+            }
+        }
+        return null;
+    }
+
+    void setPathParameter(int index, int start, int end) {
+        if (pathParameters == null) {
+            pathParameters = new int[Math.max(4, index * 2 + 2)];
+        } else if (pathParameters.length < index * 2 + 2) {
+            pathParameters = Arrays.copyOf(pathParameters, index * 2 + 2);
+        }
+        pathParameters[index * 2] = start;
+        pathParameters[index * 2 + 1] = end;
+    }
+
+    /**
+     * @return the value of a parameter in the pattern of the route the
+     * request was routed to (<code>{name}</code>), percent-encoded octets
+     * decoded as UTF-8, or null if the pattern has no such parameter
+     */
+    public String getPathParameter(String name) {
+        if (pathParameterNames == null) {
+            return null;
+        }
+        for (int i = 0; i < pathParameterNames.length; i++) {
+            if (pathParameterNames[i].equals(name)) {
+                return decode(pathParameters[i * 2], pathParameters[i * 2 + 1]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the region with percent-encoded octets decoded as UTF-8, a
+     * malformed escape is kept as it is
+     */
+    private String decode(int start, int end) {
+        byte[] decoded = new byte[end - start];
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            int high;
+            int low;
+            if (data[i] == '%' && i + 2 < end && (high = Character.digit(data[i + 1], 16)) >= 0
+                    && (low = Character.digit(data[i + 2], 16)) >= 0) {
+                decoded[length++] = (byte) (high << 4 | low);
+                i += 2;
+            } else {
+                decoded[length++] = data[i];
+            }
+        }
+        return new String(decoded, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private boolean nameEqualsIgnoreCase(int start, int end, byte[] name) {
+        if (end - start != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (HeaderName.toLowerCase(data[start + i]) != HeaderName.toLowerCase(name[i])) {
+                return false;
+            }
         }
         return true;
     }
 
-    /*
-        If-Match
-    */
-    private boolean hasIfMatch() {
-        return hasHeader("If-Match");
+    private boolean regionEquals(int start, int end, String expected) {
+        if (expected == null || end - start != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (data[start + i] != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private List<String> getIfMatch() {
-        return Arrays.asList(getHeaderValue("If-Match").split(","));
+    /**
+     * @return true if the header is a comma separated list containing the
+     * given token (ignoring case and surrounding whitespace)
+     */
+    private boolean hasToken(HeaderName name, String token) {
+        int start = known[name.ordinal() * 2];
+        if (start < 0) {
+            return false;
+        }
+        int end = known[name.ordinal() * 2 + 1];
+        int i = start;
+        while (i < end) {
+            while (i < end && (data[i] == ' ' || data[i] == '\t' || data[i] == ',')) {
+                i++;
+            }
+            int tokenStart = i;
+            while (i < end && data[i] != ',') {
+                i++;
+            }
+            int tokenEnd = i;
+            while (tokenEnd > tokenStart && (data[tokenEnd - 1] == ' ' || data[tokenEnd - 1] == '\t')) {
+                tokenEnd--;
+            }
+            if (tokenEnd - tokenStart == token.length()) {
+                int j = 0;
+                while (j < token.length()
+                        && HeaderName.toLowerCase(data[tokenStart + j]) == Character.toLowerCase(token.charAt(j))) {
+                    j++;
+                }
+                if (j == token.length()) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
-    
+
+    /**
+     * @return true if the entity tag list of the header contains the tag,
+     * never for a null tag
+     */
+    private boolean containsTag(HeaderName name, String tag) {
+        int start = known[name.ordinal() * 2];
+        int end = known[name.ordinal() * 2 + 1];
+        int i = start;
+        while (i < end) {
+            while (i < end && (data[i] == ' ' || data[i] == '\t' || data[i] == ',')) {
+                i++;
+            }
+            int tagStart = i;
+            while (i < end && data[i] != ',') {
+                i++;
+            }
+            int tagEnd = i;
+            while (tagEnd > tagStart && (data[tagEnd - 1] == ' ' || data[tagEnd - 1] == '\t')) {
+                tagEnd--;
+            }
+            if (regionEquals(tagStart, tagEnd, tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isWildcard(HeaderName name) {
+        int start = known[name.ordinal() * 2];
+        return start >= 0 && regionEquals(start, known[name.ordinal() * 2 + 1], "*");
+    }
+
+    /**
+     * @boris paris: Added for handling the ETag(If-Match, If-Non-Match) and
+     * If-Modified-Since.
+     */
+
+    /**
+     * http://tools.ietf.org/html/rfc7232#section-3.3
+     *
+     * The date is an HTTP-date in any of its three formats, one that is not
+     * valid is ignored. The resource has not been modified if its last
+     * modification, at the one-second resolution of the date, is not after
+     * it. The caller only evaluates this without an If-None-Match header
+     * (http://tools.ietf.org/html/rfc7232#section-6).
+     *
+     * @param lastModified the modification time of the resource in milliseconds since the epoch
+     * @return false if the resource has not been modified since the date of
+     * the If-Modified-Since header, true if it has or there is no valid one
+     */
+    public boolean ifModifiedSince(long lastModified) {
+        int start = known[HeaderName.IF_MODIFIED_SINCE.ordinal() * 2];
+        if (start >= 0) {
+            long since = HttpDate.parse(data, start, known[HeaderName.IF_MODIFIED_SINCE.ordinal() * 2 + 1]);
+            return since == HttpDate.INVALID || Math.floorDiv(lastModified, 1000) > since;
+        }
+        return true;
+    }
+
+    /*
+        If-Match
+    */
     public boolean ifMatch(String tag) {
-        if (hasIfMatch()) {
-            return getIfMatch().contains(tag);
+        if (hasHeader(HeaderName.IF_MATCH)) {
+            return containsTag(HeaderName.IF_MATCH, tag);
         }
         return true;
     }
-    
+
     public boolean isIfMatchWildcard() {
-       if (hasIfMatch()) {
-           return getHeaderValue("If-Match").equals("*");
-       }
-       return false;
+        return isWildcard(HeaderName.IF_MATCH);
     }
 
     /*
         If-None-Match
     */
-    private boolean hasIfNoneMatch() {
-        return hasHeader("If-None-Match");
-    }
-
-    private List<String> getIfNoneMatch() {
-        return Arrays.asList(getHeaderValue("If-None-Match").split(","));
-    }
-    
     public boolean ifNoneMatch(String tag) {
-        if (hasIfNoneMatch()) {
-            return getIfNoneMatch().contains(tag);
+        if (hasHeader(HeaderName.IF_NONE_MATCH)) {
+            return containsTag(HeaderName.IF_NONE_MATCH, tag);
         }
         return false;
     }
-    
+
     public boolean isIfNoneMatchWildcard() {
-        if (hasIfNoneMatch()) {
-           return getHeaderValue("If-None-Match").equals("*");
-       }
-       return false;
+        return isWildcard(HeaderName.IF_NONE_MATCH);
     }
-    
+
+    /*
+        Range
+    */
+    /**
+     * @return the value of the Range header, or null if there is none
+     */
+    public String getRange() {
+        return getHeader(HeaderName.RANGE);
+    }
+
+    /**
+     * http://tools.ietf.org/html/rfc7233#section-3.2
+     *
+     * The Range header is only honoured if the If-Range validator (an entity
+     * tag or the exact Last-Modified date) matches the current entity.
+     *
+     * @return true if there is no If-Range header or if it matches
+     */
+    public boolean ifRange(String tag, String lastModified) {
+        int start = known[HeaderName.IF_RANGE.ordinal() * 2];
+        if (start >= 0) {
+            int end = known[HeaderName.IF_RANGE.ordinal() * 2 + 1];
+            if (end > start && data[start] == '"') {
+                return regionEquals(start, end, tag);
+            }
+            return regionEquals(start, end, lastModified);
+        }
+        return true;
+    }
+
+    /*
+        Accept-Encoding
+    */
+    /**
+     * http://tools.ietf.org/html/rfc7231#section-5.3.4
+     *
+     * @param coding a content-coding such as "gzip"
+     * @return true if the coding is listed (or covered by "*") with a
+     * non-zero quality value
+     */
+    public boolean acceptsEncoding(String coding) {
+        String header = getHeader(HeaderName.ACCEPT_ENCODING);
+        if (header == null) {
+            return false;
+        }
+        boolean wildcard = false;
+        for (String item : header.split(",")) {
+            String[] params = item.split(";");
+            String name = params[0].trim();
+            boolean accepted = true;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (name.equalsIgnoreCase(coding)) {
+                return accepted;
+            }
+            if (name.equals("*")) {
+                wildcard = accepted;
+            }
+        }
+        return wildcard;
+    }
+
+    /*
+        HTTP/2
+    */
+    /**
+     * http://tools.ietf.org/html/rfc7540#section-3.5
+     *
+     * @return true if the request is the start of the preface a client with
+     * prior knowledge of HTTP/2 opens the connection with
+     */
+    public boolean isHttp2Preface() {
+        return method == Method.UNRECOGNIZED && bodyStart == HTTP2_PREFACE.length()
+                && regionEquals(0, bodyStart, HTTP2_PREFACE);
+    }
+
+    /**
+     * http://tools.ietf.org/html/rfc7540#section-3.2
+     *
+     * The upgrade is only taken for a request without a body, the body of
+     * another one would have to be read as HTTP/1.1 first.
+     *
+     * @return true if the client asks to continue the connection with
+     * HTTP/2 over cleartext
+     */
+    public boolean isHttp2Upgrade() {
+        return regionEquals(versionStart, versionEnd, HTTP_1_1) && hasToken(HeaderName.UPGRADE, "h2c")
+                && hasToken(HeaderName.CONNECTION, "upgrade") && hasToken(HeaderName.CONNECTION, "http2-settings")
+                && getHeader("HTTP2-Settings") != null && data.length == bodyStart && isBodyFinished();
+    }
+
     /*
         Keep-Alive
     */
     public boolean isKeepAlive() {
         // Assume a persistent connection unless the client sends a close-token
-        if (version.equals("HTTP/1.1")) {
-            return !(hasHeader("Connection") &&
-                    getHeaderValue("Connection").toLowerCase().equals("close"));
+        if (regionEquals(versionStart, versionEnd, HTTP_1_1)) {
+            return !hasToken(HeaderName.CONNECTION, "close");
         }
         // To keep persistent connections in HTTP 1.0 there has to be a
         // keep-alive-token in the request.
-        else if (version.equals("HTTP/1.0")) {
-           return hasHeader("Connection") &&
-                   getHeaderValue("Connection").toLowerCase().equals("keep-alive");
+        else if (regionEquals(versionStart, versionEnd, HTTP_1_0)) {
+            return hasToken(HeaderName.CONNECTION, "keep-alive");
         }
         return false;
     }
@@ -1,169 +1,266 @@
 package com.dasanjos.java.http;
 
-import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-
-import org.apache.log4j.Logger;
-import paris.boris.java.http.util.CacheUtils;
+import java.util.Locale;
+import java.util.Set;
 
 /**
  * HttpResponse class defines the HTTP Response Status Line (method, URI,
  * version) and Headers http://www.w3.org/Protocols/rfc2616/rfc2616-sec6.html
+ *
+ * A response is filled by the {@link Handler} the request is routed to and
+ * completed with {@link #finish(HttpRequest)}.
  */
 public class HttpResponse {
 
-    private static final Logger LOG = Logger.getLogger(HttpResponse.class);
+    public static final String VERSION = "HTTP/1.1";
+
+    private static final byte[] SERVER = "Server: SimpleWebServer\r\n".getBytes(StandardCharsets.ISO_8859_1);
 
-    public static final String VERSION = "HTTP/1.0";
+    private static final byte[] CRLF = { '\r', '\n' };
 
+    /** HTTP/1.1 connection headers, not sent in HTTP/2 http://tools.ietf.org/html/rfc7540#section-8.1.2.2 */
+    private static final Set<String> CONNECTION_HEADERS = new HashSet<>(
+            Arrays.asList("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade"));
+
+    /** headers besides status line, Date, Server and Content-Type */
     List<String> headers = new ArrayList<>();
 
+    Status status;
+
+    ContentType contentType;
+
+    boolean keepAlive;
+
     byte[] body;
 
+    /** body sent from file regions or mappings instead of <code>body</code> */
+    List<ResponseSegment> bodySegments = new ArrayList<>(1);
+
+    /** the connection streamed bodies are sent to, null if they are buffered */
+    private final ResponseSink sink;
+
+    /** the streamed body, null unless the handler opened it */
+    private ResponseStream stream;
+
+    /**
+     * Error response for a request that could not be parsed. The connection
+     * is closed after it has been sent.
+     */
+    public HttpResponse(Status status) {
+        sink = null;
+        fillHeaders(status);
+        contentType = ContentType.TXT;
+        fillResponse(status.toString());
+        headers.add("Content-Length: " + body.length);
+        headers.add("Connection: close");
+        keepAlive = false;
+    }
+
+    /**
+     * Empty 200 response for a {@link Handler} to fill.
+     *
+     * @param sink the connection a body written through
+     * {@link #openStream(HttpRequest)} is streamed to, null to buffer it
+     */
+    public HttpResponse(ResponseSink sink) {
+        this.sink = sink;
+        fillHeaders(Status._200);
+    }
+
+    /**
+     * The response of the {@link StaticFileHandler} to a request, with the
+     * whole body buffered.
+     */
     public HttpResponse(HttpRequest req) throws IOException {
+        this((ResponseSink) null);
+        new StaticFileHandler().handle(req, this);
+        finish(req);
+    }
 
-        switch (req.method) {
-            case HEAD:
-                fillHeaders(Status._200);
-                break;
-            case GET:
-                try {
-                    File file = new File(req.rootPath + req.uri);
-
-                    // TODO fix dir bug http://localhost:8080/src/test                    
-                    if (file.isDirectory()) {
-                        fillHeaders(Status._200);
-                        headers.add(ContentType.HTML.toString());
-                        StringBuilder result = new StringBuilder("<html><head><title>Index of ");
-                        result.append(req.uri);
-                        result.append("</title></head><body><h1>Index of ");
-                        result.append(req.uri);
-                        result.append("</h1><hr><pre>");
-
-                        // TODO add Parent Directory
-                        File[] files = file.listFiles();
-                        for (File subfile : files) {
-                            result.append(" <a href=\"")
-                                    .append(subfile.getPath())
-                                    .append("\">")
-                                    .append(subfile.getPath())
-                                    .append("</a>\n");
-                        }
-                        result.append("<hr></pre></body></html>");
-
-                        fillResponse(result.toString());
-                    } else if (file.exists()) {
-                        /*
-                        @boris paris:
-                        http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html
-
-                        If none of the entity tags match, or if "*" is given and no 
-                        current entity exists, the server MUST NOT perform the 
-                        requested method, and MUST return a 412 
-                        (Precondition Failed) response.
-                         */
-                        if (!req.ifMatch(CacheUtils.generateETag(file))
-                                || (req.isIfMatchWildcard() && !file.exists())) {
-                            fillHeaders(Status._412);
-                            break;
-                        }
-                        /*
-                        @boris paris:
-                        http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html
-
-                        The If-Modified-Since request-header field is used with a 
-                        method to make it conditional: if the requested variant has 
-                        not been modified since the time specified in this field, an 
-                        entity will not be returned from the server; instead, a 304 
-                        (not modified) response will be returned without any message-body.                    
-                         */
-                        if (!req.ifModifiedSince(CacheUtils.generateLastModified(file))) {
-                            fillHeaders(Status._304);
-                            break;
-                        }
-                        /*
-                        @boris paris:
-                        
-                        http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html
-
-                        If any of the entity tags match the entity tag of the entity 
-                        that would have been returned in the response to a similar 
-                        GET request (without the If-None-Match header) on that 
-                        resource, or if "*" is given and any current entity exists 
-                        for that resource, then the server MUST NOT perform the 
-                        requested method, unless required to do so because the 
-                        resource's modification date fails to match that supplied 
-                        in an If-Modified-Since header field in the request. 
-                        Instead, if the request method was GET or HEAD, the server 
-                        SHOULD respond with a 304 (Not Modified) response, including 
-                        the cache- related header fields (particularly ETag) of one 
-                        of the entities that matched.
-                         */
-                        if (req.ifNoneMatch(CacheUtils.generateETag(file))
-                                || (req.isIfNoneMatchWildcard() && file.exists())) {
-                            fillHeaders(Status._304);
-                            headers.add("ETag: " + CacheUtils.generateETag(file));
-                            break;
-                        }
-                        
-                        fillHeaders(Status._200);
-                        // @boris paris: Add headers for Last-Modified, and ETag
-                        headers.add("Last-Modified: " + CacheUtils.generateLastModified(file));
-                        headers.add("ETag: " + CacheUtils.generateETag(file));
-                        setContentType(req.uri, headers);
-                        fillResponse(getBytes(file));
-                    } else {
-                        LOG.info("File not found:" + req.uri);
-                        fillHeaders(Status._404);
-                        fillResponse(Status._404.toString());
-                    }
-                } catch (Exception e) {
-                    LOG.error("Response Error", e);
-                    fillHeaders(Status._400);
-                    fillResponse(Status._400.toString());
-                }
+    /**
+     * Completes the response once the handler has returned: ends a body
+     * that is still being written, drops the body of a response to HEAD and
+     * adds the framing headers.
+     */
+    public void finish(HttpRequest req) throws IOException {
+        if (stream != null) {
+            stream.close();
+        }
+        if (req.getMethod() == Method.HEAD && !isStreamed()) {
+            body = null;
+            closeBodySegments();
+        }
+        fillFraming(req);
+    }
 
-                break;
-            case UNRECOGNIZED:
-                fillHeaders(Status._400);
-                fillResponse(Status._400.toString());
-                break;
-            default:
-                fillHeaders(Status._501);
-                fillResponse(Status._501.toString());
+    /**
+     * Drops status, headers and body set so far, so that the response can be
+     * filled with an error instead. Not possible once it is streamed.
+     */
+    public void reset() {
+        stream = null;
+        headers.clear();
+        contentType = null;
+        body = null;
+        closeBodySegments();
+        fillHeaders(Status._200);
+    }
+
+    private void closeBodySegments() {
+        for (ResponseSegment segment : bodySegments) {
+            segment.close();
         }
+        bodySegments.clear();
+    }
 
+    /**
+     * Opens the body of the response for writing. Status and headers have to
+     * be set before the first bytes are written, a body that does not fit
+     * into the stream's buffer is sent before the handler returns.
+     */
+    public ResponseStream openStream(HttpRequest req) {
+        // the body of a response to HEAD is dropped, no need to send it
+        stream = new ResponseStream(this, req, req.getMethod() == Method.HEAD ? null : sink);
+        return stream;
     }
 
-    private byte[] getBytes(File file) throws IOException {
-        int length = (int) file.length();
-        byte[] array = new byte[length];
-        // @boris paris: 'in' wasnt closed properly after usage
-        try (InputStream in = new FileInputStream(file)) {
-            int offset = 0;
-            while (offset < length) {
-                int count = in.read(array, offset, (length - offset));
-                offset += count;
-            }
+    /**
+     * Called by the {@link ResponseStream} when it sends its first bytes:
+     * the header block goes out without a Content-Length.
+     *
+     * @param chunked true if the body is sent chunked, false if it ends
+     * with the connection
+     * @return the encoded header block
+     */
+    byte[] startStream(HttpRequest req, boolean chunked) {
+        if (chunked) {
+            headers.add("Transfer-Encoding: chunked");
+        }
+        keepAlive = chunked && req.isKeepAlive();
+        if (!keepAlive) {
+            headers.add("Connection: close");
+        }
+        return encodeHead();
+    }
+
+    /**
+     * @return true if the response has been sent through its stream, ahead
+     * of {@link #toSegments()}
+     */
+    public boolean isStreamed() {
+        return stream != null && stream.isStarted();
+    }
+
+    /**
+     * @return the number of bytes sent through the stream of the response
+     */
+    public long getStreamedLength() {
+        return stream != null ? stream.getBytesSent() : 0;
+    }
+
+    /**
+     * @return true if a body written through {@link #openStream(HttpRequest)}
+     * is sent while it is written
+     */
+    boolean isStreamable() {
+        return sink != null;
+    }
+
+    /**
+     * HTTP/1.1 message framing: every response that may carry a body states
+     * its Content-Length, so the client finds the end of the response without
+     * the connection being closed, and the Connection header tells it whether
+     * the connection stays open. It does not if the request body has not
+     * been read to its end, the rest of it is never read.
+     * http://tools.ietf.org/html/rfc7230#section-3.3
+     *
+     * A streamed response has been framed when it was started.
+     */
+    private void fillFraming(HttpRequest req) {
+        if (isStreamed()) {
+            keepAlive = keepAlive && req.isBodyFinished();
+            return;
         }
-        return array;
+        if (req.getMethod() != Method.HEAD && status != Status._304) {
+            headers.add("Content-Length: " + getContentLength());
+        }
+        keepAlive = req.isKeepAlive() && req.isBodyFinished();
+        if (!keepAlive) {
+            headers.add("Connection: close");
+        } else if ("HTTP/1.0".equals(req.getVersion())) {
+            headers.add("Connection: keep-alive");
+        }
+    }
+
+    private long getContentLength() {
+        long length = body != null ? body.length : 0;
+        for (ResponseSegment segment : bodySegments) {
+            length += segment.length();
+        }
+        return length;
+    }
+
+    /**
+     * @return true if the connection may be used for further requests
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Adds a header, such as Retry-After to a response created for a
+     * status. Headers added after the response has been encoded or
+     * started streaming are not sent.
+     */
+    public void addHeader(String name, String value) {
+        headers.add(name + ": " + value);
+    }
+
+    public void setStatus(Status status) {
+        fillHeaders(status);
+    }
+
+    public void setContentType(ContentType contentType) {
+        this.contentType = contentType;
+    }
+
+    /**
+     * Sets the whole body of the response. The array is sent as it is, not
+     * copied.
+     */
+    public void setBody(byte[] body) {
+        fillResponse(body);
     }
 
     /**
-     * @boris paris: Added 'Date' in RFC_1123 format.
+     * Sets the whole body of the response, encoded as UTF-8.
+     */
+    public void setBody(String body) {
+        fillResponse(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sets the status line. The status line, Date, Server and Content-Type
+     * headers are written from pre-encoded bytes by {@link #toSegments()},
+     * only the remaining headers are kept as strings.
      */
     private void fillHeaders(Status status) {
-        headers.add(HttpResponse.VERSION + " " + status.toString());
-        headers.add("Date: " + ZonedDateTime.now().format(DateTimeFormatter.RFC_1123_DATE_TIME));
-        headers.add("Server: SimpleWebServer");
+        this.status = status;
     }
 
     private void fillResponse(String response) {
@@ -174,25 +271,146 @@ public class HttpResponse {
         body = response;
     }
 
-    public void write(OutputStream os) throws IOException {
-        DataOutputStream output = new DataOutputStream(os);
+    /**
+     * Encodes the response as segments for writing to a channel: the header
+     * block and in-memory body in one gathering write, file bodies with
+     * {@link FileRegion} or {@link MappedSegment}. The body array is
+     * wrapped, not copied, so cached content is shared with the cache.
+     * Nothing is left to write of a streamed response.
+     */
+    public List<ResponseSegment> toSegments() {
+        if (isStreamed()) {
+            return Collections.emptyList();
+        }
+        ByteBuffer headBuffer = ByteBuffer.wrap(encodeHead());
+
+        List<ResponseSegment> segments = new ArrayList<>(bodySegments.size() + 1);
+        if (!bodySegments.isEmpty()) {
+            segments.add(new BufferSegment(headBuffer));
+            segments.addAll(bodySegments);
+        } else if (body != null) {
+            segments.add(new BufferSegment(headBuffer, ByteBuffer.wrap(body)));
+        } else {
+            segments.add(new BufferSegment(headBuffer));
+        }
+        return segments;
+    }
+
+    /**
+     * The headers of the response for an HTTP/2 HEADERS frame: the :status
+     * pseudo-header first, then Date, Server, Content-Type and the others
+     * with lower case names, without the headers that only concern an
+     * HTTP/1.1 connection.
+     *
+     * @return the name and the value of each field in turn
+     */
+    public List<String> getHeaderFields() {
+        List<String> fields = new ArrayList<>(8 + headers.size() * 2);
+        fields.add(":status");
+        fields.add(status.getCode());
+        fields.add("date");
+        fields.add(HttpDate.value());
+        fields.add("server");
+        fields.add("SimpleWebServer");
+        if (contentType != null) {
+            fields.add("content-type");
+            fields.add(contentType.getMediaType());
+        }
         for (String header : headers) {
-            output.writeBytes(header + "\r\n");
+            int colon = header.indexOf(':');
+            String name = header.substring(0, colon).toLowerCase(Locale.ROOT);
+            if (!CONNECTION_HEADERS.contains(name)) {
+                fields.add(name);
+                fields.add(header.substring(colon + 1).trim());
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * The body of the response without the header block, for a connection
+     * that frames the messages itself (HTTP/2). Nothing is left of a
+     * streamed response.
+     */
+    public List<ResponseSegment> toBodySegments() {
+        if (isStreamed()) {
+            return Collections.emptyList();
+        }
+        if (!bodySegments.isEmpty()) {
+            return new ArrayList<>(bodySegments);
+        }
+        if (body != null && body.length > 0) {
+            return Collections.<ResponseSegment>singletonList(new BufferSegment(ByteBuffer.wrap(body)));
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Encodes the header block into one array sized up front. Status line,
+     * Date, Server and Content-Type are copied from shared pre-encoded
+     * bytes; the other headers are ASCII and copied char by char.
+     */
+    private byte[] encodeHead() {
+        byte[] statusLine = status.getStatusLine();
+        byte[] date = HttpDate.header();
+        byte[] type = contentType != null ? contentType.getHeaderLine() : null;
+        int length = statusLine.length + date.length + SERVER.length + CRLF.length;
+        if (type != null) {
+            length += type.length;
+        }
+        for (String header : headers) {
+            length += header.length() + CRLF.length;
         }
-        output.writeBytes("\r\n");
-        if (body != null) {
-            output.write(body);
+
+        byte[] head = new byte[length];
+        int pos = put(head, 0, statusLine);
+        pos = put(head, pos, date);
+        pos = put(head, pos, SERVER);
+        if (type != null) {
+            pos = put(head, pos, type);
+        }
+        for (String header : headers) {
+            for (int i = 0; i < header.length(); i++) {
+                head[pos++] = (byte) header.charAt(i);
+            }
+            pos = put(head, pos, CRLF);
         }
-        output.writeBytes("\r\n");
-        output.flush();
+        put(head, pos, CRLF);
+        return head;
     }
 
-    private void setContentType(String uri, List<String> list) {
+    private static int put(byte[] head, int pos, byte[] bytes) {
+        System.arraycopy(bytes, 0, head, pos, bytes.length);
+        return pos + bytes.length;
+    }
+
+    /**
+     * Writes the whole response to a blocking channel.
+     *
+     * @return the number of bytes written
+     */
+    public long write(WritableByteChannel channel) throws IOException {
+        List<ResponseSegment> segments = toSegments();
+        long length = 0;
+        for (ResponseSegment segment : segments) {
+            length += segment.length();
+        }
         try {
-            String ext = uri.substring(uri.indexOf(".") + 1);
-            list.add(ContentType.valueOf(ext.toUpperCase()).toString());
-        } catch (Exception e) {
-            LOG.error("ContentType not found: " + e, e);
+            for (ResponseSegment segment : segments) {
+                while (!segment.writeTo(channel)) {
+                    // a blocking channel always makes progress
+                }
+            }
+            return length;
+        } finally {
+            for (ResponseSegment segment : segments) {
+                segment.close();
+            }
         }
     }
+
+    public void write(OutputStream os) throws IOException {
+        write(Channels.newChannel(os));
+        os.flush();
+    }
 }
@@ -0,0 +1,150 @@
+package com.dasanjos.java.http;
+
+import java.util.Arrays;
+
+/**
+ * Huffman encodes and decodes the string literals of HPACK with the static
+ * code of http://tools.ietf.org/html/rfc7541#appendix-B
+ *
+ * The code is canonical: within a length, codes are assigned in symbol
+ * order, so the table only lists the code length of every symbol and the
+ * codes themselves are derived from it. Decoding walks the input bit by
+ * bit, header values are short.
+ */
+final class Huffman {
+
+    /** the end-of-string symbol, never part of a valid string */
+    private static final int EOS = 256;
+
+    private static final int MAX_LENGTH = 30;
+
+    /** code length of every symbol, EOS last */
+    private static final byte[] LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+
+    private static final int[] CODES = new int[LENGTHS.length];
+
+    /** the symbols ordered by code */
+    private static final int[] SYMBOLS = new int[LENGTHS.length];
+
+    /** the first code of each length */
+    private static final int[] FIRST_CODE = new int[MAX_LENGTH + 1];
+
+    /** the index in {@link #SYMBOLS} of the first code of each length */
+    private static final int[] FIRST_SYMBOL = new int[MAX_LENGTH + 1];
+
+    /** the number of codes of each length */
+    private static final int[] COUNT = new int[MAX_LENGTH + 1];
+
+    static {
+        for (byte length : LENGTHS) {
+            COUNT[length]++;
+        }
+        int code = 0;
+        int index = 0;
+        for (int length = 1; length <= MAX_LENGTH; length++) {
+            FIRST_CODE[length] = code;
+            FIRST_SYMBOL[length] = index;
+            code = (code + COUNT[length]) << 1;
+            index += COUNT[length];
+        }
+        int[] next = Arrays.copyOf(FIRST_SYMBOL, FIRST_SYMBOL.length);
+        for (int symbol = 0; symbol < LENGTHS.length; symbol++) {
+            int length = LENGTHS[symbol];
+            int position = next[length]++;
+            SYMBOLS[position] = symbol;
+            CODES[symbol] = FIRST_CODE[length] + position - FIRST_SYMBOL[length];
+        }
+    }
+
+    private Huffman() {
+    }
+
+    /**
+     * @return the number of bytes the encoded string takes
+     */
+    static int encodedLength(byte[] data) {
+        long bits = 0;
+        for (byte b : data) {
+            bits += LENGTHS[b & 0xff];
+        }
+        return (int) ((bits + 7) >> 3);
+    }
+
+    /**
+     * Encodes the string into the array from <code>pos</code> on, padded
+     * with the most significant bits of EOS.
+     *
+     * @return the position after the encoded string
+     */
+    static int encode(byte[] data, byte[] out, int pos) {
+        long current = 0;
+        int bits = 0;
+        for (byte b : data) {
+            int symbol = b & 0xff;
+            current = current << LENGTHS[symbol] | CODES[symbol];
+            bits += LENGTHS[symbol];
+            while (bits >= 8) {
+                bits -= 8;
+                out[pos++] = (byte) (current >> bits);
+            }
+        }
+        if (bits > 0) {
+            out[pos++] = (byte) (current << (8 - bits) | 0xff >> bits);
+        }
+        return pos;
+    }
+
+    /**
+     * Decodes a string from the array.
+     *
+     * @return the decoded bytes
+     * @throws IllegalArgumentException if the string contains EOS or is
+     * padded with more than 7 bits or with anything but ones
+     */
+    static byte[] decode(byte[] data, int start, int end) {
+        byte[] out = new byte[(end - start) * 8 / 5 + 1];
+        int count = 0;
+        int code = 0;
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            for (int bit = 7; bit >= 0; bit--) {
+                code = code << 1 | (data[i] >> bit & 1);
+                length++;
+                int offset = code - FIRST_CODE[length];
+                if (offset >= 0 && offset < COUNT[length]) {
+                    int symbol = SYMBOLS[FIRST_SYMBOL[length] + offset];
+                    if (symbol == EOS) {
+                        throw new IllegalArgumentException("EOS in Huffman encoded string");
+                    }
+                    out[count++] = (byte) symbol;
+                    code = 0;
+                    length = 0;
+                } else if (length == MAX_LENGTH) {
+                    throw new IllegalArgumentException("Invalid Huffman code");
+                }
+            }
+        }
+        if (length > 7 || code != (1 << length) - 1) {
+            throw new IllegalArgumentException("Invalid Huffman padding");
+        }
+        return Arrays.copyOf(out, count);
+    }
+}
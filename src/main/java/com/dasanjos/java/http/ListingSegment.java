@@ -0,0 +1,77 @@
+package com.dasanjos.java.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import paris.boris.java.http.util.DirectoryListing;
+
+/**
+ * ListingSegment writes a large {@link DirectoryListing} through a small
+ * buffer, which is refilled with the next lines of the listing whenever the
+ * channel has taken the previous ones. The page is never assembled as a
+ * whole.
+ */
+public class ListingSegment implements ResponseSegment {
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final DirectoryListing listing;
+
+    private final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+
+    /** the bytes being written, {@link #chunk} or a line that does not fit into it */
+    private ByteBuffer current = ByteBuffer.allocate(0);
+
+    private int nextLine;
+
+    private long remaining;
+
+    public ListingSegment(DirectoryListing listing) {
+        this.listing = listing;
+        this.remaining = listing.getLength();
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        while (true) {
+            if (!current.hasRemaining() && !fill()) {
+                return true;
+            }
+            int written = channel.write(current);
+            remaining -= written;
+            if (current.hasRemaining()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return false if all lines have been written
+     */
+    private boolean fill() {
+        if (nextLine == listing.getLineCount()) {
+            return false;
+        }
+        chunk.clear();
+        int next = listing.render(nextLine, chunk);
+        if (next == nextLine) {
+            current = ByteBuffer.wrap(listing.getLine(nextLine++));
+        } else {
+            nextLine = next;
+            chunk.flip();
+            current = chunk;
+        }
+        return true;
+    }
+
+    @Override
+    public long length() {
+        return remaining;
+    }
+
+    @Override
+    public void close() {
+        // nothing to release
+    }
+}
@@ -0,0 +1,44 @@
+package com.dasanjos.java.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import paris.boris.java.http.util.MappedFileCache;
+
+/**
+ * MappedSegment writes a region of a memory-mapped file shared through the
+ * {@link MappedFileCache}. The mapping is released when the segment is closed.
+ */
+public class MappedSegment implements ResponseSegment {
+
+    private final MappedFileCache.Mapping mapping;
+
+    private final ByteBuffer view;
+
+    private boolean released;
+
+    public MappedSegment(MappedFileCache.Mapping mapping, long position, long count) {
+        this.mapping = mapping;
+        this.view = mapping.slice(position, count);
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        channel.write(view);
+        return !view.hasRemaining();
+    }
+
+    @Override
+    public long length() {
+        return view.remaining();
+    }
+
+    @Override
+    public void close() {
+        if (!released) {
+            released = true;
+            mapping.release();
+        }
+    }
+}
@@ -16,7 +16,31 @@ public enum Method {
 
 	private final String method;
 
+	private static final Method[] KNOWN = { GET, HEAD, POST, PUT, DELETE, TRACE, CONNECT };
+
 	Method(String method) {
 		this.method = method;
 	}
+
+	/**
+	 * Resolves a method from the raw bytes of a request line without creating a String.
+	 *
+	 * @return the method, or UNRECOGNIZED
+	 */
+	public static Method parse(byte[] data, int start, int end) {
+		for (Method candidate : KNOWN) {
+			String name = candidate.method;
+			if (name.length() != end - start) {
+				continue;
+			}
+			int i = 0;
+			while (i < name.length() && data[start + i] == name.charAt(i)) {
+				i++;
+			}
+			if (i == name.length()) {
+				return candidate;
+			}
+		}
+		return UNRECOGNIZED;
+	}
 }
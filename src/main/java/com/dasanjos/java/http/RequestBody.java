@@ -0,0 +1,242 @@
+package com.dasanjos.java.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * RequestBody gives handlers the body of a request as a stream, readable
+ * both as {@link InputStream} and as {@link ReadableByteChannel}.
+ *
+ * Bodies that arrived together with their header block are served from the
+ * request's own bytes. All others are streamed: the connection decodes the
+ * received bytes (see {@link BodyDecoder}) into a bounded buffer, and only
+ * reads more from the client once the handler has drained it, so an upload
+ * never occupies more than the buffer in memory and a slow handler slows
+ * the client down instead of the server buffering for it.
+ *
+ * If the client sent <code>Expect: 100-continue</code>, the interim
+ * response is only sent when the handler first reads, so a request the
+ * handler rejects without looking at the body is not uploaded.
+ *
+ * Reading is meant for one handler thread; the connection feeds the body
+ * from its I/O thread.
+ */
+public class RequestBody extends InputStream implements ReadableByteChannel {
+
+    /**
+     * Delivers the bytes of a streamed body, implemented by the connection
+     * the request arrived on.
+     */
+    public interface Source {
+
+        /**
+         * Called by the reading thread when the buffer of the body is empty.
+         * The source either reads from the client and offers what it got
+         * before returning (blocking I/O), or arranges for the bytes to be
+         * offered by another thread.
+         *
+         * @return true if the source read synchronously, false if the
+         * reading thread has to wait for the bytes to be offered
+         */
+        boolean demand(RequestBody body) throws IOException;
+    }
+
+    private static final byte[] CONTINUE = (HttpResponse.VERSION + " " + Status._100 + "\r\n\r\n")
+            .getBytes(StandardCharsets.ISO_8859_1);
+
+    /** null for bodies that were received with the header block */
+    private final BodyDecoder decoder;
+
+    /** decoded bytes not read yet, in read mode */
+    private final ByteBuffer buffer;
+
+    private Source source;
+
+    private boolean continuePending;
+
+    private IOException failure;
+
+    private boolean closed;
+
+    /**
+     * A body received completely, backed by the given bytes.
+     */
+    RequestBody(byte[] data, int offset, int length) {
+        this.decoder = null;
+        this.buffer = ByteBuffer.wrap(data, offset, length);
+    }
+
+    /**
+     * A streamed body.
+     *
+     * @param bufferSize capacity of the buffer between connection and handler
+     * @param expectContinue true to send 100 Continue before demanding the first bytes
+     */
+    RequestBody(BodyDecoder decoder, int bufferSize, boolean expectContinue) {
+        this.decoder = decoder;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.buffer.flip();
+        this.continuePending = expectContinue;
+    }
+
+    /**
+     * @return the interim response to send before the first bytes are demanded
+     */
+    public static ByteBuffer continueResponse() {
+        return ByteBuffer.wrap(CONTINUE);
+    }
+
+    /**
+     * Connects a streamed body to the connection that receives it.
+     */
+    public synchronized void setSource(Source source) {
+        this.source = source;
+    }
+
+    /**
+     * Called by the source before it delivers the first bytes.
+     *
+     * @return true exactly once if the client waits for 100 Continue
+     */
+    public synchronized boolean takeContinue() {
+        boolean pending = continuePending;
+        continuePending = false;
+        return pending;
+    }
+
+    /**
+     * Decodes received bytes into the buffer of the body, as many as fit,
+     * and wakes up the reading thread. Bytes behind the end of the body are
+     * left in <code>raw</code>.
+     *
+     * @param raw bytes received from the client, in read mode
+     * @throws BadRequestException if the framing is malformed or the body too large
+     */
+    public synchronized void offer(ByteBuffer raw) throws BadRequestException {
+        buffer.compact();
+        try {
+            decoder.decode(raw, buffer);
+        } catch (BadRequestException e) {
+            failure = e;
+            throw e;
+        } finally {
+            buffer.flip();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Fails the body, for instance because the connection was closed. The
+     * reading thread gets the exception once the buffered bytes are read.
+     */
+    public synchronized void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return true if the whole body has been received from the client,
+     * whether or not the handler has read it
+     */
+    public synchronized boolean isFinished() {
+        return decoder == null || decoder.isComplete();
+    }
+
+    /**
+     * @return true if the source should read more bytes from the client now
+     */
+    public synchronized boolean needsInput() {
+        return !isFinished() && failure == null && !closed && buffer.remaining() < buffer.capacity();
+    }
+
+    /**
+     * Waits until there are bytes to read.
+     *
+     * @return false at the end of the body
+     */
+    private boolean await() throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        while (!buffer.hasRemaining()) {
+            if (failure != null) {
+                throw failure;
+            }
+            if (isFinished()) {
+                return false;
+            }
+            if (!source.demand(this) && !buffer.hasRemaining() && failure == null && !isFinished()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading the request body", e);
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        return await() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!await()) {
+            return -1;
+        }
+        int count = Math.min(len, buffer.remaining());
+        buffer.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if (!await()) {
+            return -1;
+        }
+        int count = Math.min(dst.remaining(), buffer.remaining());
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + count);
+        dst.put(buffer);
+        buffer.limit(limit);
+        return count;
+    }
+
+    /**
+     * @return the number of bytes that can be read without waiting for the client
+     */
+    @Override
+    public synchronized int available() {
+        return buffer.remaining();
+    }
+
+    /**
+     * Stops reading. The rest of the body is not drained, a connection
+     * whose request body was not read to its end is closed after the
+     * response.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return !closed;
+    }
+}
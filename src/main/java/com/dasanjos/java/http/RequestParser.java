@@ -0,0 +1,349 @@
+package com.dasanjos.java.http;
+
+import java.util.Arrays;
+
+/**
+ * RequestParser parses HTTP requests straight from the bytes received on a
+ * connection http://www.w3.org/Protocols/rfc2616/rfc2616-sec5.html
+ *
+ * The parser works on the (reusable) receive buffer of a connection and
+ * keeps track of how far it has searched for the end of the header block,
+ * so bytes arriving in small pieces are not scanned again on every read.
+ * A complete request is copied once into its own array; the request line
+ * and headers are only recorded as offsets into that array.
+ *
+ * A request is returned as soon as its header block is complete. A
+ * Content-Length body that was received along with it is part of the
+ * request's array; any other body (not received yet, or chunked) is
+ * streamed from the connection through the request's {@link RequestBody}.
+ *
+ * Request line, header block and body sizes are limited, violations are
+ * reported as {@link BadRequestException} with the status to answer with.
+ */
+public class RequestParser {
+
+    static final int MAX_HEADERS = 100;
+
+    static final int DEFAULT_BODY_BUFFER_SIZE = 64 * 1024;
+
+    private final String rootPath;
+
+    private final int maxRequestLine;
+
+    private final int maxHeaderSize;
+
+    private final long maxBodySize;
+
+    private final int bodyBufferSize;
+
+    /** offset up to which the buffer has been searched for the end of the header block */
+    private int scanned;
+
+    /**
+     * @param rootPath the document root handed to the parsed requests
+     * @param maxRequestLine longest accepted request line, longer ones are answered with 414
+     * @param maxHeaderSize largest accepted header block, larger ones are answered with 431
+     * @param maxBodySize largest accepted request body, larger ones are answered with 413
+     */
+    public RequestParser(String rootPath, int maxRequestLine, int maxHeaderSize, long maxBodySize) {
+        this(rootPath, maxRequestLine, maxHeaderSize, maxBodySize, DEFAULT_BODY_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bodyBufferSize capacity of the buffer a streamed body is read through
+     */
+    public RequestParser(String rootPath, int maxRequestLine, int maxHeaderSize, long maxBodySize,
+            int bodyBufferSize) {
+        this.rootPath = rootPath;
+        this.maxRequestLine = maxRequestLine;
+        this.maxHeaderSize = maxHeaderSize;
+        this.maxBodySize = maxBodySize;
+        this.bodyBufferSize = bodyBufferSize;
+    }
+
+    /**
+     * Parses the request at the start of the buffer.
+     *
+     * @param buffer the received bytes
+     * @param length the number of valid bytes in the buffer
+     * @return the request, or null if its header block has not been received
+     * completely. {@link HttpRequest#getLength()} tells how many bytes of the
+     * buffer it occupied; the bytes of a streamed body follow.
+     * @throws BadRequestException if the request is malformed or too large
+     */
+    public HttpRequest parse(byte[] buffer, int length) throws BadRequestException {
+        // RFC 7230 3.5: ignore empty lines received before the request line
+        int start = 0;
+        while (start < length && (buffer[start] == '\r' || buffer[start] == '\n')) {
+            start++;
+        }
+
+        int headerEnd = findHeaderEnd(buffer, Math.max(start, scanned), length);
+        if (headerEnd < 0) {
+            scanned = Math.max(start, length - 2);
+            checkIncomplete(buffer, start, length);
+            return null;
+        }
+        if (headerEnd - start > maxHeaderSize) {
+            throw new BadRequestException(Status._431, "Header block exceeds " + maxHeaderSize + " bytes");
+        }
+
+        HttpRequest req = new HttpRequest(rootPath);
+        parseHeaderBlock(buffer, start, headerEnd, req);
+
+        boolean chunked = parseTransferEncoding(buffer, req, start);
+        long contentLength = parseContentLength(buffer, req, start);
+        if (contentLength > maxBodySize) {
+            throw new BadRequestException(Status._413, "Request body exceeds " + maxBodySize + " bytes");
+        }
+        boolean expectContinue = parseExpect(buffer, req, start);
+        scanned = 0;
+
+        long end = headerEnd + contentLength;
+        if (!chunked && end <= length) {
+            req.data = Arrays.copyOfRange(buffer, start, (int) end);
+            req.bodyStart = headerEnd - start;
+            req.length = (int) end;
+            return req;
+        }
+
+        req.data = Arrays.copyOfRange(buffer, start, headerEnd);
+        req.bodyStart = headerEnd - start;
+        req.length = headerEnd;
+        req.body = new RequestBody(new BodyDecoder(chunked ? -1 : contentLength, maxBodySize), bodyBufferSize,
+                expectContinue);
+        return req;
+    }
+
+    /**
+     * Limits checked while the header block is incomplete, so a client
+     * cannot make the connection buffer grow without bound.
+     */
+    private void checkIncomplete(byte[] buffer, int start, int length) throws BadRequestException {
+        if (length - start > maxRequestLine && indexOf(buffer, start, start + maxRequestLine, (byte) '\n') < 0) {
+            throw new BadRequestException(Status._414, "Request line exceeds " + maxRequestLine + " bytes");
+        }
+        if (length - start > maxHeaderSize) {
+            throw new BadRequestException(Status._431, "Header block exceeds " + maxHeaderSize + " bytes");
+        }
+    }
+
+    /**
+     * @return the index right after the empty line terminating the headers,
+     * or -1 if it has not been received yet
+     * @throws BadRequestException for a CR that does not end a line, RFC 7230
+     * 3.5 leaves the choice between rejecting it and reading it as a space
+     */
+    private static int findHeaderEnd(byte[] buffer, int from, int end) throws BadRequestException {
+        for (int i = from; i < end; i++) {
+            if (buffer[i] == '\r' && i + 1 < end && buffer[i + 1] != '\n') {
+                throw new BadRequestException(Status._400, "CR without LF in header block");
+            }
+            if (buffer[i] != '\n') {
+                continue;
+            }
+            if (i + 1 < end && buffer[i + 1] == '\n') {
+                return i + 2;
+            }
+            if (i + 2 < end && buffer[i + 1] == '\r' && buffer[i + 2] == '\n') {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Records the request line and the header offsets in the request. The
+     * offsets are relative to <code>start</code>, where the request's own
+     * copy of the bytes begins.
+     */
+    private void parseHeaderBlock(byte[] buffer, int start, int headerEnd, HttpRequest req)
+            throws BadRequestException {
+        int lineEnd = indexOf(buffer, start, headerEnd, (byte) '\n');
+        if (lineEnd - start > maxRequestLine) {
+            throw new BadRequestException(Status._414, "Request line exceeds " + maxRequestLine + " bytes");
+        }
+        parseRequestLine(buffer, start, trimCR(buffer, start, lineEnd), req);
+
+        int headers = 0;
+        int lineStart = lineEnd + 1;
+        while (lineStart < headerEnd) {
+            lineEnd = indexOf(buffer, lineStart, headerEnd, (byte) '\n');
+            int end = trimCR(buffer, lineStart, lineEnd);
+            if (end == lineStart) {
+                break;
+            }
+            if (++headers > MAX_HEADERS) {
+                throw new BadRequestException(Status._431, "More than " + MAX_HEADERS + " headers");
+            }
+            parseHeaderLine(buffer, start, lineStart, end, req);
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    private static void parseRequestLine(byte[] buffer, int start, int end, HttpRequest req)
+            throws BadRequestException {
+        int methodEnd = indexOf(buffer, start, end, (byte) ' ');
+        int uriEnd = lastIndexOf(buffer, start, end, (byte) ' ');
+        if (methodEnd < 0 || uriEnd <= methodEnd + 1) {
+            throw new BadRequestException(Status._400, "Malformed request line");
+        }
+        req.method = Method.parse(buffer, start, methodEnd);
+        req.uriStart = methodEnd + 1 - start;
+        req.uriEnd = uriEnd - start;
+        req.versionStart = uriEnd + 1 - start;
+        req.versionEnd = end - start;
+        if (!startsWith(buffer, uriEnd + 1, end, "HTTP/")) {
+            throw new BadRequestException(Status._400, "Malformed HTTP version");
+        }
+    }
+
+    private static void parseHeaderLine(byte[] buffer, int start, int lineStart, int end, HttpRequest req)
+            throws BadRequestException {
+        if (buffer[lineStart] == ' ' || buffer[lineStart] == '\t') {
+            // RFC 7230 3.2.4: obsolete line folding may be rejected
+            throw new BadRequestException(Status._400, "Folded header line");
+        }
+        int colon = indexOf(buffer, lineStart, end, (byte) ':');
+        if (colon <= lineStart || buffer[colon - 1] == ' ' || buffer[colon - 1] == '\t') {
+            throw new BadRequestException(Status._400, "Malformed header line");
+        }
+        int valueStart = colon + 1;
+        while (valueStart < end && (buffer[valueStart] == ' ' || buffer[valueStart] == '\t')) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while (valueEnd > valueStart && (buffer[valueEnd - 1] == ' ' || buffer[valueEnd - 1] == '\t')) {
+            valueEnd--;
+        }
+
+        HeaderName known = HeaderName.lookup(buffer, lineStart, colon);
+        if (known != null) {
+            if (req.hasHeader(known)) {
+                if (known == HeaderName.CONTENT_LENGTH) {
+                    throw new BadRequestException(Status._400, "Duplicate Content-Length");
+                }
+                // the first occurrence wins
+                return;
+            }
+            req.setKnown(known, valueStart - start, valueEnd - start);
+        } else {
+            req.addOther(hashIgnoreCase(buffer, lineStart, colon),
+                    lineStart - start, colon - start, valueStart - start, valueEnd - start);
+        }
+    }
+
+    /**
+     * @return true for a chunked body. Other transfer-codings are not
+     * supported, and a request with both Transfer-Encoding and
+     * Content-Length is rejected rather than guessing its end (RFC 7230
+     * 3.3.3, request smuggling).
+     */
+    private static boolean parseTransferEncoding(byte[] buffer, HttpRequest req, int start)
+            throws BadRequestException {
+        if (!req.hasHeader(HeaderName.TRANSFER_ENCODING)) {
+            return false;
+        }
+        if (req.hasHeader(HeaderName.CONTENT_LENGTH)) {
+            throw new BadRequestException(Status._400, "Both Transfer-Encoding and Content-Length");
+        }
+        if (!valueEqualsIgnoreCase(buffer, req, start, HeaderName.TRANSFER_ENCODING, "chunked")) {
+            throw new BadRequestException(Status._501, "Only the chunked transfer-coding is supported");
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the client waits for 100 Continue before sending the
+     * body. HTTP/1.0 clients don't know the interim response and get none.
+     */
+    private static boolean parseExpect(byte[] buffer, HttpRequest req, int start) throws BadRequestException {
+        if (!req.hasHeader(HeaderName.EXPECT)) {
+            return false;
+        }
+        if (!valueEqualsIgnoreCase(buffer, req, start, HeaderName.EXPECT, "100-continue")) {
+            throw new BadRequestException(Status._417, "Unsupported expectation");
+        }
+        return !startsWith(buffer, start + req.versionStart, start + req.versionEnd, "HTTP/1.0");
+    }
+
+    private static boolean valueEqualsIgnoreCase(byte[] buffer, HttpRequest req, int start, HeaderName name,
+            String expected) {
+        int from = start + req.known[name.ordinal() * 2];
+        int to = start + req.known[name.ordinal() * 2 + 1];
+        if (to - from != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (HeaderName.toLowerCase(buffer[from + i]) != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseContentLength(byte[] buffer, HttpRequest req, int start) throws BadRequestException {
+        if (!req.hasHeader(HeaderName.CONTENT_LENGTH)) {
+            return 0;
+        }
+        int from = start + req.known[HeaderName.CONTENT_LENGTH.ordinal() * 2];
+        int to = start + req.known[HeaderName.CONTENT_LENGTH.ordinal() * 2 + 1];
+        if (from == to || to - from > 18) {
+            throw new BadRequestException(Status._400, "Invalid Content-Length");
+        }
+        long length = 0;
+        for (int i = from; i < to; i++) {
+            if (buffer[i] < '0' || buffer[i] > '9') {
+                throw new BadRequestException(Status._400, "Invalid Content-Length");
+            }
+            length = length * 10 + (buffer[i] - '0');
+        }
+        return length;
+    }
+
+    /**
+     * Case-insensitive hash of a header name, used to skip most name
+     * comparisons when looking up headers that have no fixed slot.
+     */
+    static int hashIgnoreCase(byte[] data, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + HeaderName.toLowerCase(data[i]);
+        }
+        return hash;
+    }
+
+    private static int trimCR(byte[] buffer, int start, int end) {
+        return end > start && buffer[end - 1] == '\r' ? end - 1 : end;
+    }
+
+    private static boolean startsWith(byte[] buffer, int start, int end, String prefix) {
+        if (end - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer[start + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] buffer, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] buffer, int start, int end, byte b) {
+        for (int i = end - 1; i >= start; i--) {
+            if (buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,31 @@
+package com.dasanjos.java.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * ResponseSegment is one part of an encoded response (header block, body
+ * bytes or a region of a file) that can be written to a channel piece by
+ * piece, as needed for non-blocking channels.
+ */
+public interface ResponseSegment extends Closeable {
+
+    /**
+     * Writes as much of the segment as the channel accepts.
+     *
+     * @return true if the segment has been written completely
+     */
+    boolean writeTo(WritableByteChannel channel) throws IOException;
+
+    /**
+     * @return the number of bytes still to be written
+     */
+    long length();
+
+    /**
+     * Releases resources held by the segment, e.g. an open file.
+     */
+    @Override
+    void close();
+}
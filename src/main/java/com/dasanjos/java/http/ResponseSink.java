@@ -0,0 +1,39 @@
+package com.dasanjos.java.http;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * ResponseSink takes the parts of a streamed response ({@link ResponseStream})
+ * while the handler is still producing it, implemented by the connection
+ * the request arrived on.
+ */
+public interface ResponseSink {
+
+    /**
+     * Sends segments ahead of the rest of the response. The sink takes over
+     * the segments and closes them once written. It blocks while too many
+     * bytes handed over before have not been written yet, so a slow client
+     * slows the handler down instead of the server buffering for it.
+     *
+     * @throws IOException if the connection has been closed
+     */
+    void send(List<ResponseSegment> segments) throws IOException;
+
+    /**
+     * @return the number of body bytes a {@link ResponseStream} collects
+     * before it sends them
+     */
+    int getBufferSize();
+
+    /**
+     * Sends status and headers of a streamed response itself, for a sink
+     * that frames the messages on its own (HTTP/2). The body is then handed
+     * to {@link #send(List)} as it is, without the chunked transfer-coding.
+     *
+     * @return false to have the stream send an HTTP/1.1 header block instead
+     */
+    default boolean sendHead(HttpResponse response) throws IOException {
+        return false;
+    }
+}
@@ -0,0 +1,209 @@
+package com.dasanjos.java.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ResponseStream lets a handler write a response body of unknown length
+ * incrementally, as {@link OutputStream} or {@link WritableByteChannel}.
+ *
+ * The bytes are collected in a bounded buffer. A body that fits into it is
+ * sent like any other response, with a Content-Length, once the stream is
+ * closed. As soon as the buffer overflows (or {@link #flush()} is called)
+ * the header block goes out and the body follows buffer by buffer through
+ * the connection's {@link ResponseSink}: with the chunked transfer-coding
+ * http://tools.ietf.org/html/rfc7230#section-4.1 for HTTP/1.1 clients,
+ * delimited by closing the connection for HTTP/1.0 clients, in DATA frames
+ * for HTTP/2 clients. The sink blocks while the client lags behind, so the
+ * body never occupies more than a few buffers in memory.
+ *
+ * Without a sink (a response that is not produced for a connection) the
+ * whole body is buffered.
+ *
+ * A stream is written by the one thread producing the response.
+ */
+public class ResponseStream extends OutputStream implements WritableByteChannel {
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final int UNBUFFERED_SIZE = 8192;
+
+    private final HttpResponse response;
+
+    private final HttpRequest request;
+
+    /** null if the whole body is buffered */
+    private final ResponseSink sink;
+
+    private byte[] buffer;
+
+    private int count;
+
+    /** true once the header block has been sent */
+    private boolean started;
+
+    private boolean chunked;
+
+    private boolean closed;
+
+    private long bytesSent;
+
+    ResponseStream(HttpResponse response, HttpRequest request, ResponseSink sink) {
+        this.response = response;
+        this.request = request;
+        this.sink = sink;
+        this.buffer = new byte[sink != null ? sink.getBufferSize() : UNBUFFERED_SIZE];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (count == buffer.length) {
+            overflow();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (count == buffer.length) {
+                overflow();
+            }
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        int written = src.remaining();
+        while (src.hasRemaining()) {
+            if (count == buffer.length) {
+                overflow();
+            }
+            int n = Math.min(src.remaining(), buffer.length - count);
+            src.get(buffer, count, n);
+            count += n;
+        }
+        return written;
+    }
+
+    /**
+     * Sends the buffered bytes right away, starting the streamed response
+     * if it has not been started yet.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (sink != null && count > 0) {
+            send(false);
+        }
+    }
+
+    /**
+     * Ends the body. A body that never overflowed the buffer becomes the
+     * body of the response, otherwise the rest of it and the end of the
+     * chunked body are sent.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (started) {
+            send(true);
+        } else {
+            response.body = Arrays.copyOf(buffer, count);
+        }
+        buffer = null;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * @return true once the header block has been sent, the response can no
+     * longer be changed
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * @return the number of bytes sent so far, header block and framing included
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private void overflow() throws IOException {
+        if (sink == null) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        } else {
+            send(false);
+        }
+    }
+
+    /**
+     * Hands the buffered bytes to the sink, preceded by the header block on
+     * the first call. The buffer is handed over as it is and replaced, the
+     * sink may write it later.
+     */
+    private void send(boolean last) throws IOException {
+        List<ByteBuffer> buffers = new ArrayList<>(5);
+        if (!started) {
+            started = true;
+            if (!sink.sendHead(response)) {
+                chunked = "HTTP/1.1".equals(request.getVersion());
+                buffers.add(ByteBuffer.wrap(response.startStream(request, chunked)));
+            }
+        }
+        if (count > 0) {
+            if (chunked) {
+                buffers.add(ByteBuffer.wrap((Integer.toHexString(count) + "\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+            }
+            buffers.add(ByteBuffer.wrap(buffer, 0, count));
+            if (chunked) {
+                buffers.add(ByteBuffer.wrap(CRLF));
+            }
+        }
+        if (last && chunked) {
+            buffers.add(ByteBuffer.wrap(LAST_CHUNK));
+        }
+        if (buffers.isEmpty()) {
+            return;
+        }
+        BufferSegment segment = new BufferSegment(buffers.toArray(new ByteBuffer[0]));
+        bytesSent += segment.length();
+        if (!last) {
+            buffer = new byte[buffer.length];
+        }
+        count = 0;
+        sink.send(Collections.<ResponseSegment>singletonList(segment));
+    }
+}
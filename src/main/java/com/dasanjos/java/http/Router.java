@@ -0,0 +1,344 @@
+package com.dasanjos.java.http;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Router dispatches requests to the {@link Handler} mounted for their method
+ * and path.
+ *
+ * A pattern is a path whose segments are either literal, a parameter
+ * (<code>{name}</code>, any one segment) or, as the last segment, a
+ * wildcard (<code>*</code>, any remainder, including none):
+ * <code>/health</code>, <code>/api/users/{id}</code>, <code>/*</code>.
+ * Literal segments are matched against the raw request path, so they must
+ * be given percent-encoded where the client would encode them. Empty
+ * segments are ignored, <code>/health/</code> matches <code>/health</code>.
+ * A literal segment takes precedence over a parameter, which takes
+ * precedence over a wildcard; a more specific route that does not match
+ * further down falls back to the less specific ones.
+ *
+ * Routes are added up front and then compiled into a trie of arrays, each
+ * node holding its literal children sorted by their bytes. A lookup walks
+ * the raw bytes of the request line and allocates nothing; the values of
+ * path parameters are recorded as offsets and only become Strings when the
+ * handler asks for them ({@link HttpRequest#getPathParameter(String)}).
+ * Once compiled, no more routes can be added.
+ *
+ * HEAD requests fall back to the GET route of their path. A path that only
+ * has routes for other methods is answered with 405, a path without routes
+ * with 404.
+ */
+public class Router implements Handler {
+
+    private static final int METHODS = Method.values().length;
+
+    private static final String[] NO_PARAMETERS = {};
+
+    /** routes as they are added */
+    private final Node routes = new Node();
+
+    /** the compiled trie, null until {@link #compile()} */
+    private volatile Compiled root;
+
+    /**
+     * Mounts a handler.
+     *
+     * @throws IllegalArgumentException if the pattern is malformed or already
+     * mounted for the method
+     * @throws IllegalStateException if the routes have already been compiled
+     */
+    public synchronized Router add(Method method, String pattern, Handler handler) {
+        if (root != null) {
+            throw new IllegalStateException("Cannot mount " + method + " " + pattern + " after the routes are compiled");
+        }
+        if (method == Method.UNRECOGNIZED) {
+            throw new IllegalArgumentException("Cannot route unrecognized methods");
+        }
+        if (!pattern.startsWith("/")) {
+            throw new IllegalArgumentException("Pattern must start with '/': " + pattern);
+        }
+        List<String> names = new ArrayList<>();
+        Node node = routes;
+        String[] segments = pattern.substring(1).split("/");
+        boolean wildcard = false;
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (segment.isEmpty()) {
+                continue;
+            }
+            if (segment.equals("*")) {
+                if (i != segments.length - 1) {
+                    throw new IllegalArgumentException("Wildcard must be the last segment: " + pattern);
+                }
+                wildcard = true;
+            } else if (segment.startsWith("{") && segment.endsWith("}") && segment.length() > 2) {
+                names.add(segment.substring(1, segment.length() - 1));
+                if (node.parameter == null) {
+                    node.parameter = new Node();
+                }
+                node = node.parameter;
+            } else if (segment.indexOf('{') >= 0 || segment.indexOf('}') >= 0 || segment.indexOf('*') >= 0) {
+                throw new IllegalArgumentException("Malformed segment '" + segment + "' in " + pattern);
+            } else {
+                node = node.children.computeIfAbsent(segment, s -> new Node());
+            }
+        }
+        Route[] target = wildcard ? node.wildcard : node.exact;
+        if (target[method.ordinal()] != null) {
+            throw new IllegalArgumentException(method + " " + pattern + " is already mounted");
+        }
+        target[method.ordinal()] = new Route(handler, names.isEmpty() ? NO_PARAMETERS : names.toArray(NO_PARAMETERS));
+        return this;
+    }
+
+    /**
+     * Compiles the routes added so far for lookups.
+     */
+    public synchronized Router compile() {
+        root = compile(routes);
+        return this;
+    }
+
+    private static Compiled compile(Node node) {
+        byte[][] segments = new byte[node.children.size()][];
+        Compiled[] children = new Compiled[segments.length];
+        int i = 0;
+        // TreeMap order of ASCII literals is the unsigned byte order the lookup searches in
+        for (Map.Entry<String, Node> child : node.children.entrySet()) {
+            segments[i] = child.getKey().getBytes(StandardCharsets.UTF_8);
+            children[i++] = compile(child.getValue());
+        }
+        return new Compiled(segments, children, node.parameter != null ? compile(node.parameter) : null,
+                node.exact.clone(), node.wildcard.clone());
+    }
+
+    /**
+     * Answers the request with the matching route, or with 400, 404 or 405.
+     */
+    @Override
+    public void handle(HttpRequest req, HttpResponse res) throws IOException {
+        if (req.getMethod() == Method.UNRECOGNIZED) {
+            res.setStatus(Status._400);
+            res.setBody(Status._400.toString());
+            return;
+        }
+        Route route = lookup(req);
+        if (route != null) {
+            route.handler.handle(req, res);
+            return;
+        }
+        Route[] allowed = match(compiled(), req.data, pathStart(req), pathEnd(req), -1, req, 0);
+        if (allowed == null) {
+            res.setStatus(Status._404);
+            res.setBody(Status._404.toString());
+            return;
+        }
+        StringBuilder allow = new StringBuilder();
+        for (Method method : Method.values()) {
+            if (allowed[method.ordinal()] != null || method == Method.HEAD && allowed[Method.GET.ordinal()] != null) {
+                allow.append(allow.length() > 0 ? ", " : "").append(method);
+            }
+        }
+        res.setStatus(Status._405);
+        res.addHeader("Allow", allow.toString());
+        res.setBody(Status._405.toString());
+    }
+
+    /**
+     * Finds the route for the method and path of the request, and records
+     * the path parameters of the route in the request.
+     *
+     * @return the handler, or null if no route matches
+     */
+    public Handler find(HttpRequest req) {
+        Route route = lookup(req);
+        return route != null ? route.handler : null;
+    }
+
+    private Route lookup(HttpRequest req) {
+        Compiled trie = compiled();
+        int start = pathStart(req);
+        int end = pathEnd(req);
+        int method = req.getMethod().ordinal();
+        Route[] routes = match(trie, req.data, start, end, method, req, 0);
+        if (routes == null && req.getMethod() == Method.HEAD) {
+            method = Method.GET.ordinal();
+            routes = match(trie, req.data, start, end, method, req, 0);
+        }
+        if (routes == null) {
+            return null;
+        }
+        req.pathParameterNames = routes[method].parameters;
+        return routes[method];
+    }
+
+    private Compiled compiled() {
+        Compiled trie = root;
+        if (trie == null) {
+            throw new IllegalStateException("Routes have not been compiled");
+        }
+        return trie;
+    }
+
+    private static int pathStart(HttpRequest req) {
+        return req.uriStart;
+    }
+
+    /**
+     * @return the end of the path, before the query or fragment
+     */
+    private static int pathEnd(HttpRequest req) {
+        byte[] data = req.data;
+        for (int i = req.uriStart; i < req.uriEnd; i++) {
+            if (data[i] == '?' || data[i] == '#') {
+                return i;
+            }
+        }
+        return req.uriEnd;
+    }
+
+    /**
+     * Matches the path from <code>pos</code> on below the node. Parameter
+     * values are recorded while returning from a successful match, so a
+     * branch that fails further down leaves nothing behind.
+     *
+     * @param method the ordinal of the method, -1 for any method
+     * @param parameter the index of the next parameter
+     * @return the routes of the matching node, null if none matches
+     */
+    private static Route[] match(Compiled node, byte[] data, int pos, int end, int method, HttpRequest req,
+            int parameter) {
+        while (pos < end && data[pos] == '/') {
+            pos++;
+        }
+        if (pos == end) {
+            Route[] routes = select(node.exact, method);
+            return routes != null ? routes : select(node.wildcard, method);
+        }
+        int segmentEnd = pos;
+        while (segmentEnd < end && data[segmentEnd] != '/') {
+            segmentEnd++;
+        }
+        int child = node.find(data, pos, segmentEnd);
+        if (child >= 0) {
+            Route[] routes = match(node.children[child], data, segmentEnd, end, method, req, parameter);
+            if (routes != null) {
+                return routes;
+            }
+        }
+        if (node.parameter != null) {
+            Route[] routes = match(node.parameter, data, segmentEnd, end, method, req, parameter + 1);
+            if (routes != null) {
+                req.setPathParameter(parameter, pos, segmentEnd);
+                return routes;
+            }
+        }
+        return select(node.wildcard, method);
+    }
+
+    private static Route[] select(Route[] routes, int method) {
+        if (method >= 0) {
+            return routes[method] != null ? routes : null;
+        }
+        for (Route route : routes) {
+            if (route != null) {
+                return routes;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A handler and the names of the parameters of its pattern.
+     */
+    private static class Route {
+
+        final Handler handler;
+
+        final String[] parameters;
+
+        Route(Handler handler, String[] parameters) {
+            this.handler = handler;
+            this.parameters = parameters;
+        }
+    }
+
+    /**
+     * Node of the routes as they are added.
+     */
+    private static class Node {
+
+        final Map<String, Node> children = new TreeMap<>();
+
+        Node parameter;
+
+        /** routes ending at this node, by method ordinal */
+        final Route[] exact = new Route[METHODS];
+
+        /** routes matching any remainder below this node, by method ordinal */
+        final Route[] wildcard = new Route[METHODS];
+    }
+
+    /**
+     * Node of the compiled trie.
+     */
+    private static class Compiled {
+
+        /** literal segments of the children, in unsigned byte order */
+        final byte[][] segments;
+
+        final Compiled[] children;
+
+        final Compiled parameter;
+
+        final Route[] exact;
+
+        final Route[] wildcard;
+
+        Compiled(byte[][] segments, Compiled[] children, Compiled parameter, Route[] exact, Route[] wildcard) {
+            this.segments = segments;
+            this.children = children;
+            this.parameter = parameter;
+            this.exact = exact;
+            this.wildcard = wildcard;
+        }
+
+        /**
+         * Binary search for the child whose segment equals the given bytes.
+         *
+         * @return the index of the child, or -1
+         */
+        int find(byte[] data, int start, int end) {
+            int low = 0;
+            int high = segments.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(segments[mid], data, start, end);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        private static int compare(byte[] segment, byte[] data, int start, int end) {
+            int length = Math.min(segment.length, end - start);
+            for (int i = 0; i < length; i++) {
+                int cmp = (segment[i] & 0xff) - (data[start + i] & 0xff);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return segment.length - (end - start);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.dasanjos.java.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.log4j.Logger;
+
+import com.dasanjos.java.metrics.Metrics;
+
+import paris.boris.java.http.util.CacheUtils;
+import paris.boris.java.http.util.CompressionCache;
+import paris.boris.java.http.util.DirectoryListing;
+import paris.boris.java.http.util.DocrootIndex;
+import paris.boris.java.http.util.FileMetadata;
+import paris.boris.java.http.util.MappedFileCache;
+
+/**
+ * StaticFileHandler serves the files and directory listings of the docroot
+ * for GET and HEAD requests, with conditional requests, ranges and
+ * compression. It is mounted on <code>/*</code> by the server, any other
+ * route takes precedence over it.
+ */
+public class StaticFileHandler implements Handler {
+
+    private static final Logger LOG = Logger.getLogger(StaticFileHandler.class);
+
+    @Override
+    public void handle(HttpRequest req, HttpResponse res) throws IOException {
+        switch (req.getMethod()) {
+            case GET:
+            case HEAD:
+                serve(req, res);
+                break;
+            case UNRECOGNIZED:
+                res.setStatus(Status._400);
+                res.setBody(Status._400.toString());
+                break;
+            default:
+                res.setStatus(Status._501);
+                res.setBody(Status._501.toString());
+        }
+    }
+
+    private static void serve(HttpRequest req, HttpResponse res) throws IOException {
+        try {
+            long lookupStart = System.nanoTime();
+            // null if the path is malformed or climbs out of the docroot
+            String path = DocrootIndex.normalize(req.getUri());
+            if (path == null) {
+                res.setStatus(Status._400);
+                res.setBody(Status._400.toString());
+                return;
+            }
+            DocrootIndex.Entry entry = CacheUtils.lookup(req.getRootPath(), path);
+            File file = entry != null ? entry.getFile() : null;
+
+            if (entry != null && entry.isDirectory()) {
+                res.setStatus(Status._200);
+                res.contentType = ContentType.HTML;
+                if (res.isStreamable() && !CacheUtils.getListingCache().isEnabled()) {
+                    streamListing(req, res, file, path);
+                } else {
+                    fillListing(req, res, CacheUtils.getListingCache().get(file.toPath(), path));
+                }
+            } else if (entry != null) {
+                FileMetadata metadata = CacheUtils.getMetadata(file, entry.getLastModified(), entry.getSize());
+                Metrics.get().record(Metrics.Phase.FILE_LOOKUP, lookupStart);
+                String range = req.getRange();
+
+                /*
+                Text files are sent gzip or deflate compressed if the
+                client accepts it (not for range requests, ranges
+                refer to the uncompressed file). The compressed
+                variant has its own entity tag.
+                 */
+                CompressionCache compressionCache = CacheUtils.getCompressionCache();
+                boolean vary = compressionCache.isCompressible(metadata);
+                String encoding = null;
+                CompressionCache.Variant variant = null;
+                if (vary && range == null) {
+                    encoding = negotiateEncoding(req);
+                    if (encoding != null) {
+                        DocrootIndex.Entry sidecar = CompressionCache.GZIP.equals(encoding)
+                                ? CacheUtils.lookup(req.getRootPath(), path + ".gz") : null;
+                        variant = compressionCache.get(metadata, encoding, sidecar);
+                    }
+                }
+                long etagStart = System.nanoTime();
+                // null if the file cannot be hashed, it is then served without one
+                String etag = metadata.getETag();
+                if (etag != null && variant != null) {
+                    etag = CompressionCache.variantETag(etag, encoding);
+                }
+                Metrics.get().record(Metrics.Phase.ETAG, etagStart);
+                /*
+                @boris paris:
+                http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html
+
+                If none of the entity tags match, or if "*" is given and no 
+                current entity exists, the server MUST NOT perform the 
+                requested method, and MUST return a 412 
+                (Precondition Failed) response.
+                 */
+                // the entity exists, so "*" matches it
+                if (!req.ifMatch(etag) && !req.isIfMatchWildcard()) {
+                    res.setStatus(Status._412);
+                    return;
+                }
+                /*
+                @boris paris:
+                
+                http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html
+
+                If any of the entity tags match the entity tag of the entity 
+                that would have been returned in the response to a similar 
+                GET request (without the If-None-Match header) on that 
+                resource, or if "*" is given and any current entity exists 
+                for that resource, then the server MUST NOT perform the 
+                requested method, unless required to do so because the 
+                resource's modification date fails to match that supplied 
+                in an If-Modified-Since header field in the request. 
+                Instead, if the request method was GET or HEAD, the server 
+                SHOULD respond with a 304 (Not Modified) response, including 
+                the cache- related header fields (particularly ETag) of one 
+                of the entities that matched.
+                 */
+                /*
+                @boris paris:
+                http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html
+
+                The If-Modified-Since request-header field is used with a 
+                method to make it conditional: if the requested variant has 
+                not been modified since the time specified in this field, an 
+                entity will not be returned from the server; instead, a 304 
+                (not modified) response will be returned without any message-body.                    
+
+                http://tools.ietf.org/html/rfc7232#section-6
+
+                If-None-Match takes precedence, If-Modified-Since is only
+                evaluated without it.
+                 */
+                boolean notModified;
+                if (req.hasHeader(HeaderName.IF_NONE_MATCH)) {
+                    notModified = req.ifNoneMatch(etag) || req.isIfNoneMatchWildcard();
+                } else {
+                    notModified = !req.ifModifiedSince(metadata.getLastModified());
+                }
+                if (notModified) {
+                    res.setStatus(Status._304);
+                    if (etag != null) {
+                        res.headers.add("ETag: " + etag);
+                    }
+                    if (vary) {
+                        res.headers.add("Vary: Accept-Encoding");
+                    }
+                    return;
+                }
+                
+                /*
+                http://tools.ietf.org/html/rfc7233
+
+                A Range request (with a matching If-Range validator)
+                is answered with only the requested slices: a single
+                range as 206 with Content-Range, several ranges as
+                multipart/byteranges. No satisfiable range is a 416.
+                 */
+                List<ByteRange> ranges = null;
+                if (range != null && req.ifRange(metadata.getETag(), metadata.getLastModifiedHeader())) {
+                    ranges = ByteRange.parse(range, metadata.getSize());
+                }
+                if (ranges != null && ranges.isEmpty()) {
+                    res.setStatus(Status._416);
+                    res.headers.add("Content-Range: bytes */" + metadata.getSize());
+                    return;
+                }
+
+                res.setStatus(ranges == null ? Status._200 : Status._206);
+                res.headers.add("Accept-Ranges: bytes");
+                // @boris paris: Add headers for Last-Modified, and ETag
+                res.headers.add("Last-Modified: " + metadata.getLastModifiedHeader());
+                if (etag != null) {
+                    res.headers.add("ETag: " + etag);
+                }
+                if (vary) {
+                    res.headers.add("Vary: Accept-Encoding");
+                }
+                if (variant != null) {
+                    setContentType(res, metadata);
+                    res.headers.add("Content-Encoding: " + encoding);
+                    if (variant.getContent() != null) {
+                        res.setBody(variant.getContent());
+                    } else {
+                        res.bodySegments.add(new FileRegion(variant.getSidecar(), 0, variant.getSize()));
+                    }
+                    return;
+                }
+                byte[] content = CacheUtils.getContentCache().get(metadata);
+                if (ranges != null) {
+                    fillRanges(res, file, metadata, content, ranges);
+                    return;
+                }
+                setContentType(res, metadata);
+                MappedFileCache.Mapping mapping;
+                if (content != null) {
+                    res.setBody(content);
+                } else if ((mapping = CacheUtils.getMappedFileCache().acquire(metadata)) != null) {
+                    res.bodySegments.add(new MappedSegment(mapping, 0, metadata.getSize()));
+                } else {
+                    // too large for the caches: stream it from disk
+                    res.bodySegments.add(new FileRegion(file, 0, metadata.getSize()));
+                }
+            } else {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("File not found:" + req.getUri());
+                }
+                res.setStatus(Status._404);
+                res.setBody(Status._404.toString());
+            }
+        } catch (Exception e) {
+            if (res.isStreamed()) {
+                // the header block is out, only closing the connection tells the client
+                throw e instanceof IOException ? (IOException) e : new IOException(e);
+            }
+            // drop what was prepared for the failed response
+            res.reset();
+            LOG.error("Response Error", e);
+            res.setStatus(Status._400);
+            res.setBody(Status._400.toString());
+        }
+    }
+
+    /**
+     * @return the preferred content-coding accepted by the client, or null
+     */
+    private static String negotiateEncoding(HttpRequest req) {
+        if (req.acceptsEncoding(CompressionCache.GZIP)) {
+            return CompressionCache.GZIP;
+        }
+        if (req.acceptsEncoding(CompressionCache.DEFLATE)) {
+            return CompressionCache.DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * Fills the body with a directory listing. Listings that are small
+     * enough are compressed if the client accepts it, once per cached
+     * listing. Larger ones are sent uncompressed, a few lines at a time.
+     */
+    private static void fillListing(HttpRequest req, HttpResponse res, DirectoryListing listing)
+            throws IOException {
+        byte[] content = listing.getContent();
+        if (content == null) {
+            res.bodySegments.add(new ListingSegment(listing));
+            return;
+        }
+        if (CacheUtils.getCompressionCache().isCompressible(content.length)) {
+            res.headers.add("Vary: Accept-Encoding");
+            String encoding = negotiateEncoding(req);
+            if (encoding != null) {
+                res.headers.add("Content-Encoding: " + encoding);
+                content = CacheUtils.getListingCache().isEnabled()
+                        ? listing.getCompressed(encoding) : CompressionCache.compressFast(content, encoding);
+            }
+        }
+        res.setBody(content);
+    }
+
+    /**
+     * Writes a listing that is rendered per request to the client while it
+     * is rendered, compressed on the fly if the client accepts it. Only a
+     * listing that fits into the stream's buffer is sent with a
+     * Content-Length.
+     */
+    private static void streamListing(HttpRequest req, HttpResponse res, File directory, String path)
+            throws IOException {
+        String encoding = null;
+        if (CacheUtils.getCompressionCache().isEnabled()) {
+            res.headers.add("Vary: Accept-Encoding");
+            encoding = negotiateEncoding(req);
+        }
+        if (encoding != null) {
+            res.headers.add("Content-Encoding: " + encoding);
+        }
+        try (OutputStream out = CompressionCache.compressingStream(res.openStream(req), encoding)) {
+            DirectoryListing.write(directory.toPath(), path, out);
+        }
+    }
+
+    /**
+     * Fills a 206 response with the given ranges of the file, either from the
+     * cached content or as slices streamed from disk.
+     */
+    private static void fillRanges(HttpResponse res, File file, FileMetadata metadata, byte[] content,
+            List<ByteRange> ranges) {
+        long length = metadata.getSize();
+        if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            setContentType(res, metadata);
+            res.headers.add("Content-Range: " + range.toContentRange(length));
+            res.bodySegments.add(slice(file, content, range));
+            return;
+        }
+
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        res.headers.add("Content-Type: multipart/byteranges; boundary=" + boundary);
+        String partContentType = metadata.getContentType() != null ? metadata.getContentType().toString() : null;
+        for (ByteRange range : ranges) {
+            StringBuilder part = new StringBuilder("\r\n--").append(boundary).append("\r\n");
+            if (partContentType != null) {
+                part.append(partContentType).append("\r\n");
+            }
+            part.append("Content-Range: ").append(range.toContentRange(length)).append("\r\n\r\n");
+            byte[] head = part.toString().getBytes(StandardCharsets.ISO_8859_1);
+            res.bodySegments.add(new BufferSegment(ByteBuffer.wrap(head)));
+            res.bodySegments.add(slice(file, content, range));
+        }
+        String end = "\r\n--" + boundary + "--\r\n";
+        res.bodySegments.add(new BufferSegment(ByteBuffer.wrap(end.getBytes(StandardCharsets.ISO_8859_1))));
+    }
+
+    private static ResponseSegment slice(File file, byte[] content, ByteRange range) {
+        if (content != null) {
+            return new BufferSegment(ByteBuffer.wrap(content, (int) range.getStart(), (int) range.getLength()));
+        }
+        return new FileRegion(file, range.getStart(), range.getLength());
+    }
+
+    private static void setContentType(HttpResponse res, FileMetadata metadata) {
+        if (metadata.getContentType() != null) {
+            res.contentType = metadata.getContentType();
+        } else {
+            LOG.info("ContentType not found: " + metadata.getFile().getName());
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.dasanjos.java.http;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Status enum maps the HTTP/1.1 available response status codes 
  * http://www.w3.org/Protocols/rfc2616/rfc2616-sec6.html
@@ -39,6 +41,7 @@ public enum Status {
 	_415("415 Unsupported Media Type"), //
 	_416("416 Requested range not satisfiable"), //
 	_417("417 Expectation Failed"), //
+	_431("431 Request Header Fields Too Large"), //
 	_500("500 Internal Server Error"), //
 	_501("501 Not Implemented"), //
 	_502("502 Bad Gateway"), //
@@ -48,8 +51,28 @@ public enum Status {
 
 	private final String status;
 
+	private final String code;
+
+	private final byte[] statusLine;
+
 	Status(String status) {
 		this.status = status;
+		this.code = status.substring(0, 3);
+		this.statusLine = (HttpResponse.VERSION + " " + status + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @return the encoded status line including its CRLF, shared by all responses and not to be modified
+	 */
+	public byte[] getStatusLine() {
+		return statusLine;
+	}
+
+	/**
+	 * @return the three digit status code, the :status of an HTTP/2 response
+	 */
+	public String getCode() {
+		return code;
 	}
 
 	@Override
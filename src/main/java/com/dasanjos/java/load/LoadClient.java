@@ -0,0 +1,271 @@
+package com.dasanjos.java.load;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class <code>LoadClient</code> - one connection of a {@link LoadGenerator}
+ * run, driven by its own thread.
+ *
+ * Without a target rate the client works in a closed loop: the next request
+ * is sent as soon as the previous response has been read. Such a client
+ * stops sending while the server stalls, so the stall would only show up as
+ * one slow request (coordinated omission). The corrected histogram therefore
+ * also records the requests that would have been sent during a stall, at
+ * the client's mean interval between requests, in the manner of
+ * HdrHistogram's <code>recordValueWithExpectedInterval</code>.
+ *
+ * With a target rate every request has an intended send time on a fixed
+ * schedule. The corrected latency is measured from that time, so a request
+ * sent late because the previous one took too long is charged the waiting
+ * time, as a user arriving on schedule would experience it.
+ */
+class LoadClient implements Runnable {
+
+    private static final int HEADER_LIMIT = 16384;
+
+    private final LoadGenerator.Run run;
+
+    private final InetSocketAddress address;
+
+    private final boolean keepAlive;
+
+    /** time between intended send times, 0 in a closed loop */
+    private final long intervalNanos;
+
+    private Socket socket;
+
+    private InputStream in;
+
+    private OutputStream out;
+
+    private final byte[] header = new byte[HEADER_LIMIT];
+
+    /** closed loop: sum and count of this client's latencies, for the expected interval */
+    private long latencySum;
+
+    private long latencyCount;
+
+    LoadClient(LoadGenerator.Run run, InetSocketAddress address, boolean keepAlive, long intervalNanos) {
+        this.run = run;
+        this.address = address;
+        this.keepAlive = keepAlive;
+        this.intervalNanos = intervalNanos;
+    }
+
+    @Override
+    public void run() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // spread the first requests of the clients over one interval
+        long intended = System.nanoTime() + (intervalNanos > 0 ? random.nextLong(intervalNanos) : 0);
+        boolean measuring = false;
+        while (!run.stopped) {
+            if (!measuring && run.recording) {
+                // requests still pending from the warmup are not charged to the measurement
+                measuring = true;
+                intended = Math.max(intended, System.nanoTime());
+            }
+            if (intervalNanos > 0) {
+                long wait;
+                while ((wait = intended - System.nanoTime()) > 0 && !run.stopped) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            LoadGenerator.Target target = run.pickTarget(random);
+            boolean conditional = random.nextDouble() < run.conditionalRatio;
+            long start = System.nanoTime();
+            try {
+                int status = send(conditional ? target.conditionalRequest : target.request);
+                long end = System.nanoTime();
+                if (run.recording) {
+                    record(start, end, intervalNanos > 0 ? intended : start, status);
+                }
+            } catch (IOException e) {
+                if (run.recording) {
+                    run.errors.increment();
+                }
+                closeQuietly();
+                if (intervalNanos == 0) {
+                    // don't spin while the server refuses connections
+                    LockSupport.parkNanos(1000000);
+                }
+            }
+            intended += intervalNanos;
+        }
+        closeQuietly();
+    }
+
+    private void record(long start, long end, long intendedStart, int status) {
+        long micros = (end - start) / 1000;
+        run.uncorrected.record(micros);
+        if (intervalNanos > 0) {
+            run.corrected.record((end - intendedStart) / 1000);
+        } else {
+            latencySum += micros;
+            latencyCount++;
+            long expected = latencySum / latencyCount;
+            run.corrected.record(micros);
+            if (expected > 0) {
+                for (long missing = micros - expected; missing >= expected; missing -= expected) {
+                    run.corrected.record(missing);
+                }
+            }
+        }
+        if (status == 304) {
+            run.notModified.increment();
+        } else if (status < 200 || status > 299) {
+            run.errors.increment();
+        }
+        run.requests.increment();
+    }
+
+    /**
+     * Sends the request and reads the whole response.
+     *
+     * @return the response status code
+     */
+    private int send(byte[] request) throws IOException {
+        if (socket == null) {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(address);
+            in = new BufferedInputStream(socket.getInputStream(), 65536);
+            out = socket.getOutputStream();
+        }
+        out.write(request);
+        out.flush();
+
+        int length = readHeader();
+        int status = parseStatus(length);
+        long contentLength = parseContentLength(length);
+        boolean close = !keepAlive || hasConnectionClose(length);
+        long bodyBytes = 0;
+        if (status < 200 || status == 204 || status == 304) {
+            // no body
+        } else if (contentLength >= 0) {
+            skip(contentLength);
+            bodyBytes = contentLength;
+        } else {
+            // no length, the body ends with the connection
+            int read;
+            while ((read = in.read(header)) >= 0) {
+                bodyBytes += read;
+            }
+            close = true;
+        }
+        if (run.recording) {
+            run.bytes.add(length + bodyBytes);
+        }
+        if (close) {
+            closeQuietly();
+        }
+        return status;
+    }
+
+    /**
+     * Reads the status line and headers into {@link #header}.
+     *
+     * @return the length of the header block, including the empty line
+     */
+    private int readHeader() throws IOException {
+        int length = 0;
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Connection closed by server");
+            }
+            if (length == header.length) {
+                throw new IOException("Response header too large");
+            }
+            header[length++] = (byte) b;
+            if (b == '\n' && length >= 4 && header[length - 2] == '\r' && header[length - 3] == '\n') {
+                return length;
+            }
+        }
+    }
+
+    private int parseStatus(int length) throws IOException {
+        // HTTP/1.1 200 OK
+        if (length < 12 || header[8] != ' ') {
+            throw new IOException("Malformed status line");
+        }
+        return (header[9] - '0') * 100 + (header[10] - '0') * 10 + (header[11] - '0');
+    }
+
+    private long parseContentLength(int length) {
+        int value = findHeader(length, "content-length:");
+        if (value < 0) {
+            return -1;
+        }
+        long result = 0;
+        for (int i = value; i < length && header[i] >= '0' && header[i] <= '9'; i++) {
+            result = result * 10 + header[i] - '0';
+        }
+        return result;
+    }
+
+    private boolean hasConnectionClose(int length) {
+        int value = findHeader(length, "connection:");
+        return value >= 0 && (header[value] | 0x20) == 'c';
+    }
+
+    /**
+     * @return the start of the value of the header with the given lower case
+     * name and colon, or -1 if the response has no such header
+     */
+    private int findHeader(int length, String name) {
+        int lineStart = 0;
+        while (lineStart < length) {
+            if (lineStart + name.length() <= length && startsWithIgnoreCase(lineStart, name)) {
+                int value = lineStart + name.length();
+                while (value < length && header[value] == ' ') {
+                    value++;
+                }
+                return value;
+            }
+            while (lineStart < length && header[lineStart] != '\n') {
+                lineStart++;
+            }
+            lineStart++;
+        }
+        return -1;
+    }
+
+    private boolean startsWithIgnoreCase(int start, String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if ((header[start + i] | 0x20) != name.charAt(i) && header[start + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skip(long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            int read = in.read(header, 0, (int) Math.min(remaining, header.length));
+            if (read < 0) {
+                throw new EOFException("Connection closed within the body");
+            }
+            remaining -= read;
+        }
+    }
+
+    private void closeQuietly() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+            socket = null;
+        }
+    }
+}
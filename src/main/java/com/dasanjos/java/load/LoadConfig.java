@@ -0,0 +1,137 @@
+package com.dasanjos.java.load;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Class <code>LoadConfig</code> holds the settings of a {@link LoadGenerator}
+ * run. Every setting can be overridden with a system property prefixed with
+ * <code>load.</code>, e.g. <code>-Dload.concurrency=64</code>. The server
+ * under test reads its own <code>webserver.</code> properties as usual.
+ */
+public class LoadConfig {
+
+    private static final String PREFIX = "load.";
+
+    /** Number of client connections, each with its own thread. */
+    int concurrency = 32;
+
+    /** Measured time in seconds. */
+    int duration = 10;
+
+    /** Time in seconds the load runs before measuring starts. */
+    int warmup = 2;
+
+    /**
+     * Total requests per second spread over the connections, 0 to send every
+     * request as soon as the previous response has arrived.
+     */
+    int rate = 0;
+
+    /** Reuse connections, otherwise every request is sent on a new connection with Connection: close. */
+    boolean keepAlive = true;
+
+    /** File sizes of the generated docroot and the share of requests for each, <code>size:weight,...</code>. */
+    String sizes = "1k:70,64k:25,1m:5";
+
+    /** Number of generated files per size. */
+    int filesPerSize = 10;
+
+    /** Share of requests sent with If-None-Match carrying the current entity tag, between 0 and 1. */
+    double conditionalRatio = 0.2;
+
+    /** Port of the server under test, 0 for a free one. */
+    int port = 0;
+
+    /** Keep the server's access log and INFO logging instead of only logging warnings. */
+    boolean serverLog = false;
+
+    public static LoadConfig fromSystemProperties() {
+        LoadConfig config = new LoadConfig();
+        config.concurrency = Integer.getInteger(PREFIX + "concurrency", config.concurrency);
+        config.duration = Integer.getInteger(PREFIX + "duration", config.duration);
+        config.warmup = Integer.getInteger(PREFIX + "warmup", config.warmup);
+        config.rate = Integer.getInteger(PREFIX + "rate", config.rate);
+        config.keepAlive = Boolean.parseBoolean(System.getProperty(PREFIX + "keepAlive", String.valueOf(config.keepAlive)));
+        config.sizes = System.getProperty(PREFIX + "sizes", config.sizes);
+        config.filesPerSize = Integer.getInteger(PREFIX + "filesPerSize", config.filesPerSize);
+        config.conditionalRatio = Double.parseDouble(
+                System.getProperty(PREFIX + "conditionalRatio", String.valueOf(config.conditionalRatio)));
+        config.port = Integer.getInteger(PREFIX + "port", config.port);
+        config.serverLog = Boolean.parseBoolean(System.getProperty(PREFIX + "serverLog", String.valueOf(config.serverLog)));
+        return config;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public int getDuration() {
+        return duration;
+    }
+
+    public int getWarmup() {
+        return warmup;
+    }
+
+    public int getRate() {
+        return rate;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public String getSizes() {
+        return sizes;
+    }
+
+    /**
+     * @return the file sizes in bytes mapped to their weights, in the configured order
+     * @throws IllegalArgumentException if the sizes setting is malformed
+     */
+    public Map<Long, Integer> getSizeWeights() {
+        Map<Long, Integer> weights = new LinkedHashMap<>();
+        for (String entry : sizes.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length > 2 || parts[0].isEmpty()) {
+                throw new IllegalArgumentException("Malformed size: " + entry);
+            }
+            weights.put(parseSize(parts[0]), parts.length == 2 ? Integer.parseInt(parts[1].trim()) : 1);
+        }
+        return weights;
+    }
+
+    /**
+     * @param size a number of bytes with an optional k or m suffix
+     */
+    static long parseSize(String size) {
+        String value = size.trim().toLowerCase();
+        long unit = 1;
+        if (value.endsWith("k")) {
+            unit = 1024;
+        } else if (value.endsWith("m")) {
+            unit = 1024 * 1024;
+        }
+        if (unit > 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        return Long.parseLong(value) * unit;
+    }
+
+    public int getFilesPerSize() {
+        return filesPerSize;
+    }
+
+    public double getConditionalRatio() {
+        return conditionalRatio;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public boolean isServerLog() {
+        return serverLog;
+    }
+}
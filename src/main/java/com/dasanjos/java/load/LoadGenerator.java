@@ -0,0 +1,279 @@
+package com.dasanjos.java.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.dasanjos.java.ServerConfig;
+import com.dasanjos.java.WebServer;
+import com.dasanjos.java.metrics.LatencyHistogram;
+
+import paris.boris.java.http.util.CacheUtils;
+
+/**
+ * Class <code>LoadGenerator</code> - end-to-end load test of the
+ * {@link WebServer}, launched from the project jar:
+ *
+ * <pre>
+ * java -Dwebserver.io=event -Dload.concurrency=64 -cp web-server.jar com.dasanjos.java.load.LoadGenerator
+ * </pre>
+ *
+ * Generates a docroot with files of the configured sizes, starts the server
+ * on it in the same JVM on a loopback port, drives it with the configured
+ * number of connections (see {@link LoadConfig}) and reports the throughput
+ * and the latency percentiles, with and without coordinated-omission
+ * correction (see {@link LoadClient}). The server settings are taken from
+ * the <code>webserver.</code> system properties, so execution modes and
+ * settings can be compared with otherwise identical runs.
+ */
+public class LoadGenerator {
+
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 99.99 };
+
+    /**
+     * A file of the generated docroot and its pre-encoded requests.
+     */
+    static class Target {
+
+        final byte[] request;
+
+        /** with If-None-Match carrying the current entity tag, answered with 304 */
+        final byte[] conditionalRequest;
+
+        Target(String path, String etag, boolean keepAlive) {
+            String common = "GET " + path + " HTTP/1.1\r\nHost: localhost\r\nUser-Agent: LoadGenerator\r\n"
+                    + (keepAlive ? "" : "Connection: close\r\n");
+            this.request = (common + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            this.conditionalRequest = (common + "If-None-Match: " + etag + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * State shared by the clients of one run.
+     */
+    static class Run {
+
+        final Target[][] targets;
+
+        /** cumulative weights of the sizes in {@link #targets} */
+        final int[] weights;
+
+        final double conditionalRatio;
+
+        final LatencyHistogram corrected = new LatencyHistogram();
+
+        final LatencyHistogram uncorrected = new LatencyHistogram();
+
+        final LongAdder requests = new LongAdder();
+
+        final LongAdder notModified = new LongAdder();
+
+        final LongAdder errors = new LongAdder();
+
+        final LongAdder bytes = new LongAdder();
+
+        /** set once the warmup is over */
+        volatile boolean recording;
+
+        volatile boolean stopped;
+
+        Run(Target[][] targets, int[] weights, double conditionalRatio) {
+            this.targets = targets;
+            this.weights = weights;
+            this.conditionalRatio = conditionalRatio;
+        }
+
+        Target pickTarget(ThreadLocalRandom random) {
+            int pick = random.nextInt(weights[weights.length - 1]);
+            int size = 0;
+            while (weights[size] <= pick) {
+                size++;
+            }
+            Target[] files = targets[size];
+            return files[random.nextInt(files.length)];
+        }
+    }
+
+    private final LoadConfig config;
+
+    private final ServerConfig serverConfig;
+
+    private final File root;
+
+    public LoadGenerator(LoadConfig config, ServerConfig serverConfig) {
+        this.config = config;
+        this.serverConfig = serverConfig;
+        this.root = new File(serverConfig.getRootPath());
+    }
+
+    /**
+     * Writes {@link LoadConfig#getFilesPerSize()} files of every configured
+     * size to the docroot.
+     *
+     * @return the files, one array per size
+     */
+    private Target[][] generateDocroot(Map<Long, Integer> sizes) throws IOException {
+        Random random = new Random(42);
+        Target[][] targets = new Target[sizes.size()][];
+        int i = 0;
+        for (long size : sizes.keySet()) {
+            targets[i] = new Target[config.getFilesPerSize()];
+            for (int j = 0; j < targets[i].length; j++) {
+                byte[] content = new byte[(int) size];
+                for (int k = 0; k < content.length; k++) {
+                    content[k] = (byte) ('a' + random.nextInt(26));
+                }
+                String name = "file-" + size + "-" + j + ".txt";
+                File file = new File(root, name);
+                Files.write(file.toPath(), content);
+                targets[i][j] = new Target("/" + name, CacheUtils.generateETag(file), config.isKeepAlive());
+            }
+            i++;
+        }
+        return targets;
+    }
+
+    private void deleteDocroot() {
+        File[] files = root.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        root.delete();
+    }
+
+    /**
+     * Starts the server on a daemon thread and waits until it accepts
+     * connections.
+     */
+    private void startServer() throws IOException, InterruptedException {
+        Thread server = new Thread(() -> {
+            try {
+                new WebServer(serverConfig).run();
+            } catch (IOException | InterruptedException e) {
+                Logger.getLogger(LoadGenerator.class).error("Server failed", e);
+            }
+        }, "webserver");
+        server.setDaemon(true);
+        server.start();
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), serverConfig.getPort()).close();
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline || !server.isAlive()) {
+                    throw new IOException("Server did not start on port " + serverConfig.getPort(), e);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    public void run(PrintStream report) throws IOException, InterruptedException {
+        Map<Long, Integer> sizes = config.getSizeWeights();
+        Target[][] targets = generateDocroot(sizes);
+        int[] weights = new int[sizes.size()];
+        int total = 0;
+        int i = 0;
+        for (int weight : sizes.values()) {
+            total += weight;
+            weights[i++] = total;
+        }
+        Run run = new Run(targets, weights, config.getConditionalRatio());
+
+        try {
+            startServer();
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), serverConfig.getPort());
+            long intervalNanos = config.getRate() > 0 ? 1000000000L * config.getConcurrency() / config.getRate() : 0;
+            List<Thread> clients = new ArrayList<>();
+            for (int c = 0; c < config.getConcurrency(); c++) {
+                Thread client = new Thread(new LoadClient(run, address, config.isKeepAlive(), intervalNanos),
+                        "load-client-" + c);
+                client.setDaemon(true);
+                clients.add(client);
+                client.start();
+            }
+
+            Thread.sleep(config.getWarmup() * 1000L);
+            run.recording = true;
+            long start = System.nanoTime();
+            Thread.sleep(config.getDuration() * 1000L);
+            run.recording = false;
+            double seconds = (System.nanoTime() - start) / 1e9;
+            run.stopped = true;
+            for (Thread client : clients) {
+                client.join(5000);
+            }
+            report(report, run, sizes, seconds);
+        } finally {
+            deleteDocroot();
+        }
+    }
+
+    private void report(PrintStream out, Run run, Map<Long, Integer> sizes, double seconds) {
+        out.println();
+        out.println(String.format("Load: %d connections, %s, %s, %d s (+%d s warmup)", config.getConcurrency(),
+                config.isKeepAlive() ? "keep-alive" : "connection per request",
+                config.getRate() > 0 ? "open loop at " + config.getRate() + " req/s" : "closed loop",
+                config.getDuration(), config.getWarmup()));
+        out.println(String.format("Server: %s I/O, %s execution, %d workers, %d reactors", serverConfig.getIoMode(),
+                serverConfig.getExecutionMode(), serverConfig.getWorkerThreads(), serverConfig.getReactorThreads()));
+        out.println(String.format("Files: %s x %d each, %.0f%% conditional", config.getSizes(),
+                config.getFilesPerSize(), config.getConditionalRatio() * 100));
+        long requests = run.requests.sum();
+        out.println(String.format("Requests: %d (304: %d, errors: %d)", requests, run.notModified.sum(),
+                run.errors.sum()));
+        out.println(String.format("Throughput: %.1f req/s, %.1f MB/s", requests / seconds,
+                run.bytes.sum() / seconds / (1024 * 1024)));
+        out.println(String.format("%-12s%12s%14s", "Latency ms", "corrected", "uncorrected"));
+        for (double percentile : PERCENTILES) {
+            out.println(String.format("%-12s%12.3f%14.3f", "p" + String.valueOf(percentile).replace(".0", ""),
+                    run.corrected.getValueAtPercentile(percentile) / 1000.0,
+                    run.uncorrected.getValueAtPercentile(percentile) / 1000.0));
+        }
+        out.println(String.format("%-12s%12.3f%14.3f", "max", run.corrected.getMax() / 1000.0,
+                run.uncorrected.getMax() / 1000.0));
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadConfig config = LoadConfig.fromSystemProperties();
+        int port = config.getPort();
+        if (port == 0) {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+        }
+        // the server reads its settings from the system properties, only root and port are ours
+        System.setProperty("webserver.root", Files.createTempDirectory("webserver-load").toString());
+        System.setProperty("webserver.port", String.valueOf(port));
+        // one log line per request would be measured as well
+        if (!config.isServerLog()) {
+            Logger.getRootLogger().setLevel(Level.WARN);
+            if (System.getProperty("webserver.accessLog") == null) {
+                System.setProperty("webserver.accessLog", "");
+            }
+        }
+        new LoadGenerator(config, ServerConfig.fromSystemProperties()).run(System.out);
+        // the server has no shutdown, its pool threads would keep the JVM alive
+        System.exit(0);
+    }
+}
@@ -0,0 +1,292 @@
+package com.dasanjos.java.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import com.dasanjos.java.http.Status;
+
+import paris.boris.java.http.util.CacheUtils;
+import paris.boris.java.http.util.CompressionCache;
+import paris.boris.java.http.util.ContentCache;
+import paris.boris.java.http.util.DirectoryListingCache;
+import paris.boris.java.http.util.MappedFileCache;
+
+/**
+ * Server wide counters and latency histograms. All recording is lock-free
+ * and allocation-free, so the metrics are always on.
+ *
+ * The metrics are exposed on a reserved path (see {@link #getPath()}): in
+ * the Prometheus text format on the path itself and as JSON on the path with
+ * a <code>.json</code> suffix.
+ */
+public class Metrics {
+
+    /**
+     * The phases of request processing that are timed separately.
+     * <ul>
+     * <li>PARSE - parsing a received request.</li>
+     * <li>FILE_LOOKUP - resolving the requested file and its metadata.</li>
+     * <li>ETAG - getting the entity tag, computed on the first request for a file version.</li>
+     * <li>HANDLE - building the whole response.</li>
+     * <li>WRITE - from the response being ready until it has been written.</li>
+     * </ul>
+     */
+    public enum Phase {
+        PARSE, FILE_LOOKUP, ETAG, HANDLE, WRITE
+    }
+
+    /** bucket bounds of the exported Prometheus histograms, in seconds */
+    private static final String[] BUCKETS = { "0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005", "0.01",
+            "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10" };
+
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    private static final Status[] STATUSES = Status.values();
+
+    private static final Metrics METRICS = new Metrics();
+
+    private static volatile String path = "/_metrics";
+
+    private final LongAdder requests = new LongAdder();
+
+    private final AtomicLongArray statuses = new AtomicLongArray(STATUSES.length);
+
+    private final LongAdder reusedRequests = new LongAdder();
+
+    private final LongAdder bytesSent = new LongAdder();
+
+    private final LongAdder connectionsOpened = new LongAdder();
+
+    private final LongAdder connectionsClosed = new LongAdder();
+
+    private final LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    private Metrics() {
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @return the metrics of this server
+     */
+    public static Metrics get() {
+        return METRICS;
+    }
+
+    /**
+     * @return the reserved path the metrics are served on, or null if they are not served
+     */
+    public static String getPath() {
+        return path;
+    }
+
+    /**
+     * @param metricsPath the reserved path, null or empty to not serve the metrics
+     */
+    public static void setPath(String metricsPath) {
+        path = metricsPath == null || metricsPath.isEmpty() ? null : metricsPath;
+    }
+
+    public void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    public void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    /**
+     * @param status the status of the response
+     */
+    public void requestServed(Status status) {
+        requests.increment();
+        statuses.incrementAndGet(status.ordinal());
+    }
+
+    /**
+     * Counts a request that was not the first one on its connection.
+     */
+    public void requestReused() {
+        reusedRequests.increment();
+    }
+
+    public void bytesSent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * Records the time elapsed since the given {@link System#nanoTime()} for the phase.
+     */
+    public void record(Phase phase, long startNanos) {
+        phases[phase.ordinal()].recordSince(startNanos);
+    }
+
+    public LatencyHistogram getHistogram(Phase phase) {
+        return phases[phase.ordinal()];
+    }
+
+    /**
+     * Registers a value that is read when the metrics are exported, such as
+     * the depth of the executor queue.
+     *
+     * @param name the metric name, lower case with underscores
+     */
+    public void registerGauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getActiveConnections() {
+        return connectionsOpened.sum() - connectionsClosed.sum();
+    }
+
+    /**
+     * @return the metrics in the Prometheus text exposition format
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        header(out, "webserver_requests_total", "counter", "Requests answered, by status code.");
+        for (int i = 0; i < STATUSES.length; i++) {
+            long value = statuses.get(i);
+            if (value > 0) {
+                out.append("webserver_requests_total{status=\"").append(STATUSES[i].name().substring(1))
+                        .append("\"} ").append(value).append('\n');
+            }
+        }
+        sample(out, "webserver_keepalive_reused_requests_total", "counter",
+                "Requests that were not the first on their connection.", reusedRequests.sum());
+        sample(out, "webserver_bytes_sent_total", "counter", "Response bytes written.", bytesSent.sum());
+        sample(out, "webserver_connections_opened_total", "counter", "Connections accepted.", connectionsOpened.sum());
+        sample(out, "webserver_connections_active", "gauge", "Connections currently open.", getActiveConnections());
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            sample(out, "webserver_" + gauge.getKey(), "gauge", gauge.getKey().replace('_', ' ') + ".",
+                    gauge.getValue().getAsLong());
+        }
+
+        header(out, "webserver_phase_seconds", "histogram", "Time spent per request processing phase.");
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram histogram = getHistogram(phase);
+            String label = phase.name().toLowerCase();
+            for (String bound : BUCKETS) {
+                long micros = Math.round(Double.parseDouble(bound) * 1000000);
+                out.append("webserver_phase_seconds_bucket{phase=\"").append(label).append("\",le=\"").append(bound)
+                        .append("\"} ").append(histogram.getCountAtOrBelow(micros)).append('\n');
+            }
+            out.append("webserver_phase_seconds_bucket{phase=\"").append(label).append("\",le=\"+Inf\"} ")
+                    .append(histogram.getCount()).append('\n');
+            out.append("webserver_phase_seconds_sum{phase=\"").append(label).append("\"} ")
+                    .append(histogram.getSum() / 1e6).append('\n');
+            out.append("webserver_phase_seconds_count{phase=\"").append(label).append("\"} ")
+                    .append(histogram.getCount()).append('\n');
+        }
+
+        header(out, "webserver_cache_hits_total", "counter", "Cache hits, by cache.");
+        cacheSample(out, "webserver_cache_hits_total", CacheUtils.getContentCache().getHits(),
+                CacheUtils.getMappedFileCache().getHits(), CacheUtils.getCompressionCache().getHits(),
+                CacheUtils.getListingCache().getHits());
+        header(out, "webserver_cache_misses_total", "counter", "Cache misses, by cache.");
+        cacheSample(out, "webserver_cache_misses_total", CacheUtils.getContentCache().getMisses(),
+                CacheUtils.getMappedFileCache().getMisses(), CacheUtils.getCompressionCache().getMisses(),
+                CacheUtils.getListingCache().getMisses());
+        header(out, "webserver_cache_bytes", "gauge", "Bytes held, by cache.");
+        cacheSample(out, "webserver_cache_bytes", CacheUtils.getContentCache().getSize(),
+                CacheUtils.getMappedFileCache().getSize(), CacheUtils.getCompressionCache().getSize(),
+                CacheUtils.getListingCache().getSize());
+        sample(out, "webserver_listing_invalidations_total", "counter",
+                "Directory listings dropped because the directory changed.",
+                CacheUtils.getListingCache().getInvalidations());
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String type, String help, long value) {
+        header(out, name, type, help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void cacheSample(StringBuilder out, String name, long content, long mapped, long compression,
+            long listing) {
+        out.append(name).append("{cache=\"content\"} ").append(content).append('\n');
+        out.append(name).append("{cache=\"mapped\"} ").append(mapped).append('\n');
+        out.append(name).append("{cache=\"compression\"} ").append(compression).append('\n');
+        out.append(name).append("{cache=\"listing\"} ").append(listing).append('\n');
+    }
+
+    /**
+     * @return the metrics as a JSON document, latencies in microseconds
+     */
+    public String toJson() {
+        StringBuilder out = new StringBuilder(2048);
+        out.append("{\"requests\":").append(requests.sum());
+        out.append(",\"statuses\":{");
+        boolean first = true;
+        for (int i = 0; i < STATUSES.length; i++) {
+            long value = statuses.get(i);
+            if (value > 0) {
+                out.append(first ? "" : ",").append('"').append(STATUSES[i].name().substring(1)).append("\":")
+                        .append(value);
+                first = false;
+            }
+        }
+        out.append("},\"keepAliveReusedRequests\":").append(reusedRequests.sum());
+        out.append(",\"bytesSent\":").append(bytesSent.sum());
+        out.append(",\"connectionsOpened\":").append(connectionsOpened.sum());
+        out.append(",\"connectionsActive\":").append(getActiveConnections());
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            out.append(",\"").append(gauge.getKey()).append("\":").append(gauge.getValue().getAsLong());
+        }
+
+        out.append(",\"phases\":{");
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram histogram = getHistogram(phase);
+            out.append(phase.ordinal() == 0 ? "" : ",").append('"').append(phase.name().toLowerCase()).append("\":{");
+            out.append("\"count\":").append(histogram.getCount());
+            out.append(",\"sumMicros\":").append(histogram.getSum());
+            for (double percentile : PERCENTILES) {
+                out.append(",\"p").append(String.valueOf(percentile).replace(".0", "").replace('.', '_'))
+                        .append("Micros\":").append(histogram.getValueAtPercentile(percentile));
+            }
+            out.append(",\"maxMicros\":").append(histogram.getMax()).append('}');
+        }
+        out.append('}');
+
+        ContentCache content = CacheUtils.getContentCache();
+        MappedFileCache mapped = CacheUtils.getMappedFileCache();
+        CompressionCache compression = CacheUtils.getCompressionCache();
+        DirectoryListingCache listing = CacheUtils.getListingCache();
+        out.append(",\"caches\":{");
+        cacheJson(out, "content", content.getHits(), content.getMisses(), content.getEvictions(), content.getSize());
+        out.append(',');
+        cacheJson(out, "mapped", mapped.getHits(), mapped.getMisses(), mapped.getEvictions(), mapped.getSize());
+        out.append(',');
+        cacheJson(out, "compression", compression.getHits(), compression.getMisses(), compression.getEvictions(),
+                compression.getSize());
+        out.append(',');
+        cacheJson(out, "listing", listing.getHits(), listing.getMisses(), listing.getEvictions(), listing.getSize());
+        out.append("},\"listingInvalidations\":").append(listing.getInvalidations());
+        out.append('}');
+        return out.toString();
+    }
+
+    private static void cacheJson(StringBuilder out, String name, long hits, long misses, long evictions, long bytes) {
+        out.append('"').append(name).append("\":{\"hits\":").append(hits).append(",\"misses\":").append(misses)
+                .append(",\"evictions\":").append(evictions).append(",\"bytes\":").append(bytes).append('}');
+    }
+}
@@ -0,0 +1,34 @@
+package com.dasanjos.java.metrics;
+
+import com.dasanjos.java.http.ContentType;
+import com.dasanjos.java.http.Handler;
+import com.dasanjos.java.http.HttpRequest;
+import com.dasanjos.java.http.HttpResponse;
+import com.dasanjos.java.http.Status;
+
+/**
+ * Serves the {@link Metrics}: mounted on the reserved path in the
+ * Prometheus text format, and on the path with a <code>.json</code> suffix
+ * as JSON.
+ */
+public class MetricsHandler implements Handler {
+
+    private final boolean json;
+
+    public MetricsHandler(boolean json) {
+        this.json = json;
+    }
+
+    @Override
+    public void handle(HttpRequest req, HttpResponse res) {
+        res.setStatus(Status._200);
+        if (json) {
+            res.setContentType(ContentType.JSON);
+            res.setBody(Metrics.get().toJson());
+        } else {
+            res.addHeader("Content-Type", "text/plain; version=0.0.4");
+            res.setBody(Metrics.get().toPrometheus());
+        }
+        res.addHeader("Cache-Control", "no-store");
+    }
+}
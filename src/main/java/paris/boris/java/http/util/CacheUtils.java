@@ -1,67 +1,253 @@
-package paris.boris.java.http.util;
-
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.time.ZoneId;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.Date;
-import org.apache.log4j.Logger;
-
-/**
- *
- * @author boris paris
- */
-public class CacheUtils {
-    
-    private static final Logger LOG = Logger.getLogger(CacheUtils.class);
-    
-    /**
-     * Reads the last modified date from the given file, and returns a String
-     * object containing the date in RFC 1123 format
-     *
-     * @param file
-     * @return a String containing the last modified in RFC 1123 format
-     */
-    public static String generateLastModified(File file) {
-        return ZonedDateTime.ofInstant(new Date(file.lastModified()).toInstant(),
-                ZoneId.systemDefault()).format(DateTimeFormatter.RFC_1123_DATE_TIME);
-    }
-
-    /**
-     * Generates an md5 hash that can be used as an ETag. The hash generation
-     * only takes the file content into account. While this slows down the
-     * generation of the hash compared to using the inode, it enables the ETag
-     * to work in distributed environments.
-     *
-     * @param file the file to generate an ETag hash for
-     * @return a String containing an ETag hash
-     */
-    public static String generateETag(File file) {
-        try (InputStream in = new FileInputStream(file)){
-            
-            // Read the content of the file into a StringBuilder
-            StringBuilder buffer = new StringBuilder();
-            int c;
-            while ((c = in.read()) > -1) {
-                buffer.append((char)c);
-            }
-            
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            byte[] messageDigest = md.digest(buffer.toString().getBytes());
-            BigInteger number = new BigInteger(1, messageDigest);
-            return "\"" + number.toString(16) + "\""; // adding quotes for opaque-tag
-        } catch (NoSuchAlgorithmException e) {
-            LOG.error("Error finding algorithm for MessageDigest", e);
-        } catch (IOException e) {
-            LOG.error("Error generating ETag for file: " + file.getAbsolutePath(), e);
-        }
-
-        return null;
-    }    
-}
+package paris.boris.java.http.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.log4j.Logger;
+
+import com.dasanjos.java.http.HttpDate;
+
+/**
+ *
+ * @author boris paris
+ */
+public class CacheUtils {
+
+    private static final Logger LOG = Logger.getLogger(CacheUtils.class);
+
+    private static final int DIGEST_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * bounds the metadata of files deleted behind the back of the index, or
+     * without one, far above the number of files a docroot serves hot
+     */
+    private static final int MAX_METADATA = 1 << 17;
+
+    private static final ConcurrentMap<String, FileMetadata> METADATA = new ConcurrentHashMap<>();
+
+    private static volatile ContentCache contentCache = new ContentCache(64L * 1024 * 1024, 1024 * 1024);
+
+    private static volatile MappedFileCache mappedFileCache = new MappedFileCache(0);
+
+    private static volatile CompressionCache compressionCache =
+            new CompressionCache(16L * 1024 * 1024, 1024, 4L * 1024 * 1024);
+
+    private static volatile DirectoryListingCache listingCache = new DirectoryListingCache(0, 5000);
+
+    private static volatile DocrootIndex docrootIndex;
+
+    /**
+     * @return the content cache shared by all responses
+     */
+    public static ContentCache getContentCache() {
+        return contentCache;
+    }
+
+    /**
+     * Replaces the shared content cache, e.g. with one sized from the server
+     * configuration at startup.
+     */
+    public static void setContentCache(ContentCache cache) {
+        contentCache = cache;
+    }
+
+    /**
+     * @return the cache of memory-mapped files shared by all responses,
+     * disabled (size 0) unless configured at startup
+     */
+    public static MappedFileCache getMappedFileCache() {
+        return mappedFileCache;
+    }
+
+    public static void setMappedFileCache(MappedFileCache cache) {
+        mappedFileCache = cache;
+    }
+
+    /**
+     * @return the cache of compressed variants shared by all responses
+     */
+    public static CompressionCache getCompressionCache() {
+        return compressionCache;
+    }
+
+    public static void setCompressionCache(CompressionCache cache) {
+        compressionCache = cache;
+    }
+
+    /**
+     * @return the cache of rendered directory listings shared by all responses
+     */
+    public static DirectoryListingCache getListingCache() {
+        return listingCache;
+    }
+
+    public static void setListingCache(DirectoryListingCache cache) {
+        listingCache = cache;
+    }
+
+    /**
+     * @return the index of the docroot, or null if requests look up files on disk
+     */
+    public static DocrootIndex getDocrootIndex() {
+        return docrootIndex;
+    }
+
+    public static void setDocrootIndex(DocrootIndex index) {
+        docrootIndex = index;
+    }
+
+    /**
+     * Resolves a request path below the given docroot, from the index if it
+     * covers the docroot and from disk otherwise.
+     *
+     * @param rootPath the docroot
+     * @param path a request path as returned by {@link DocrootIndex#normalize(String)}
+     * @return the file or directory, or null if there is none
+     * @throws IOException if the attributes cannot be read from disk
+     */
+    public static DocrootIndex.Entry lookup(String rootPath, String path) throws IOException {
+        DocrootIndex index = docrootIndex;
+        if (index != null && index.isRoot(rootPath)) {
+            return index.get(path);
+        }
+        return DocrootIndex.stat(new File(rootPath + path));
+    }
+
+    /**
+     * Returns the cached metadata (ETag, Last-Modified, size and content
+     * type) of the given file. The cache is keyed by canonical path and an
+     * entry is replaced as soon as the last modified time or the size of the
+     * file differ from the cached ones.
+     *
+     * @param file an existing file
+     * @return the metadata of the current version of the file
+     * @throws IOException if the canonical path cannot be resolved
+     */
+    public static FileMetadata getMetadata(File file) throws IOException {
+        File canonical = file.getCanonicalFile();
+        long lastModified = canonical.lastModified();
+        long size = canonical.length();
+
+        FileMetadata metadata = METADATA.get(canonical.getPath());
+        if (metadata != null && metadata.isCurrent(lastModified, size)) {
+            return metadata;
+        }
+        trimMetadata();
+        return METADATA.compute(canonical.getPath(), (path, current) ->
+                current != null && current.isCurrent(lastModified, size)
+                        ? current : new FileMetadata(canonical, lastModified, size));
+    }
+
+    /**
+     * Returns the cached metadata of a file whose attributes are already
+     * known, such as an entry of the {@link DocrootIndex}, without touching
+     * the disk unless the file changed.
+     *
+     * @param file an existing file, with a resolved path
+     * @param lastModified the last modified time of the file
+     * @param size the size of the file
+     * @return the metadata of the given version of the file
+     */
+    public static FileMetadata getMetadata(File file, long lastModified, long size) {
+        FileMetadata metadata = METADATA.get(file.getPath());
+        if (metadata != null && metadata.isCurrent(lastModified, size)) {
+            return metadata;
+        }
+        trimMetadata();
+        return METADATA.compute(file.getPath(), (path, current) ->
+                current != null && current.isCurrent(lastModified, size)
+                        ? current : new FileMetadata(file, lastModified, size));
+    }
+
+    /**
+     * Drops the cached metadata of a file, e.g. when the {@link DocrootIndex}
+     * sees it deleted.
+     *
+     * @param file the file with the path it was cached under
+     */
+    public static void forgetMetadata(File file) {
+        METADATA.remove(file.getPath());
+    }
+
+    /**
+     * @return true if metadata of the file is cached under its path
+     */
+    static boolean hasMetadata(File file) {
+        return METADATA.containsKey(file.getPath());
+    }
+
+    /**
+     * Makes room before metadata is added, arbitrary entries go since a file
+     * still requested is only hashed again.
+     */
+    private static void trimMetadata() {
+        if (METADATA.size() < MAX_METADATA) {
+            return;
+        }
+        Iterator<String> paths = METADATA.keySet().iterator();
+        while (METADATA.size() >= MAX_METADATA && paths.hasNext()) {
+            paths.next();
+            paths.remove();
+        }
+    }
+
+    /**
+     * Reads the last modified date from the given file, and returns a String
+     * object containing the date in RFC 1123 format
+     *
+     * @param file
+     * @return a String containing the last modified in RFC 1123 format
+     */
+    public static String generateLastModified(File file) {
+        return generateLastModified(file.lastModified());
+    }
+
+    /**
+     * @param lastModified milliseconds since the epoch
+     * @return a String containing the given date as an HTTP-date in GMT
+     */
+    public static String generateLastModified(long lastModified) {
+        return HttpDate.format(lastModified);
+    }
+
+    /**
+     * Generates an md5 hash that can be used as an ETag. The hash generation
+     * only takes the file content into account. While this slows down the
+     * generation of the hash compared to using the inode, it enables the ETag
+     * to work in distributed environments.
+     *
+     * The file is streamed through the digest, so prefer
+     * {@link #getMetadata(File)} which hashes every file version only once.
+     *
+     * @param file the file to generate an ETag hash for
+     * @return a String containing an ETag hash
+     */
+    public static String generateETag(File file) {
+        try (InputStream in = new FileInputStream(file)){
+
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] buffer = new byte[DIGEST_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) > -1) {
+                md.update(buffer, 0, count);
+            }
+
+            byte[] messageDigest = md.digest();
+            BigInteger number = new BigInteger(1, messageDigest);
+            return "\"" + String.format("%032x", number) + "\""; // adding quotes for opaque-tag
+        } catch (NoSuchAlgorithmException e) {
+            LOG.error("Error finding algorithm for MessageDigest", e);
+        } catch (IOException e) {
+            LOG.error("Error generating ETag for file: " + file.getAbsolutePath(), e);
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,383 @@
+package paris.boris.java.http.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cache of compressed (gzip, deflate) variants of text files, so that each
+ * file version is compressed only once instead of on every request.
+ *
+ * For gzip a precompressed sidecar file (<code>name.gz</code> next to the
+ * file) is used instead of compressing, as long as it is not older than the
+ * file itself. Files smaller than <code>minSize</code> are not compressed,
+ * neither are files larger than <code>maxSize</code> unless they have a
+ * sidecar. Variants that turn out not to be smaller than the file are
+ * remembered as such and the file is sent as is.
+ *
+ * The caller passes the attributes of the sidecar, from the
+ * {@link DocrootIndex} where there is one, so a cache hit does no file I/O;
+ * the cache lock only guards the map. Concurrent misses for the same
+ * version of a file wait for the one compressing it instead of compressing
+ * it again.
+ */
+public class CompressionCache {
+
+    public static final String GZIP = "gzip";
+
+    public static final String DEFLATE = "deflate";
+
+    private final long maxBytes;
+
+    private final long minSize;
+
+    private final long maxSize;
+
+    /** access ordered, the eldest entry is the least recently used one */
+    private final LinkedHashMap<String, Variant> variants = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long totalBytes;
+
+    /** the variants being loaded, keyed by the version of the file and sidecar they are loaded from */
+    private final Map<String, CompletableFuture<Variant>> loading = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes total size of the cached compressed variants, 0 disables compression
+     * @param minSize files smaller than this are sent uncompressed
+     * @param maxSize files larger than this are only sent compressed from a sidecar
+     */
+    public CompressionCache(long maxBytes, long minSize, long maxSize) {
+        this.maxBytes = maxBytes;
+        this.minSize = minSize;
+        this.maxSize = Math.min(maxSize, maxBytes);
+    }
+
+    /**
+     * @return true if compression is enabled and the file is a text file that
+     * is large enough to be worth compressing. The response then depends on
+     * the Accept-Encoding of the request.
+     */
+    public boolean isCompressible(FileMetadata metadata) {
+        return maxBytes > 0
+                && metadata.getContentType() != null
+                && metadata.getContentType().isCompressible()
+                && metadata.getSize() >= minSize;
+    }
+
+    /**
+     * @return true if responses are compressed at all
+     */
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * @return true if in-memory content of this size should be compressed
+     */
+    public boolean isCompressible(int length) {
+        return maxBytes > 0 && length >= minSize && length <= maxSize;
+    }
+
+    /**
+     * Returns the compressed variant of the given file version.
+     *
+     * @param metadata the current metadata of a compressible file
+     * @param encoding {@link #GZIP} or {@link #DEFLATE}
+     * @param sidecar the current attributes of the precompressed
+     * <code>name.gz</code> next to the file, or null if there is none
+     * @return the variant, or null if the file is to be sent uncompressed
+     * @throws IOException if the file or its sidecar cannot be read
+     */
+    public Variant get(FileMetadata metadata, String encoding, DocrootIndex.Entry sidecar) throws IOException {
+        String key = metadata.getFile().getPath() + ";" + encoding;
+        if (!GZIP.equals(encoding) || sidecar == null || sidecar.isDirectory()
+                || sidecar.getLastModified() < metadata.getLastModified()) {
+            sidecar = null;
+        }
+        long sidecarModified = sidecar != null ? sidecar.getLastModified() : 0;
+        synchronized (this) {
+            Variant variant = variants.get(key);
+            if (variant != null) {
+                if (variant.isCurrent(metadata.getLastModified(), sidecarModified)) {
+                    hits.incrementAndGet();
+                    return nullIfIdentity(variant);
+                }
+                variants.remove(key);
+                totalBytes -= variant.length();
+            }
+        }
+
+        String version = key + ";" + metadata.getLastModified() + ";" + sidecarModified;
+        CompletableFuture<Variant> loaded = new CompletableFuture<>();
+        CompletableFuture<Variant> pending = loading.putIfAbsent(version, loaded);
+        if (pending != null) {
+            // compressed by another request right now
+            hits.incrementAndGet();
+            Variant variant = await(pending);
+            return variant != null ? nullIfIdentity(variant) : null;
+        }
+        misses.incrementAndGet();
+        try {
+            Variant variant = load(metadata, encoding, sidecar);
+            if (variant != null) {
+                synchronized (this) {
+                    Variant previous = variants.put(key, variant);
+                    totalBytes += variant.length();
+                    if (previous != null) {
+                        totalBytes -= previous.length();
+                    }
+                    evict();
+                }
+            }
+            loaded.complete(variant);
+            return variant != null ? nullIfIdentity(variant) : null;
+        } catch (IOException | RuntimeException e) {
+            loaded.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(version, loaded);
+        }
+    }
+
+    private static Variant await(CompletableFuture<Variant> pending) throws IOException {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a compressed variant");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private Variant load(FileMetadata metadata, String encoding, DocrootIndex.Entry sidecar) throws IOException {
+        if (sidecar != null) {
+            if (sidecar.getSize() > maxSize) {
+                // too large to keep in memory, sent from disk
+                return new Variant(null, metadata.getLastModified(), sidecar.getFile(), sidecar.getLastModified(),
+                        sidecar.getSize());
+            }
+            byte[] content = Files.readAllBytes(sidecar.getFile().toPath());
+            return new Variant(content, metadata.getLastModified(), sidecar.getFile(), sidecar.getLastModified(),
+                    content.length);
+        }
+        if (metadata.getSize() > maxSize) {
+            return null;
+        }
+
+        byte[] content = CacheUtils.getContentCache().get(metadata);
+        if (content == null) {
+            content = Files.readAllBytes(metadata.getFile().toPath());
+        }
+        if (content.length != metadata.getSize()) {
+            // the file changed while it was read
+            return null;
+        }
+        byte[] compressed = compress(content, encoding);
+        if (compressed.length >= content.length) {
+            return new Variant(null, metadata.getLastModified(), null, 0, 0);
+        }
+        return new Variant(compressed, metadata.getLastModified(), null, 0, compressed.length);
+    }
+
+    private static Variant nullIfIdentity(Variant variant) {
+        return variant.content == null && variant.sidecar == null ? null : variant;
+    }
+
+    /**
+     * Removes least recently used variants until the cache fits its budget.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Variant>> eldest = variants.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            totalBytes -= eldest.next().getValue().length();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Compresses the given content with the fastest compression level, for
+     * content that is generated per request.
+     */
+    public static byte[] compressFast(byte[] content, String encoding) throws IOException {
+        return compress(content, encoding, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * Wraps a stream so that the bytes written to it are compressed with
+     * the fastest compression level, for content that is generated and
+     * sent per request. Closing the returned stream closes the given one.
+     *
+     * @param encoding {@link #GZIP}, {@link #DEFLATE} or null to not compress
+     */
+    public static OutputStream compressingStream(OutputStream out, String encoding) throws IOException {
+        if (encoding == null) {
+            return out;
+        }
+        if (GZIP.equals(encoding)) {
+            return new GzipStream(out, Deflater.BEST_SPEED);
+        }
+        return new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED)) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    def.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Compresses the given content with the best compression level, for
+     * content whose compressed variant is cached.
+     */
+    public static byte[] compress(byte[] content, String encoding) throws IOException {
+        return compress(content, encoding, Deflater.BEST_COMPRESSION);
+    }
+
+    private static byte[] compress(byte[] content, String encoding, int level) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 3 + 64);
+        if (GZIP.equals(encoding)) {
+            try (OutputStream out = new GzipStream(bytes, level)) {
+                out.write(content);
+            }
+        } else {
+            Deflater deflater = new Deflater(level);
+            try (OutputStream out = new DeflaterOutputStream(bytes, deflater)) {
+                out.write(content);
+            } finally {
+                deflater.end();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the entity tag of the compressed variant of an entity, which
+     * must differ from the tag of the uncompressed entity
+     */
+    public static String variantETag(String etag, String encoding) {
+        return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getSize() {
+        return totalBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("CompressionCache[variants=%d, bytes=%d/%d, hits=%d, misses=%d, evictions=%d]",
+                variants.size(), totalBytes, maxBytes, getHits(), getMisses(), getEvictions());
+    }
+
+    /**
+     * GZIPOutputStream with a configurable compression level.
+     */
+    private static class GzipStream extends GZIPOutputStream {
+
+        GzipStream(OutputStream out, int level) throws IOException {
+            super(out);
+            def.setLevel(level);
+        }
+    }
+
+    /**
+     * A compressed variant of one file version, either in memory or as a
+     * sidecar file on disk.
+     */
+    public static class Variant {
+
+        private final byte[] content;
+
+        private final long lastModified;
+
+        private final File sidecar;
+
+        private final long sidecarLastModified;
+
+        private final long size;
+
+        Variant(byte[] content, long lastModified, File sidecar, long sidecarLastModified, long size) {
+            this.content = content;
+            this.lastModified = lastModified;
+            this.sidecar = sidecar;
+            this.sidecarLastModified = sidecarLastModified;
+            this.size = size;
+        }
+
+        /**
+         * @param sidecarLastModified the last modified time of the usable
+         * sidecar, 0 if there is none: one added since the variant was
+         * compressed replaces it
+         */
+        boolean isCurrent(long lastModified, long sidecarLastModified) {
+            return this.lastModified == lastModified && this.sidecarLastModified == sidecarLastModified;
+        }
+
+        long length() {
+            return content != null ? content.length : 0;
+        }
+
+        /**
+         * @return the compressed bytes, or null if the variant is sent from {@link #getSidecar()}
+         */
+        public byte[] getContent() {
+            return content;
+        }
+
+        /**
+         * @return the precompressed file to send if the content is not held in memory
+         */
+        public File getSidecar() {
+            return sidecar;
+        }
+
+        /**
+         * @return the size of the compressed variant
+         */
+        public long getSize() {
+            return size;
+        }
+    }
+}
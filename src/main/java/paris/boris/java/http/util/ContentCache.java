@@ -0,0 +1,150 @@
+package paris.boris.java.http.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cache for the content of small, frequently requested files.
+ *
+ * The cache holds at most <code>maxBytes</code> of content, files larger than
+ * <code>maxEntryBytes</code> are never cached. When the budget is exceeded
+ * the least recently used entries are evicted. An entry is only served while
+ * it matches the file version (last modified time and size) of the
+ * {@link FileMetadata} it is requested with, otherwise it is reloaded.
+ *
+ * Cached arrays are shared between all requests and must not be modified.
+ */
+public class ContentCache {
+
+    private final long maxBytes;
+
+    private final long maxEntryBytes;
+
+    /** access ordered, the eldest entry is the least recently used one */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long totalBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes total content size the cache may hold, 0 disables caching
+     * @param maxEntryBytes size of the largest file that is cached
+     */
+    public ContentCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+    }
+
+    /**
+     * @return true if files of this size are kept in the cache
+     */
+    public boolean isCacheable(FileMetadata metadata) {
+        return metadata.getSize() <= maxEntryBytes;
+    }
+
+    /**
+     * Returns the content of the given file version, loading it into the
+     * cache on a miss.
+     *
+     * @param metadata the current metadata of the file
+     * @return the file content, or null if the file is too large to be cached
+     * @throws IOException if the file cannot be read
+     */
+    public byte[] get(FileMetadata metadata) throws IOException {
+        if (!isCacheable(metadata)) {
+            return null;
+        }
+        String key = metadata.getFile().getPath();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (metadata.isCurrent(entry.lastModified, entry.content.length)) {
+                    hits.incrementAndGet();
+                    return entry.content;
+                }
+                entries.remove(key);
+                totalBytes -= entry.content.length;
+            }
+        }
+
+        misses.incrementAndGet();
+        byte[] content = Files.readAllBytes(metadata.getFile().toPath());
+        if (content.length != metadata.getSize()) {
+            // the file changed while it was read, serve it but don't cache it
+            return content;
+        }
+
+        synchronized (this) {
+            Entry previous = entries.put(key, new Entry(metadata.getLastModified(), content));
+            totalBytes += content.length;
+            if (previous != null) {
+                totalBytes -= previous.content.length;
+            }
+            evict();
+        }
+        return content;
+    }
+
+    /**
+     * Removes least recently used entries until the cache fits its budget.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            totalBytes -= eldest.next().getValue().content.length;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getSize() {
+        return totalBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ContentCache[entries=%d, bytes=%d/%d, hits=%d, misses=%d, evictions=%d]",
+                getEntryCount(), getSize(), maxBytes, getHits(), getMisses(), getEvictions());
+    }
+
+    private static class Entry {
+
+        final long lastModified;
+
+        final byte[] content;
+
+        Entry(long lastModified, byte[] content) {
+            this.lastModified = lastModified;
+            this.content = content;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package paris.boris.java.http.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The rendered HTML index of one directory.
+ *
+ * The page is encoded line by line: a header, one link per entry (sorted by
+ * name, directories with a trailing slash) and a footer. Listings up to a
+ * configured number of entries are joined into one array, which can be sent
+ * with the response header in one write and compressed. Larger listings
+ * keep their lines and are written chunk by chunk (see
+ * {@link #render(int, ByteBuffer)}), so a directory with tens of thousands of
+ * entries never becomes one String or array. Listings that are not kept
+ * are written to the response stream while they are rendered
+ * ({@link #write(Path, String, OutputStream)}).
+ *
+ * Listings are immutable once built and shared between requests.
+ */
+public class DirectoryListing {
+
+    /** characters besides ASCII letters and digits that are left as they are in links */
+    private static final String ALLOWED = "/-._~!$&'()*+,;=:@";
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /** header, entries and footer, null once joined into {@link #content} */
+    private final byte[][] lines;
+
+    private final byte[] content;
+
+    private final long length;
+
+    /** compressed variants of {@link #content}, added once per encoding */
+    private volatile byte[] gzip;
+
+    private volatile byte[] deflate;
+
+    private DirectoryListing(byte[][] lines, long length, boolean join) {
+        this.length = length;
+        if (join) {
+            byte[] joined = new byte[(int) length];
+            int pos = 0;
+            for (byte[] line : lines) {
+                System.arraycopy(line, 0, joined, pos, line.length);
+                pos += line.length;
+            }
+            this.content = joined;
+            this.lines = null;
+        } else {
+            this.content = null;
+            this.lines = lines;
+        }
+    }
+
+    /**
+     * Lists and renders a directory.
+     *
+     * @param directory the directory to list
+     * @param uri the decoded request path of the directory, used for the title and the links
+     * @param maxJoinedEntries directories with more entries are kept as lines
+     * @throws IOException if the directory cannot be read
+     */
+    public static DirectoryListing render(Path directory, String uri, int maxJoinedEntries) throws IOException {
+        List<byte[]> lines = new ArrayList<>();
+        int entries = render(directory, uri, lines::add);
+        long length = 0;
+        for (byte[] line : lines) {
+            length += line.length;
+        }
+        return new DirectoryListing(lines.toArray(new byte[lines.size()][]), length, entries <= maxJoinedEntries);
+    }
+
+    /**
+     * Lists a directory and writes its page to the stream line by line as it
+     * is rendered, for listings that are not kept. Only the names are held
+     * in memory (they are sorted before the first entry is written), not the
+     * page.
+     *
+     * @param uri the decoded request path of the directory
+     * @throws IOException if the directory cannot be read or the stream fails
+     */
+    public static void write(Path directory, String uri, OutputStream out) throws IOException {
+        render(directory, uri, out::write);
+    }
+
+    /**
+     * Receives the encoded lines of a page.
+     */
+    private interface LineSink {
+
+        void add(byte[] line) throws IOException;
+    }
+
+    /**
+     * @return the number of entries of the directory
+     */
+    private static int render(Path directory, String uri, LineSink lines) throws IOException {
+        List<String> names = new ArrayList<>();
+        List<String> directories = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                (Files.isDirectory(entry) ? directories : names).add(name);
+            }
+        }
+        Collections.sort(directories);
+        Collections.sort(names);
+
+        String base = uri.endsWith("/") ? uri : uri + "/";
+        String title = escape(base);
+        lines.add(encode("<html><head><title>Index of " + title + "</title></head><body><h1>Index of "
+                + title + "</h1><hr><pre>"));
+        if (!"/".equals(base)) {
+            lines.add(encode(" <a href=\"" + escape(percentEncode(parent(base))) + "\">../</a>\n"));
+        }
+        for (String name : directories) {
+            lines.add(link(base, name + "/"));
+        }
+        for (String name : names) {
+            lines.add(link(base, name));
+        }
+        lines.add(encode("<hr></pre></body></html>"));
+        return directories.size() + names.size();
+    }
+
+    private static byte[] link(String base, String name) {
+        return encode(" <a href=\"" + escape(percentEncode(base + name)) + "\">" + escape(name) + "</a>\n");
+    }
+
+    private static String parent(String base) {
+        int slash = base.lastIndexOf('/', base.length() - 2);
+        return base.substring(0, slash + 1);
+    }
+
+    private static byte[] encode(String line) {
+        return line.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Percent-encodes the UTF-8 octets of a path that are not allowed in a
+     * path segment (RFC 3986), so that names with spaces, '?', '#' or '%'
+     * link to themselves.
+     */
+    static String percentEncode(String path) {
+        StringBuilder encoded = null;
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c < 128 && (Character.isLetterOrDigit(c) || ALLOWED.indexOf(c) >= 0)) {
+                if (encoded != null) {
+                    encoded.append(c);
+                }
+                continue;
+            }
+            if (encoded == null) {
+                encoded = new StringBuilder(path.length() + 16).append(path, 0, i);
+            }
+            int end = Character.isHighSurrogate(c) && i + 1 < path.length() ? i + 2 : i + 1;
+            for (byte b : path.substring(i, end).getBytes(StandardCharsets.UTF_8)) {
+                encoded.append('%').append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+            }
+            i = end - 1;
+        }
+        return encoded != null ? encoded.toString() : path;
+    }
+
+    /**
+     * Escapes the characters with a meaning in HTML text and attribute values.
+     */
+    static String escape(String value) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String replacement;
+            switch (c) {
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '"':
+                    replacement = "&quot;";
+                    break;
+                default:
+                    replacement = null;
+            }
+            if (replacement != null && escaped == null) {
+                escaped = new StringBuilder(value.length() + 16).append(value, 0, i);
+            }
+            if (escaped != null) {
+                if (replacement != null) {
+                    escaped.append(replacement);
+                } else {
+                    escaped.append(c);
+                }
+            }
+        }
+        return escaped != null ? escaped.toString() : value;
+    }
+
+    /**
+     * @return the length of the rendered page in bytes
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the whole page, or null if the listing is too large and is
+     * written with {@link #render(int, ByteBuffer)} instead
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * @return the number of lines {@link #render(int, ByteBuffer)} writes, 0 for joined listings
+     */
+    public int getLineCount() {
+        return lines != null ? lines.length : 0;
+    }
+
+    /**
+     * Copies whole lines, starting with the given one, into the buffer as
+     * long as they fit. A single line larger than the buffer's capacity is
+     * never written, use {@link #getLine(int)} for it.
+     *
+     * @return the index of the first line that was not copied
+     */
+    public int render(int from, ByteBuffer buffer) {
+        int next = from;
+        while (next < lines.length && lines[next].length <= buffer.remaining()) {
+            buffer.put(lines[next++]);
+        }
+        return next;
+    }
+
+    public byte[] getLine(int index) {
+        return lines[index];
+    }
+
+    /**
+     * Returns the compressed page, compressing it on the first request for
+     * the encoding.
+     *
+     * @param encoding {@link CompressionCache#GZIP} or {@link CompressionCache#DEFLATE}
+     */
+    public byte[] getCompressed(String encoding) throws IOException {
+        boolean gzipped = CompressionCache.GZIP.equals(encoding);
+        byte[] compressed = gzipped ? gzip : deflate;
+        if (compressed == null) {
+            compressed = CompressionCache.compress(content, encoding);
+            if (gzipped) {
+                gzip = compressed;
+            } else {
+                deflate = compressed;
+            }
+        }
+        return compressed;
+    }
+
+    /**
+     * @return an estimate of the heap held by the listing, for the cache budget
+     */
+    long getRetainedSize() {
+        long size = length;
+        if (lines != null) {
+            size += 16L * lines.length;
+        }
+        byte[] variant = gzip;
+        if (variant != null) {
+            size += variant.length;
+        }
+        variant = deflate;
+        if (variant != null) {
+            size += variant.length;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,325 @@
+package paris.boris.java.http.util;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Cache of rendered directory listings, so that a directory is only listed
+ * and rendered again after an entry was added or removed.
+ *
+ * Listings are cached per request path of the directory. Every cached
+ * directory is registered with a {@link WatchService}, and a background
+ * thread drops the listings of a directory as soon as it reports a created
+ * or deleted entry. The directory is registered before it is listed, and a
+ * listing is only stored if no event arrived for the directory meanwhile,
+ * so a change during rendering is never lost. Without a watch service (or
+ * with a budget of 0) nothing is cached and every request renders the
+ * listing.
+ *
+ * Where the docroot is indexed, the cache takes the changes from the
+ * {@link DocrootIndex} instead of watching the directories a second time,
+ * which would double the number of watches. Only the listings of the
+ * directories the index watches are cached then.
+ *
+ * The cache holds at most <code>maxBytes</code> of rendered listings,
+ * including their compressed variants; the least recently used ones are
+ * evicted first.
+ */
+public class DirectoryListingCache {
+
+    private static final Logger LOG = Logger.getLogger(DirectoryListingCache.class);
+
+    private final long maxBytes;
+
+    private final int maxJoinedEntries;
+
+    private final WatchService watcher;
+
+    /** the index reporting the changes instead of the watcher, or null */
+    private final DocrootIndex index;
+
+    /** access ordered, the eldest entry is the least recently used one */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** watched directories and the request paths of their listings */
+    private final Map<Path, Watched> watched = new HashMap<>();
+
+    private long totalBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param maxBytes total size of the cached listings, 0 disables caching
+     * @param maxJoinedEntries directories with more entries are not rendered
+     * into one array but written line by line (see {@link DirectoryListing})
+     */
+    public DirectoryListingCache(long maxBytes, int maxJoinedEntries) {
+        this(maxBytes, maxJoinedEntries, null);
+    }
+
+    /**
+     * @param index the index of the docroot, which reports the changes of
+     * the directories it watches, or null to watch them here
+     */
+    public DirectoryListingCache(long maxBytes, int maxJoinedEntries, DocrootIndex index) {
+        this.maxBytes = maxBytes;
+        this.maxJoinedEntries = maxJoinedEntries;
+        this.index = maxBytes > 0 ? index : null;
+        WatchService service = null;
+        if (this.index != null) {
+            this.index.addListener(this::changed);
+        } else if (maxBytes > 0) {
+            try {
+                service = FileSystems.getDefault().newWatchService();
+            } catch (IOException | UnsupportedOperationException e) {
+                LOG.info("No file system watch service, directory listings are not cached");
+            }
+        }
+        this.watcher = service;
+        if (service != null) {
+            // started once the field is set, the thread takes its events from it
+            Thread thread = new Thread(this::watch, "listing-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * @return true if listings are cached, so compressing them once pays off
+     */
+    public boolean isEnabled() {
+        return watcher != null || index != null;
+    }
+
+    /**
+     * Returns the listing of the given directory, rendering it on a miss.
+     *
+     * @param directory an existing directory
+     * @param uri the request path of the directory
+     * @throws IOException if the directory cannot be read
+     */
+    public DirectoryListing get(Path directory, String uri) throws IOException {
+        Path path = directory.toAbsolutePath().normalize();
+        if (!isEnabled() || (index != null && !index.isWatched(path))) {
+            return DirectoryListing.render(directory, uri, maxJoinedEntries);
+        }
+        String key = uri.endsWith("/") ? uri : uri + "/";
+        long generation;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.directory.equals(path)) {
+                hits.incrementAndGet();
+                return entry.listing;
+            }
+            misses.incrementAndGet();
+            generation = watch(path).generation;
+        }
+
+        DirectoryListing listing = DirectoryListing.render(directory, uri, maxJoinedEntries);
+
+        synchronized (this) {
+            Watched current = watched.get(path);
+            // events for the directory arrived while it was listed, the next request renders it again
+            if (current != null && current.generation == generation) {
+                current.uris.add(key);
+                Entry previous = entries.put(key, new Entry(path, listing));
+                if (previous != null && !previous.directory.equals(path)) {
+                    forget(key, previous.directory);
+                }
+                evict();
+            }
+        }
+        return listing;
+    }
+
+    /**
+     * Registers the directory with the watch service, if it is not yet. The
+     * index watches the directories itself.
+     */
+    private Watched watch(Path path) throws IOException {
+        Watched current = watched.get(path);
+        if (current != null && (current.key == null || current.key.isValid())) {
+            return current;
+        }
+        WatchKey key = watcher != null ? path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE) : null;
+        current = new Watched(path, key);
+        watched.put(path, current);
+        return current;
+    }
+
+    /**
+     * Watch thread: drops the listings of the directories that changed.
+     */
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            // the events themselves don't matter, any of them (or an overflow) invalidates the listing
+            key.pollEvents();
+            synchronized (this) {
+                changed((Path) key.watchable());
+                if (!key.reset()) {
+                    // the directory is gone
+                    watched.remove(key.watchable());
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the listings of a directory in which entries were created or
+     * deleted.
+     */
+    private synchronized void changed(Path path) {
+        Watched directory = watched.get(path);
+        if (directory == null) {
+            return;
+        }
+        directory.generation++;
+        for (String uri : directory.uris) {
+            Entry entry = entries.remove(uri);
+            if (entry != null) {
+                invalidations.incrementAndGet();
+            }
+        }
+        directory.uris.clear();
+        totalBytes = retainedSize();
+        if (directory.key == null) {
+            // nothing to stop watching, and the next listing starts over
+            watched.remove(path);
+        }
+    }
+
+    /**
+     * Removes least recently used listings until the cache fits its budget.
+     * Compressed variants are added after a listing has been stored, so the
+     * size is recomputed from the entries.
+     */
+    private void evict() {
+        totalBytes = retainedSize();
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Entry> entry = eldest.next();
+            totalBytes -= entry.getValue().listing.getRetainedSize();
+            eldest.remove();
+            forget(entry.getKey(), entry.getValue().directory);
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stops watching a directory once none of its listings is cached.
+     */
+    private void forget(String uri, Path path) {
+        Watched directory = watched.get(path);
+        if (directory == null) {
+            return;
+        }
+        directory.uris.remove(uri);
+        if (directory.uris.isEmpty()) {
+            if (directory.key != null) {
+                directory.key.cancel();
+            }
+            watched.remove(path);
+        }
+    }
+
+    private long retainedSize() {
+        long size = 0;
+        for (Entry entry : entries.values()) {
+            size += entry.listing.getRetainedSize();
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of listings dropped because their directory changed
+     */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public synchronized long getSize() {
+        return totalBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("DirectoryListingCache[listings=%d, bytes=%d/%d, hits=%d, misses=%d, evictions=%d]",
+                entries.size(), totalBytes, maxBytes, getHits(), getMisses(), getEvictions());
+    }
+
+    private static class Entry {
+
+        final Path directory;
+
+        final DirectoryListing listing;
+
+        Entry(Path directory, DirectoryListing listing) {
+            this.directory = directory;
+            this.listing = listing;
+        }
+    }
+
+    /**
+     * A directory registered with the watch service.
+     */
+    private static class Watched {
+
+        final Path path;
+
+        /** null if the index watches the directory */
+        final WatchKey key;
+
+        /** request paths of the cached listings of the directory */
+        final Set<String> uris = new HashSet<>(2);
+
+        /** incremented on every change, to detect changes while listing */
+        long generation;
+
+        Watched(Path path, WatchKey key) {
+            this.path = path;
+            this.key = key;
+        }
+    }
+}
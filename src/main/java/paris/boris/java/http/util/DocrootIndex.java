@@ -0,0 +1,519 @@
+package paris.boris.java.http.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * In-memory index of the docroot: every file and directory below the root,
+ * keyed by its normalised request path (see {@link #normalize(String)}),
+ * with the attributes needed to answer a request. Looking up a request path
+ * costs a hash lookup instead of several stat calls, and a path that is not
+ * in the index is answered with 404 without touching the disk.
+ *
+ * The index is built at startup by a fork/join pool, one task per
+ * directory. Every directory is registered with a {@link WatchService}
+ * before it is listed, and a background thread applies created, modified
+ * and deleted entries to the index (rescanning a directory if events were
+ * lost), so changes to the docroot become visible as soon as the watcher
+ * has seen them.
+ *
+ * Symbolic links to files are indexed with the attributes of their target.
+ * Linked directories are indexed themselves but not descended into, so
+ * that a link cannot make the scan loop; a path below one that is not in
+ * the index is looked up on disk instead, as for a docroot without index.
+ * The same goes for a directory that cannot be watched, e.g. once the
+ * inotify watch limit is reached: its entries are indexed, but paths below
+ * it are looked up on disk since the index would not see them change.
+ *
+ * Listeners are told about the directories in which entries were created
+ * or deleted, so a {@link DirectoryListingCache} needs no watcher of its own.
+ */
+public class DocrootIndex {
+
+    private static final Logger LOG = Logger.getLogger(DocrootIndex.class);
+
+    /**
+     * A file or directory of the docroot.
+     */
+    public static class Entry {
+
+        private final File file;
+
+        private final boolean directory;
+
+        private final long lastModified;
+
+        private final long size;
+
+        Entry(File file, BasicFileAttributes attributes) {
+            this.file = file;
+            this.directory = attributes.isDirectory();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+            this.size = attributes.size();
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    private final String rootPath;
+
+    private final Path root;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final WatchService watcher;
+
+    /** request paths of the entries that are symbolic links to directories */
+    private final Set<String> linkedDirectories = ConcurrentHashMap.newKeySet();
+
+    /** request paths of the directories that could not be registered with the watcher */
+    private final Set<String> unwatchedDirectories = ConcurrentHashMap.newKeySet();
+
+    /** told the directory in which entries were created or deleted */
+    private final List<Consumer<Path>> listeners = new CopyOnWriteArrayList<>();
+
+    /** request paths of the watched directories */
+    private final Map<WatchKey, String> directories = new ConcurrentHashMap<>();
+
+    private DocrootIndex(String rootPath, Path root, WatchService watcher) {
+        this.rootPath = rootPath;
+        this.root = root;
+        this.watcher = watcher;
+    }
+
+    /**
+     * Indexes the docroot and starts watching it.
+     *
+     * @param rootPath the docroot as configured, requests for other roots are not answered from the index
+     * @param parallelism number of threads listing directories
+     * @return the index, or null if the file system cannot be watched and
+     * the index would not stay current
+     * @throws IOException if the docroot cannot be read
+     */
+    public static DocrootIndex build(String rootPath, int parallelism) throws IOException {
+        WatchService watcher;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+        } catch (UnsupportedOperationException e) {
+            LOG.info("No file system watch service, the docroot is not indexed");
+            return null;
+        }
+        Path root = new File(rootPath).toPath().toRealPath();
+        DocrootIndex index = new DocrootIndex(rootPath, root, watcher);
+
+        long start = System.currentTimeMillis();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+        try {
+            index.entries.put("/", new Entry(root.toFile(), Files.readAttributes(root, BasicFileAttributes.class)));
+            pool.invoke(index.new Scan(root, ""));
+        } finally {
+            pool.shutdown();
+        }
+        if (index.unwatchedDirectories.contains("/")) {
+            watcher.close();
+            LOG.warn("The docroot cannot be watched, it is not indexed");
+            return null;
+        }
+        if (!index.unwatchedDirectories.isEmpty()) {
+            LOG.warn(index.unwatchedDirectories.size() + " directories of " + root
+                    + " cannot be watched, paths below them are looked up on disk");
+        }
+        LOG.info("Indexed " + index.entries.size() + " paths of " + root + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+
+        Thread thread = new Thread(index::watch, "docroot-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        return index;
+    }
+
+    /**
+     * Lists one directory: indexes its entries and forks a scan for every
+     * subdirectory.
+     */
+    private class Scan extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+
+        /** request path of the directory, empty for the root */
+        private final String path;
+
+        Scan(Path directory, String path) {
+            this.directory = directory;
+            this.path = path;
+        }
+
+        @Override
+        protected void compute() {
+            List<Scan> subdirectories = new ArrayList<>();
+            try {
+                // registered first, so nothing that changes while listing is missed
+                WatchKey key = directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                directories.put(key, path);
+                unwatchedDirectories.remove(requestPath(path));
+            } catch (IOException e) {
+                // indexed all the same, lookups below it go to the disk
+                unwatchedDirectories.add(requestPath(path));
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Cannot watch " + directory, e);
+                }
+            }
+            try {
+                try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+                    for (Path child : children) {
+                        String childPath = path + "/" + child.getFileName();
+                        Entry entry = index(child, childPath);
+                        if (entry != null && entry.isDirectory() && !linkedDirectories.contains(childPath)) {
+                            subdirectories.add(new Scan(child, childPath));
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                LOG.error("Error indexing " + directory, e);
+            }
+            invokeAll(subdirectories);
+        }
+    }
+
+    /**
+     * Adds or updates the entry of one path.
+     *
+     * @return the entry, or null if the path no longer exists
+     */
+    private Entry index(Path file, String path) {
+        try {
+            Entry entry = new Entry(file.toFile(), Files.readAttributes(file, BasicFileAttributes.class));
+            if (entry.isDirectory() && Files.isSymbolicLink(file)) {
+                linkedDirectories.add(path);
+            } else {
+                linkedDirectories.remove(path);
+            }
+            entries.put(path, entry);
+            return entry;
+        } catch (NoSuchFileException e) {
+            // deleted meanwhile, or a dangling link
+            remove(path);
+            return null;
+        } catch (IOException e) {
+            LOG.error("Error indexing " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Removes a path and everything below it.
+     */
+    private void remove(String path) {
+        forget(entries.remove(path));
+        linkedDirectories.remove(path);
+        unwatchedDirectories.remove(path);
+        removeBelow(path);
+    }
+
+    private void removeBelow(String path) {
+        String prefix = path + "/";
+        entries.entrySet().removeIf(entry -> {
+            if (!entry.getKey().startsWith(prefix)) {
+                return false;
+            }
+            forget(entry.getValue());
+            return true;
+        });
+        linkedDirectories.removeIf(key -> key.startsWith(prefix));
+        unwatchedDirectories.removeIf(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * Drops the cached metadata of a removed file.
+     */
+    private static void forget(Entry entry) {
+        if (entry != null && !entry.isDirectory()) {
+            CacheUtils.forgetMetadata(entry.getFile());
+        }
+    }
+
+    /**
+     * @param path request path of a directory as used by the scan, empty for the root
+     */
+    private static String requestPath(String path) {
+        return path.isEmpty() ? "/" : path;
+    }
+
+    /**
+     * Watch thread: applies the changes of the watched directories.
+     */
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            String path = directories.get(key);
+            Path directory = (Path) key.watchable();
+            boolean changed = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (path == null) {
+                    continue;
+                }
+                changed |= event.kind() != StandardWatchEventKinds.ENTRY_MODIFY;
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    rescan(directory, path);
+                    continue;
+                }
+                Path name = (Path) event.context();
+                Path child = directory.resolve(name);
+                String childPath = path + "/" + name;
+                if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    remove(childPath);
+                } else {
+                    Entry entry = index(child, childPath);
+                    if (entry != null && entry.isDirectory() && event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                            && !linkedDirectories.contains(childPath)) {
+                        new Scan(child, childPath).invoke();
+                    }
+                }
+            }
+            if (!key.reset()) {
+                // the directory is gone, its entries went with its delete event
+                directories.remove(key);
+                changed = true;
+            }
+            if (changed) {
+                for (Consumer<Path> listener : listeners) {
+                    listener.accept(directory);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the entries below a directory after events were lost.
+     */
+    private void rescan(Path directory, String path) {
+        LOG.info("Rescanning " + directory);
+        removeBelow(path);
+        new Scan(directory, path).invoke();
+    }
+
+    /**
+     * @return true if the index answers requests for the given docroot
+     */
+    public boolean isRoot(String rootPath) {
+        return this.rootPath.equals(rootPath);
+    }
+
+    /**
+     * @param path a request path as returned by {@link #normalize(String)}
+     * @return the entry, or null if there is no such file or directory
+     * @throws IOException if the path is below a linked directory and cannot be read
+     */
+    public Entry get(String path) throws IOException {
+        Entry entry = entries.get(path);
+        if ((entry == null && isBelow(linkedDirectories, path)) || isBelow(unwatchedDirectories, path)) {
+            return stat(new File(rootPath + path));
+        }
+        return entry;
+    }
+
+    /**
+     * @return true if a directory above the path is in the set
+     */
+    private static boolean isBelow(Set<String> directories, String path) {
+        if (directories.isEmpty()) {
+            return false;
+        }
+        for (int end = path.lastIndexOf('/'); end > 0; end = path.lastIndexOf('/', end - 1)) {
+            if (directories.contains(path.substring(0, end))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param directory a directory of the docroot, below its real path
+     * @return true if the index sees entries being created and deleted in it
+     */
+    public boolean isWatched(Path directory) {
+        if (!directory.startsWith(root)) {
+            return false;
+        }
+        StringBuilder path = new StringBuilder();
+        for (Path name : root.relativize(directory)) {
+            if (!name.toString().isEmpty()) {
+                path.append('/').append(name);
+            }
+        }
+        String key = requestPath(path.toString());
+        Entry entry = entries.get(key);
+        return entry != null && entry.isDirectory() && !linkedDirectories.contains(key)
+                && !unwatchedDirectories.contains(key) && !isBelow(linkedDirectories, key);
+    }
+
+    /**
+     * Registers a listener that is called on the watcher thread with every
+     * directory in which entries were created or deleted, or that is gone.
+     */
+    public void addListener(Consumer<Path> listener) {
+        listeners.add(listener);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Reads the attributes of a file from disk, for docroots that are not
+     * indexed.
+     *
+     * @return the entry, or null if there is no such file or directory
+     */
+    public static Entry stat(File file) throws IOException {
+        try {
+            return new Entry(file, Files.readAttributes(file.toPath(), BasicFileAttributes.class));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Normalises the request target of a request to the key of the index:
+     * query and fragment are dropped, percent-encoded octets decoded as
+     * UTF-8, empty and "." segments removed and ".." segments resolved. The
+     * result starts with a slash and has no trailing slash, except for the
+     * root "/".
+     *
+     * @return the path, or null if it is malformed or ".." would leave the docroot
+     */
+    public static String normalize(String uri) {
+        int end = uri.length();
+        for (int i = 0; i < uri.length(); i++) {
+            char c = uri.charAt(i);
+            if (c == '?' || c == '#') {
+                end = i;
+                break;
+            }
+        }
+        String decoded = decode(uri, end);
+        if (decoded == null || decoded.isEmpty() || decoded.charAt(0) != '/') {
+            return null;
+        }
+
+        // fast path: nothing to resolve
+        boolean clean = true;
+        for (int i = 0; i < decoded.length() && clean; i++) {
+            char c = decoded.charAt(i);
+            if (c == '/') {
+                clean = i + 1 < decoded.length() && decoded.charAt(i + 1) != '/' && decoded.charAt(i + 1) != '.';
+            } else if (c == '\\' || c == 0) {
+                clean = false;
+            }
+        }
+        if (clean) {
+            return decoded;
+        }
+
+        List<String> segments = new ArrayList<>();
+        for (String segment : decoded.split("/")) {
+            if (segment.indexOf('\\') >= 0 || segment.indexOf(0) >= 0) {
+                return null;
+            }
+            if (segment.isEmpty() || ".".equals(segment)) {
+                continue;
+            }
+            if ("..".equals(segment)) {
+                if (segments.isEmpty()) {
+                    return null;
+                }
+                segments.remove(segments.size() - 1);
+            } else {
+                segments.add(segment);
+            }
+        }
+        if (segments.isEmpty()) {
+            return "/";
+        }
+        StringBuilder path = new StringBuilder(decoded.length());
+        for (String segment : segments) {
+            path.append('/').append(segment);
+        }
+        return path.toString();
+    }
+
+    /**
+     * @return the first end characters with percent-encoded octets decoded
+     * as UTF-8, or null if an escape is malformed
+     */
+    private static String decode(String uri, int end) {
+        int percent = uri.indexOf('%');
+        if (percent < 0 || percent >= end) {
+            return end == uri.length() ? uri : uri.substring(0, end);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(end);
+        for (int i = 0; i < end; i++) {
+            char c = uri.charAt(i);
+            if (c == '%') {
+                if (i + 2 >= end) {
+                    return null;
+                }
+                int high = Character.digit(uri.charAt(i + 1), 16);
+                int low = Character.digit(uri.charAt(i + 2), 16);
+                if (high < 0 || low < 0) {
+                    return null;
+                }
+                bytes.write(high << 4 | low);
+                i += 2;
+            } else {
+                // the request line is read as ISO-8859-1, one byte per char
+                bytes.write(c);
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
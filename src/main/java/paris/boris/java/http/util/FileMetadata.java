@@ -0,0 +1,88 @@
+package paris.boris.java.http.util;
+
+import java.io.File;
+
+import com.dasanjos.java.http.ContentType;
+
+/**
+ * Cache related metadata of one version of a file, identified by its last
+ * modified time and size. The Last-Modified header and the content type are
+ * resolved on creation, the ETag is hashed lazily on first use and then
+ * shared by all requests for this version of the file.
+ */
+public class FileMetadata {
+
+    private final File file;
+
+    private final long lastModified;
+
+    private final long size;
+
+    private final String lastModifiedHeader;
+
+    private final ContentType contentType;
+
+    private volatile String etag;
+
+    FileMetadata(File file, long lastModified, long size) {
+        this.file = file;
+        this.lastModified = lastModified;
+        this.size = size;
+        this.lastModifiedHeader = CacheUtils.generateLastModified(lastModified);
+        this.contentType = ContentType.forFileName(file.getName());
+    }
+
+    /**
+     * @return true if this metadata still describes the file with the given
+     * last modified time and size
+     */
+    boolean isCurrent(long lastModified, long size) {
+        return this.lastModified == lastModified && this.size == size;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the last modified date as an HTTP-date in GMT
+     */
+    public String getLastModifiedHeader() {
+        return lastModifiedHeader;
+    }
+
+    /**
+     * @return the content type for the file extension, or null if unknown
+     */
+    public ContentType getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return the ETag of this version of the file. The hash is generated by
+     * the first caller, concurrent callers wait for it instead of hashing the
+     * file themselves. Null if the file cannot be read, the next caller then
+     * tries again.
+     */
+    public String getETag() {
+        String tag = etag;
+        if (tag == null) {
+            synchronized (this) {
+                tag = etag;
+                if (tag == null) {
+                    tag = CacheUtils.generateETag(file);
+                    etag = tag;
+                }
+            }
+        }
+        return tag;
+    }
+}
@@ -0,0 +1,222 @@
+package paris.boris.java.http.util;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps files memory-mapped so that they are served straight from the OS
+ * page cache. A file is mapped once per version and the mapping is shared by
+ * all connections; every response works on its own duplicate of the buffer.
+ *
+ * The total mapped size is bounded by <code>maxBytes</code>, least recently
+ * used mappings are evicted first. A mapping is only unmapped after it has
+ * been evicted (or replaced by a newer version of the file) and the last
+ * response using it has released it.
+ */
+public class MappedFileCache {
+
+    private static final Logger LOG = Logger.getLogger(MappedFileCache.class);
+
+    private final long maxBytes;
+
+    /** access ordered, the eldest entry is the least recently used one */
+    private final LinkedHashMap<String, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long totalBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes total size of the mapped files, 0 disables mapping
+     */
+    public MappedFileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the mapping of the given file version, mapping the file on a
+     * miss. The caller must {@link Mapping#release() release} the returned
+     * mapping once the response has been written.
+     *
+     * @param metadata the current metadata of the file
+     * @return the acquired mapping, or null if the file cannot be mapped
+     * @throws IOException if the file cannot be mapped
+     */
+    public Mapping acquire(FileMetadata metadata) throws IOException {
+        if (metadata.getSize() > Math.min(maxBytes, Integer.MAX_VALUE)) {
+            return null;
+        }
+        String key = metadata.getFile().getPath();
+        synchronized (this) {
+            Mapping mapping = mappings.get(key);
+            if (mapping != null) {
+                if (metadata.isCurrent(mapping.lastModified, mapping.buffer.capacity())) {
+                    hits.incrementAndGet();
+                    mapping.references++;
+                    return mapping;
+                }
+                remove(key, mapping);
+            }
+        }
+
+        misses.incrementAndGet();
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(metadata.getFile().toPath(), StandardOpenOption.READ)) {
+            if (channel.size() != metadata.getSize()) {
+                // the file is being changed, don't serve a mapping of it
+                return null;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, metadata.getSize());
+        }
+
+        Mapping mapping = new Mapping(this, metadata.getLastModified(), buffer);
+        synchronized (this) {
+            Mapping previous = mappings.put(key, mapping);
+            totalBytes += metadata.getSize();
+            if (previous != null) {
+                remove(null, previous);
+            }
+            mapping.references++;
+            evict();
+        }
+        return mapping;
+    }
+
+    /**
+     * Removes least recently used mappings until the cache fits its budget.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Mapping>> eldest = mappings.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Mapping mapping = eldest.next().getValue();
+            eldest.remove();
+            remove(null, mapping);
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drops the mapping from the budget and unmaps it once it is unused.
+     * Must be called while holding the lock of this cache.
+     */
+    private void remove(String key, Mapping mapping) {
+        if (key != null) {
+            mappings.remove(key);
+        }
+        totalBytes -= mapping.buffer.capacity();
+        mapping.evicted = true;
+        if (mapping.references == 0) {
+            unmap(mapping.buffer);
+        }
+    }
+
+    private synchronized void release(Mapping mapping) {
+        mapping.references--;
+        if (mapping.evicted && mapping.references == 0) {
+            unmap(mapping.buffer);
+        }
+    }
+
+    /**
+     * Unmaps the buffer right away instead of waiting for the garbage
+     * collector. Uses Unsafe.invokeCleaner (Java 9+) when available, the
+     * mapping is left to the collector otherwise.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.info("Cannot unmap buffer explicitly, leaving it to the garbage collector: " + e);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getSize() {
+        return totalBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("MappedFileCache[mappings=%d, bytes=%d/%d, hits=%d, misses=%d, evictions=%d]",
+                mappings.size(), totalBytes, maxBytes, getHits(), getMisses(), getEvictions());
+    }
+
+    /**
+     * A shared, read only mapping of one file version.
+     */
+    public static class Mapping {
+
+        private final MappedFileCache cache;
+
+        private final long lastModified;
+
+        private final MappedByteBuffer buffer;
+
+        /** guarded by the cache lock */
+        private int references;
+
+        /** guarded by the cache lock */
+        private boolean evicted;
+
+        Mapping(MappedFileCache cache, long lastModified, MappedByteBuffer buffer) {
+            this.cache = cache;
+            this.lastModified = lastModified;
+            this.buffer = buffer;
+        }
+
+        /**
+         * @return a view of the mapped file with its own position and limit
+         */
+        public ByteBuffer slice(long position, long count) {
+            ByteBuffer view = buffer.duplicate();
+            view.position((int) position);
+            view.limit((int) (position + count));
+            return view;
+        }
+
+        public long size() {
+            return buffer.capacity();
+        }
+
+        /**
+         * Gives up the reference obtained by {@link MappedFileCache#acquire}.
+         */
+        public void release() {
+            cache.release(this);
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package com.dasanjos.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dasanjos.java.http.HpackDecoder;
+import com.dasanjos.java.http.HpackEncoder;
+import com.dasanjos.java.http.Http2Exception;
+import com.dasanjos.java.http.HttpRequest;
+
+/**
+ * Drives an {@link Http2Connection} the way its reactor does, over a
+ * loopback socket: the test sends frames from the client side and has them
+ * processed, the streams handed to the pool are run when the test says so.
+ */
+public class Http2ConnectionTest {
+
+    /* frame types and flags http://tools.ietf.org/html/rfc7540#section-6 */
+
+    private static final int DATA = 0x0;
+
+    private static final int HEADERS = 0x1;
+
+    private static final int RST_STREAM = 0x3;
+
+    private static final int SETTINGS = 0x4;
+
+    private static final int PING = 0x6;
+
+    private static final int GOAWAY = 0x7;
+
+    private static final int WINDOW_UPDATE = 0x8;
+
+    private static final int CONTINUATION = 0x9;
+
+    private static final int END_STREAM = 0x1;
+
+    private static final int ACK = 0x1;
+
+    private static final int END_HEADERS = 0x4;
+
+    private static final int PADDED = 0x8;
+
+    /** what is left of the preface once its request line has been parsed as a request */
+    private static final byte[] PREFACE_TAIL = "SM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final ServerConfig config = new ServerConfig();
+
+    /** the pool: collects the streams handed to it */
+    private final TaskQueue pool = new TaskQueue();
+
+    /** the requests the handler has been called with, and their bodies */
+    private final List<HttpRequest> requests = new ArrayList<>();
+
+    private final List<String> bodies = new ArrayList<>();
+
+    private final HpackEncoder encoder = new HpackEncoder();
+
+    private final HpackDecoder decoder = new HpackDecoder(4096);
+
+    private ServerSocketChannel listener;
+
+    private Socket client;
+
+    private DataInputStream in;
+
+    private Selector selector;
+
+    private Http2Connection http2;
+
+    /** the stream the next malformed request is sent on */
+    private int nextStreamId = 1;
+
+    @Before
+    public void connect() throws IOException {
+        config.http2MaxConcurrentStreams = 2;
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client = new Socket(InetAddress.getLoopbackAddress(), listener.socket().getLocalPort());
+        client.setSoTimeout(2000);
+        in = new DataInputStream(client.getInputStream());
+        SocketChannel channel = listener.accept();
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+
+        RequestHandler requestHandler = new RequestHandler(null, (req, res) -> {
+            requests.add(req);
+            bodies.add(read(req.getBody()));
+            res.setBody(req.getMethod() + " " + req.getUri());
+        });
+        Admission admission = new Admission(config);
+        Reactor reactor = new Reactor(config, pool, requestHandler, admission, null, null);
+        http2 = new Http2Connection(new Connection(channel, config, reactor, null), null, config, requestHandler,
+                pool, admission, reactor);
+        assertTrue(http2.start());
+        assertEquals(SETTINGS, next().type);
+        assertTrue(deliver(PREFACE_TAIL, frame(SETTINGS, 0, 0)));
+        Frame ack = next();
+        assertEquals(SETTINGS, ack.type);
+        assertEquals(ACK, ack.flags);
+    }
+
+    @After
+    public void close() throws IOException {
+        http2.close();
+        client.close();
+        selector.close();
+        listener.close();
+    }
+
+    @Test
+    public void answersAStream() throws IOException {
+        assertTrue(deliver(frame(HEADERS, END_HEADERS | END_STREAM, 1, get("/index.html"))));
+        assertEquals(1, pool.run());
+        assertEquals("", bodies.get(0));
+        assertResponse(1, "200", "GET /index.html");
+    }
+
+    @Test
+    public void stripsThePaddingOfHeadersAndData() throws IOException {
+        byte[] block = headers(":method", "POST", ":scheme", "http", ":path", "/upload", "content-length", "5");
+        assertTrue(deliver(frame(HEADERS, END_HEADERS | PADDED, 1, padded(block, 3)),
+                frame(DATA, END_STREAM | PADDED, 1, padded(ascii("hello"), 250))));
+        assertEquals(1, pool.run());
+        assertEquals("hello", bodies.get(0));
+        assertEquals("5", requests.get(0).getHeader("Content-Length"));
+        assertResponse(1, "200", "POST /upload");
+    }
+
+    @Test
+    public void rejectsPaddingAsLongAsTheFrame() throws IOException {
+        byte[] payload = new byte[8];
+        payload[0] = 8;
+        assertFalse(deliver(frame(HEADERS, END_HEADERS | PADDED, 1, payload)));
+        assertGoAway(Http2Exception.PROTOCOL_ERROR);
+    }
+
+    @Test
+    public void joinsContinuationFrames() throws IOException {
+        byte[] block = get("/continued");
+        assertTrue(deliver(frame(HEADERS, END_STREAM, 1, Arrays.copyOfRange(block, 0, 3)),
+                frame(CONTINUATION, 0, 1, Arrays.copyOfRange(block, 3, 5)),
+                frame(CONTINUATION, END_HEADERS, 1, Arrays.copyOfRange(block, 5, block.length))));
+        assertEquals(1, pool.run());
+        assertResponse(1, "200", "GET /continued");
+    }
+
+    @Test
+    public void rejectsFramesInterleavedWithAHeaderBlock() throws IOException {
+        assertFalse(deliver(frame(HEADERS, END_STREAM, 1, get("/")), frame(PING, 0, 0, new byte[8])));
+        assertGoAway(Http2Exception.PROTOCOL_ERROR);
+        assertEquals(0, pool.run());
+    }
+
+    @Test
+    public void rejectsContinuationOfAnotherStream() throws IOException {
+        byte[] block = get("/");
+        assertFalse(deliver(frame(HEADERS, END_STREAM, 1, Arrays.copyOfRange(block, 0, 3)),
+                frame(CONTINUATION, END_HEADERS, 3, Arrays.copyOfRange(block, 3, block.length))));
+        assertGoAway(Http2Exception.PROTOCOL_ERROR);
+    }
+
+    @Test
+    public void rejectsContinuationWithoutHeaders() throws IOException {
+        assertFalse(deliver(frame(CONTINUATION, END_HEADERS, 1, get("/"))));
+        assertGoAway(Http2Exception.PROTOCOL_ERROR);
+    }
+
+    @Test
+    public void opensTheReceiveWindowsAgain() throws IOException {
+        assertTrue(deliver(frame(HEADERS, END_HEADERS, 1, headers(":method", "POST", ":scheme", "http",
+                ":path", "/upload")), frame(DATA, 0, 1, new byte[16384]), frame(DATA, 0, 1, new byte[16384])));
+        // half of both windows has been used
+        assertWindowUpdate(0, 32768);
+        assertWindowUpdate(1, 32768);
+        assertTrue(deliver(frame(DATA, END_STREAM, 1, new byte[16384])));
+        assertEquals(1, pool.run());
+        assertEquals(3 * 16384, bodies.get(0).length());
+        assertResponse(1, "200", "POST /upload");
+    }
+
+    @Test
+    public void rejectsConnectionWindowOverflow() throws IOException {
+        assertFalse(deliver(frame(WINDOW_UPDATE, 0, 0, int32(Integer.MAX_VALUE))));
+        assertGoAway(Http2Exception.FLOW_CONTROL_ERROR);
+    }
+
+    @Test
+    public void resetsStreamOnStreamWindowOverflow() throws IOException {
+        assertTrue(deliver(frame(HEADERS, END_HEADERS | END_STREAM, 1, get("/")),
+                frame(WINDOW_UPDATE, 0, 1, int32(Integer.MAX_VALUE))));
+        assertReset(1, Http2Exception.FLOW_CONTROL_ERROR);
+        // the connection goes on
+        assertTrue(deliver(frame(HEADERS, END_HEADERS | END_STREAM, 3, get("/next"))));
+        assertEquals(2, pool.run());
+        assertResponse(3, "200", "GET /next");
+    }
+
+    @Test
+    public void rejectsInitialWindowSizeBeyondTheMaximum() throws IOException {
+        ByteBuffer setting = ByteBuffer.allocate(6).putShort((short) 0x4).putInt(0x80000000);
+        assertFalse(deliver(frame(SETTINGS, 0, 0, setting.array())));
+        assertGoAway(Http2Exception.FLOW_CONTROL_ERROR);
+    }
+
+    @Test
+    public void refusesStreamsBeyondTheConcurrencyLimit() throws IOException {
+        assertTrue(deliver(frame(HEADERS, END_HEADERS | END_STREAM, 1, get("/1")),
+                frame(HEADERS, END_HEADERS | END_STREAM, 3, get("/3")),
+                frame(HEADERS, END_HEADERS | END_STREAM, 5, get("/5"))));
+        assertReset(5, Http2Exception.REFUSED_STREAM);
+        assertEquals(2, pool.run());
+        assertResponse(1, "200", "GET /1");
+        assertResponse(3, "200", "GET /3");
+        // answered streams no longer count
+        assertTrue(deliver(frame(HEADERS, END_HEADERS | END_STREAM, 7, get("/7"))));
+        assertEquals(1, pool.run());
+        assertResponse(7, "200", "GET /7");
+    }
+
+    @Test
+    public void rejectsPseudoHeaderAfterContentLength() throws IOException {
+        assertMalformed(":method", "POST", ":scheme", "http", "content-length", "0", ":path", "/");
+    }
+
+    @Test
+    public void rejectsPseudoHeaderAfterCookie() throws IOException {
+        assertMalformed(":method", "GET", ":scheme", "http", "cookie", "a=1", ":path", "/");
+    }
+
+    @Test
+    public void rejectsMalformedHeaderBlocks() throws IOException {
+        assertMalformed(":method", "GET", ":scheme", "http", "accept", "*/*", ":path", "/");
+        assertMalformed(":method", "GET", ":scheme", "http", ":path", "/", ":status", "200");
+        assertMalformed(":method", "GET", ":scheme", "http", ":path", "/", ":path", "/again");
+        assertMalformed(":method", "GET", ":scheme", "http");
+        assertMalformed(":method", "GET", ":scheme", "http", ":path", "/with space");
+        assertMalformed(":method", "GET", ":scheme", "http", ":path", "/", "Accept", "*/*");
+        assertMalformed(":method", "GET", ":scheme", "http", ":path", "/", "connection", "close");
+        assertMalformed(":method", "GET", ":scheme", "http", ":path", "/", "te", "gzip");
+        assertMalformed(":method", "GET", ":scheme", "http", ":path", "/", "x-split", "a\r\nx-injected: b");
+        assertMalformed(":method", "GET", ":scheme", "http", ":path", "/", "content-length", "five");
+    }
+
+    @Test
+    public void joinsCookiesAndTakesTheHostFromTheAuthority() throws IOException {
+        assertTrue(deliver(frame(HEADERS, END_HEADERS | END_STREAM, 1, headers(":method", "GET", ":scheme", "http",
+                ":authority", "example.com", ":path", "/", "cookie", "a=1", "te", "trailers", "cookie", "b=2"))));
+        assertEquals(1, pool.run());
+        assertEquals("a=1; b=2", requests.get(0).getHeader("Cookie"));
+        assertEquals("example.com", requests.get(0).getHeader("Host"));
+    }
+
+    @Test
+    public void rejectsBodyNotMatchingContentLength() throws IOException {
+        assertTrue(deliver(frame(HEADERS, END_HEADERS, 1, headers(":method", "POST", ":scheme", "http",
+                ":path", "/", "content-length", "10")), frame(DATA, END_STREAM, 1, ascii("short"))));
+        assertReset(1, Http2Exception.PROTOCOL_ERROR);
+        assertEquals(0, pool.run());
+    }
+
+    /**
+     * Sends a request with the given header fields on the next stream, which
+     * must be reset without being handed to the pool.
+     */
+    private void assertMalformed(String... fields) throws IOException {
+        int streamId = nextStreamId;
+        nextStreamId += 2;
+        assertTrue(deliver(frame(HEADERS, END_HEADERS | END_STREAM, streamId, headers(fields))));
+        assertReset(streamId, Http2Exception.PROTOCOL_ERROR);
+        assertEquals(0, pool.run());
+    }
+
+    private void assertResponse(int streamId, String status, String body) throws IOException {
+        Frame headers = next();
+        assertEquals(HEADERS, headers.type);
+        assertEquals(streamId, headers.streamId);
+        assertEquals(END_HEADERS, headers.flags & END_HEADERS);
+        List<String> fields = new ArrayList<>();
+        decoder.decode(headers.payload, headers.payload.length, fields);
+        assertEquals(":status", fields.get(0));
+        assertEquals(status, fields.get(1));
+        Frame data = next();
+        assertEquals(DATA, data.type);
+        assertEquals(streamId, data.streamId);
+        assertEquals(END_STREAM, data.flags);
+        assertEquals(body, new String(data.payload, StandardCharsets.ISO_8859_1));
+    }
+
+    private void assertReset(int streamId, int errorCode) throws IOException {
+        Frame reset = next();
+        assertEquals(RST_STREAM, reset.type);
+        assertEquals(streamId, reset.streamId);
+        assertEquals(errorCode, reset.getInt(0));
+    }
+
+    private void assertGoAway(int errorCode) throws IOException {
+        Frame goAway = next();
+        assertEquals(GOAWAY, goAway.type);
+        assertEquals(errorCode, goAway.getInt(4));
+    }
+
+    private void assertWindowUpdate(int streamId, int increment) throws IOException {
+        Frame update = next();
+        assertEquals(WINDOW_UPDATE, update.type);
+        assertEquals(streamId, update.streamId);
+        assertEquals(increment, update.getInt(0));
+    }
+
+    /**
+     * Sends the bytes from the client and has the connection process them
+     * like its reactor, until it has read everything.
+     *
+     * @return false if the connection is to be closed
+     */
+    private boolean deliver(byte[]... data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] part : data) {
+            bytes.write(part);
+        }
+        client.getOutputStream().write(bytes.toByteArray());
+        assertTrue("nothing received", selector.select(2000) > 0);
+        boolean open;
+        do {
+            selector.selectedKeys().clear();
+            open = http2.read();
+        } while (open && selector.selectNow() > 0);
+        return open;
+    }
+
+    private Frame next() throws IOException {
+        byte[] header = new byte[9];
+        in.readFully(header);
+        byte[] payload = new byte[(header[0] & 0xff) << 16 | (header[1] & 0xff) << 8 | header[2] & 0xff];
+        in.readFully(payload);
+        return new Frame(header[3], header[4] & 0xff, ByteBuffer.wrap(header, 5, 4).getInt(), payload);
+    }
+
+    private static byte[] frame(int type, int flags, int streamId, byte... payload) {
+        ByteBuffer frame = ByteBuffer.allocate(9 + payload.length);
+        frame.put((byte) (payload.length >>> 16)).putShort((short) payload.length);
+        frame.put((byte) type).put((byte) flags).putInt(streamId).put(payload);
+        return frame.array();
+    }
+
+    private static byte[] padded(byte[] data, int padding) {
+        byte[] payload = new byte[1 + data.length + padding];
+        payload[0] = (byte) padding;
+        System.arraycopy(data, 0, payload, 1, data.length);
+        return payload;
+    }
+
+    private static byte[] int32(int value) {
+        return ByteBuffer.allocate(4).putInt(value).array();
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private byte[] headers(String... fields) {
+        return encoder.encode(Arrays.asList(fields));
+    }
+
+    private byte[] get(String path) {
+        return headers(":method", "GET", ":scheme", "http", ":authority", "localhost", ":path", path);
+    }
+
+    private static String read(InputStream body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = body.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, count);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static class Frame {
+
+        final int type;
+
+        final int flags;
+
+        final int streamId;
+
+        final byte[] payload;
+
+        Frame(int type, int flags, int streamId, byte[] payload) {
+            this.type = type;
+            this.flags = flags;
+            this.streamId = streamId;
+            this.payload = payload;
+        }
+
+        int getInt(int pos) {
+            return ByteBuffer.wrap(payload, pos, 4).getInt();
+        }
+    }
+
+    /**
+     * A pool that runs its tasks only when asked to, on the test thread.
+     */
+    private static class TaskQueue extends AbstractExecutorService {
+
+        private final List<Runnable> tasks = new ArrayList<>();
+
+        /**
+         * @return the number of tasks run
+         */
+        int run() {
+            List<Runnable> queued = new ArrayList<>(tasks);
+            tasks.clear();
+            for (Runnable task : queued) {
+                task.run();
+            }
+            return queued.size();
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return new ArrayList<>(tasks);
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return false;
+        }
+    }
+}
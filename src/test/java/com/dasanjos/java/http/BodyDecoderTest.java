@@ -0,0 +1,213 @@
+package com.dasanjos.java.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class BodyDecoderTest {
+
+    private static final long MAX_BODY_SIZE = 64;
+
+    private static final long CHUNKED = -1;
+
+    /**
+     * Chunked bodies that are decoded, with their payload. Every body is
+     * followed by "NEXT", the start of the next request, which must be left.
+     */
+    private static final String[][] DECODED = {
+        {"single chunk", "5\r\nhello\r\n0\r\n\r\n", "hello"},
+        {"several chunks", "5\r\nhello\r\n1\r\n \r\n5\r\nworld\r\n0\r\n\r\n", "hello world"},
+        {"empty body", "0\r\n\r\n", ""},
+        {"upper and lower case hex", "a\r\n0123456789\r\nA\r\nabcdefghij\r\n0\r\n\r\n", "0123456789abcdefghij"},
+        {"leading zeros", "0005\r\nhello\r\n000\r\n\r\n", "hello"},
+        {"chunk extension", "5;name=value\r\nhello\r\n0;last\r\n\r\n", "hello"},
+        {"quoted chunk extension", "5 ; name=\"a;b\"\r\nhello\r\n0\r\n\r\n", "hello"},
+        {"trailer fields", "5\r\nhello\r\n0\r\nX-Checksum: 1\r\nX-Other: 2\r\n\r\n", "hello"},
+        {"bare LF framing", "5\nhello\n0\n\n", "hello"},
+        {"bare LF after trailer", "5\r\nhello\r\n0\r\nX-Checksum: 1\n\n", "hello"},
+        {"CRLF inside payload", "4\r\n\r\n\r\n\r\n0\r\n\r\n", "\r\n\r\n"},
+    };
+
+    /**
+     * Malformed or oversized chunked bodies, with the status they are
+     * answered with.
+     */
+    private static final Object[][] REJECTED = {
+        {"no chunk size", "\r\nhello\r\n0\r\n\r\n", Status._400},
+        {"invalid hex digit", "5g\r\nhello\r\n0\r\n\r\n", Status._400},
+        {"negative chunk size", "-5\r\nhello\r\n0\r\n\r\n", Status._400},
+        {"CR without LF after size", "5\rhello\r\n0\r\n\r\n", Status._400},
+        {"data longer than chunk size", "5\r\nhello!\r\n0\r\n\r\n", Status._400},
+        {"CR without LF after data", "5\r\nhello\r!0\r\n\r\n", Status._400},
+        {"chunk size with 16 hex digits", "1000000000000000\r\n", Status._400},
+        {"chunk size overflowing a long", "ffffffffffffffffffff\r\n", Status._400},
+        {"chunk larger than the limit", "41\r\n", Status._413},
+        {"chunks adding up beyond the limit", "20\r\n" + repeat('a', 32) + "\r\n21\r\n", Status._413},
+    };
+
+    private static String repeat(char c, int count) {
+        StringBuilder s = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            s.append(c);
+        }
+        return s.toString();
+    }
+
+    private static ByteBuffer buffer(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Decodes the input handed over in slices of the given size into a
+     * destination of the given capacity, draining it whenever it is full.
+     *
+     * @return the payload; the bytes after the body are left in <code>rest</code>
+     */
+    private static String decode(BodyDecoder decoder, String input, int slice, int capacity, StringBuilder rest)
+            throws BadRequestException {
+        byte[] bytes = input.getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer src = ByteBuffer.allocate(bytes.length);
+        ByteBuffer dst = ByteBuffer.allocate(capacity);
+        StringBuilder payload = new StringBuilder();
+        for (int offset = 0; offset < bytes.length; offset += slice) {
+            src.put(bytes, offset, Math.min(slice, bytes.length - offset));
+            src.flip();
+            while (true) {
+                decoder.decode(src, dst);
+                dst.flip();
+                boolean drained = dst.hasRemaining();
+                payload.append(StandardCharsets.ISO_8859_1.decode(dst));
+                dst.clear();
+                if (!drained || decoder.isComplete()) {
+                    break;
+                }
+            }
+            src.compact();
+        }
+        src.flip();
+        rest.append(StandardCharsets.ISO_8859_1.decode(src));
+        return payload.toString();
+    }
+
+    @Test
+    public void decodesChunkedBodies() throws BadRequestException {
+        for (String[] row : DECODED) {
+            String input = row[1] + "NEXT";
+            for (int slice = 1; slice <= input.length(); slice++) {
+                for (int capacity : new int[] {1, 3, 64}) {
+                    String name = row[0] + ", slice " + slice + ", capacity " + capacity;
+                    BodyDecoder decoder = new BodyDecoder(CHUNKED, MAX_BODY_SIZE);
+                    StringBuilder rest = new StringBuilder();
+                    assertEquals(name, row[2], decode(decoder, input, slice, capacity, rest));
+                    assertTrue(name, decoder.isComplete());
+                    assertEquals(name, "NEXT", rest.toString());
+                    assertEquals(name, row[2].length(), decoder.getReceived());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rejectsMalformedChunkedBodies() {
+        for (Object[] row : REJECTED) {
+            for (int slice : new int[] {1, 1000}) {
+                String name = row[0] + ", slice " + slice;
+                try {
+                    decode(new BodyDecoder(CHUNKED, MAX_BODY_SIZE), (String) row[1], slice, 64, new StringBuilder());
+                    fail(name + ": decoded");
+                } catch (BadRequestException e) {
+                    assertEquals(name, row[2], e.getStatus());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void waitsForTheRestOfAnIncompleteBody() throws BadRequestException {
+        BodyDecoder decoder = new BodyDecoder(CHUNKED, MAX_BODY_SIZE);
+        StringBuilder rest = new StringBuilder();
+        assertEquals("hel", decode(decoder, "5\r\nhel", 1, 64, rest));
+        assertFalse(decoder.isComplete());
+        assertEquals("lo", decode(decoder, "lo\r\n0\r\nX: 1\r\n", 1, 64, rest));
+        assertFalse("trailer section not terminated", decoder.isComplete());
+        decode(decoder, "\r\n", 1, 64, rest);
+        assertTrue(decoder.isComplete());
+    }
+
+    @Test
+    public void countsDownContentLength() throws BadRequestException {
+        for (int slice = 1; slice <= 15; slice++) {
+            BodyDecoder decoder = new BodyDecoder(11, MAX_BODY_SIZE);
+            StringBuilder rest = new StringBuilder();
+            assertEquals("hello world", decode(decoder, "hello worldNEXT", slice, 4, rest));
+            assertTrue(decoder.isComplete());
+            assertEquals("NEXT", rest.toString());
+        }
+        assertTrue("empty body", new BodyDecoder(0, MAX_BODY_SIZE).isComplete());
+    }
+
+    @Test
+    public void stopsWhenTheDestinationIsFull() throws BadRequestException {
+        BodyDecoder decoder = new BodyDecoder(CHUNKED, MAX_BODY_SIZE);
+        ByteBuffer src = buffer("5\r\nhello\r\n0\r\n\r\n");
+        ByteBuffer dst = ByteBuffer.allocate(2);
+        decoder.decode(src, dst);
+        assertEquals(0, dst.remaining());
+        assertEquals("5\r\nhe".length(), src.position());
+        assertFalse(decoder.isComplete());
+    }
+
+    /**
+     * A streamed body as the handler sees it: the connection offers the
+     * received bytes, the handler reads the payload.
+     */
+    @Test
+    public void streamsBodyThroughRequestBody() throws IOException {
+        RequestBody body = new RequestBody(new BodyDecoder(CHUNKED, MAX_BODY_SIZE), 4, true);
+        body.setSource(b -> {
+            fail("demanded bytes although the body is buffered or complete");
+            return true;
+        });
+        assertTrue(body.takeContinue());
+        assertFalse(body.takeContinue());
+
+        ByteBuffer raw = buffer("3\r\nabc\r\n3;x\r\ndef\r\n0\r\nT: 1\r\n\r\nNEXT");
+        StringBuilder read = new StringBuilder();
+        while (!body.isFinished() || body.available() > 0) {
+            assertTrue(body.needsInput() || body.available() > 0);
+            body.offer(raw);
+            byte[] chunk = new byte[16];
+            int count = body.read(chunk, 0, chunk.length);
+            read.append(new String(chunk, 0, count, StandardCharsets.ISO_8859_1));
+        }
+        assertEquals("abcdef", read.toString());
+        assertEquals(-1, body.read());
+        assertEquals("NEXT", StandardCharsets.ISO_8859_1.decode(raw).toString());
+    }
+
+    @Test
+    public void reportsFramingErrorsToTheReader() throws IOException {
+        RequestBody body = new RequestBody(new BodyDecoder(CHUNKED, MAX_BODY_SIZE), 64, false);
+        try {
+            body.offer(buffer("2\r\nok\r\nzz\r\n"));
+            fail("offered a malformed body");
+        } catch (BadRequestException e) {
+            assertEquals(Status._400, e.getStatus());
+        }
+        byte[] chunk = new byte[16];
+        assertEquals("buffered payload is still read", 2, body.read(chunk, 0, chunk.length));
+        try {
+            body.read();
+            fail("read past a framing error");
+        } catch (BadRequestException e) {
+            assertEquals(Status._400, e.getStatus());
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.dasanjos.java.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class ByteRangeTest {
+
+    private static final long LENGTH = 10000;
+
+    /** name, Range header and the ranges it yields for an entity of LENGTH bytes */
+    private static final String[][] PARSED = {
+        {"first bytes", "bytes=0-499", "0-499"},
+        {"open end", "bytes=9500-", "9500-9999"},
+        {"suffix", "bytes=-500", "9500-9999"},
+        {"suffix beyond the entity", "bytes=-20000", "0-9999"},
+        {"end beyond the entity", "bytes=9000-20000", "9000-9999"},
+        {"unit in upper case", "Bytes=0-0", "0-0"},
+        {"whitespace around ranges", "bytes= 0-1 , 5-6", "0-1,5-6"},
+        {"order of the header kept", "bytes=500-599,0-99", "500-599,0-99"},
+        {"overlapping ranges coalesced", "bytes=500-599,0-99,50-149", "0-149,500-599"},
+        {"adjacent ranges coalesced", "bytes=0-99,100-199", "0-199"},
+        {"repeated range coalesced", "bytes=0-99,0-99,0-99", "0-99"},
+        {"suffix overlapping a range", "bytes=9000-9599,-500", "9000-9999"},
+        {"unsatisfiable range dropped", "bytes=20000-,0-0", "0-0"},
+        {"nothing satisfiable", "bytes=10000-10001", ""},
+        {"empty suffix", "bytes=-0", ""},
+    };
+
+    /** Range headers that are not valid byte range sets */
+    private static final String[][] IGNORED = {
+        {"other unit", "items=0-1"},
+        {"no dash", "bytes=5"},
+        {"double dash", "bytes=--5"},
+        {"negative end", "bytes=5--6"},
+        {"signed start", "bytes=+5-6"},
+        {"signed suffix", "bytes=-+5"},
+        {"end before start", "bytes=6-5"},
+        {"empty spec", "bytes=0-1,"},
+        {"only a dash", "bytes=-"},
+        {"letter", "bytes=0-1x"},
+        {"overflow", "bytes=0-99999999999999999999"},
+    };
+
+    private static String format(List<ByteRange> ranges) {
+        StringBuilder sb = new StringBuilder();
+        for (ByteRange range : ranges) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(range.getStart()).append('-').append(range.getEnd());
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void parsesRangeSets() {
+        for (String[] row : PARSED) {
+            List<ByteRange> ranges = ByteRange.parse(row[1], LENGTH);
+            assertEquals(row[0], row[2], ranges != null ? format(ranges) : null);
+        }
+    }
+
+    @Test
+    public void ignoresInvalidRangeSets() {
+        for (String[] row : IGNORED) {
+            assertNull(row[0], ByteRange.parse(row[1], LENGTH));
+        }
+    }
+
+    @Test
+    public void ignoresTooManyRanges() {
+        StringBuilder header = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= ByteRange.MAX_RANGES; i++) {
+            header.append(',').append(i * 2).append('-').append(i * 2);
+        }
+        assertNull(ByteRange.parse(header.toString(), LENGTH));
+    }
+
+    @Test
+    public void describesContentRange() {
+        ByteRange range = ByteRange.parse("bytes=-500", LENGTH).get(0);
+        assertEquals(500, range.getLength());
+        assertEquals("bytes 9500-9999/10000", range.toContentRange(LENGTH));
+    }
+}
@@ -0,0 +1,197 @@
+package com.dasanjos.java.http;
+
+import static com.dasanjos.java.http.HuffmanTest.hex;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Decodes the examples of http://tools.ietf.org/html/rfc7541#appendix-C,
+ * checking the dynamic table after each block.
+ */
+public class HpackDecoderTest {
+
+    private static final String DATE_21 = "Mon, 21 Oct 2013 20:13:21 GMT";
+
+    private static final String DATE_22 = "Mon, 21 Oct 2013 20:13:22 GMT";
+
+    private static final String COOKIE = "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1";
+
+    /** malformed header blocks, decoded with a 4096 bytes table */
+    private static final String[][] REJECTED = {
+        {"index 0", "80"},
+        {"index beyond the static table", "be"},
+        {"name index beyond the static table", "7e0161"},
+        {"integer without its continuation", "ff"},
+        {"integer overflowing", "ffffffffff7f"},
+        {"string longer than the block", "40016101"},
+        {"literal without its value", "4001"},
+        {"invalid Huffman padding", "408161" + "18"},
+        {"size update beyond the maximum", "3fe21f"},
+        {"size update after a field", "8220"},
+    };
+
+    private static List<String> decode(HpackDecoder decoder, String block) throws Http2Exception {
+        byte[] bytes = hex(block);
+        List<String> fields = new ArrayList<>();
+        decoder.decode(bytes, bytes.length, fields);
+        return fields;
+    }
+
+    private static void assertDecodes(HpackDecoder decoder, String block, String... fields) throws Http2Exception {
+        assertEquals(Arrays.asList(fields), decode(decoder, block));
+    }
+
+    /**
+     * Asserts the dynamic table, newest entry first, by looking up each of
+     * its indexes and the one after the last.
+     */
+    private static void assertTable(HpackDecoder decoder, String... fields) throws Http2Exception {
+        StringBuilder block = new StringBuilder();
+        for (int index = 62; index < 62 + fields.length / 2; index++) {
+            block.append(String.format("%02x", 0x80 | index));
+        }
+        assertDecodes(decoder, block.toString(), fields);
+        try {
+            decode(decoder, String.format("%02x", 0x80 | 62 + fields.length / 2));
+            fail("table has more than " + fields.length / 2 + " entries");
+        } catch (Http2Exception e) {
+            assertEquals(Http2Exception.COMPRESSION_ERROR, e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void decodesLiteralWithIndexing() throws Http2Exception {
+        HpackDecoder decoder = new HpackDecoder(4096);
+        assertDecodes(decoder, "400a637573746f6d2d6b65790d637573746f6d2d686561646572",
+                "custom-key", "custom-header");
+        assertTable(decoder, "custom-key", "custom-header");
+    }
+
+    @Test
+    public void decodesLiteralWithoutIndexing() throws Http2Exception {
+        HpackDecoder decoder = new HpackDecoder(4096);
+        assertDecodes(decoder, "040c2f73616d706c652f70617468", ":path", "/sample/path");
+        assertTable(decoder);
+    }
+
+    @Test
+    public void decodesLiteralNeverIndexed() throws Http2Exception {
+        HpackDecoder decoder = new HpackDecoder(4096);
+        assertDecodes(decoder, "100870617373776f726406736563726574", "password", "secret");
+        assertTable(decoder);
+    }
+
+    @Test
+    public void decodesIndexedField() throws Http2Exception {
+        HpackDecoder decoder = new HpackDecoder(4096);
+        assertDecodes(decoder, "82", ":method", "GET");
+        assertTable(decoder);
+    }
+
+    @Test
+    public void decodesRequests() throws Http2Exception {
+        HpackDecoder decoder = new HpackDecoder(4096);
+        assertDecodes(decoder, "828684410f7777772e6578616d706c652e636f6d",
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        assertTable(decoder, ":authority", "www.example.com");
+        assertDecodes(decoder, "828684be58086e6f2d6361636865",
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                "cache-control", "no-cache");
+        assertTable(decoder, "cache-control", "no-cache", ":authority", "www.example.com");
+        assertDecodes(decoder, "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565",
+                ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+                "custom-key", "custom-value");
+        assertTable(decoder, "custom-key", "custom-value", "cache-control", "no-cache",
+                ":authority", "www.example.com");
+    }
+
+    @Test
+    public void decodesHuffmanEncodedRequests() throws Http2Exception {
+        HpackDecoder decoder = new HpackDecoder(4096);
+        assertDecodes(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff",
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        assertTable(decoder, ":authority", "www.example.com");
+        assertDecodes(decoder, "828684be5886a8eb10649cbf",
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                "cache-control", "no-cache");
+        assertTable(decoder, "cache-control", "no-cache", ":authority", "www.example.com");
+        assertDecodes(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf",
+                ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+                "custom-key", "custom-value");
+        assertTable(decoder, "custom-key", "custom-value", "cache-control", "no-cache",
+                ":authority", "www.example.com");
+    }
+
+    @Test
+    public void evictsWithResponses() throws Http2Exception {
+        HpackDecoder decoder = new HpackDecoder(256);
+        assertDecodes(decoder, "4803333032580770726976617465611d4d6f6e2c203231204f637420323031332032303a31333a3231"
+                + "20474d546e1768747470733a2f2f7777772e6578616d706c652e636f6d",
+                ":status", "302", "cache-control", "private", "date", DATE_21, "location", "https://www.example.com");
+        assertTable(decoder, "location", "https://www.example.com", "date", DATE_21, "cache-control", "private",
+                ":status", "302");
+        assertDecodes(decoder, "4803333037c1c0bf",
+                ":status", "307", "cache-control", "private", "date", DATE_21, "location", "https://www.example.com");
+        assertTable(decoder, ":status", "307", "location", "https://www.example.com", "date", DATE_21,
+                "cache-control", "private");
+        assertDecodes(decoder, "88c1611d4d6f6e2c203231204f637420323031332032303a31333a323220474d54c05a04677a6970"
+                + "7738666f6f3d4153444a4b48514b425a584f5157454f50495541585157454f49553b206d61782d6167653d"
+                + "333630303b2076657273696f6e3d31",
+                ":status", "200", "cache-control", "private", "date", DATE_22, "location", "https://www.example.com",
+                "content-encoding", "gzip", "set-cookie", COOKIE);
+        assertTable(decoder, "set-cookie", COOKIE, "content-encoding", "gzip", "date", DATE_22);
+    }
+
+    @Test
+    public void evictsWithHuffmanEncodedResponses() throws Http2Exception {
+        HpackDecoder decoder = new HpackDecoder(256);
+        assertDecodes(decoder, "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff6e919d29ad"
+                + "171863c78f0b97c8e9ae82ae43d3",
+                ":status", "302", "cache-control", "private", "date", DATE_21, "location", "https://www.example.com");
+        assertTable(decoder, "location", "https://www.example.com", "date", DATE_21, "cache-control", "private",
+                ":status", "302");
+        assertDecodes(decoder, "4883640effc1c0bf",
+                ":status", "307", "cache-control", "private", "date", DATE_21, "location", "https://www.example.com");
+        assertTable(decoder, ":status", "307", "location", "https://www.example.com", "date", DATE_21,
+                "cache-control", "private");
+        assertDecodes(decoder, "88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e7821dd7f2e6"
+                + "c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007",
+                ":status", "200", "cache-control", "private", "date", DATE_22, "location", "https://www.example.com",
+                "content-encoding", "gzip", "set-cookie", COOKIE);
+        assertTable(decoder, "set-cookie", COOKIE, "content-encoding", "gzip", "date", DATE_22);
+    }
+
+    @Test
+    public void appliesSizeUpdates() throws Http2Exception {
+        HpackDecoder decoder = new HpackDecoder(4096);
+        assertDecodes(decoder, "400161016240016301644001650166", "a", "b", "c", "d", "e", "f");
+        assertTable(decoder, "e", "f", "c", "d", "a", "b");
+        // shrunk to two entries of 34 bytes
+        assertDecodes(decoder, "3f25");
+        assertTable(decoder, "e", "f", "c", "d");
+        // emptied and set back, twice at the start of a block
+        assertDecodes(decoder, "203fe11f82", ":method", "GET");
+        assertTable(decoder);
+        assertDecodes(decoder, "4001610162", "a", "b");
+        assertTable(decoder, "a", "b");
+    }
+
+    @Test
+    public void rejectsMalformedBlocks() {
+        for (String[] row : REJECTED) {
+            try {
+                decode(new HpackDecoder(4096), row[1]);
+                fail(row[0] + ": decoded");
+            } catch (Http2Exception e) {
+                assertEquals(row[0], Http2Exception.COMPRESSION_ERROR, e.getErrorCode());
+                assertEquals(row[0], 0, e.getStreamId());
+            }
+        }
+    }
+}
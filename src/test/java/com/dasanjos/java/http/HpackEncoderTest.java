@@ -0,0 +1,93 @@
+package com.dasanjos.java.http;
+
+import static com.dasanjos.java.http.HuffmanTest.hex;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HpackEncoderTest {
+
+    private static final List<String> RESPONSE = Arrays.asList(":status", "200", "server", "java-WebServer",
+            "date", "Mon, 21 Oct 2013 20:13:21 GMT", "content-type", "text/html", "cache-control", "max-age=60",
+            "vary", "Accept-Encoding", "content-length", "1234", "etag", "\"4d2-1382386401000\"");
+
+    private final HpackEncoder encoder = new HpackEncoder();
+
+    private final HpackDecoder decoder = new HpackDecoder(4096);
+
+    /**
+     * Encodes the fields and decodes them again with the decoder of the
+     * other side.
+     *
+     * @return the encoded block
+     */
+    private byte[] roundTrip(List<String> fields) throws Http2Exception {
+        byte[] block = encoder.encode(fields);
+        List<String> decoded = new ArrayList<>();
+        decoder.decode(block, block.length, decoded);
+        assertEquals(fields, decoded);
+        return block;
+    }
+
+    @Test
+    public void indexesStaticFields() {
+        assertArrayEquals(hex("88"), encoder.encode(Arrays.asList(":status", "200")));
+        assertArrayEquals(hex("8c"), encoder.encode(Arrays.asList(":status", "400")));
+    }
+
+    @Test
+    public void indexesRepeatedFields() throws Http2Exception {
+        byte[] first = roundTrip(RESPONSE);
+        byte[] second = roundTrip(RESPONSE);
+        // an index byte for each field but the two never indexed, which are sent as literals again
+        for (int i = 0; i < 6; i++) {
+            assertEquals("field " + i + " indexed", 0x80, second[i] & 0x80);
+        }
+        byte[] literals = new HpackEncoder().encode(RESPONSE.subList(12, 16));
+        assertArrayEquals(literals, Arrays.copyOfRange(second, 6, second.length));
+        assertTrue(first.length + " then " + second.length, second.length < first.length / 2);
+    }
+
+    @Test
+    public void neverIndexesPerResourceFields() throws Http2Exception {
+        List<String> fields = Arrays.asList("content-length", "1234", "etag", "\"x\"", "last-modified",
+                "Mon, 21 Oct 2013 20:13:21 GMT", "content-range", "bytes 0-9/100");
+        byte[] first = roundTrip(fields);
+        assertArrayEquals(first, roundTrip(fields));
+        assertEquals("without indexing", 0x00, first[0] & 0xf0);
+    }
+
+    @Test
+    public void encodesLongValues() throws Http2Exception {
+        char[] value = new char[5000];
+        Arrays.fill(value, '~');
+        roundTrip(Arrays.asList("x-long", new String(value), "x-short", "a"));
+        roundTrip(Arrays.asList("x-long", new String(value), "x-short", "a"));
+    }
+
+    @Test
+    public void announcesSizeUpdates() throws Http2Exception {
+        encoder.setMaxTableSize(8192);
+        assertArrayEquals("capped at the default size", new byte[0], encoder.encode(new ArrayList<String>()));
+        encoder.setMaxTableSize(0);
+        encoder.setMaxTableSize(4096);
+        assertArrayEquals("smallest size first", hex("203fe11f"), roundTrip(new ArrayList<String>()));
+        encoder.setMaxTableSize(100);
+        assertArrayEquals(hex("3f45"), roundTrip(new ArrayList<String>()));
+        assertArrayEquals("nothing to announce", new byte[0], encoder.encode(new ArrayList<String>()));
+    }
+
+    @Test
+    public void evictsLikeTheDecoder() throws Http2Exception {
+        encoder.setMaxTableSize(100);
+        for (int i = 0; i < 20; i++) {
+            roundTrip(Arrays.asList("x-a", "" + i, "x-b", "" + i / 2, "x-c", "" + i / 3));
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.dasanjos.java.http;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class HpackTableTest {
+
+    private static final int STATIC_LENGTH = 61;
+
+    /**
+     * Asserts the dynamic entries, newest first, as name and value in turn.
+     */
+    private static void assertEntries(HpackTable table, String... fields) {
+        assertEquals(STATIC_LENGTH + fields.length / 2, table.length());
+        for (int i = 0; i < fields.length; i += 2) {
+            int index = STATIC_LENGTH + 1 + i / 2;
+            assertEquals(fields[i], table.name(index));
+            assertEquals(fields[i + 1], table.value(index));
+        }
+    }
+
+    @Test
+    public void indexesTheStaticTable() {
+        HpackTable table = new HpackTable(4096);
+        assertEquals(STATIC_LENGTH, table.length());
+        assertEquals(":authority", table.name(1));
+        assertEquals("", table.value(1));
+        assertEquals(":status", table.name(8));
+        assertEquals("200", table.value(8));
+        assertEquals("www-authenticate", table.name(61));
+        assertEquals(Integer.valueOf(8), HpackTable.STATIC_FIELDS.get(":status\0" + "200"));
+        assertEquals(Integer.valueOf(2), HpackTable.STATIC_NAMES.get(":method"));
+        assertEquals(Integer.valueOf(8), HpackTable.STATIC_NAMES.get(":status"));
+    }
+
+    @Test
+    public void findsTheNewestEntry() {
+        HpackTable table = new HpackTable(4096);
+        assertEquals(0, table.find("server", "a"));
+        table.add("server", "a");
+        table.add("vary", "accept");
+        table.add("server", "b");
+        assertEquals(62, table.find("server", "b"));
+        assertEquals(64, table.find("server", "a"));
+        assertEquals(63, table.find("vary", "accept"));
+        assertEquals("newest entry with the name", -62, table.find("server", "c"));
+        assertEquals(0, table.find("date", "b"));
+    }
+
+    /**
+     * The table of the responses of
+     * http://tools.ietf.org/html/rfc7541#appendix-C.5 with 256 bytes.
+     */
+    @Test
+    public void evictsTheOldestEntries() {
+        HpackTable table = new HpackTable(256);
+        table.add(":status", "302");
+        table.add("cache-control", "private");
+        table.add("date", "Mon, 21 Oct 2013 20:13:21 GMT");
+        table.add("location", "https://www.example.com");
+        assertEntries(table, "location", "https://www.example.com", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+                "cache-control", "private", ":status", "302");
+        table.add(":status", "307");
+        assertEntries(table, ":status", "307", "location", "https://www.example.com",
+                "date", "Mon, 21 Oct 2013 20:13:21 GMT", "cache-control", "private");
+        table.add("date", "Mon, 21 Oct 2013 20:13:22 GMT");
+        table.add("content-encoding", "gzip");
+        table.add("set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1");
+        assertEntries(table, "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1",
+                "content-encoding", "gzip", "date", "Mon, 21 Oct 2013 20:13:22 GMT");
+    }
+
+    @Test
+    public void emptiesForAnEntryLargerThanTheTable() {
+        HpackTable table = new HpackTable(64);
+        table.add("a", "b");
+        // 33 + 32 bytes
+        table.add("a", "0123456789012345678901234567890123");
+        assertEntries(table);
+        table.add("a", "b");
+        assertEntries(table, "a", "b");
+    }
+
+    @Test
+    public void evictsWhenShrunk() {
+        HpackTable table = new HpackTable(4096);
+        table.add("a", "1");
+        table.add("b", "2");
+        table.add("c", "3");
+        table.setMaxSize(2 * 34);
+        assertEquals(2 * 34, table.getMaxSize());
+        assertEntries(table, "c", "3", "b", "2");
+        table.setMaxSize(0);
+        assertEntries(table);
+        table.add("d", "4");
+        assertEntries(table);
+    }
+
+    @Test
+    public void keepsTheOrderWhenTheRingGrows() {
+        HpackTable table = new HpackTable(4096);
+        // wrap the ring before it grows
+        for (int i = 0; i < 10; i++) {
+            table.add("x", "" + i);
+        }
+        table.setMaxSize(34 * 3);
+        table.setMaxSize(4096);
+        for (int i = 10; i < 40; i++) {
+            table.add("x", "" + i);
+        }
+        assertEquals(STATIC_LENGTH + 33, table.length());
+        for (int i = 0; i < 33; i++) {
+            assertEquals("x", table.name(STATIC_LENGTH + 1 + i));
+            assertEquals(String.valueOf(39 - i), table.value(STATIC_LENGTH + 1 + i));
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.dasanjos.java.http;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import paris.boris.java.http.util.CacheUtils;
+
+public class HttpDateTest {
+
+    /** Tue, 14 Nov 2023 22:13:20 GMT */
+    private static final long NOV_14_2023 = 1700000000L;
+
+    /** Sun, 06 Nov 1994 08:49:37 GMT, the example of RFC 7231 */
+    private static final long NOV_6_1994 = 784111777L;
+
+    /** the same date in each format a recipient must accept */
+    private static final String[][] PARSED = {
+        {"IMF-fixdate", "Sun, 06 Nov 1994 08:49:37 GMT"},
+        {"RFC 850", "Sunday, 06-Nov-94 08:49:37 GMT"},
+        {"asctime", "Sun Nov  6 08:49:37 1994"},
+    };
+
+    /** dates that are not HTTP-dates */
+    private static final String[][] REJECTED = {
+        {"IMF-fixdate in UTC", "Sun, 06 Nov 1994 08:49:37 UTC"},
+        {"IMF-fixdate with an offset", "Sun, 06 Nov 1994 09:49:37 +0100"},
+        {"RFC 1123 with a one-digit day", "Sun, 6 Nov 1994 08:49:37 GMT"},
+        {"RFC 850 in UTC", "Sunday, 06-Nov-94 08:49:37 UTC"},
+        {"asctime with a zone", "Sun Nov  6 08:49:37 1994 GMT"},
+        {"lower case month", "Sun, 06 nov 1994 08:49:37 GMT"},
+        {"day 31 of November", "Sun, 31 Nov 1994 08:49:37 GMT"},
+        {"hour 24", "Sun, 06 Nov 1994 24:49:37 GMT"},
+        {"letter for a digit", "Sun, 06 Nov 199x 08:49:37 GMT"},
+        {"empty", ""},
+    };
+
+    private static long parse(String date) {
+        byte[] bytes = date.getBytes(StandardCharsets.ISO_8859_1);
+        return HttpDate.parse(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void parsesAllThreeFormats() {
+        for (String[] row : PARSED) {
+            assertEquals(row[0], NOV_6_1994, parse(row[1]));
+        }
+        // two-digit years are taken from 1970 to 2069
+        assertEquals("RFC 850 year 70", 0, parse("Thursday, 01-Jan-70 00:00:00 GMT"));
+        assertEquals("RFC 850 year 69", 3124224000L, parse("Tuesday, 01-Jan-69 00:00:00 GMT"));
+    }
+
+    @Test
+    public void rejectsOtherDates() {
+        for (String[] row : REJECTED) {
+            assertEquals(row[0], HttpDate.INVALID, parse(row[1]));
+        }
+    }
+
+    @Test
+    public void formatsImfFixdate() {
+        assertEquals("Tue, 14 Nov 2023 22:13:20 GMT", HttpDate.format(NOV_14_2023 * 1000 + 999));
+        assertEquals("two-digit day", "Sun, 06 Nov 1994 08:49:37 GMT", HttpDate.format(784111777000L));
+        assertEquals("Thu, 01 Jan 1970 00:00:00 GMT", HttpDate.format(0));
+    }
+
+    /**
+     * Last-Modified is sent in GMT whatever the zone of the host, and
+     * parses back to the second it was formatted from.
+     */
+    @Test
+    public void formatsLastModifiedInGmt() {
+        TimeZone zone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/Paris"));
+        try {
+            String lastModified = CacheUtils.generateLastModified(NOV_14_2023 * 1000);
+            assertEquals("Tue, 14 Nov 2023 22:13:20 GMT", lastModified);
+            assertEquals(NOV_14_2023, parse(lastModified));
+            assertEquals(NOV_14_2023, parse(HttpDate.format(NOV_14_2023 * 1000)));
+        } finally {
+            TimeZone.setDefault(zone);
+        }
+    }
+}
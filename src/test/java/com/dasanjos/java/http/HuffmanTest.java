@@ -0,0 +1,98 @@
+package com.dasanjos.java.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class HuffmanTest {
+
+    /**
+     * Strings with their encoding, from the examples of
+     * http://tools.ietf.org/html/rfc7541#appendix-C.4
+     */
+    private static final String[][] ENCODED = {
+        {"www.example.com", "f1e3c2e5f23a6ba0ab90f4ff"},
+        {"no-cache", "a8eb10649cbf"},
+        {"custom-key", "25a849e95ba97d7f"},
+        {"custom-value", "25a849e95bb8e8b4bf"},
+        {"302", "6402"},
+        {"private", "aec3771a4b"},
+        {"Mon, 21 Oct 2013 20:13:21 GMT", "d07abe941054d444a8200595040b8166e082a62d1bff"},
+        {"https://www.example.com", "9d29ad171863c78f0b97c8e9ae82ae43d3"},
+        {"", ""},
+    };
+
+    /** encoded strings that are rejected, with the reason */
+    private static final String[][] REJECTED = {
+        {"zero padding", "18", "Invalid Huffman padding"},
+        {"padding longer than 7 bits", "1fff", "Invalid Huffman padding"},
+        {"padding of a full byte", "ff", "Invalid Huffman padding"},
+        {"EOS", "ffffffff", "EOS in Huffman encoded string"},
+        {"EOS after a symbol", "07ffffffff", "EOS in Huffman encoded string"},
+    };
+
+    static byte[] hex(String s) {
+        byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static byte[] encode(byte[] data) {
+        byte[] out = new byte[Huffman.encodedLength(data)];
+        assertEquals(out.length, Huffman.encode(data, out, 0));
+        return out;
+    }
+
+    @Test
+    public void encodesTheExamples() {
+        for (String[] row : ENCODED) {
+            byte[] data = row[0].getBytes(StandardCharsets.ISO_8859_1);
+            assertArrayEquals(row[0], hex(row[1]), encode(data));
+            assertArrayEquals(row[0], data, Huffman.decode(hex(row[1]), 0, row[1].length() / 2));
+        }
+    }
+
+    @Test
+    public void roundTripsEveryOctet() {
+        byte[] data = new byte[256];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        byte[] encoded = encode(data);
+        assertArrayEquals(data, Huffman.decode(encoded, 0, encoded.length));
+        for (int i = 0; i < data.length; i++) {
+            byte[] single = Arrays.copyOfRange(data, i, i + 1);
+            encoded = encode(single);
+            assertArrayEquals("octet " + i, single, Huffman.decode(encoded, 0, encoded.length));
+        }
+    }
+
+    @Test
+    public void encodesAtAnOffset() {
+        byte[] out = new byte[8];
+        int end = Huffman.encode("302".getBytes(StandardCharsets.ISO_8859_1), out, 3);
+        assertEquals(5, end);
+        assertArrayEquals(hex("000000640200"), Arrays.copyOf(out, 6));
+        assertArrayEquals("302".getBytes(StandardCharsets.ISO_8859_1), Huffman.decode(out, 3, end));
+    }
+
+    @Test
+    public void rejectsInvalidStrings() {
+        for (String[] row : REJECTED) {
+            byte[] data = hex(row[1]);
+            try {
+                Huffman.decode(data, 0, data.length);
+                fail(row[0] + ": decoded");
+            } catch (IllegalArgumentException e) {
+                assertEquals(row[0], row[2], e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.dasanjos.java.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RequestParserTest {
+
+    private static final int MAX_REQUEST_LINE = 64;
+
+    private static final int MAX_HEADER_SIZE = 256;
+
+    private static final int MAX_BODY_SIZE = 100;
+
+    private static RequestParser parser() {
+        return new RequestParser(".", MAX_REQUEST_LINE, MAX_HEADER_SIZE, MAX_BODY_SIZE, 1024);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static HttpRequest parse(String request) throws BadRequestException {
+        byte[] data = bytes(request);
+        return parser().parse(data, data.length);
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    /**
+     * Requests that are rejected, with the status they are answered with.
+     */
+    private static final Object[][] REJECTED = {
+        {"request line too long", "GET /" + repeat('a', MAX_REQUEST_LINE) + " HTTP/1.1\r\n\r\n", Status._414},
+        {"unterminated request line too long", "GET /" + repeat('a', MAX_REQUEST_LINE), Status._414},
+        {"header block too large", "GET / HTTP/1.1\r\nX: " + repeat('a', MAX_HEADER_SIZE) + "\r\n\r\n", Status._431},
+        {"unterminated header block too large",
+            "GET / HTTP/1.1\r\n" + repeat('X', 10) + ": " + repeat('a', MAX_HEADER_SIZE), Status._431},
+        {"body too large", "POST / HTTP/1.1\r\nContent-Length: 101\r\n\r\n", Status._413},
+        {"folded header", "GET / HTTP/1.1\r\nX-A: a\r\n b\r\n\r\n", Status._400},
+        {"folded header with tab", "GET / HTTP/1.1\r\nX-A: a\r\n\tb\r\n\r\n", Status._400},
+        {"bare CR in header value", "GET / HTTP/1.1\r\nX-A: a\rb\r\n\r\n", Status._400},
+        {"bare CR ending a header line", "GET / HTTP/1.1\r\nX-A: a\r\rHost: x\r\n\r\n", Status._400},
+        {"bare CR in request line", "GET /\r HTTP/1.1\r\n\r\n", Status._400},
+        {"header without colon", "GET / HTTP/1.1\r\nHost\r\n\r\n", Status._400},
+        {"whitespace before colon", "GET / HTTP/1.1\r\nHost : x\r\n\r\n", Status._400},
+        {"empty header name", "GET / HTTP/1.1\r\n: x\r\n\r\n", Status._400},
+        {"request line without target", "GET\r\n\r\n", Status._400},
+        {"request line without version", "GET /\r\n\r\n", Status._400},
+        {"unknown protocol", "GET / FTP/1.0\r\n\r\n", Status._400},
+        {"duplicate Content-Length", "POST / HTTP/1.1\r\nContent-Length: 1\r\nContent-Length: 1\r\n\r\nx", Status._400},
+        {"non-numeric Content-Length", "POST / HTTP/1.1\r\nContent-Length: 1a\r\n\r\n", Status._400},
+        {"negative Content-Length", "POST / HTTP/1.1\r\nContent-Length: -1\r\n\r\n", Status._400},
+        {"empty Content-Length", "POST / HTTP/1.1\r\nContent-Length:\r\n\r\n", Status._400},
+        {"Content-Length with Transfer-Encoding",
+            "POST / HTTP/1.1\r\nContent-Length: 5\r\nTransfer-Encoding: chunked\r\n\r\n", Status._400},
+        {"unsupported transfer-coding", "POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\n\r\n", Status._501},
+        {"unsupported expectation", "POST / HTTP/1.1\r\nExpect: 200-ok\r\n\r\n", Status._417},
+    };
+
+    @Test
+    public void rejectsMalformedAndOversizedRequests() {
+        for (Object[] row : REJECTED) {
+            try {
+                HttpRequest request = parse((String) row[1]);
+                fail(row[0] + ": parsed as " + (request != null ? request.getUri() : "incomplete"));
+            } catch (BadRequestException e) {
+                assertEquals(row[0].toString(), row[2], e.getStatus());
+            }
+        }
+    }
+
+    @Test
+    public void rejectsMoreThanMaxHeaders() {
+        StringBuilder request = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (int i = 0; i <= RequestParser.MAX_HEADERS; i++) {
+            request.append("X-").append(i).append(": 1\r\n");
+        }
+        request.append("\r\n");
+        byte[] data = bytes(request.toString());
+        try {
+            new RequestParser(".", 8192, 1 << 20, MAX_BODY_SIZE).parse(data, data.length);
+            fail("parsed " + (RequestParser.MAX_HEADERS + 1) + " headers");
+        } catch (BadRequestException e) {
+            assertEquals(Status._431, e.getStatus());
+        }
+    }
+
+    @Test
+    public void acceptsLimitsExactly() throws BadRequestException {
+        String target = "/" + repeat('a', MAX_REQUEST_LINE - "GET  HTTP/1.1\r".length() - 1);
+        HttpRequest request = parse("GET " + target + " HTTP/1.1\r\n\r\n");
+        assertEquals(target, request.getUri());
+
+        request = parse("POST / HTTP/1.1\r\nContent-Length: 100\r\n\r\n" + repeat('b', 100));
+        assertTrue(request.isBodyFinished());
+    }
+
+    @Test
+    public void parsesRequestLineAndHeaders() throws IOException {
+        HttpRequest request = parse("GET /index.html?q=1 HTTP/1.1\r\n"
+                + "Host:  example.com \t\r\n"
+                + "accept-encoding: gzip\r\n"
+                + "X-Custom: first\r\n"
+                + "x-custom: second\r\n"
+                + "Host: other\r\n"
+                + "\r\n");
+        assertEquals(Method.GET, request.getMethod());
+        assertEquals("/index.html?q=1", request.getUri());
+        assertEquals("HTTP/1.1", request.getVersion());
+        // surrounding whitespace is trimmed, the first occurrence wins
+        assertEquals("example.com", request.getHeader(HeaderName.HOST));
+        assertEquals("example.com", request.getHeader("HOST"));
+        assertEquals("gzip", request.getHeader("Accept-Encoding"));
+        assertEquals("first", request.getHeader("X-CUSTOM"));
+        assertNull(request.getHeader("X-Missing"));
+        assertTrue(request.isBodyFinished());
+        assertEquals(-1, request.getBody().read());
+    }
+
+    @Test
+    public void acceptsBareLineFeeds() throws BadRequestException {
+        HttpRequest request = parse("GET /a HTTP/1.1\nHost: x\nX-B: y\n\n");
+        assertEquals("/a", request.getUri());
+        assertEquals("x", request.getHeader(HeaderName.HOST));
+        assertEquals("y", request.getHeader("X-B"));
+
+        // mixed line endings
+        request = parse("GET /b HTTP/1.1\r\nHost: x\n\r\n");
+        assertEquals("/b", request.getUri());
+        assertEquals("x", request.getHeader(HeaderName.HOST));
+    }
+
+    @Test
+    public void skipsEmptyLinesBeforeRequestLine() throws BadRequestException {
+        HttpRequest request = parse("\r\n\r\n\nGET /c HTTP/1.1\r\n\r\n");
+        assertEquals("/c", request.getUri());
+        assertEquals(bytes("\r\n\r\n\nGET /c HTTP/1.1\r\n\r\n").length, request.getLength());
+    }
+
+    @Test
+    public void returnsNullUntilHeaderBlockIsComplete() throws BadRequestException {
+        String request = "GET /d HTTP/1.1\r\nHost: x\r\n\r\n";
+        byte[] data = bytes(request);
+        RequestParser parser = parser();
+        for (int length = 0; length < data.length; length++) {
+            assertNull("length " + length, parser.parse(data, length));
+        }
+        assertEquals("/d", parser.parse(data, data.length).getUri());
+    }
+
+    @Test
+    public void keepsContentLengthBodyReceivedWithHeaders() throws IOException {
+        String head = "POST /e HTTP/1.1\r\nContent-Length: 5\r\n\r\n";
+        HttpRequest request = parse(head + "helloGET");
+        assertTrue(request.isBodyFinished());
+        assertEquals(bytes(head).length + 5, request.getLength());
+        assertEquals("hello", read(request.getBody()));
+    }
+
+    @Test
+    public void streamsBodiesNotReceivedWithHeaders() throws BadRequestException {
+        HttpRequest request = parse("POST /f HTTP/1.1\r\nContent-Length: 5\r\n\r\nhel");
+        assertFalse(request.isBodyFinished());
+        assertEquals(bytes("POST /f HTTP/1.1\r\nContent-Length: 5\r\n\r\n").length, request.getLength());
+
+        request = parse("POST /f HTTP/1.1\r\nTransfer-Encoding: Chunked\r\n\r\n");
+        assertFalse(request.isBodyFinished());
+    }
+
+    @Test
+    public void sendsContinueOnlyToHttp11Clients() throws BadRequestException {
+        HttpRequest request = parse("POST / HTTP/1.1\r\nExpect: 100-Continue\r\nContent-Length: 5\r\n\r\n");
+        assertTrue(request.getBody().takeContinue());
+        assertFalse("only once", request.getBody().takeContinue());
+
+        request = parse("POST / HTTP/1.0\r\nExpect: 100-continue\r\nContent-Length: 5\r\n\r\n");
+        assertFalse(request.getBody().takeContinue());
+
+        request = parse("POST / HTTP/1.1\r\nContent-Length: 5\r\n\r\n");
+        assertFalse(request.getBody().takeContinue());
+    }
+
+    private static final String PIPELINE = "GET /one HTTP/1.1\r\nHost: x\r\n\r\n"
+            + "POST /two HTTP/1.1\r\nContent-Length: 11\r\n\r\nhello world"
+            + "POST /three HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+            + "5;ext=1\r\nchunk\r\n7\r\ned body\r\n0\r\nTrailer: t\r\n\r\n"
+            + "\r\nGET /four HTTP/1.1\nHost: y\n\n";
+
+    /**
+     * Feeds the pipelined requests in slices of every size, the way a
+     * connection receives them: the parsed request is removed from the front
+     * of the buffer, the bytes of a streamed body are offered to it.
+     */
+    @Test
+    public void parsesPipelinedRequestsSplitAcrossReads() throws IOException {
+        byte[] input = bytes(PIPELINE);
+        for (int slice = 1; slice <= input.length; slice++) {
+            List<String> parsed = feed(input, slice);
+            assertEquals("slice " + slice,
+                    Arrays.asList("/one:", "/two:hello world", "/three:chunked body", "/four:"), parsed);
+        }
+    }
+
+    private static List<String> feed(byte[] input, int slice) throws IOException {
+        RequestParser parser = parser();
+        ByteBuffer in = ByteBuffer.allocate(input.length);
+        List<String> parsed = new ArrayList<>();
+        HttpRequest streamed = null;
+        for (int offset = 0; offset < input.length; offset += slice) {
+            in.put(input, offset, Math.min(slice, input.length - offset));
+            while (true) {
+                if (streamed != null) {
+                    in.flip();
+                    streamed.getBody().offer(in);
+                    in.compact();
+                    if (!streamed.isBodyFinished()) {
+                        break;
+                    }
+                    parsed.add(streamed.getUri() + ":" + read(streamed.getBody()));
+                    streamed = null;
+                }
+                HttpRequest request = parser.parse(in.array(), in.position());
+                if (request == null) {
+                    break;
+                }
+                in.flip();
+                in.position(request.getLength());
+                in.compact();
+                if (request.isBodyFinished()) {
+                    parsed.add(request.getUri() + ":" + read(request.getBody()));
+                } else {
+                    streamed = request;
+                }
+            }
+        }
+        assertNull("incomplete body", streamed);
+        assertEquals("bytes left", 0, in.position());
+        return parsed;
+    }
+
+    private static String read(RequestBody body) throws IOException {
+        byte[] buffer = new byte[256];
+        int length = 0;
+        int count;
+        while ((count = body.read(buffer, length, buffer.length - length)) > 0) {
+            length += count;
+        }
+        return new String(buffer, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    public void parsesIfModifiedSinceInAllDateFormats() throws BadRequestException {
+        long modified = 784111777000L; // Sun, 06 Nov 1994 08:49:37 GMT
+        String[] dates = {"Sun, 06 Nov 1994 08:49:37 GMT", "Sunday, 06-Nov-94 08:49:37 GMT", "Sun Nov  6 08:49:37 1994"};
+        for (String date : dates) {
+            HttpRequest request = parse("GET / HTTP/1.1\r\nIf-Modified-Since: " + date + "\r\n\r\n");
+            assertFalse(date, request.ifModifiedSince(modified));
+            assertFalse(date + " within the second", request.ifModifiedSince(modified + 999));
+            assertFalse(date + " earlier", request.ifModifiedSince(modified - 1000));
+            assertTrue(date + " later", request.ifModifiedSince(modified + 1000));
+        }
+        assertTrue(parse("GET / HTTP/1.1\r\nIf-Modified-Since: yesterday\r\n\r\n").ifModifiedSince(modified));
+        assertTrue(parse("GET / HTTP/1.1\r\nIf-Modified-Since: Sun, 32 Nov 1994 08:49:37 GMT\r\n\r\n")
+                .ifModifiedSince(modified));
+        assertTrue(parse("GET / HTTP/1.1\r\n\r\n").ifModifiedSince(modified));
+    }
+
+    @Test
+    public void matchesEntityTagLists() throws BadRequestException {
+        HttpRequest request = parse("GET / HTTP/1.1\r\nIf-None-Match: \"a\" , \"b\",\"c\"\r\nIf-Match: *\r\n\r\n");
+        assertTrue(request.ifNoneMatch("\"b\""));
+        assertTrue(request.ifNoneMatch("\"c\""));
+        assertFalse(request.ifNoneMatch("\"d\""));
+        assertFalse(request.isIfNoneMatchWildcard());
+        assertTrue(request.isIfMatchWildcard());
+        assertArrayEquals(bytes("\"a\" , \"b\",\"c\""), bytes(request.getHeader(HeaderName.IF_NONE_MATCH)));
+    }
+}
@@ -0,0 +1,89 @@
+package com.dasanjos.java.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import paris.boris.java.http.util.CacheUtils;
+
+/**
+ * Conditional requests for a file of the docroot
+ * http://tools.ietf.org/html/rfc7232#section-6
+ */
+public class StaticFileHandlerTest {
+
+    /** Tue, 14 Nov 2023 22:13:20 GMT */
+    private static final long LAST_MODIFIED = 1700000000000L;
+
+    private static final String DATE = "Tue, 14 Nov 2023 22:13:20 GMT";
+
+    private static final String EARLIER = "Tue, 14 Nov 2023 22:13:19 GMT";
+
+    private static final String LATER = "Wed, 15 Nov 2023 00:00:00 GMT";
+
+    @Rule
+    public TemporaryFolder docroot = new TemporaryFolder();
+
+    private String etag;
+
+    @Before
+    public void createFile() throws IOException {
+        File file = docroot.newFile("image.png");
+        Files.write(file.toPath(), "not really a png".getBytes(StandardCharsets.ISO_8859_1));
+        assertTrue(file.setLastModified(LAST_MODIFIED));
+        etag = CacheUtils.getMetadata(file).getETag();
+    }
+
+    private Status get(String... headers) throws IOException {
+        StringBuilder request = new StringBuilder("GET /image.png HTTP/1.1\r\nHost: localhost\r\n");
+        for (String header : headers) {
+            request.append(header).append("\r\n");
+        }
+        byte[] data = request.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+        HttpRequest req = new RequestParser(docroot.getRoot().getPath(), 8192, 8192, 1024, 1024)
+                .parse(data, data.length);
+        HttpResponse res = new HttpResponse(req);
+        if (res.getStatus() != Status._304) {
+            assertTrue(res.headers.contains("Last-Modified: " + DATE));
+        }
+        return res.getStatus();
+    }
+
+    @Test
+    public void answersIfModifiedSince() throws IOException {
+        assertEquals(Status._200, get());
+        assertEquals("same date", Status._304, get("If-Modified-Since: " + DATE));
+        assertEquals("later date", Status._304, get("If-Modified-Since: " + LATER));
+        assertEquals("earlier date", Status._200, get("If-Modified-Since: " + EARLIER));
+        assertEquals("RFC 850 date", Status._304, get("If-Modified-Since: Tuesday, 14-Nov-23 22:13:20 GMT"));
+        assertEquals("asctime date", Status._304, get("If-Modified-Since: Tue Nov 14 22:13:20 2023"));
+        assertEquals("invalid date ignored", Status._200, get("If-Modified-Since: " + DATE.replace("GMT", "UTC")));
+    }
+
+    @Test
+    public void answersIfNoneMatch() throws IOException {
+        assertEquals(Status._304, get("If-None-Match: " + etag));
+        assertEquals(Status._304, get("If-None-Match: \"other\", " + etag));
+        assertEquals(Status._304, get("If-None-Match: *"));
+        assertEquals(Status._200, get("If-None-Match: \"other\""));
+    }
+
+    @Test
+    public void evaluatesIfNoneMatchBeforeIfModifiedSince() throws IOException {
+        assertEquals("matching tag, modified since", Status._304,
+                get("If-None-Match: " + etag, "If-Modified-Since: " + EARLIER));
+        assertEquals("other tag, not modified since", Status._200,
+                get("If-None-Match: \"other\"", "If-Modified-Since: " + LATER));
+        assertEquals("order of the headers", Status._200,
+                get("If-Modified-Since: " + DATE, "If-None-Match: \"other\""));
+    }
+}
@@ -0,0 +1,110 @@
+package paris.boris.java.http.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DocrootIndexTest {
+
+    /** how long the watcher thread gets to apply a change */
+    private static final long WATCH_TIMEOUT = 10000;
+
+    @Rule
+    public TemporaryFolder docroot = new TemporaryFolder();
+
+    private DocrootIndex index;
+
+    @Before
+    public void buildIndex() throws IOException {
+        docroot.newFolder("docs");
+        docroot.newFile("docs/a.txt");
+        docroot.newFile("index.html");
+        index = DocrootIndex.build(docroot.getRoot().getPath(), 2);
+        assertNotNull(index);
+    }
+
+    private interface Condition {
+        boolean holds() throws IOException;
+    }
+
+    private static void await(String name, Condition condition) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + WATCH_TIMEOUT;
+        while (!condition.holds()) {
+            assertTrue(name, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void indexesTheDocroot() throws IOException {
+        assertEquals(4, index.size());
+        assertTrue(index.get("/").isDirectory());
+        assertTrue(index.get("/docs").isDirectory());
+        assertFalse(index.get("/docs/a.txt").isDirectory());
+        assertNotNull(index.get("/index.html"));
+        assertNull(index.get("/missing.html"));
+    }
+
+    @Test
+    public void appliesChanges() throws IOException, InterruptedException {
+        Files.write(new File(docroot.getRoot(), "docs/b.txt").toPath(), new byte[3]);
+        await("created file", () -> index.get("/docs/b.txt") != null);
+        docroot.newFolder("docs", "sub");
+        docroot.newFile("docs/sub/c.txt");
+        await("file in created directory", () -> index.get("/docs/sub/c.txt") != null);
+        Files.delete(new File(docroot.getRoot(), "index.html").toPath());
+        await("deleted file", () -> index.get("/index.html") == null);
+    }
+
+    @Test
+    public void forgetsTheMetadataOfDeletedFiles() throws IOException, InterruptedException {
+        DocrootIndex.Entry entry = index.get("/docs/a.txt");
+        CacheUtils.getMetadata(entry.getFile(), entry.getLastModified(), entry.getSize());
+        assertTrue(CacheUtils.hasMetadata(entry.getFile()));
+        Files.delete(entry.getFile().toPath());
+        await("metadata of deleted file", () -> !CacheUtils.hasMetadata(entry.getFile()));
+    }
+
+    @Test
+    public void reportsWhichDirectoriesItWatches() {
+        Path root = index.getRoot();
+        assertTrue(index.isWatched(root));
+        assertTrue(index.isWatched(root.resolve("docs")));
+        assertFalse("a file", index.isWatched(root.resolve("index.html")));
+        assertFalse("not indexed", index.isWatched(root.resolve("missing")));
+        assertFalse("outside the docroot", index.isWatched(Paths.get("/")));
+    }
+
+    /**
+     * A listing cache on top of the index drops the listing of a directory
+     * once the index reports an entry created in it.
+     */
+    @Test
+    public void invalidatesListingsThroughTheIndex() throws IOException, InterruptedException {
+        DirectoryListingCache cache = new DirectoryListingCache(1024 * 1024, 100, index);
+        assertTrue(cache.isEnabled());
+        Path docs = index.get("/docs").getFile().toPath();
+        DirectoryListing listing = cache.get(docs, "/docs/");
+        assertSame(listing, cache.get(docs, "/docs/"));
+        assertEquals(1, cache.getHits());
+
+        docroot.newFile("docs/new.txt");
+        await("listing invalidated", () -> cache.getInvalidations() == 1);
+        DirectoryListing changed = cache.get(docs, "/docs/");
+        assertTrue(new String(changed.getContent(), "UTF-8").contains("new.txt"));
+    }
+}